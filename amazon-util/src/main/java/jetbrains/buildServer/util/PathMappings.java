@@ -16,83 +16,437 @@
 
 package jetbrains.buildServer.util;
 
-import jetbrains.buildServer.util.pathMatcher.AntPatternFileCollector;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.util.Collections;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
+ * Path mapping rules are compiled once, files are collected and mapped in a single directory walk,
+ * which may list the directories concurrently.
+ *
  * @author vbedrosova
  */
 public class PathMappings {
+  private static final boolean CASE_SENSITIVE = File.separatorChar == '/';
+  private static final int MAX_PREFETCHED_LISTINGS_PER_THREAD = 16;
+
   @NotNull
   private final File myBaseDir;
   @NotNull
-  private final Map<String, String> myPathMappings;
+  private final List<Rule> myIncludes = new ArrayList<Rule>();
+  @NotNull
+  private final List<Rule> myExcludes = new ArrayList<Rule>();
 
   public PathMappings(@NotNull File baseDir, @NotNull Map<String, String> pathMappings) {
     myBaseDir = baseDir;
-    myPathMappings = pathMappings;
+    for (Map.Entry<String, String> m : pathMappings.entrySet()) {
+      final String key = m.getKey();
+      if (key.startsWith("-:")) {
+        myExcludes.add(new Rule(key.substring(2), m.getValue()));
+      } else {
+        myIncludes.add(new Rule(key.startsWith("+:") ? key.substring(2) : key, m.getValue()));
+      }
+    }
+    if (myIncludes.isEmpty()) {
+      // include all if no rules
+      myIncludes.add(new Rule("**", StringUtil.EMPTY));
+    }
+  }
+
+  public interface Visitor<E extends Throwable> {
+    void visit(@NotNull File file, @NotNull String path) throws E;
   }
 
   @NotNull
   public List<File> collectFiles() {
-    return doCollectFiles(myPathMappings.keySet());
+    final List<File> files = new ArrayList<File>();
+    collectFiles(new Visitor<RuntimeException>() {
+      @Override
+      public void visit(@NotNull File file, @NotNull String path) {
+        files.add(file);
+      }
+    });
+    return files;
   }
 
+  /**
+   * Walks the base directory once passing the matching files along with their mapped paths to the visitor.
+   * Symlinked directories are not followed, the order is stable for the same directory content.
+   */
+  public <E extends Throwable> void collectFiles(@NotNull Visitor<E> visitor) throws E {
+    final Cursor cursor = cursor();
+    try {
+      while (cursor.next()) {
+        visitor.visit(cursor.getFile(), cursor.getPath());
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Same walk as {@link #collectFiles(Visitor)} performed step by step on demand,
+   * only the listings of the directories on the current path are held in memory
+   */
   @NotNull
-  private List<File> doCollectFiles(@NotNull Set<String> paths) {
-    return AntPatternFileCollector.scanDir(myBaseDir, CollectionsUtil.toStringArray(paths), new AntPatternFileCollector.ScanOption[]{AntPatternFileCollector.ScanOption.NOT_FOLLOW_SYMLINK_DIRS, AntPatternFileCollector.ScanOption.INCLUDE_ALL_IF_NO_RULES});
+  public Cursor cursor() {
+    return cursor(1);
   }
 
-  private boolean matches(@NotNull String rule, @NotNull File file) {
-    return doCollectFiles(Collections.<String>singleton(rule)).contains(file);
+  /**
+   * Same as {@link #cursor()}, but the directories ahead of the current one are listed and their children are
+   * checked concurrently, which helps on the file systems with high latency. The order of the files is the same.
+   * The number of the listings done in advance is limited, the cursor must be closed to release the threads.
+   */
+  @NotNull
+  public Cursor cursor(int threads) {
+    return new Cursor(threads);
+  }
+
+  public final class Cursor {
+    @Nullable
+    private final ExecutorService myExecutor;
+    @NotNull
+    private final Semaphore myPrefetchBudget;
+    @NotNull
+    private final LinkedList<Listing> myListings = new LinkedList<Listing>();
+    @Nullable
+    private File myFile;
+    @Nullable
+    private String myPath;
+
+    private Cursor(int threads) {
+      myExecutor = threads > 1 ? createExecutor(threads) : null;
+      myPrefetchBudget = new Semaphore(threads > 1 ? threads * MAX_PREFETCHED_LISTINGS_PER_THREAD : 0);
+      myListings.add(list(myBaseDir, StringUtil.EMPTY));
+    }
+
+    /**
+     * Moves to the next matching file
+     *
+     * @return false if there are no more files
+     */
+    public boolean next() {
+      while (!myListings.isEmpty()) {
+        final Listing listing = myListings.getLast();
+        if (listing.isConsumed()) {
+          myListings.removeLast();
+          continue;
+        }
+        final Child child = listing.nextChild();
+        if (child.getPrefetched() != null) {
+          myListings.add(get(child.getPrefetched(), child));
+        } else if (child.isWalked()) {
+          myListings.add(list(child.getFile(), child.getRelativePath()));
+        } else if (child.isIncluded()) {
+          myFile = child.getFile();
+          myPath = doMapPath(child.getRelativePath(), child.getFile().getName());
+          return true;
+        }
+      }
+      myFile = null;
+      myPath = null;
+      return false;
+    }
+
+    @NotNull
+    public File getFile() {
+      if (myFile == null) throw new IllegalStateException("No current file");
+      return myFile;
+    }
+
+    @NotNull
+    public String getPath() {
+      if (myPath == null) throw new IllegalStateException("No current file");
+      return myPath;
+    }
+
+    /**
+     * Stops listing directories in advance
+     */
+    public void close() {
+      if (myExecutor != null) myExecutor.shutdownNow();
+    }
+
+    /**
+     * Lists the directory and checks its children, the directories to walk are listed in advance if the budget allows
+     */
+    @NotNull
+    private Listing list(@NotNull File dir, @NotNull String relativeDir) {
+      final File[] files = dir.listFiles();
+      if (files == null) return new Listing(new Child[0]);
+      Arrays.sort(files);
+
+      final Child[] children = new Child[files.length];
+      for (int i = 0; i < files.length; ++i) {
+        final File file = files[i];
+        final String relativePath = relativeDir.length() == 0 ? file.getName() : relativeDir + "/" + file.getName();
+        if (file.isDirectory()) {
+          final boolean walked = mayContainMatches(relativePath) && !isSymlink(file);
+          children[i] = new Child(file, relativePath, walked, false, walked ? prefetch(file, relativePath) : null);
+        } else {
+          children[i] = new Child(file, relativePath, false, isIncluded(relativePath), null);
+        }
+      }
+      return new Listing(children);
+    }
+
+    @Nullable
+    private Future<Listing> prefetch(@NotNull final File dir, @NotNull final String relativeDir) {
+      if (myExecutor == null || !myPrefetchBudget.tryAcquire()) return null;
+      try {
+        return myExecutor.submit(new Callable<Listing>() {
+          @Override
+          public Listing call() {
+            return list(dir, relativeDir);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // closed
+        myPrefetchBudget.release();
+        return null;
+      }
+    }
+
+    @NotNull
+    private Listing get(@NotNull Future<Listing> prefetched, @NotNull Child child) {
+      try {
+        return prefetched.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        prefetched.cancel(true);
+        return list(child.getFile(), child.getRelativePath());
+      } catch (CancellationException e) {
+        return list(child.getFile(), child.getRelativePath());
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        throw new IllegalStateException(cause);
+      } finally {
+        myPrefetchBudget.release();
+      }
+    }
+  }
+
+  @NotNull
+  private static ExecutorService createExecutor(int threads) {
+    final AtomicInteger counter = new AtomicInteger();
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread t = new Thread(r, "Path mappings walk " + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    // the threads aren't kept if the cursor isn't closed
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static final class Listing {
+    @NotNull
+    private final Child[] myChildren;
+    private int myNext;
+
+    Listing(@NotNull Child[] children) {
+      myChildren = children;
+    }
+
+    boolean isConsumed() {
+      return myNext == myChildren.length;
+    }
+
+    @NotNull
+    Child nextChild() {
+      return myChildren[myNext++];
+    }
+  }
+
+  private static final class Child {
+    @NotNull
+    private final File myFile;
+    @NotNull
+    private final String myRelativePath;
+    private final boolean myWalked;
+    private final boolean myIncluded;
+    @Nullable
+    private final Future<Listing> myPrefetched;
+
+    Child(@NotNull File file, @NotNull String relativePath, boolean walked, boolean included, @Nullable Future<Listing> prefetched) {
+      myFile = file;
+      myRelativePath = relativePath;
+      myWalked = walked;
+      myIncluded = included;
+      myPrefetched = prefetched;
+    }
+
+    @NotNull
+    File getFile() {
+      return myFile;
+    }
+
+    @NotNull
+    String getRelativePath() {
+      return myRelativePath;
+    }
+
+    /**
+     * Directory which may contain matching files and is not a symlink
+     */
+    boolean isWalked() {
+      return myWalked;
+    }
+
+    /**
+     * File matching the rules
+     */
+    boolean isIncluded() {
+      return myIncluded;
+    }
+
+    @Nullable
+    Future<Listing> getPrefetched() {
+      return myPrefetched;
+    }
   }
 
   @Nullable
   public String mapPath(@NotNull File f) {
-    String relativePath = FileUtil.getRelativePath(myBaseDir, f);
+    final String relativePath = FileUtil.getRelativePath(myBaseDir, f);
 
     if (relativePath == null) return null;
 
-    relativePath = FileUtil.toSystemIndependentName(relativePath);
+    return doMapPath(FileUtil.toSystemIndependentName(relativePath), f.getName());
+  }
 
-    String result = null;
-    for (Map.Entry<String, String> m : myPathMappings.entrySet()) {
-      if (m.getKey().startsWith("-:")) continue;
+  /**
+   * Checks without walking the directories whether some file may be mapped to the given path:
+   * only the files the rules could map to it are looked at. For the wildcard rules mapping the part
+   * following a literal, the directories preceding it are not listed, so such a rule is considered
+   * to map some file to the path if a sample path built from the rule matches it.
+   *
+   * @return false if no file is mapped to the path, true if some file may be
+   */
+  public boolean mayMapTo(@NotNull String path) {
+    final List<String> candidates = new ArrayList<String>();
+    candidates.add(path);
+    for (Rule rule : myIncludes) {
+      final String to = rule.getTo();
+      if (StringUtil.isNotEmpty(to) && !path.startsWith(to + "/")) continue;
+      final String suffix = StringUtil.isEmpty(to) ? path : path.substring(to.length() + 1);
 
-      final String from = m.getKey().startsWith("+:") ? m.getKey().substring(2) : m.getKey();
-      if (relativePath.equals(from)) return doMap(f.getName(), m.getValue());
+      if (rule.isWildcard()) {
+        final String withoutWildcards = rule.getWithoutWildcards();
+        if (StringUtil.isEmpty(withoutWildcards)) {
+          candidates.add(suffix);
+          continue;
+        }
+        // the path is mapped from the part following the last occurrence of the rule literal,
+        // the part preceding it is unknown, so the rule is checked against the sample one
+        final int literal = rule.getFrom().lastIndexOf(withoutWildcards);
+        if (literal < 0 || rule.matches(rule.getFrom().substring(0, literal).replaceAll("\\*+|\\?", "x") + withoutWildcards + suffix)) return true;
+      } else {
+        candidates.add(rule.getFrom());
+        candidates.add(rule.getFrom() + suffix);
+      }
+    }
+    for (String candidate : candidates) {
+      final File file = new File(myBaseDir, candidate);
+      if (file.isFile() && isIncluded(candidate) && path.equals(doMapPath(candidate, file.getName()))) return true;
+    }
+    return false;
+  }
+
+  @NotNull
+  private String doMapPath(@NotNull String relativePath, @NotNull String name) {
+    String result = null;
+    for (Rule rule : myIncludes) {
+      final String from = rule.getFrom();
+      if (relativePath.equals(from)) return doMap(name, rule.getTo());
 
       if (relativePath.startsWith(from)) {
-        result = doMap(relativePath.substring(StringUtil.commonPrefix(relativePath, from).length()), m.getValue());
+        result = doMap(relativePath.substring(StringUtil.commonPrefix(relativePath, from).length()), rule.getTo());
         continue;
       }
 
-      if (isWildcard(from) && matches(from, f)) {
-        final String withoutWildcards = removeWildcards(from);
+      if (rule.isWildcard() && rule.matches(relativePath)) {
+        final String withoutWildcards = rule.getWithoutWildcards();
         result = doMap(
           StringUtil.isEmpty(withoutWildcards) ?
             relativePath :
             relativePath.substring(relativePath.lastIndexOf(withoutWildcards) + withoutWildcards.length()),
-          m.getValue());
+          rule.getTo());
       }
     }
     return result == null ? relativePath : result;
   }
 
+  /**
+   * Same precedence as in AntPatternFileCollector: the most specific matching rule, the one with the deepest literal
+   * directory, wins, an exclude rule wins over the equally specific include one
+   */
+  private boolean isIncluded(@NotNull String relativePath) {
+    final int include = getMaxDepth(myIncludes, relativePath);
+    return include >= 0 && include > getMaxDepth(myExcludes, relativePath);
+  }
+
+  private boolean mayContainMatches(@NotNull String relativeDir) {
+    // an exclude rule matching the directory matches all its content, unless a more specific include rule re-includes some
+    final int exclude = getMaxDepth(myExcludes, relativeDir);
+
+    final String dirPrefix = relativeDir + "/";
+    for (Rule rule : myIncludes) {
+      final String prefix = rule.getLiteralPrefix();
+      if ((startsWith(dirPrefix, prefix) || startsWith(prefix, dirPrefix)) && rule.getDepth() > exclude) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return depth of the most specific rule matching the path or -1 if none matches
+   */
+  private static int getMaxDepth(@NotNull List<Rule> rules, @NotNull String relativePath) {
+    int res = -1;
+    for (Rule rule : rules) {
+      if (rule.getDepth() > res && rule.matches(relativePath)) res = rule.getDepth();
+    }
+    return res;
+  }
+
+  private static boolean startsWith(@NotNull String s, @NotNull String prefix) {
+    return s.regionMatches(!CASE_SENSITIVE, 0, prefix, 0, prefix.length());
+  }
+
+  private static boolean isSymlink(@NotNull File dir) {
+    try {
+      final File parent = dir.getParentFile();
+      if (parent == null) return false;
+      final File inCanonicalParent = new File(parent.getCanonicalFile(), dir.getName());
+      return !inCanonicalParent.getCanonicalFile().equals(inCanonicalParent.getAbsoluteFile());
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
   @NotNull
-  private String doMap(@NotNull String path, @NotNull String dest) {
+  private static String doMap(@NotNull String path, @NotNull String dest) {
     return (StringUtil.isEmpty(dest) ? StringUtil.EMPTY : dest + "/") + path;
   }
 
   @NotNull
-  private String removeWildcards(@NotNull String path) {
+  private static String removeWildcards(@NotNull String path) {
     final int lastMark = Math.max(path.lastIndexOf('*'), path.lastIndexOf('?'));
     if (lastMark < 0) return path;
 
@@ -107,4 +461,128 @@ public class PathMappings {
   public static boolean isWildcard(@NotNull String path) {
     return path.contains("*") || path.contains("?");
   }
+
+  private static final class Rule {
+    @NotNull
+    private final String myFrom;
+    @NotNull
+    private final String myTo;
+    private final boolean myWildcard;
+    @NotNull
+    private final String myWithoutWildcards;
+    @NotNull
+    private final String myLiteralPrefix;
+    private final int myDepth;
+    @NotNull
+    private final Pattern myPattern;
+
+    Rule(@NotNull String from, @NotNull String to) {
+      myFrom = from;
+      myTo = to;
+      myWildcard = PathMappings.isWildcard(from);
+      myWithoutWildcards = myWildcard ? removeWildcards(from) : from;
+      myLiteralPrefix = getLiteralPrefix(from);
+      myDepth = getDepth(myLiteralPrefix);
+      myPattern = compile(from);
+    }
+
+    @NotNull
+    String getFrom() {
+      return myFrom;
+    }
+
+    @NotNull
+    String getTo() {
+      return myTo;
+    }
+
+    boolean isWildcard() {
+      return myWildcard;
+    }
+
+    @NotNull
+    String getWithoutWildcards() {
+      return myWithoutWildcards;
+    }
+
+    /**
+     * Directory part of the rule preceding the first wildcard
+     */
+    @NotNull
+    String getLiteralPrefix() {
+      return myLiteralPrefix;
+    }
+
+    /**
+     * Number of the literal path elements preceding the first wildcard, the deeper the rule the more specific it is
+     */
+    int getDepth() {
+      return myDepth;
+    }
+
+    /**
+     * Ant-like matching: a rule matches the path itself and everything under it
+     */
+    boolean matches(@NotNull String relativePath) {
+      return myPattern.matcher(relativePath).matches();
+    }
+
+    @NotNull
+    private static String getLiteralPrefix(@NotNull String from) {
+      int firstMark = from.length();
+      for (int i = 0; i < from.length(); ++i) {
+        final char c = from.charAt(i);
+        if (c == '*' || c == '?') {
+          firstMark = i;
+          break;
+        }
+      }
+      if (firstMark == from.length()) return from;
+      return from.substring(0, from.lastIndexOf('/', firstMark) + 1);
+    }
+
+    private static int getDepth(@NotNull String literalPrefix) {
+      int depth = 0;
+      for (String element : literalPrefix.split("/")) {
+        if (element.length() > 0) ++depth;
+      }
+      return depth;
+    }
+
+    @NotNull
+    private static Pattern compile(@NotNull String from) {
+      final String rule = from.endsWith("/") ? from + "**" : from;
+      final StringBuilder sb = new StringBuilder();
+      final StringBuilder literal = new StringBuilder();
+      for (int i = 0; i < rule.length(); ++i) {
+        final char c = rule.charAt(i);
+        if (c != '*' && c != '?') {
+          literal.append(c);
+          continue;
+        }
+        if (literal.length() > 0) {
+          sb.append(Pattern.quote(literal.toString()));
+          literal.setLength(0);
+        }
+        if (c == '?') {
+          sb.append("[^/]");
+        } else if (i + 1 < rule.length() && rule.charAt(i + 1) == '*') {
+          if (i + 2 < rule.length() && rule.charAt(i + 2) == '/') {
+            sb.append("(?:.*/)?");
+            i += 2;
+          } else {
+            sb.append(".*");
+            ++i;
+          }
+        } else {
+          sb.append("[^/]*");
+        }
+      }
+      if (literal.length() > 0) {
+        sb.append(Pattern.quote(literal.toString()));
+      }
+      sb.append("(?:/.*)?");
+      return Pattern.compile(sb.toString(), CASE_SENSITIVE ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+  }
 }
@@ -21,31 +21,56 @@ import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.*;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.codebuild.AWSCodeBuildClient;
+import com.amazonaws.services.codedeploy.AmazonCodeDeploy;
 import com.amazonaws.services.codedeploy.AmazonCodeDeployClient;
+import com.amazonaws.services.codedeploy.AmazonCodeDeployClientBuilder;
 import com.amazonaws.services.codepipeline.AWSCodePipelineClient;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClient;
 import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
 import com.amazonaws.services.securitytoken.model.Credentials;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.version.ServerVersionHolder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author vbedrosova
  */
 public class AWSClients {
 
+  public static final String CLIENTS_CACHE_ENABLED = "amazon.clients.cache.enabled";
+  public static final String CLIENTS_CACHE_MAX_SIZE = "amazon.clients.cache.max.size";
+  public static final int DEFAULT_CLIENTS_CACHE_MAX_SIZE = 32;
+  public static final String CLIENTS_CACHE_TTL_SEC = "amazon.clients.cache.ttl.sec";
+  public static final int DEFAULT_CLIENTS_CACHE_TTL_SEC = 300;
+  public static final String SESSION_CREDENTIALS_CACHE_ENABLED = "amazon.sts.credentials.cache.enabled";
+  public static final String SESSION_CREDENTIALS_REFRESH_BEFORE_SEC = "amazon.sts.credentials.refresh.before.sec";
+  public static final int DEFAULT_SESSION_CREDENTIALS_REFRESH_BEFORE_SEC = 300;
+
+  private static AWSClientsCache ourClientsCache;
+  private static SessionCredentialsCache ourSessionCredentialsCache;
+
   @Nullable private final AWSCredentials myCredentials;
+  @NotNull private final String myCredentialsIdentity;
+  @NotNull private final List<AWSClientsCache.Lease<?>> myLeases = new ArrayList<AWSClientsCache.Lease<?>>();
   @Nullable private String myServiceEndpoint;
+  @Nullable private String myCodeDeployEndpoint;
   @Nullable private String myS3SignerType;
   @NotNull private final String myRegion;
   @NotNull private final ClientConfiguration myClientConfiguration;
 
-  private AWSClients(@Nullable AWSCredentials credentials, @NotNull String region) {
+  private AWSClients(@Nullable AWSCredentials credentials, @NotNull String credentialsIdentity, @NotNull String region) {
     myCredentials = credentials;
+    myCredentialsIdentity = credentialsIdentity;
     myRegion = region;
     myClientConfiguration = createClientConfiguration();
   }
@@ -57,16 +82,16 @@ public class AWSClients {
 
   @NotNull
   public static AWSClients fromDefaultCredentialProviderChain(@NotNull String region) {
-    return fromExistingCredentials(null, region);
+    return fromExistingCredentials(null, "default", region);
   }
   @NotNull
   public static AWSClients fromBasicCredentials(@NotNull String accessKeyId, @NotNull String secretAccessKey, @NotNull String region) {
-    return fromExistingCredentials(new BasicAWSCredentials(accessKeyId, secretAccessKey), region);
+    return fromExistingCredentials(new BasicAWSCredentials(accessKeyId, secretAccessKey), identity("basic", accessKeyId, secretAccessKey), region);
   }
 
   @NotNull
   public static AWSClients fromBasicSessionCredentials(@NotNull String accessKeyId, @NotNull String secretAccessKey, @NotNull String sessionToken, @NotNull String region) {
-    return fromExistingCredentials(new BasicSessionCredentials(accessKeyId, secretAccessKey, sessionToken), region);
+    return fromExistingCredentials(new BasicSessionCredentials(accessKeyId, secretAccessKey, sessionToken), identity("session", accessKeyId, secretAccessKey, sessionToken), region);
   }
 
   @NotNull
@@ -74,10 +99,11 @@ public class AWSClients {
                                                   @NotNull final String iamRoleARN, @Nullable final String externalID,
                                                   @NotNull final String sessionName, final int sessionDuration,
                                                   @NotNull final String region) {
-    return fromExistingCredentials(new LazyCredentials() {
+    final String sourceIdentity = identity("basic", accessKeyId, secretAccessKey);
+    return fromSessionCredentials(new LazyCredentials(identity("role", iamRoleARN, externalID, sourceIdentity, sessionName, String.valueOf(sessionDuration))) {
       @NotNull
       @Override
-      protected AWSSessionCredentials createCredentials() {
+      protected SessionCredentialsCache.SessionCredentials createCredentials() {
         return AWSClients.fromBasicCredentials(accessKeyId, secretAccessKey, region).createSessionCredentials(iamRoleARN, externalID, sessionName, sessionDuration);
       }
     }, region);
@@ -87,18 +113,23 @@ public class AWSClients {
   public static AWSClients fromSessionCredentials(@NotNull final String iamRoleARN, @Nullable final String externalID,
                                                   @NotNull final String sessionName, final int sessionDuration,
                                                   @NotNull final String region) {
-    return fromExistingCredentials(new LazyCredentials() {
+    return fromSessionCredentials(new LazyCredentials(identity("role", iamRoleARN, externalID, "default", sessionName, String.valueOf(sessionDuration))) {
       @NotNull
       @Override
-      protected AWSSessionCredentials createCredentials() {
+      protected SessionCredentialsCache.SessionCredentials createCredentials() {
         return AWSClients.fromDefaultCredentialProviderChain(region).createSessionCredentials(iamRoleARN, externalID, sessionName, sessionDuration);
       }
     }, region);
   }
 
   @NotNull
-  private static AWSClients fromExistingCredentials(@Nullable AWSCredentials credentials, @NotNull String region) {
-    return new AWSClients(credentials, region);
+  private static AWSClients fromSessionCredentials(@NotNull LazyCredentials credentials, @NotNull String region) {
+    return fromExistingCredentials(credentials, credentials.getKey(), region);
+  }
+
+  @NotNull
+  private static AWSClients fromExistingCredentials(@Nullable AWSCredentials credentials, @NotNull String credentialsIdentity, @NotNull String region) {
+    return new AWSClients(credentials, credentialsIdentity, region);
   }
 
   @NotNull
@@ -112,7 +143,7 @@ public class AWSClients {
             .withPathStyleAccessEnabled(true);
 
     if (myCredentials != null) {
-      builder.setCredentials(new AWSStaticCredentialsProvider(myCredentials));
+      builder.setCredentials(getCredentialsProvider());
     }
 
     if (StringUtil.isNotEmpty(myServiceEndpoint)) {
@@ -124,24 +155,153 @@ public class AWSClients {
     return builder.build();
   }
 
+  /**
+   * Returns S3 client shared with the other AWSClients having the same credentials, region, endpoint and signer type.
+   * The client is kept until {@link #releaseClients()} and must not be shut down by the caller
+   */
+  @NotNull
+  public AmazonS3 getS3Client() {
+    return getCachedClient("s3", new AWSClientsCache.ClientFactory<AmazonS3>() {
+      @NotNull
+      @Override
+      public AmazonS3 createClient() {
+        return createS3Client();
+      }
+    }, new AWSClientsCache.ClientShutdown<AmazonS3>() {
+      @Override
+      public void shutdown(@NotNull AmazonS3 client) {
+        client.shutdown();
+      }
+    });
+  }
+
+  /**
+   * Returns CodeDeploy client shared with the other AWSClients having the same credentials, region and endpoint.
+   * The client is kept until {@link #releaseClients()} and must not be shut down by the caller
+   */
+  @NotNull
+  public AmazonCodeDeploy getCodeDeployClient() {
+    return getCachedClient("codedeploy", new AWSClientsCache.ClientFactory<AmazonCodeDeploy>() {
+      @NotNull
+      @Override
+      public AmazonCodeDeploy createClient() {
+        return StringUtil.isEmpty(myCodeDeployEndpoint) ? createCodeDeployClient() : createCodeDeployClient(myCodeDeployEndpoint);
+      }
+    }, new AWSClientsCache.ClientShutdown<AmazonCodeDeploy>() {
+      @Override
+      public void shutdown(@NotNull AmazonCodeDeploy client) {
+        client.shutdown();
+      }
+    });
+  }
+
+  /**
+   * Releases the shared clients obtained from this AWSClients, they may be evicted from the cache afterwards
+   */
+  public void releaseClients() {
+    final List<AWSClientsCache.Lease<?>> leases;
+    synchronized (myLeases) {
+      leases = new ArrayList<AWSClientsCache.Lease<?>>(myLeases);
+      myLeases.clear();
+    }
+    for (AWSClientsCache.Lease<?> lease : leases) {
+      lease.release();
+    }
+  }
+
+  /**
+   * Cache of the shared AWS clients, exposes cache statistics
+   */
+  @NotNull
+  public static synchronized AWSClientsCache getClientsCache() {
+    if (ourClientsCache == null) {
+      ourClientsCache = new AWSClientsCache(
+        TeamCityProperties.getInteger(CLIENTS_CACHE_MAX_SIZE, DEFAULT_CLIENTS_CACHE_MAX_SIZE),
+        TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(CLIENTS_CACHE_TTL_SEC, DEFAULT_CLIENTS_CACHE_TTL_SEC)));
+    }
+    return ourClientsCache;
+  }
+
+  @NotNull
+  private <T> T getCachedClient(@NotNull String type, @NotNull AWSClientsCache.ClientFactory<T> factory, @NotNull AWSClientsCache.ClientShutdown<T> shutdown) {
+    if (!TeamCityProperties.getBooleanOrTrue(CLIENTS_CACHE_ENABLED)) return factory.createClient();
+
+    final AWSClientsCache.Lease<T> lease = getClientsCache().lease(identity(type, myCredentialsIdentity, myRegion, myServiceEndpoint, myCodeDeployEndpoint, myS3SignerType), factory, shutdown);
+    synchronized (myLeases) {
+      myLeases.add(lease);
+    }
+    return lease.getClient();
+  }
+
+  @NotNull
+  private static String identity(@NotNull String type, @Nullable String... parts) {
+    try {
+      final MessageDigest md = MessageDigest.getInstance("SHA-256");
+      for (String part : parts) {
+        if (part != null) md.update(part.getBytes("UTF-8"));
+        md.update((byte) 0);
+      }
+      return type + ":" + new BigInteger(1, md.digest()).toString(16);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   @NotNull
   public AmazonCodeDeployClient createCodeDeployClient() {
-    return withRegion(myCredentials == null ? new AmazonCodeDeployClient(myClientConfiguration) : new AmazonCodeDeployClient(myCredentials, myClientConfiguration));
+    return withRegion(myCredentials == null ? new AmazonCodeDeployClient(myClientConfiguration) : new AmazonCodeDeployClient(getCredentialsProvider(), myClientConfiguration));
   }
 
   @NotNull
   public AWSCodePipelineClient createCodePipeLineClient() {
-    return withRegion(myCredentials == null ? new AWSCodePipelineClient(myClientConfiguration) : new AWSCodePipelineClient(myCredentials, myClientConfiguration));
+    return withRegion(myCredentials == null ? new AWSCodePipelineClient(myClientConfiguration) : new AWSCodePipelineClient(getCredentialsProvider(), myClientConfiguration));
   }
 
   @NotNull
   public AWSCodeBuildClient createCodeBuildClient() {
-    return withRegion(myCredentials == null ? new AWSCodeBuildClient(myClientConfiguration) : new AWSCodeBuildClient(myCredentials, myClientConfiguration));
+    return withRegion(myCredentials == null ? new AWSCodeBuildClient(myClientConfiguration) : new AWSCodeBuildClient(getCredentialsProvider(), myClientConfiguration));
+  }
+
+  @NotNull
+  private AmazonCodeDeploy createCodeDeployClient(@NotNull String endpoint) {
+    final AmazonCodeDeployClientBuilder builder = AmazonCodeDeployClientBuilder.standard()
+      .withClientConfiguration(myClientConfiguration)
+      .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, myRegion));
+    if (myCredentials != null) {
+      builder.setCredentials(getCredentialsProvider());
+    }
+    return builder.build();
   }
 
   @NotNull
   private AWSSecurityTokenServiceClient createSecurityTokenServiceClient() {
-    return myCredentials == null ? new AWSSecurityTokenServiceClient(myClientConfiguration) : new AWSSecurityTokenServiceClient(myCredentials, myClientConfiguration);
+    return myCredentials == null ? new AWSSecurityTokenServiceClient(myClientConfiguration) : new AWSSecurityTokenServiceClient(getCredentialsProvider(), myClientConfiguration);
+  }
+
+  /**
+   * Session credentials provider returns the current credentials snapshot on each request, so that
+   * the refreshed credentials are used and a request never mixes keys of different sessions
+   */
+  @NotNull
+  private AWSCredentialsProvider getCredentialsProvider() {
+    return myCredentials instanceof AWSCredentialsProvider ? (AWSCredentialsProvider) myCredentials : new AWSStaticCredentialsProvider(myCredentials);
+  }
+
+  /**
+   * Cache of the session credentials shared by all the AWSClients assuming the same role with the same session name
+   * and duration, exposes cache statistics
+   */
+  @NotNull
+  public static synchronized SessionCredentialsCache getSessionCredentialsCache() {
+    if (ourSessionCredentialsCache == null) {
+      ourSessionCredentialsCache = new SessionCredentialsCache(
+        TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(SESSION_CREDENTIALS_REFRESH_BEFORE_SEC, DEFAULT_SESSION_CREDENTIALS_REFRESH_BEFORE_SEC)));
+    }
+    return ourSessionCredentialsCache;
+  }
+
+  private static boolean isSessionCredentialsCacheEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(SESSION_CREDENTIALS_CACHE_ENABLED);
   }
 
   @NotNull
@@ -153,6 +313,14 @@ public class AWSClients {
     myServiceEndpoint = StringUtil.trimEnd(serviceEndpoint,"/");
   }
 
+  /**
+   * CodeDeploy endpoint to use instead of the regional one, e.g. a local stand-in of the service.
+   * The service endpoint set for the custom environment is used by the S3 client only
+   */
+  public void setCodeDeployEndpoint(@NotNull final String codeDeployEndpoint) {
+    myCodeDeployEndpoint = StringUtil.trimEnd(codeDeployEndpoint, "/");
+  }
+
   public void setS3SignerType(@NotNull final String s3SignerType) {
     myS3SignerType = s3SignerType;
   }
@@ -163,12 +331,14 @@ public class AWSClients {
   }
 
   @NotNull
-  private AWSSessionCredentials createSessionCredentials(@NotNull String iamRoleARN, @Nullable String externalID, @NotNull String sessionName, int sessionDuration) throws AWSException {
+  private SessionCredentialsCache.SessionCredentials createSessionCredentials(@NotNull String iamRoleARN, @Nullable String externalID, @NotNull String sessionName, int sessionDuration) throws AWSException {
     final AssumeRoleRequest assumeRoleRequest = new AssumeRoleRequest().withRoleArn(iamRoleARN).withRoleSessionName(patchSessionName(sessionName)).withDurationSeconds(patchSessionDuration(sessionDuration));
     if (StringUtil.isNotEmpty(externalID)) assumeRoleRequest.setExternalId(externalID);
     try {
       final Credentials credentials = createSecurityTokenServiceClient().assumeRole(assumeRoleRequest).getCredentials();
-      return new BasicSessionCredentials(credentials.getAccessKeyId(), credentials.getSecretAccessKey(), credentials.getSessionToken());
+      return new SessionCredentialsCache.SessionCredentials(
+        new BasicSessionCredentials(credentials.getAccessKeyId(), credentials.getSecretAccessKey(), credentials.getSessionToken()),
+        credentials.getExpiration() == null ? Long.MAX_VALUE : credentials.getExpiration().getTime());
     } catch (Exception e) {
       throw new AWSException(e);
     }
@@ -194,32 +364,69 @@ public class AWSClients {
   }
 
   // must implement AWSSessionCredentials as AWS SDK may use "instanceof"
-  private static abstract class LazyCredentials implements AWSSessionCredentials {
+  private static abstract class LazyCredentials implements AWSSessionCredentials, AWSCredentialsProvider {
+    @NotNull
+    private final String myKey;
     @Nullable
-    private AWSSessionCredentials myDelegate = null;
+    private volatile SessionCredentialsCache.SessionCredentials myDelegate = null;
+
+    private LazyCredentials(@NotNull String key) {
+      myKey = key;
+    }
+
+    @NotNull
+    String getKey() {
+      return myKey;
+    }
 
     @Override
     public String getAWSAccessKeyId() {
-      return getDelegate().getAWSAccessKeyId();
+      return getCredentials().getAWSAccessKeyId();
     }
 
     @Override
     public String getAWSSecretKey() {
-      return getDelegate().getAWSSecretKey();
+      return getCredentials().getAWSSecretKey();
     }
 
     @Override
     public String getSessionToken() {
-      return getDelegate().getSessionToken();
+      return getCredentials().getSessionToken();
     }
 
+    /**
+     * Current credentials snapshot
+     */
     @NotNull
-    private AWSSessionCredentials getDelegate() {
-      if (myDelegate == null) myDelegate = createCredentials();
-      return myDelegate;
+    @Override
+    public AWSSessionCredentials getCredentials() {
+      if (isSessionCredentialsCacheEnabled()) {
+        return getSessionCredentialsCache().get(myKey, new SessionCredentialsCache.Loader() {
+          @NotNull
+          @Override
+          public SessionCredentialsCache.SessionCredentials load() {
+            return createCredentials();
+          }
+        });
+      }
+
+      SessionCredentialsCache.SessionCredentials delegate = myDelegate;
+      if (delegate == null) {
+        synchronized (this) {
+          delegate = myDelegate;
+          if (delegate == null) {
+            myDelegate = delegate = createCredentials();
+          }
+        }
+      }
+      return delegate.getCredentials();
+    }
+
+    @Override
+    public void refresh() {
     }
 
     @NotNull
-    protected abstract AWSSessionCredentials createCredentials();
+    protected abstract SessionCredentialsCache.SessionCredentials createCredentials();
   }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Bounded cache of thread-safe AWS SDK clients, so that subsequent calls with the same credentials, region,
+ * endpoint and signer type reuse the clients along with their warm HTTP connections.
+ *
+ * Clients are leased while used and are only evicted when not leased: either being idle for longer than ttlMs
+ * or as the least recently used ones when there are more than maxSize clients. Evicted clients are shut down.
+ *
+ * @author vbedrosova
+ */
+public final class AWSClientsCache {
+
+  private static final Logger LOG = Logger.getInstance(AWSClientsCache.class.getName());
+
+  interface ClientFactory<T> {
+    @NotNull
+    T createClient();
+  }
+
+  interface ClientShutdown<T> {
+    void shutdown(@NotNull T client);
+  }
+
+  private final int myMaxSize;
+  private final long myTtlMs;
+  @NotNull
+  private final LinkedHashMap<String, Entry<?>> myEntries = new LinkedHashMap<String, Entry<?>>(16, 0.75f, true);
+
+  private long myHits;
+  private long myMisses;
+  private long myEvictions;
+
+  AWSClientsCache(int maxSize, long ttlMs) {
+    myMaxSize = maxSize;
+    myTtlMs = ttlMs;
+  }
+
+  /**
+   * Returns the cached client for the key or creates a new one, the client is leased until the returned lease is released
+   */
+  @NotNull
+  <T> Lease<T> lease(@NotNull String key, @NotNull ClientFactory<T> factory, @NotNull ClientShutdown<T> shutdown) {
+    final List<Entry<?>> evicted;
+    final Entry<T> entry;
+    synchronized (this) {
+      @SuppressWarnings("unchecked")
+      Entry<T> existing = (Entry<T>) myEntries.get(key);
+      if (existing != null && existing.myLeases == 0 && isExpired(existing, System.currentTimeMillis())) {
+        myEntries.remove(key);
+        existing.shutdown();
+        ++myEvictions;
+        existing = null;
+      }
+      if (existing == null) {
+        ++myMisses;
+        existing = new Entry<T>(factory.createClient(), shutdown);
+        myEntries.put(key, existing);
+      } else {
+        ++myHits;
+      }
+      ++existing.myLeases;
+      entry = existing;
+      evicted = collectEvicted();
+    }
+    shutdown(evicted);
+    return new Lease<T>(this, entry);
+  }
+
+  /**
+   * Shuts down the clients which are not used for longer than ttl
+   */
+  public void evictExpired() {
+    final List<Entry<?>> evicted;
+    synchronized (this) {
+      evicted = collectEvicted();
+    }
+    shutdown(evicted);
+  }
+
+  public synchronized int getSize() {
+    return myEntries.size();
+  }
+
+  public synchronized long getHitCount() {
+    return myHits;
+  }
+
+  public synchronized long getMissCount() {
+    return myMisses;
+  }
+
+  public synchronized long getEvictionCount() {
+    return myEvictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "AWS clients cache: " + myEntries.size() + " clients, " + myHits + " hits, " + myMisses + " misses, " + myEvictions + " evictions";
+  }
+
+  private void release(@NotNull Entry<?> entry) {
+    final List<Entry<?>> evicted;
+    synchronized (this) {
+      --entry.myLeases;
+      entry.myLastUsed = System.currentTimeMillis();
+      evicted = collectEvicted();
+    }
+    shutdown(evicted);
+  }
+
+  @NotNull
+  private List<Entry<?>> collectEvicted() {
+    final List<Entry<?>> evicted = new ArrayList<Entry<?>>();
+    final long now = System.currentTimeMillis();
+    int excess = myEntries.size() - myMaxSize;
+    // iteration order is from the least recently used
+    for (Iterator<Entry<?>> it = myEntries.values().iterator(); it.hasNext(); ) {
+      final Entry<?> entry = it.next();
+      if (entry.myLeases > 0) continue;
+      if (excess > 0 || isExpired(entry, now)) {
+        it.remove();
+        evicted.add(entry);
+        --excess;
+      }
+    }
+    myEvictions += evicted.size();
+    return evicted;
+  }
+
+  private boolean isExpired(@NotNull Entry<?> entry, long now) {
+    return now - entry.myLastUsed >= myTtlMs;
+  }
+
+  private void shutdown(@NotNull List<Entry<?>> evicted) {
+    for (Entry<?> entry : evicted) {
+      entry.shutdown();
+    }
+    if (!evicted.isEmpty() && LOG.isDebugEnabled()) {
+      LOG.debug("Evicted " + evicted.size() + " AWS clients. " + this);
+    }
+  }
+
+  private static final class Entry<T> {
+    @NotNull
+    private final T myClient;
+    @NotNull
+    private final ClientShutdown<T> myShutdown;
+    private long myLastUsed = System.currentTimeMillis();
+    private int myLeases;
+
+    private Entry(@NotNull T client, @NotNull ClientShutdown<T> shutdown) {
+      myClient = client;
+      myShutdown = shutdown;
+    }
+
+    private void shutdown() {
+      try {
+        myShutdown.shutdown(myClient);
+      } catch (Throwable t) {
+        LOG.warn("Failed to shut down AWS client", t);
+      }
+    }
+  }
+
+  static final class Lease<T> {
+    @NotNull
+    private final AWSClientsCache myCache;
+    @NotNull
+    private final Entry<T> myEntry;
+    private boolean myReleased;
+
+    private Lease(@NotNull AWSClientsCache cache, @NotNull Entry<T> entry) {
+      myCache = cache;
+      myEntry = entry;
+    }
+
+    @NotNull
+    T getClient() {
+      return myEntry.myClient;
+    }
+
+    void release() {
+      synchronized (this) {
+        if (myReleased) return;
+        myReleased = true;
+      }
+      myCache.release(myEntry);
+    }
+  }
+}
@@ -23,8 +23,10 @@ import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
 import java.util.*;
 
 import static jetbrains.buildServer.util.amazon.AWSClients.*;
@@ -42,6 +44,8 @@ public final class AWSCommonParams {
 
   public static final String SERVICE_ENDPOINT_PARAM = "aws.service.endpoint";
   public static final String SERVICE_ENDPOINT_LABEL = "Endpoint URL";
+  // not exposed in the UI, points CodeDeploy client to a local stand-in of the service
+  public static final String CODEDEPLOY_ENDPOINT_PARAM = "aws.codedeploy.endpoint";
 
   public static final String REGION_NAME_PARAM_OLD = "codedeploy_region_name";
   public static final String REGION_NAME_PARAM = "aws.region.name";
@@ -204,9 +208,11 @@ public final class AWSCommonParams {
   public static <T, E extends Throwable> T withAWSClients(@NotNull Map<String, String> params, @NotNull WithAWSClients<T, E> withAWSClients) throws E {
     final ClassLoader cl = Thread.currentThread().getContextClassLoader();
     Thread.currentThread().setContextClassLoader(AWSCommonParams.class.getClassLoader());
+    final AWSClients clients = createAWSClients(params);
     try {
-      return withAWSClients.run(createAWSClients(params));
+      return withAWSClients.run(clients);
     } finally {
+      clients.releaseClients();
       Thread.currentThread().setContextClassLoader(cl);
     }
   }
@@ -241,6 +247,10 @@ public final class AWSCommonParams {
       final String serviceEndpoint = params.get(SERVICE_ENDPOINT_PARAM);
       awsClients.setServiceEndpoint(serviceEndpoint);
     }
+    final String codeDeployEndpoint = params.get(CODEDEPLOY_ENDPOINT_PARAM);
+    if (StringUtil.isNotEmpty(codeDeployEndpoint)) {
+      awsClients.setCodeDeployEndpoint(codeDeployEndpoint);
+    }
 
     return awsClients;
   }
@@ -279,6 +289,41 @@ public final class AWSCommonParams {
     return sb.toString().replace(" ", "").toLowerCase().hashCode();
   }
 
+  /**
+   * Key identifying the AWS clients created for the provided parameters: the same credentials, region and endpoint.
+   * Secrets are only used hashed
+   */
+  @NotNull
+  static String calculateClientsKey(@NotNull Map<String, String> params) {
+    final boolean useDefaultCredProvChain = isUseDefaultCredentialProviderChain(params);
+    final boolean tempCredentials = isTempCredentialsOption(getCredentialsType(params));
+    final List<String> parts = new ArrayList<String>(Arrays.asList(
+      getRegionName(params),
+      ENVIRONMENT_TYPE_CUSTOM.equals(params.get(ENVIRONMENT_NAME_PARAM)) ? params.get(SERVICE_ENDPOINT_PARAM) : null,
+      params.get(CODEDEPLOY_ENDPOINT_PARAM),
+      String.valueOf(useDefaultCredProvChain),
+      useDefaultCredProvChain ? null : getAccessKeyId(params),
+      useDefaultCredProvChain ? null : getSecretAccessKey(params)));
+    if (tempCredentials) {
+      parts.addAll(Arrays.asList(
+        getIamRoleArnParam(params),
+        getExternalId(params),
+        params.get(TEMP_CREDENTIALS_SESSION_NAME_PARAM),
+        params.get(TEMP_CREDENTIALS_DURATION_SEC_PARAM)));
+    }
+
+    try {
+      final MessageDigest md = MessageDigest.getInstance("SHA-256");
+      for (String part : parts) {
+        if (part != null) md.update(part.getBytes("UTF-8"));
+        md.update((byte) 0);
+      }
+      return new BigInteger(1, md.digest()).toString(16);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   @NotNull
   private static Collection<String> getIdentityFormingParams(@NotNull Map<String, String> params) {
     return Arrays.asList(getRegionName(params), getAccessKeyId(params), getIamRoleArnParam(params));
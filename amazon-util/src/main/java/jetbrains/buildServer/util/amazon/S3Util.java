@@ -16,7 +16,6 @@
 
 package jetbrains.buildServer.util.amazon;
 
-import com.amazonaws.client.builder.ExecutorFactory;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.transfer.*;
 import com.intellij.openapi.diagnostic.Logger;
@@ -28,9 +27,7 @@ import org.jetbrains.annotations.NotNull;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -44,6 +41,18 @@ public final class S3Util {
   public static final String S3_THREAD_POOL_SIZE = "amazon.s3.transferManager.threadPool.size";
   public static final int DEFAULT_S3_THREAD_POOL_SIZE = 10;
 
+  public static final String S3_TOTAL_THREAD_POOL_SIZE = "amazon.s3.transferManager.threadPool.total.size";
+  public static final int DEFAULT_S3_TOTAL_THREAD_POOL_SIZE = 4 * DEFAULT_S3_THREAD_POOL_SIZE;
+  public static final String S3_TRANSFER_QUEUE_SIZE = "amazon.s3.transferManager.queue.size";
+  public static final int DEFAULT_S3_TRANSFER_QUEUE_SIZE = 100000;
+  public static final String S3_TRANSFER_MANAGER_IDLE_TIMEOUT_SEC = "amazon.s3.transferManager.idle.timeout.sec";
+  public static final int DEFAULT_S3_TRANSFER_MANAGER_IDLE_TIMEOUT_SEC = 60;
+  public static final String S3_TRANSFER_MANAGER_MAX_AGE_SEC = "amazon.s3.transferManager.max.age.sec";
+  public static final int DEFAULT_S3_TRANSFER_MANAGER_MAX_AGE_SEC = 600;
+
+  private static ExecutorService ourSharedExecutor;
+  private static TransferManagerPool ourTransferManagerPool;
+
   public interface WithTransferManager<T extends Transfer> {
     @NotNull
     Collection<T> run(@NotNull TransferManager manager) throws Throwable;
@@ -63,93 +72,149 @@ public final class S3Util {
     void setInterruptHook(@NotNull TransferManagerInterruptHook hook);
   }
 
+  /**
+   * Runs the transfers using the transfer manager shared with the other callers using the same S3 client.
+   * The client is not shut down along with the transfer manager
+   */
   @NotNull
-  public static <T extends Transfer> Collection<T> withTransferManager(@NotNull AmazonS3 s3Client, @NotNull final WithTransferManager<T> withTransferManager) throws Throwable {
-    return withTransferManager(s3Client, false, withTransferManager);
+  public static <T extends Transfer> Collection<T> withTransferManager(@NotNull final AmazonS3 s3Client, @NotNull final WithTransferManager<T> withTransferManager) throws Throwable {
+    final TransferManagerPool pool = getTransferManagerPool();
+    final TransferManagerPool.Entry entry = pool.acquire(s3Client, new TransferManagerPool.S3ClientFactory() {
+      @NotNull
+      @Override
+      public AmazonS3 createS3Client() {
+        return s3Client;
+      }
+    }, false);
+    try {
+      return doWithTransferManager(entry.getManager(), withTransferManager);
+    } finally {
+      pool.release(entry);
+    }
   }
 
   @NotNull
-  private static <T extends Transfer> Collection<T> withTransferManager(@NotNull final AmazonS3 s3Client, final boolean shutdownClient,
-                                                                        @NotNull final WithTransferManager<T> withTransferManager) throws Throwable {
+  private static <T extends Transfer> Collection<T> doWithTransferManager(@NotNull final TransferManager manager,
+                                                                          @NotNull final WithTransferManager<T> withTransferManager) throws Throwable {
+    final ArrayList<T> transfers = new ArrayList<T>(withTransferManager.run(manager));
 
-    final TransferManager manager = TransferManagerBuilder.standard().withS3Client(s3Client).withExecutorFactory(createExecutorFactory(createDefaultExecutorService())).withShutDownThreadPools(true).build();
+    final AtomicBoolean isInterrupted = new AtomicBoolean(false);
 
-    try {
-      final ArrayList<T> transfers = new ArrayList<T>(withTransferManager.run(manager));
+    if (withTransferManager instanceof InterruptAwareWithTransferManager) {
+      final TransferManagerInterruptHook hook = new TransferManagerInterruptHook() {
+        @Override
+        public void interrupt() throws Throwable {
+          isInterrupted.set(true);
 
-      final AtomicBoolean isInterrupted = new AtomicBoolean(false);
+          for (T transfer : transfers) {
+            if (transfer instanceof Download) {
+              ((Download) transfer).abort();
+              continue;
+            }
 
-      if (withTransferManager instanceof InterruptAwareWithTransferManager) {
-        final TransferManagerInterruptHook hook = new TransferManagerInterruptHook() {
-          @Override
-          public void interrupt() throws Throwable {
-            isInterrupted.set(true);
-
-            for (T transfer : transfers) {
-              if (transfer instanceof Download) {
-                ((Download) transfer).abort();
-                continue;
-              }
-
-              if (transfer instanceof Upload) {
-                ((Upload) transfer).abort();
-                continue;
-              }
-
-              if (transfer instanceof MultipleFileDownload) {
-                ((MultipleFileDownload) transfer).abort();
-                continue;
-              }
-
-              LOG.warn("Transfer type " + transfer.getClass().getName() + " does not support interrupt");
+            if (transfer instanceof Upload) {
+              ((Upload) transfer).abort();
+              continue;
             }
-          }
-        };
-        ((InterruptAwareWithTransferManager) withTransferManager).setInterruptHook(hook);
-      }
 
-      for (T transfer : transfers) {
-        try {
-          transfer.waitForCompletion();
-        } catch (Throwable t) {
-          if (!isInterrupted.get()) {
-            throw t;
+            if (transfer instanceof MultipleFileDownload) {
+              ((MultipleFileDownload) transfer).abort();
+              continue;
+            }
+
+            LOG.warn("Transfer type " + transfer.getClass().getName() + " does not support interrupt");
           }
         }
-      }
+      };
+      ((InterruptAwareWithTransferManager) withTransferManager).setInterruptHook(hook);
+    }
 
-      return CollectionsUtil.filterCollection(transfers, new Filter<T>() {
-        @Override
-        public boolean accept(@NotNull T data) {
-          return Transfer.TransferState.Completed == data.getState();
+    for (T transfer : transfers) {
+      try {
+        transfer.waitForCompletion();
+      } catch (Throwable t) {
+        if (!isInterrupted.get()) {
+          throw t;
         }
-      });
-    } finally {
-      manager.shutdownNow(shutdownClient);
+      }
     }
-  }
 
-  @NotNull
-  private static ExecutorFactory createExecutorFactory(@NotNull final ExecutorService executorService) {
-    return new ExecutorFactory() {
+    return CollectionsUtil.filterCollection(transfers, new Filter<T>() {
       @Override
-      public ExecutorService newExecutor() {
-        return executorService;
+      public boolean accept(@NotNull T data) {
+        return Transfer.TransferState.Completed == data.getState();
       }
-    };
+    });
   }
 
+  /**
+   * Runs the transfers using the transfer manager shared with the other callers using the same credentials, region and endpoint
+   */
   @NotNull
   public static <T extends Transfer> Collection<T>  withTransferManager(@NotNull Map<String, String> params, @NotNull final WithTransferManager<T> withTransferManager) throws Throwable {
+    final String key = AWSCommonParams.calculateClientsKey(params);
     return AWSCommonParams.withAWSClients(params, new AWSCommonParams.WithAWSClients<Collection<T>, Throwable>() {
       @NotNull
       @Override
-      public Collection<T> run(@NotNull AWSClients clients) throws Throwable {
-        return withTransferManager(clients.createS3Client(), true, withTransferManager);
+      public Collection<T> run(@NotNull final AWSClients clients) throws Throwable {
+        final TransferManagerPool pool = getTransferManagerPool();
+        final TransferManagerPool.Entry entry = pool.acquire(key, new TransferManagerPool.S3ClientFactory() {
+          @NotNull
+          @Override
+          public AmazonS3 createS3Client() {
+            return clients.createS3Client();
+          }
+        }, true);
+        try {
+          return doWithTransferManager(entry.getManager(), withTransferManager);
+        } finally {
+          pool.release(entry);
+        }
       }
     });
   }
 
+  @NotNull
+  private static synchronized TransferManagerPool getTransferManagerPool() {
+    if (ourTransferManagerPool == null) {
+      ourTransferManagerPool = new TransferManagerPool(getSharedExecutor(),
+        TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(S3_TRANSFER_MANAGER_IDLE_TIMEOUT_SEC, DEFAULT_S3_TRANSFER_MANAGER_IDLE_TIMEOUT_SEC)),
+        TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(S3_TRANSFER_MANAGER_MAX_AGE_SEC, DEFAULT_S3_TRANSFER_MANAGER_MAX_AGE_SEC)));
+    }
+    return ourTransferManagerPool;
+  }
+
+  /**
+   * Executor shared by all the transfer managers, limits the total number of transfer threads.
+   * When all the threads are busy the tasks are queued in the submission order: a multipart transfer submits
+   * its completion task after its parts, so the parts it waits for are already taken by the other threads.
+   * Tasks are never run by the submitting thread, so the transfer is returned to the caller right away
+   * and can be aborted.
+   */
+  @NotNull
+  private static synchronized ExecutorService getSharedExecutor() {
+    if (ourSharedExecutor == null) {
+      final ThreadFactory threadFactory = new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger(1);
+
+        public Thread newThread(@NotNull Runnable r) {
+          Thread thread = new Thread(r);
+          thread.setName("amazon-util-s3-transfer-manager-shared-worker-" + threadCount.getAndIncrement());
+          thread.setContextClassLoader(getClass().getClassLoader());
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+      final int size = Math.max(1, TeamCityProperties.getInteger(S3_TOTAL_THREAD_POOL_SIZE, DEFAULT_S3_TOTAL_THREAD_POOL_SIZE));
+      final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        size, size, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(Math.max(1, TeamCityProperties.getInteger(S3_TRANSFER_QUEUE_SIZE, DEFAULT_S3_TRANSFER_QUEUE_SIZE))), threadFactory);
+      executor.allowCoreThreadTimeOut(true);
+      ourSharedExecutor = executor;
+    }
+    return ourSharedExecutor;
+  }
+
   @NotNull
   public static ExecutorService createDefaultExecutorService() {
     final ThreadFactory threadFactory = new ThreadFactory() {
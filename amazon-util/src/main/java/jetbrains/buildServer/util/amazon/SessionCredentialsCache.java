@@ -0,0 +1,209 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Session credentials shared by all the callers assuming the same role with the same source credentials,
+ * session name and duration.
+ *
+ * Concurrent requests for the same credentials result in a single AssumeRole call. Credentials requested
+ * less than refreshBeforeMs before their expiration are refreshed in background while the callers keep
+ * using the current ones, so that callers don't wait for STS once the credentials are obtained.
+ *
+ * @author vbedrosova
+ */
+public final class SessionCredentialsCache {
+
+  private static final Logger LOG = Logger.getInstance(SessionCredentialsCache.class.getName());
+  private static final long REFRESH_RETRY_INTERVAL_MS = 30 * 1000;
+
+  interface Loader {
+    @NotNull
+    SessionCredentials load() throws Exception;
+  }
+
+  private final long myRefreshBeforeMs;
+  @NotNull
+  private final Map<String, Entry> myEntries = new HashMap<String, Entry>();
+  @Nullable
+  private ExecutorService myRefreshExecutor;
+
+  private long myLoads;
+  private long myHits;
+
+  SessionCredentialsCache(long refreshBeforeMs) {
+    myRefreshBeforeMs = refreshBeforeMs;
+  }
+
+  /**
+   * Returns valid cached credentials for the key, loads them if there are none. Concurrent loads of the same key
+   * are performed once
+   */
+  @NotNull
+  AWSSessionCredentials get(@NotNull String key, @NotNull Loader loader) {
+    final Entry entry;
+    final FutureTask<SessionCredentials> load;
+    final boolean started;
+    synchronized (this) {
+      Entry existing = myEntries.get(key);
+      if (existing == null) {
+        existing = new Entry();
+        myEntries.put(key, existing);
+      }
+      existing.myLoader = loader;
+      entry = existing;
+
+      final SessionCredentials current = entry.myCredentials;
+      if (current != null && !current.expiresWithin(0)) {
+        ++myHits;
+        if (current.expiresWithin(myRefreshBeforeMs)) refreshInBackground(entry);
+        return current.getCredentials();
+      }
+
+      started = entry.myLoad == null;
+      if (started) entry.myLoad = createLoad(entry, loader);
+      load = entry.myLoad;
+    }
+
+    if (started) load.run();
+    try {
+      return load.get().getCredentials();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AWSException(e);
+    } catch (ExecutionException e) {
+      throw new AWSException(e.getCause());
+    }
+  }
+
+  public synchronized int getSize() {
+    return myEntries.size();
+  }
+
+  /**
+   * Number of AssumeRole calls made
+   */
+  public synchronized long getLoadCount() {
+    return myLoads;
+  }
+
+  public synchronized long getHitCount() {
+    return myHits;
+  }
+
+  @NotNull
+  private FutureTask<SessionCredentials> createLoad(@NotNull final Entry entry, @NotNull final Loader loader) {
+    return new FutureTask<SessionCredentials>(new Callable<SessionCredentials>() {
+      @Override
+      public SessionCredentials call() throws Exception {
+        try {
+          final SessionCredentials credentials = loader.load();
+          synchronized (SessionCredentialsCache.this) {
+            entry.myCredentials = credentials;
+            ++myLoads;
+          }
+          return credentials;
+        } finally {
+          synchronized (SessionCredentialsCache.this) {
+            entry.myLoad = null;
+          }
+        }
+      }
+    });
+  }
+
+  private void refreshInBackground(@NotNull final Entry entry) {
+    if (entry.myLoad != null) return;
+    if (System.currentTimeMillis() - entry.myLastRefreshFailure < REFRESH_RETRY_INTERVAL_MS) return;
+
+    final FutureTask<SessionCredentials> load = createLoad(entry, entry.myLoader);
+    entry.myLoad = load;
+    getRefreshExecutor().execute(new Runnable() {
+      public void run() {
+        load.run();
+        try {
+          load.get();
+        } catch (Exception e) {
+          synchronized (SessionCredentialsCache.this) {
+            entry.myLastRefreshFailure = System.currentTimeMillis();
+          }
+          LOG.warn("Failed to refresh session credentials, will retry later", e);
+        }
+      }
+    });
+  }
+
+  @NotNull
+  private ExecutorService getRefreshExecutor() {
+    if (myRefreshExecutor == null) {
+      final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(@NotNull Runnable r) {
+          final Thread thread = new Thread(r, "amazon-util-session-credentials-refresh");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      executor.allowCoreThreadTimeOut(true);
+      myRefreshExecutor = executor;
+    }
+    return myRefreshExecutor;
+  }
+
+  private static final class Entry {
+    @Nullable
+    private SessionCredentials myCredentials;
+    @Nullable
+    private FutureTask<SessionCredentials> myLoad;
+    private Loader myLoader;
+    private long myLastRefreshFailure;
+
+    private Entry() {
+    }
+  }
+
+  /**
+   * Immutable session credentials snapshot along with its expiration time
+   */
+  static final class SessionCredentials {
+    @NotNull
+    private final AWSSessionCredentials myCredentials;
+    private final long myExpiration;
+
+    SessionCredentials(@NotNull AWSSessionCredentials credentials, long expiration) {
+      myCredentials = credentials;
+      myExpiration = expiration;
+    }
+
+    @NotNull
+    AWSSessionCredentials getCredentials() {
+      return myCredentials;
+    }
+
+    boolean expiresWithin(long ms) {
+      return System.currentTimeMillis() + ms >= myExpiration;
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.client.builder.ExecutorFactory;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reference-counted transfer managers shared by the callers using the same key: either the same credentials,
+ * region and endpoint, or the same shared S3 client.
+ *
+ * All the transfer managers run transfers on the same executor. Transfer managers which are not used
+ * for idleTimeoutMs are shut down along with the S3 clients they own, transfer managers older than maxAgeMs
+ * are not handed out any more and are shut down once released (e.g. temporary credentials may expire).
+ *
+ * @author vbedrosova
+ */
+final class TransferManagerPool {
+
+  private static final Logger LOG = Logger.getInstance(TransferManagerPool.class.getName());
+
+  interface S3ClientFactory {
+    @NotNull
+    AmazonS3 createS3Client();
+  }
+
+  @NotNull
+  private final ExecutorService myExecutor;
+  private final long myIdleTimeoutMs;
+  private final long myMaxAgeMs;
+  @NotNull
+  private final Map<Object, Entry> myEntries = new HashMap<Object, Entry>();
+  @Nullable
+  private ScheduledExecutorService myEvictionScheduler;
+  @Nullable
+  private ScheduledFuture<?> myEvictionTask;
+
+  TransferManagerPool(@NotNull ExecutorService executor, long idleTimeoutMs, long maxAgeMs) {
+    myExecutor = executor;
+    myIdleTimeoutMs = idleTimeoutMs;
+    myMaxAgeMs = maxAgeMs;
+  }
+
+  /**
+   * @param key            transfer manager key, compared using equals
+   * @param shutdownClient whether the S3 client created by the factory is owned by the transfer manager
+   */
+  @NotNull
+  Entry acquire(@NotNull Object key, @NotNull S3ClientFactory factory, boolean shutdownClient) {
+    Entry expired = null;
+    final Entry entry;
+    synchronized (this) {
+      Entry existing = myEntries.get(key);
+      if (existing != null && System.currentTimeMillis() - existing.myCreated >= myMaxAgeMs) {
+        myEntries.remove(key);
+        existing.myRetired = true;
+        if (existing.myRefCount == 0) expired = existing;
+        existing = null;
+      }
+      if (existing == null) {
+        existing = new Entry(createTransferManager(factory.createS3Client(), myExecutor), shutdownClient);
+        myEntries.put(key, existing);
+      }
+      ++existing.myRefCount;
+      entry = existing;
+      scheduleEviction();
+    }
+    if (expired != null) expired.shutdown();
+    return entry;
+  }
+
+  void release(@NotNull Entry entry) {
+    synchronized (this) {
+      if (--entry.myRefCount > 0) return;
+      entry.myLastReleased = System.currentTimeMillis();
+      if (!entry.myRetired) return;
+    }
+    entry.shutdown();
+  }
+
+  /**
+   * Shuts down transfer managers which are not used for longer than the idle timeout
+   */
+  void evictIdle() {
+    final List<Entry> evicted = new ArrayList<Entry>();
+    synchronized (this) {
+      final long now = System.currentTimeMillis();
+      for (Iterator<Entry> it = myEntries.values().iterator(); it.hasNext(); ) {
+        final Entry entry = it.next();
+        if (entry.myRefCount == 0 && (now - entry.myLastReleased >= myIdleTimeoutMs || now - entry.myCreated >= myMaxAgeMs)) {
+          it.remove();
+          evicted.add(entry);
+        }
+      }
+      if (myEntries.isEmpty() && myEvictionTask != null) {
+        myEvictionTask.cancel(false);
+        myEvictionTask = null;
+      }
+    }
+    for (Entry entry : evicted) {
+      entry.shutdown();
+    }
+  }
+
+  synchronized int size() {
+    return myEntries.size();
+  }
+
+  private void scheduleEviction() {
+    if (myEvictionTask != null) return;
+    if (myEvictionScheduler == null) {
+      final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(@NotNull Runnable r) {
+          final Thread thread = new Thread(r, "amazon-util-s3-transfer-manager-eviction");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      scheduler.setKeepAliveTime(1, TimeUnit.MINUTES);
+      scheduler.allowCoreThreadTimeOut(true);
+      myEvictionScheduler = scheduler;
+    }
+    final long period = Math.max(1000, myIdleTimeoutMs / 2);
+    myEvictionTask = myEvictionScheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          evictIdle();
+        } catch (Throwable t) {
+          LOG.warn("Failed to evict idle S3 transfer managers", t);
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Creates transfer manager running transfers on the provided executor, the executor is not shut down along with the transfer manager
+   */
+  @NotNull
+  static TransferManager createTransferManager(@NotNull AmazonS3 s3Client, @NotNull final ExecutorService executor) {
+    return TransferManagerBuilder.standard()
+      .withS3Client(s3Client)
+      .withExecutorFactory(new ExecutorFactory() {
+        @Override
+        public ExecutorService newExecutor() {
+          return executor;
+        }
+      })
+      .withShutDownThreadPools(false)
+      .build();
+  }
+
+  static final class Entry {
+    @NotNull
+    private final TransferManager myManager;
+    private final long myCreated = System.currentTimeMillis();
+    private long myLastReleased = myCreated;
+    private int myRefCount;
+    private final boolean myShutdownClient;
+    private boolean myRetired;
+
+    private Entry(@NotNull TransferManager manager, boolean shutdownClient) {
+      myManager = manager;
+      myShutdownClient = shutdownClient;
+    }
+
+    @NotNull
+    TransferManager getManager() {
+      return myManager;
+    }
+
+    private void shutdown() {
+      try {
+        myManager.shutdownNow(myShutdownClient);
+      } catch (Throwable t) {
+        LOG.warn("Failed to shut down S3 transfer manager", t);
+      }
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.PathMappings;
+import jetbrains.buildServer.util.pathMatcher.AntPatternFileCollector;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class PathMappingsTest extends BaseTestCase {
+  private File myBaseDir;
+
+  @BeforeMethod(alwaysRun = true)
+  public void mySetUp() throws Exception {
+    myBaseDir = createTempDir();
+    writeFile("appspec.yml");
+    writeFile("some/path/index.html");
+    writeFile("some/path/inner/error.html");
+    writeFile("some/path/inner/readme.txt");
+    writeFile("another/path/index.html");
+  }
+
+  @Test
+  public void collects_and_maps_in_one_walk() throws Exception {
+    then(collect("some/path/**/*.html", "dist", "appspec.yml", "")).containsExactly(
+      "appspec.yml => appspec.yml",
+      "some/path/index.html => dist/index.html",
+      "some/path/inner/error.html => dist/inner/error.html");
+  }
+
+  @Test
+  public void excludes() throws Exception {
+    then(collect("+:**", "", "-:some/path/inner/", "")).containsExactly(
+      "another/path/index.html => another/path/index.html",
+      "appspec.yml => appspec.yml",
+      "some/path/index.html => some/path/index.html");
+  }
+
+  @Test
+  public void include_inside_exclude() throws Exception {
+    then(collect("+:**", "", "-:some/path", "", "+:some/path/inner/**", "")).containsExactly(
+      "another/path/index.html => another/path/index.html",
+      "appspec.yml => appspec.yml",
+      "some/path/inner/error.html => error.html",
+      "some/path/inner/readme.txt => readme.txt");
+  }
+
+  @Test
+  public void exclude_inside_include_inside_exclude() throws Exception {
+    then(collect("+:**", "", "-:some/", "", "+:some/path/inner/", "inner", "-:some/path/inner/*.txt", "")).containsExactly(
+      "another/path/index.html => another/path/index.html",
+      "appspec.yml => appspec.yml",
+      "some/path/inner/error.html => inner/error.html");
+  }
+
+  @Test
+  public void same_as_ant_pattern_file_collector() throws Exception {
+    assertSameAsCollector("-:some/path", "+:some/path/inner/**");
+    assertSameAsCollector("-:some/path/", "+:some/path/inner/*.txt");
+    assertSameAsCollector("+:some/**", "-:some/path/inner", "+:some/path/inner/error.html");
+    assertSameAsCollector("+:**/*.html", "-:**/inner/**", "+:some/path/inner/**");
+    assertSameAsCollector("-:some/path/inner/");
+    assertSameAsCollector("-:**/*.txt", "-:another/");
+    assertSameAsCollector("-:**");
+  }
+
+  @Test
+  public void include_all_if_no_rules() throws Exception {
+    then(collect("-:**/*.txt", "")).containsExactly(
+      "another/path/index.html => another/path/index.html",
+      "appspec.yml => appspec.yml",
+      "some/path/index.html => some/path/index.html",
+      "some/path/inner/error.html => some/path/inner/error.html");
+  }
+
+  @Test
+  public void directory_rule() throws Exception {
+    then(collect("another/path/", "web", "some/path/inner/", "inner")).containsExactly(
+      "another/path/index.html => web/index.html",
+      "some/path/inner/error.html => inner/error.html",
+      "some/path/inner/readme.txt => inner/readme.txt");
+  }
+
+  @Test
+  public void single_char_wildcard() throws Exception {
+    then(collect("some/path/inner/?????.html", "")).containsExactly(
+      "some/path/inner/error.html => error.html");
+  }
+
+  @Test
+  public void concurrent_walk_keeps_order() throws Exception {
+    for (int i = 0; i < 30; ++i) {
+      writeFile("many/dir" + i + "/sub" + i % 4 + "/file" + i + ".html");
+      writeFile("many/dir" + i + "/file" + i + ".txt");
+    }
+    final PathMappings mappings = new PathMappings(myBaseDir, map("+:**", "dist", "-:many/dir1*/**/*.txt", ""));
+
+    final List<String> expected = walk(mappings.cursor());
+    then(expected).hasSize(54);
+    for (int threads = 2; threads <= 8; threads *= 2) {
+      then(walk(mappings.cursor(threads))).containsExactlyElementsOf(expected);
+    }
+  }
+
+  @Test
+  public void map_path() throws Exception {
+    final PathMappings mappings = new PathMappings(myBaseDir, map("some/path/**/*.html", "dist"));
+    then(mappings.mapPath(new File(myBaseDir, "some/path/inner/error.html"))).isEqualTo("dist/inner/error.html");
+    then(mappings.mapPath(new File(myBaseDir, "another/path/index.html"))).isEqualTo("another/path/index.html");
+    then(mappings.mapPath(new File(createTempDir(), "index.html"))).isNull();
+  }
+
+  @Test
+  public void may_map_to() throws Exception {
+    writeFile("conf/appspec.yml");
+    then(new PathMappings(myBaseDir, map("some/path/**/*.html", "dist", "appspec.yml", "")).mayMapTo("appspec.yml")).isTrue();
+    then(new PathMappings(myBaseDir, map("some/path/**/*.html", "dist")).mayMapTo("appspec.yml")).isFalse();
+    then(new PathMappings(myBaseDir, map("**", "dist")).mayMapTo("appspec.yml")).isFalse();
+    then(new PathMappings(myBaseDir, map("**", "dist")).mayMapTo("dist/appspec.yml")).isTrue();
+    then(new PathMappings(myBaseDir, map("+:**", "", "-:appspec.yml", "")).mayMapTo("appspec.yml")).isFalse();
+    then(new PathMappings(myBaseDir, map("conf/", "")).mayMapTo("appspec.yml")).isTrue();
+    then(new PathMappings(myBaseDir, map("conf/appspec.yml", "")).mayMapTo("appspec.yml")).isTrue();
+    then(new PathMappings(myBaseDir, map("some/", "")).mayMapTo("appspec.yml")).isFalse();
+    // the directories preceding the rule literal are not listed for such rules
+    then(new PathMappings(myBaseDir, map("conf/**", "")).mayMapTo("appspec.yml")).isTrue();
+    then(new PathMappings(myBaseDir, map("**/conf/*.yml", "")).mayMapTo("appspec.yml")).isTrue();
+    then(new PathMappings(myBaseDir, map("some/*/conf/**", "")).mayMapTo("appspec.yml")).isTrue();
+  }
+
+  @NotNull
+  private String[] collect(@NotNull String... rules) {
+    final StringBuilder sb = new StringBuilder();
+    new PathMappings(myBaseDir, map(rules)).collectFiles(new PathMappings.Visitor<RuntimeException>() {
+      @Override
+      public void visit(@NotNull File file, @NotNull String path) {
+        sb.append(FileUtil.toSystemIndependentName(FileUtil.getRelativePath(myBaseDir, file))).append(" => ").append(path).append("\n");
+      }
+    });
+    return sb.length() == 0 ? new String[0] : sb.toString().split("\n");
+  }
+
+  private void assertSameAsCollector(@NotNull String... rules) {
+    final List<String> expected = new ArrayList<String>();
+    for (File f : AntPatternFileCollector.scanDir(myBaseDir, rules, new AntPatternFileCollector.ScanOption[]{AntPatternFileCollector.ScanOption.NOT_FOLLOW_SYMLINK_DIRS, AntPatternFileCollector.ScanOption.INCLUDE_ALL_IF_NO_RULES})) {
+      expected.add(FileUtil.toSystemIndependentName(FileUtil.getRelativePath(myBaseDir, f)));
+    }
+    final Map<String, String> mappings = new LinkedHashMap<String, String>();
+    for (String rule : rules) {
+      mappings.put(rule, "");
+    }
+    final List<String> actual = new ArrayList<String>();
+    for (File f : new PathMappings(myBaseDir, mappings).collectFiles()) {
+      actual.add(FileUtil.toSystemIndependentName(FileUtil.getRelativePath(myBaseDir, f)));
+    }
+    then(actual).as("Unexpected files for " + Arrays.toString(rules)).containsOnlyElementsOf(expected).hasSameSizeAs(expected);
+  }
+
+  @NotNull
+  private List<String> walk(@NotNull PathMappings.Cursor cursor) {
+    final List<String> res = new ArrayList<String>();
+    try {
+      while (cursor.next()) {
+        res.add(FileUtil.toSystemIndependentName(FileUtil.getRelativePath(myBaseDir, cursor.getFile())) + " => " + cursor.getPath());
+      }
+    } finally {
+      cursor.close();
+    }
+    return res;
+  }
+
+  @NotNull
+  private static Map<String, String> map(@NotNull String... rules) {
+    final Map<String, String> map = new LinkedHashMap<String, String>();
+    for (int i = 0; i < rules.length; i += 2) {
+      map.put(rules[i], rules[i + 1]);
+    }
+    return map;
+  }
+
+  private void writeFile(@NotNull String path) throws IOException {
+    final File file = new File(myBaseDir, path);
+    FileUtil.createParentDirs(file);
+    FileUtil.writeFile(file, "just some bytes", "UTF-8");
+  }
+}
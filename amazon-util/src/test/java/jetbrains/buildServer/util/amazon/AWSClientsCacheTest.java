@@ -0,0 +1,108 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class AWSClientsCacheTest {
+  private List<String> myShutDown;
+
+  @BeforeMethod
+  public void mySetUp() throws Exception {
+    myShutDown = new ArrayList<String>();
+  }
+
+  @Test
+  public void reuses_client_for_same_key() throws Exception {
+    final AWSClientsCache cache = new AWSClientsCache(10, 60000);
+
+    final AWSClientsCache.Lease<String> first = lease(cache, "key");
+    final AWSClientsCache.Lease<String> second = lease(cache, "key");
+    final AWSClientsCache.Lease<String> another = lease(cache, "another");
+
+    then(second.getClient()).isSameAs(first.getClient());
+    then(another.getClient()).isNotSameAs(first.getClient());
+    then(cache.getHitCount()).isEqualTo(1);
+    then(cache.getMissCount()).isEqualTo(2);
+    then(cache.getSize()).isEqualTo(2);
+
+    first.release();
+    second.release();
+    another.release();
+
+    then(cache.getSize()).isEqualTo(2);
+    then(myShutDown).isEmpty();
+  }
+
+  @Test
+  public void evicts_least_recently_used_clients_not_leased() throws Exception {
+    final AWSClientsCache cache = new AWSClientsCache(2, 60000);
+
+    final AWSClientsCache.Lease<String> leased = lease(cache, "leased");
+    lease(cache, "old").release();
+    lease(cache, "recent").release();
+
+    then(myShutDown).containsExactly("client old");
+    then(cache.getSize()).isEqualTo(2);
+    then(cache.getEvictionCount()).isEqualTo(1);
+
+    lease(cache, "new").release();
+
+    then(myShutDown).containsExactly("client old", "client recent");
+    then(leased.getClient()).isEqualTo("client leased");
+  }
+
+  @Test
+  public void evicts_expired_clients() throws Exception {
+    final AWSClientsCache cache = new AWSClientsCache(10, 0);
+
+    final AWSClientsCache.Lease<String> leased = lease(cache, "leased");
+    then(myShutDown).isEmpty();
+
+    leased.release();
+    leased.release();
+
+    then(myShutDown).containsExactly("client leased");
+    then(cache.getSize()).isZero();
+  }
+
+  @NotNull
+  private AWSClientsCache.Lease<String> lease(@NotNull AWSClientsCache cache, @NotNull final String key) {
+    return cache.lease(key, new AWSClientsCache.ClientFactory<String>() {
+      @NotNull
+      @Override
+      public String createClient() {
+        return new String("client " + key);
+      }
+    }, new AWSClientsCache.ClientShutdown<String>() {
+      @Override
+      public void shutdown(@NotNull String client) {
+        myShutDown.add(client);
+      }
+    });
+  }
+}
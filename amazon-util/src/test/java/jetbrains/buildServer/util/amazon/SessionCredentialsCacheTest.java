@@ -0,0 +1,140 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.BDDAssertions.failBecauseExceptionWasNotThrown;
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class SessionCredentialsCacheTest {
+
+  @Test
+  public void reuses_credentials() throws Exception {
+    final SessionCredentialsCache cache = new SessionCredentialsCache(1000);
+    final CountingLoader loader = new CountingLoader(60 * 60 * 1000, 0);
+
+    final AWSSessionCredentials first = cache.get("role", loader);
+    final AWSSessionCredentials second = cache.get("role", loader);
+    final AWSSessionCredentials another = cache.get("another role", loader);
+
+    then(second).isSameAs(first);
+    then(another).isNotSameAs(first);
+    then(loader.count.get()).isEqualTo(2);
+    then(cache.getHitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void loads_concurrently_requested_credentials_once() throws Exception {
+    final SessionCredentialsCache cache = new SessionCredentialsCache(1000);
+    final CountingLoader loader = new CountingLoader(60 * 60 * 1000, 200);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<AWSSessionCredentials>> results = new ArrayList<Future<AWSSessionCredentials>>();
+      for (int i = 0; i < 8; ++i) {
+        results.add(executor.submit(new Callable<AWSSessionCredentials>() {
+          @Override
+          public AWSSessionCredentials call() throws Exception {
+            return cache.get("role", loader);
+          }
+        }));
+      }
+      final AWSSessionCredentials expected = results.get(0).get();
+      for (Future<AWSSessionCredentials> result : results) {
+        then(result.get()).isSameAs(expected);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    then(loader.count.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void refreshes_in_background_before_expiration() throws Exception {
+    final SessionCredentialsCache cache = new SessionCredentialsCache(60 * 60 * 1000);
+    final CountingLoader loader = new CountingLoader(30 * 60 * 1000, 0);
+
+    final AWSSessionCredentials first = cache.get("role", loader);
+    // still valid credentials are returned while refreshing
+    then(cache.get("role", loader)).isSameAs(first);
+
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (loader.count.get() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    then(loader.count.get()).isEqualTo(2);
+    Thread.sleep(50);
+    then(cache.get("role", loader)).isNotSameAs(first);
+  }
+
+  @Test
+  public void reloads_expired_credentials() throws Exception {
+    final SessionCredentialsCache cache = new SessionCredentialsCache(0);
+    final CountingLoader loader = new CountingLoader(-1, 0);
+
+    then(cache.get("role", loader)).isNotSameAs(cache.get("role", loader));
+    then(loader.count.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void reports_load_failure() throws Exception {
+    final SessionCredentialsCache cache = new SessionCredentialsCache(0);
+    try {
+      cache.get("role", new SessionCredentialsCache.Loader() {
+        @NotNull
+        @Override
+        public SessionCredentialsCache.SessionCredentials load() {
+          throw new AWSException("Access denied", null, AWSException.SERVICE_PROBLEM_TYPE, null);
+        }
+      });
+      failBecauseExceptionWasNotThrown(AWSException.class);
+    } catch (AWSException e) {
+      then(e).hasMessage("Access denied");
+    }
+  }
+
+  private static class CountingLoader implements SessionCredentialsCache.Loader {
+    final AtomicInteger count = new AtomicInteger();
+    private final long myLifetimeMs;
+    private final long myDelayMs;
+
+    CountingLoader(long lifetimeMs, long delayMs) {
+      myLifetimeMs = lifetimeMs;
+      myDelayMs = delayMs;
+    }
+
+    @NotNull
+    @Override
+    public SessionCredentialsCache.SessionCredentials load() throws Exception {
+      Thread.sleep(myDelayMs);
+      final int n = count.incrementAndGet();
+      return new SessionCredentialsCache.SessionCredentials(new BasicSessionCredentials("key" + n, "secret" + n, "token" + n), System.currentTimeMillis() + myLifetimeMs);
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class TransferManagerPoolTest {
+  private ExecutorService myExecutor;
+  private AtomicInteger myCreated;
+  private AtomicInteger myShutDown;
+
+  @BeforeMethod
+  public void mySetUp() throws Exception {
+    myExecutor = Executors.newCachedThreadPool();
+    myCreated = new AtomicInteger();
+    myShutDown = new AtomicInteger();
+  }
+
+  @AfterMethod
+  public void myTearDown() throws Exception {
+    myExecutor.shutdownNow();
+  }
+
+  @Test
+  public void shares_transfer_manager_for_same_key() throws Exception {
+    final TransferManagerPool pool = new TransferManagerPool(myExecutor, 60000, 60000);
+
+    final TransferManagerPool.Entry first = pool.acquire("key", factory(), true);
+    final TransferManagerPool.Entry second = pool.acquire("key", factory(), true);
+    final TransferManagerPool.Entry another = pool.acquire("another", factory(), true);
+
+    then(second.getManager()).isSameAs(first.getManager());
+    then(another.getManager()).isNotSameAs(first.getManager());
+    then(myCreated.get()).isEqualTo(2);
+
+    pool.release(first);
+    pool.release(second);
+    pool.release(another);
+
+    then(pool.size()).isEqualTo(2);
+    then(myShutDown.get()).isZero();
+  }
+
+  @Test
+  public void evicts_idle_transfer_managers() throws Exception {
+    final TransferManagerPool pool = new TransferManagerPool(myExecutor, 0, 60000);
+
+    final TransferManagerPool.Entry used = pool.acquire("used", factory(), true);
+    pool.release(pool.acquire("idle", factory(), true));
+
+    pool.evictIdle();
+
+    then(pool.size()).isEqualTo(1);
+    then(myShutDown.get()).isEqualTo(1);
+    then(myExecutor.isShutdown()).isFalse();
+
+    pool.release(used);
+    pool.evictIdle();
+
+    then(pool.size()).isZero();
+    then(myShutDown.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void does_not_hand_out_expired_transfer_managers() throws Exception {
+    final TransferManagerPool pool = new TransferManagerPool(myExecutor, 60000, 0);
+
+    final TransferManagerPool.Entry first = pool.acquire("key", factory(), true);
+    final TransferManagerPool.Entry second = pool.acquire("key", factory(), true);
+
+    then(second.getManager()).isNotSameAs(first.getManager());
+    then(myShutDown.get()).isZero();
+
+    pool.release(first);
+    then(myShutDown.get()).isEqualTo(1);
+
+    pool.release(second);
+    pool.evictIdle();
+    then(myShutDown.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void does_not_shut_down_provided_client() throws Exception {
+    final TransferManagerPool pool = new TransferManagerPool(myExecutor, 0, 60000);
+    final TransferManagerPool.S3ClientFactory factory = factory();
+
+    final TransferManagerPool.Entry first = pool.acquire("client", factory, false);
+    final TransferManagerPool.Entry second = pool.acquire("client", factory, false);
+    then(second.getManager()).isSameAs(first.getManager());
+
+    pool.release(first);
+    pool.release(second);
+    pool.evictIdle();
+
+    then(pool.size()).isZero();
+    then(myShutDown.get()).isZero();
+  }
+
+  @NotNull
+  private TransferManagerPool.S3ClientFactory factory() {
+    return new TransferManagerPool.S3ClientFactory() {
+      @NotNull
+      @Override
+      public AmazonS3 createS3Client() {
+        myCreated.incrementAndGet();
+        return (AmazonS3) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{AmazonS3.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("shutdown".equals(method.getName())) {
+              myShutDown.incrementAndGet();
+              return null;
+            }
+            if ("equals".equals(method.getName())) return proxy == args[0];
+            if ("hashCode".equals(method.getName())) return System.identityHashCode(proxy);
+            return null;
+          }
+        });
+      }
+    };
+  }
+}
@@ -16,20 +16,16 @@
 
 package jetbrains.buildServer.runner.codedeploy;
 
+import com.amazonaws.services.codedeploy.model.BundleType;
 import jetbrains.buildServer.agent.BuildProgressLogger;
-import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.PathMappings;
 import jetbrains.buildServer.util.StringUtil;
-import jetbrains.buildServer.util.filters.Filter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Collections;
 
 /**
  * @author vbedrosova
@@ -50,6 +46,12 @@ class ApplicationRevision {
   @Nullable
   private BuildProgressLogger myLogger;
   private final boolean myMustContainAppSpecYml;
+  private int myPackagingThreads = Runtime.getRuntime().availableProcessors();
+  private boolean myReproducible;
+  @NotNull
+  private CompressionPolicy myCompression = new CompressionPolicy();
+  @Nullable
+  private volatile PackagingStatistics myPackagingStatistics;
 
   ApplicationRevision(@NotNull String name, @NotNull String paths, @NotNull File baseDir, @NotNull File tempDir, @Nullable String customAppSpecContent, boolean mustContainAppSpecYml) {
     myName = name;
@@ -65,42 +67,91 @@ class ApplicationRevision {
   @NotNull
   File getArchive() throws CodeDeployRunner.CodeDeployRunnerException {
     final String readyRevisionPath = CodeDeployUtil.getReadyRevision(myPaths);
-    return readyRevisionPath == null ? packZip() : FileUtil.resolvePath(myBaseDir, readyRevisionPath);
+    return readyRevisionPath == null ? packFiles() : FileUtil.resolvePath(myBaseDir, readyRevisionPath);
   }
 
-  @NotNull
-  private File packZip() throws CodeDeployRunner.CodeDeployRunnerException {
-    final List<File> files = new ArrayList<File>(myPathMappings.collectFiles());
+  boolean isReady() {
+    return CodeDeployUtil.getReadyRevision(myPaths) != null;
+  }
 
-    if (files.isEmpty()) {
-      throw new CodeDeployRunner.CodeDeployRunnerException("No " + CodeDeployConstants.REVISION_PATHS_LABEL.toLowerCase() + " files found", null);
-    }
-    return zipFiles(patchAppSpecYml(files), new File(myTempDir, myName.endsWith(".zip") ? myName : myName + ".zip"));
+  @NotNull
+  String getArchiveName() {
+    final String readyRevisionPath = CodeDeployUtil.getReadyRevision(myPaths);
+    return (readyRevisionPath == null ? getArchiveFile() : FileUtil.resolvePath(myBaseDir, readyRevisionPath)).getName();
   }
 
+  /**
+   * Returns the writer which packs application revision files into the provided stream as they are found
+   */
   @NotNull
-  private List<File> patchAppSpecYml(@NotNull List<File> files) throws CodeDeployRunner.CodeDeployRunnerException {
-    final File appSpecYml = CollectionsUtil.<File>findFirst(files, new Filter<File>() {
+  AWSClient.RevisionWriter getArchiveWriter() {
+    final String archive = getArchiveName();
+    return new AWSClient.RevisionWriter() {
       @Override
-      public boolean accept(@NotNull File data) {
-        return CodeDeployConstants.APPSPEC_YML.equals(data.getName()) && CodeDeployConstants.APPSPEC_YML.equals(myPathMappings.mapPath(data));
-      }
-    });
-
-    final File customAppSpecYml = getCustomAppSpecYmlFile();
-    if (customAppSpecYml != null) {
-      if (null == appSpecYml) {
-        log("Will use custom AppSpec file " + customAppSpecYml);
-      } else {
-        log("Will replace existing AppSpec file " + appSpecYml + " with custom " + customAppSpecYml);
-        files.remove(appSpecYml);
+      public void write(@NotNull OutputStream output) throws Exception {
+        log("Packaging application revision " + archive);
+        final long start = System.currentTimeMillis();
+        final RevisionEntries entries = new RevisionEntries(true);
+        final CountingOutputStream counting = new CountingOutputStream(output);
+        try {
+          pack(entries, counting, archive);
+        } finally {
+          entries.close();
+        }
+        myPackagingStatistics = new PackagingStatistics(entries.getCount(), entries.getBytes(), counting.getCount(), System.currentTimeMillis() - start);
+        log("Packaged " + entries.getCount() + " files to application revision " + archive);
       }
-      files.add(customAppSpecYml);
+    };
+  }
+
+  /**
+   * @return statistics of the latest packaging or null if the files haven't been packaged, e.g. the revision is ready
+   */
+  @Nullable
+  PackagingStatistics getPackagingStatistics() {
+    return myPackagingStatistics;
+  }
+
+  /**
+   * Content digest of the application revision, same for the same files mapped to the same paths.
+   * Application revision files are walked once more for packaging, so that they're never held in memory
+   */
+  @NotNull
+  String getDigest() throws CodeDeployRunner.CodeDeployRunnerException {
+    final String readyRevisionPath = CodeDeployUtil.getReadyRevision(myPaths);
+    if (readyRevisionPath != null) {
+      return RevisionCache.computeDigest(Collections.singletonList(new ParallelZipPackager.Entry(getArchiveName(), FileUtil.resolvePath(myBaseDir, readyRevisionPath))), myPackagingThreads);
+    }
+    final RevisionEntries entries = new RevisionEntries(false);
+    try {
+      return RevisionCache.computeDigest(entries, myPackagingThreads);
+    } finally {
+      entries.close();
+    }
+  }
 
-    } else if (null == appSpecYml && myMustContainAppSpecYml) {
-      throw new CodeDeployRunner.CodeDeployRunnerException("No " + CodeDeployConstants.APPSPEC_YML + " file found among " + CodeDeployConstants.REVISION_PATHS_LABEL.toLowerCase() + " files and no custom AppSpec file provided", null);
+  @NotNull
+  private File packFiles() throws CodeDeployRunner.CodeDeployRunnerException {
+    final File destArchive = getArchiveFile();
+    log("Packaging application revision " + destArchive.getPath());
+    final long start = System.currentTimeMillis();
+    final RevisionEntries entries = new RevisionEntries(true);
+    try {
+      packFiles(entries, destArchive);
+    } finally {
+      entries.close();
     }
-    return files;
+    myPackagingStatistics = new PackagingStatistics(entries.getCount(), entries.getBytes(), destArchive.length(), System.currentTimeMillis() - start);
+    log("Packaged " + entries.getCount() + " files to application revision " + destArchive.getPath());
+    return destArchive;
+  }
+
+  /**
+   * Revision is packed into zip unless the name has tar or tar.gz extension
+   */
+  @NotNull
+  private File getArchiveFile() {
+    return new File(myTempDir, CodeDeployUtil.getBundleType(myName) == null ? myName + ".zip" : myName);
   }
 
   @Nullable
@@ -122,60 +173,161 @@ class ApplicationRevision {
     return customAppSpecYml;
   }
 
+  private void packFiles(@NotNull ParallelZipPackager.EntrySource entries, @NotNull File destArchive) throws CodeDeployRunner.CodeDeployRunnerException {
+    OutputStream output = null;
+    boolean packed = false;
+    try {
+      // not buffered, the writers copy stored entries directly to the file channel
+      output = new FileOutputStream(destArchive);
+      pack(entries, output, destArchive.getPath());
+      packed = true;
+    } catch (IOException e) {
+      throw new CodeDeployRunner.CodeDeployRunnerException("Failed to package application revision " + destArchive, e);
+    } finally {
+      FileUtil.close(output);
+      if (!packed) FileUtil.delete(destArchive);
+    }
+  }
+
+  private void pack(@NotNull ParallelZipPackager.EntrySource entries, @NotNull OutputStream output, @NotNull String archive) throws CodeDeployRunner.CodeDeployRunnerException {
+    final String bundleType = CodeDeployUtil.getBundleType(archive);
+    if (BundleType.Tar.name().equals(bundleType) || BundleType.Tgz.name().equals(bundleType)) {
+      new TarPackager(myPackagingThreads)
+        .withGzip(BundleType.Tgz.name().equals(bundleType))
+        .withCompressionLevel(myCompression.getLevel())
+        .withReproducible(myReproducible)
+        .pack(entries, output, archive);
+    } else {
+      new ParallelZipPackager(myPackagingThreads).withReproducible(myReproducible).withCompression(myCompression).pack(entries, output, archive);
+    }
+  }
+
+  @NotNull
+  ApplicationRevision withLogger(@Nullable BuildProgressLogger logger) {
+    myLogger = logger;
+    return this;
+  }
+
   @NotNull
-  private File zipFiles(@NotNull List<File> files, @NotNull File destZip) throws CodeDeployRunner.CodeDeployRunnerException {
-    log("Packaging " + files.size() + " files to application revision " + destZip);
+  ApplicationRevision withPackagingThreads(int threads) {
+    myPackagingThreads = threads;
+    return this;
+  }
 
-    ZipOutputStream zipOutput = null;
-    try {
-      zipOutput = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(destZip)));
-      byte[] buffer = new byte[64 * 1024];
+  /**
+   * Whether to pack the same files into the byte-identical archive, so that it has the same S3 ETag.
+   * The files found are then collected in memory and sorted before packing rather than packed as they are found
+   */
+  @NotNull
+  ApplicationRevision withReproducible(boolean reproducible) {
+    myReproducible = reproducible;
+    return this;
+  }
 
-      for (File f : files) {
+  @NotNull
+  ApplicationRevision withCompression(@NotNull CompressionPolicy compression) {
+    myCompression = compression;
+    return this;
+  }
 
-        final ZipEntry zipEntry = new ZipEntry(getZipPath(f));
-        zipEntry.setTime(f.lastModified());
-        zipOutput.putNextEntry(zipEntry);
+  /**
+   * Walks application revision paths supplying the files as they are found, directories are listed on the packaging threads.
+   * The matching appspec.yml is replaced with the custom one if it's provided, the custom appspec.yml is supplied after
+   * all the other files. Missing appspec.yml is detected when the first file is found, unless the rules may map some file to it
+   */
+  private final class RevisionEntries implements ParallelZipPackager.EntrySource {
+    @NotNull
+    private final PathMappings.Cursor myCursor;
+    @Nullable
+    private final File myCustomAppSpecYml;
+    private final boolean myLogging;
+    private boolean myAppSpecYmlFound;
+    private boolean myFinished;
+    private int myFound;
+    private int myCount;
+    private long myBytes;
 
-        final InputStream input = new BufferedInputStream(new FileInputStream(f));
+    RevisionEntries(boolean logging) throws CodeDeployRunner.CodeDeployRunnerException {
+      myCustomAppSpecYml = getCustomAppSpecYmlFile();
+      myLogging = logging;
+      myCursor = myPathMappings.cursor(myPackagingThreads);
+    }
 
-        try {
-          int read;
-          do {
-            read = input.read(buffer);
-            zipOutput.write(buffer, 0, Math.max(read, 0));
-          } while (read == buffer.length);
-        } catch (IOException e) {
-          throw new CodeDeployRunner.CodeDeployRunnerException("Failed to package file " + f + " to application revision " + destZip, e);
-        } finally {
-          FileUtil.close(input);
-          zipOutput.closeEntry();
+    @Nullable
+    @Override
+    public ParallelZipPackager.Entry next() throws CodeDeployRunner.CodeDeployRunnerException {
+      if (myFinished) return null;
+
+      while (myCursor.next()) {
+        // fail before anything is packed or uploaded if appspec.yml can't be among the files
+        if (myFound++ == 0 && myCustomAppSpecYml == null && myMustContainAppSpecYml && !myPathMappings.mayMapTo(CodeDeployConstants.APPSPEC_YML)) {
+          throw noAppSpecYmlFound();
+        }
+        final File file = myCursor.getFile();
+        if (file.equals(myCustomAppSpecYml)) continue;
+
+        final String path = myCursor.getPath();
+        if (CodeDeployConstants.APPSPEC_YML.equals(file.getName()) && CodeDeployConstants.APPSPEC_YML.equals(path)) {
+          myAppSpecYmlFound = true;
+          if (myCustomAppSpecYml != null) {
+            if (myLogging) log("Will replace existing AppSpec file " + file + " with custom " + myCustomAppSpecYml);
+            continue;
+          }
         }
+        ++myCount;
+        myBytes += file.length();
+        return new ParallelZipPackager.Entry(path, file);
       }
-    } catch (Throwable t) {
-      if (t instanceof CodeDeployRunner.CodeDeployRunnerException) {
-        throw (CodeDeployRunner.CodeDeployRunnerException) t;
+      myFinished = true;
+
+      if (myFound == 0) {
+        throw new CodeDeployRunner.CodeDeployRunnerException("No " + CodeDeployConstants.REVISION_PATHS_LABEL.toLowerCase() + " files found", null);
       }
-      throw new CodeDeployRunner.CodeDeployRunnerException("Failed to package application revision " + destZip, t);
-    } finally {
-      FileUtil.close(zipOutput);
+      if (myCustomAppSpecYml != null) {
+        if (!myAppSpecYmlFound && myLogging) log("Will use custom AppSpec file " + myCustomAppSpecYml);
+        ++myCount;
+        myBytes += myCustomAppSpecYml.length();
+        return new ParallelZipPackager.Entry(CodeDeployConstants.APPSPEC_YML, myCustomAppSpecYml);
+      }
+      if (!myAppSpecYmlFound && myMustContainAppSpecYml) {
+        throw noAppSpecYmlFound();
+      }
+      return null;
     }
-    return destZip;
-  }
 
-  @NotNull
-  private String getZipPath(@NotNull File f) throws CodeDeployRunner.CodeDeployRunnerException {
-    if (f.equals(getCustomAppSpecYmlFile())) return CodeDeployConstants.APPSPEC_YML;
+    @NotNull
+    private CodeDeployRunner.CodeDeployRunnerException noAppSpecYmlFound() {
+      return new CodeDeployRunner.CodeDeployRunnerException("No " + CodeDeployConstants.APPSPEC_YML + " file found among " + CodeDeployConstants.REVISION_PATHS_LABEL.toLowerCase() + " files and no custom AppSpec file provided", null);
+    }
+
+    int getCount() {
+      return myCount;
+    }
 
-    final String zipPath = myPathMappings.mapPath(f);
-    if(zipPath  == null) throw new CodeDeployRunner.CodeDeployRunnerException("Unexpected application revision file " + f, null);
-    return zipPath;
+    long getBytes() {
+      return myBytes;
+    }
+
+    void close() {
+      myCursor.close();
+    }
   }
 
-  @NotNull
-  ApplicationRevision withLogger(@Nullable BuildProgressLogger logger) {
-    myLogger = logger;
-    return this;
+  /**
+   * Number of files and bytes packed into the archive, the archive size and the time it took
+   */
+  static final class PackagingStatistics {
+    final int files;
+    final long bytes;
+    final long archiveBytes;
+    final long timeMs;
+
+    PackagingStatistics(int files, long bytes, long archiveBytes, long timeMs) {
+      this.files = files;
+      this.bytes = bytes;
+      this.archiveBytes = archiveBytes;
+      this.timeMs = timeMs;
+    }
   }
 
   private void log(@NotNull String m) {
@@ -16,18 +16,21 @@
 
 package jetbrains.buildServer.runner.codedeploy;
 
-import com.amazonaws.services.codedeploy.AmazonCodeDeployClient;
-import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.codedeploy.AmazonCodeDeploy;
+import com.amazonaws.services.s3.AmazonS3;
 import jetbrains.buildServer.RunBuildException;
 import jetbrains.buildServer.agent.*;
 import jetbrains.buildServer.messages.ErrorData;
+import jetbrains.buildServer.util.amazon.AWSException;
 import jetbrains.buildServer.util.amazon.AWSClients;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import static jetbrains.buildServer.runner.codedeploy.CodeDeployConstants.*;
 import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.*;
@@ -43,6 +46,9 @@ public class CodeDeployRunner implements AgentBuildRunner {
   @Override
   public BuildProcess createBuildProcess(@NotNull final AgentRunningBuild runningBuild, @NotNull final BuildRunnerContext context) throws RunBuildException {
     return new SyncBuildProcessAdapter() {
+      @NotNull
+      private final List<AWSClient> myAWSClients = new CopyOnWriteArrayList<AWSClient>();
+
       @NotNull
       @Override
       protected BuildFinishedStatus runImpl() throws RunBuildException {
@@ -50,82 +56,266 @@ public class CodeDeployRunner implements AgentBuildRunner {
         final Map<String, String> runnerParameters = patchParams(validateParams(), runningBuild);
         final Map<String, String> configParameters = context.getConfigParameters();
 
+        if (isDeployStepEnabled(runnerParameters) && getDeploymentGroups(runnerParameters).isEmpty()) {
+          throw new CodeDeployRunnerException(DEPLOYMENT_GROUP_NAME_LABEL + " contains no deployment group names", null);
+        }
+
         final Mutable m = new Mutable(configParameters);
-        m.problemOccurred = false;
-        m.s3ObjectVersion = nullIfEmpty(configParameters.get(S3_OBJECT_VERSION_CONFIG_PARAM));
-        m.s3ObjectETag = nullIfEmpty(configParameters.get(S3_OBJECT_ETAG_CONFIG_PARAM));
 
         return withAWSClients(runnerParameters, new WithAWSClients<BuildFinishedStatus, CodeDeployRunnerException>() {
           @Nullable
           @Override
-          public BuildFinishedStatus run(@NotNull AWSClients clients) throws CodeDeployRunnerException {
-            final AWSClient awsClient = createAWSClient(clients.createS3Client(), clients.createCodeDeployClient(), runningBuild).withListener(
-              new LoggingDeploymentListener(runnerParameters, runningBuild.getBuildLogger(), runningBuild.getCheckoutDirectory().getAbsolutePath()) {
-                @Override
-                protected void problem(int identity, @NotNull String type, @NotNull String descr) {
-                  super.problem(identity, type, descr);
-                  m.problemOccurred = true;
-                }
-
-                @Override
-                void uploadRevisionFinished(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
-                  super.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey, s3ObjectVersion, s3ObjectETag, url);
-                  m.s3ObjectVersion = s3ObjectVersion;
-                  m.s3ObjectETag = s3ObjectETag;
-                }
-              });
+          public BuildFinishedStatus run(@NotNull final AWSClients clients) throws CodeDeployRunnerException {
+            final LoggingDeploymentListener listener = createListener(runnerParameters, runningBuild.getBuildLogger(), m, null);
+            final AWSClient awsClient = register(createAWSClient(clients.getS3Client(), clients.getCodeDeployClient(), runningBuild).withListener(listener)
+              .withSkipIdenticalUpload(!"false".equalsIgnoreCase(configParameters.get(REVISION_UPLOAD_SKIP_IDENTICAL_CONFIG_PARAM))));
 
             final String s3BucketName = getS3BucketName(runnerParameters);
             String s3ObjectKey = getS3ObjectKey(runnerParameters);
 
             if (isUploadStepEnabled(runnerParameters) && !m.problemOccurred && !isInterrupted()) {
-              final File readyRevision = new ApplicationRevision(
+              final ApplicationRevision revision = new ApplicationRevision(
                 isEmptyOrSpaces(s3ObjectKey) ? runningBuild.getBuildTypeExternalId() : s3ObjectKey,
                 getRevisionPaths(runnerParameters),
                 context.getWorkingDirectory(), runningBuild.getBuildTempDirectory(),
                 configParameters.get(CUSTOM_APPSPEC_YML_CONFIG_PARAM),
-                isRegisterStepEnabled(runnerParameters) || isDeployStepEnabled(runnerParameters)).withLogger(runningBuild.getBuildLogger()).getArchive();
+                isRegisterStepEnabled(runnerParameters) || isDeployStepEnabled(runnerParameters))
+                .withLogger(runningBuild.getBuildLogger())
+                .withPackagingThreads(getIntegerOrDefault(configParameters.get(REVISION_PACKAGING_THREADS_CONFIG_PARAM), Runtime.getRuntime().availableProcessors()))
+                .withReproducible(Boolean.parseBoolean(configParameters.get(REVISION_REPRODUCIBLE_CONFIG_PARAM)))
+                .withCompression(new CompressionPolicy(
+                  getIntegerOrDefault(configParameters.get(REVISION_COMPRESSION_LEVEL_CONFIG_PARAM), Deflater.DEFAULT_COMPRESSION),
+                  !"false".equalsIgnoreCase(configParameters.get(REVISION_STORE_COMPRESSED_CONFIG_PARAM))));
 
               if (isEmptyOrSpaces(s3ObjectKey)) {
-                s3ObjectKey = readyRevision.getName();
+                s3ObjectKey = revision.getArchiveName();
               }
 
-              awsClient.uploadRevision(readyRevision, s3BucketName, s3ObjectKey);
-            }
+              final RevisionCache cache = new RevisionCache(runningBuild.getAgentConfiguration().getCacheDirectory(RevisionCache.CACHE_DIR_KEY));
+              // opt-in as the cache requires hashing the content of all the revision files on every build
+              final String digest = Boolean.parseBoolean(configParameters.get(REVISION_CACHE_ENABLED_CONFIG_PARAM)) ? revision.getDigest() : null;
+              final RevisionCache.Entry cached = digest == null ? null : cache.get(digest, s3BucketName, s3ObjectKey);
 
-            final String applicationName = getAppName(runnerParameters);
-            final String bundleType = "" + getBundleType(s3ObjectKey);
+              if (cached == null ||
+                  !awsClient.reuseRevision(revision.getArchiveName(), s3BucketName, s3ObjectKey, cached.getVersion(), cached.getETag(), "application revision with the same content was uploaded before")) {
+                if (!revision.isReady() && Boolean.parseBoolean(configParameters.get(REVISION_UPLOAD_STREAMING_CONFIG_PARAM))) {
+                  awsClient.uploadRevision(revision.getArchiveName(), revision.getArchiveWriter(), s3BucketName, s3ObjectKey,
+                    getIntegerOrDefault(configParameters.get(REVISION_UPLOAD_PART_SIZE_MB_CONFIG_PARAM), REVISION_UPLOAD_PART_SIZE_MB_DEFAULT) * 1024 * 1024,
+                    getIntegerOrDefault(configParameters.get(REVISION_UPLOAD_MAX_INFLIGHT_PARTS_CONFIG_PARAM), REVISION_UPLOAD_MAX_INFLIGHT_PARTS_DEFAULT));
+                } else {
+                  final File archive = revision.getArchive();
+                  awsClient.uploadRevision(archive, s3BucketName, s3ObjectKey, cache.getUploadStateFile(archive.length(), s3BucketName, s3ObjectKey),
+                    getIntegerOrDefault(configParameters.get(REVISION_UPLOAD_PART_SIZE_MB_CONFIG_PARAM), REVISION_UPLOAD_PART_SIZE_MB_DEFAULT) * 1024 * 1024,
+                    getIntegerOrDefault(configParameters.get(REVISION_UPLOAD_MAX_INFLIGHT_PARTS_CONFIG_PARAM), REVISION_UPLOAD_MAX_INFLIGHT_PARTS_DEFAULT));
+                }
+
+                if (digest != null && !m.problemOccurred) {
+                  cache.put(digest, s3BucketName, s3ObjectKey, m.s3ObjectVersion, m.s3ObjectETag);
+                }
+              }
 
-            if (CodeDeployUtil.isRegisterStepEnabled(runnerParameters) && !m.problemOccurred && !isInterrupted()) {
-              awsClient.registerRevision(s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag, applicationName);
+              final ApplicationRevision.PackagingStatistics packaging = revision.getPackagingStatistics();
+              if (packaging != null) listener.revisionPackaged(packaging);
             }
 
-            if (CodeDeployUtil.isDeployStepEnabled(runnerParameters) && !m.problemOccurred && !isInterrupted()) {
-              final String deploymentGroupName = getDeploymentGroupName(runnerParameters);
-              final String deploymentConfigName = nullIfEmpty(getDeploymentConfigName(runnerParameters));
-
-              if (CodeDeployUtil.isDeploymentWaitEnabled(runnerParameters)) {
-                awsClient.deployRevisionAndWait(
-                  s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag,
-                  applicationName, deploymentGroupName,
-                  getEC2Tags(runnerParameters), getAutoScalingGroups(runnerParameters),
-                  deploymentConfigName,
-                  Integer.parseInt(getWaitTimeOutSec(runnerParameters)),
-                  getIntegerOrDefault(configParameters.get(WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM), WAIT_POLL_INTERVAL_SEC_DEFAULT),
-                  Boolean.parseBoolean(getRollbackOnFailure(runnerParameters)),
-                  Boolean.parseBoolean(getRollbackOnAlarmThreshold(runnerParameters)));
-              } else {
-                awsClient.deployRevision(
-                  s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag,
-                  applicationName, deploymentGroupName, getEC2Tags(runnerParameters), getAutoScalingGroups(runnerParameters), deploymentConfigName);
+            final Map<String, String> regionBuckets = isRegisterStepEnabled(runnerParameters) || isDeployStepEnabled(runnerParameters) ?
+              getRegionBuckets(configParameters.get(REGION_BUCKETS_CONFIG_PARAM)) : Collections.<String, String>emptyMap();
+
+            if (regionBuckets.isEmpty() || m.problemOccurred || isInterrupted()) {
+              registerAndDeploy(awsClient, runnerParameters, configParameters, s3BucketName, s3ObjectKey, m);
+            } else {
+              // the revision is uploaded once and copied to the other regions on the S3 side,
+              // all the regions are then registered and deployed to concurrently, each logged in its own flow
+              final String sourceS3ObjectKey = s3ObjectKey;
+              final String sourceS3ObjectVersion = m.s3ObjectVersion;
+              final ExecutorService executor = createExecutor(regionBuckets.size());
+              try {
+                final List<Future<?>> regions = new ArrayList<Future<?>>();
+                for (final Map.Entry<String, String> e : regionBuckets.entrySet()) {
+                  regions.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                      deployToRegion(clients.getS3Client(), s3BucketName, sourceS3ObjectKey, sourceS3ObjectVersion, e.getKey(), e.getValue(), runnerParameters, configParameters, m);
+                    }
+                  }));
+                }
+
+                registerAndDeploy(awsClient, runnerParameters, configParameters, s3BucketName, s3ObjectKey, m);
+
+                for (Future<?> region : regions) {
+                  try {
+                    region.get();
+                  } catch (InterruptedException e) {
+                    interruptImpl();
+                    Thread.currentThread().interrupt();
+                    break;
+                  } catch (ExecutionException e) {
+                    listener.exception(new AWSException(e.getCause()));
+                  }
+                }
+              } finally {
+                executor.shutdownNow();
               }
             }
 
+            listener.publishApiCallStatistics();
             return m.problemOccurred ? BuildFinishedStatus.FINISHED_WITH_PROBLEMS : BuildFinishedStatus.FINISHED_SUCCESS;
           }
         });
       }
 
+      private void deployToRegion(@NotNull final AmazonS3 sourceS3Client,
+                                  @NotNull final String sourceS3BucketName, @NotNull final String sourceS3ObjectKey, @Nullable final String sourceS3ObjectVersion,
+                                  @NotNull String region, @NotNull final String s3BucketName,
+                                  @NotNull Map<String, String> runnerParameters, @NotNull final Map<String, String> configParameters, @NotNull final Mutable main) {
+        final Map<String, String> regionParameters = new HashMap<String, String>(runnerParameters);
+        regionParameters.put(REGION_NAME_PARAM, region);
+        regionParameters.put(S3_BUCKET_NAME_PARAM, s3BucketName);
+
+        final FlowLogger logger = runningBuild.getBuildLogger().getFlowLogger("aws-codedeploy-" + region);
+        logger.startFlow();
+        try {
+          final Mutable m = new Mutable(Collections.<String, String>emptyMap());
+          final LoggingDeploymentListener listener = createListener(regionParameters, logger, m, main);
+          final String block = "region " + region;
+          logger.targetStarted(block);
+          try {
+            withAWSClients(regionParameters, new WithAWSClients<Void, RuntimeException>() {
+              @Nullable
+              @Override
+              public Void run(@NotNull AWSClients clients) {
+                final AWSClient awsClient = register(createAWSClient(clients.getS3Client(), clients.getCodeDeployClient(), runningBuild).withListener(listener));
+                try {
+                  if (!isInterrupted()) {
+                    awsClient.copyRevision(sourceS3Client, sourceS3BucketName, sourceS3ObjectKey, sourceS3ObjectVersion, s3BucketName, sourceS3ObjectKey);
+                  }
+                  registerAndDeploy(awsClient, regionParameters, configParameters, s3BucketName, sourceS3ObjectKey, m);
+                } finally {
+                  myAWSClients.remove(awsClient);
+                }
+                return null;
+              }
+            });
+          } catch (Throwable t) {
+            listener.exception(new AWSException(t));
+          } finally {
+            logger.targetFinished(block);
+          }
+        } finally {
+          logger.disposeFlow();
+        }
+      }
+
+      private void registerAndDeploy(@NotNull AWSClient awsClient,
+                                     @NotNull Map<String, String> runnerParameters, @NotNull Map<String, String> configParameters,
+                                     @NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull Mutable m) {
+        final String applicationName = getAppName(runnerParameters);
+        final String bundleType = "" + getBundleType(s3ObjectKey);
+
+        if (CodeDeployUtil.isRegisterStepEnabled(runnerParameters) && !m.problemOccurred && !isInterrupted()) {
+          awsClient.registerRevision(s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag, applicationName);
+        }
+
+        if (CodeDeployUtil.isDeployStepEnabled(runnerParameters) && !m.problemOccurred && !isInterrupted()) {
+          final Map<String, List<String>> deploymentGroups = getDeploymentGroups(runnerParameters);
+          final String deploymentConfigName = nullIfEmpty(getDeploymentConfigName(runnerParameters));
+
+          final boolean wait = CodeDeployUtil.isDeploymentWaitEnabled(runnerParameters);
+          final int waitTimeoutSec = wait ? Integer.parseInt(getWaitTimeOutSec(runnerParameters)) : 0;
+          final int waitInitialIntervalSec = getIntegerOrDefault(configParameters.get(WAIT_POLL_INITIAL_INTERVAL_SEC_CONFIG_PARAM), WAIT_POLL_INITIAL_INTERVAL_SEC_DEFAULT);
+          final int waitIntervalSec = getIntegerOrDefault(configParameters.get(WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM), WAIT_POLL_INTERVAL_SEC_DEFAULT);
+
+          if (getDeploymentGroupsCount(deploymentGroups) > 1) {
+            awsClient.deployRevisionToGroups(
+              s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag,
+              deploymentGroups,
+              getEC2Tags(runnerParameters), getAutoScalingGroups(runnerParameters),
+              deploymentConfigName,
+              getIntegerOrDefault(configParameters.get(DEPLOYMENT_PARALLELISM_CONFIG_PARAM), DEPLOYMENT_PARALLELISM_DEFAULT),
+              wait, waitTimeoutSec, waitInitialIntervalSec, waitIntervalSec,
+              Boolean.parseBoolean(getRollbackOnFailure(runnerParameters)),
+              Boolean.parseBoolean(getRollbackOnAlarmThreshold(runnerParameters)));
+          } else {
+            final Map.Entry<String, List<String>> group = deploymentGroups.entrySet().iterator().next();
+            final String deploymentApplicationName = group.getKey();
+            final String deploymentGroupName = group.getValue().get(0);
+
+            if (wait) {
+              awsClient.deployRevisionAndWait(
+                s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag,
+                deploymentApplicationName, deploymentGroupName,
+                getEC2Tags(runnerParameters), getAutoScalingGroups(runnerParameters),
+                deploymentConfigName,
+                waitTimeoutSec, waitInitialIntervalSec, waitIntervalSec,
+                Boolean.parseBoolean(getRollbackOnFailure(runnerParameters)),
+                Boolean.parseBoolean(getRollbackOnAlarmThreshold(runnerParameters)));
+            } else {
+              awsClient.deployRevision(
+                s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag,
+                deploymentApplicationName, deploymentGroupName, getEC2Tags(runnerParameters), getAutoScalingGroups(runnerParameters), deploymentConfigName,
+                Boolean.parseBoolean(getRollbackOnFailure(runnerParameters)),
+                Boolean.parseBoolean(getRollbackOnAlarmThreshold(runnerParameters)));
+            }
+          }
+        }
+      }
+
+      /**
+       * @param main the main region state in case the listener reports a copy of the revision in another region,
+       *             problems are propagated to it and build parameters are not set
+       */
+      @NotNull
+      private LoggingDeploymentListener createListener(@NotNull Map<String, String> runnerParameters, @NotNull BuildProgressLogger logger,
+                                                       @NotNull final Mutable m, @Nullable final Mutable main) {
+        return new LoggingDeploymentListener(runnerParameters, logger, runningBuild.getCheckoutDirectory().getAbsolutePath()) {
+          @Override
+          protected void problem(int identity, @NotNull String type, @NotNull String descr) {
+            super.problem(identity, type, descr);
+            m.problemOccurred = true;
+            if (main != null) main.problemOccurred = true;
+          }
+
+          @Override
+          protected void parameter(@NotNull String name, @NotNull String value) {
+            if (main == null) super.parameter(name, value);
+          }
+
+          @Override
+          protected void statistic(@NotNull String key, @NotNull String value) {
+            // the other regions would overwrite the main region values
+            if (main == null) super.statistic(key, value);
+          }
+
+          @Override
+          void uploadRevisionFinished(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
+            super.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey, s3ObjectVersion, s3ObjectETag, url);
+            m.s3ObjectVersion = s3ObjectVersion;
+            m.s3ObjectETag = s3ObjectETag;
+          }
+
+          @Override
+          void copyRevisionFinished(@NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
+            super.copyRevisionFinished(s3BucketName, s3ObjectKey, s3ObjectVersion, s3ObjectETag, url);
+            m.s3ObjectVersion = s3ObjectVersion;
+            m.s3ObjectETag = s3ObjectETag;
+          }
+        };
+      }
+
+      @NotNull
+      private AWSClient register(@NotNull AWSClient awsClient) {
+        myAWSClients.add(awsClient);
+        if (isInterrupted()) awsClient.interrupt();
+        return awsClient;
+      }
+
+      @Override
+      protected void interruptImpl() {
+        for (AWSClient awsClient : myAWSClients) {
+          awsClient.interrupt();
+        }
+      }
+
       @NotNull
       private Map<String, String> validateParams() throws RunBuildException {
         final Map<String, String> runnerParameters = context.getRunnerParameters();
@@ -164,10 +354,23 @@ public class CodeDeployRunner implements AgentBuildRunner {
   }
 
   @NotNull
-  private AWSClient createAWSClient(@NotNull final AmazonS3Client s3Client, @NotNull final AmazonCodeDeployClient codeDeployClient, @NotNull final AgentRunningBuild runningBuild) {
+  private AWSClient createAWSClient(@NotNull final AmazonS3 s3Client, @NotNull final AmazonCodeDeploy codeDeployClient, @NotNull final AgentRunningBuild runningBuild) {
     return new AWSClient(s3Client, codeDeployClient).withDescription("TeamCity build \"" + runningBuild.getBuildTypeName() + "\" #" + runningBuild.getBuildNumber());
   }
 
+  @NotNull
+  private static ExecutorService createExecutor(int threads) {
+    final AtomicInteger counter = new AtomicInteger();
+    return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread t = new Thread(r, "CodeDeploy region " + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
   static class CodeDeployRunnerException extends RunBuildException {
     public CodeDeployRunnerException(@NotNull String message, @Nullable Throwable cause) {
       super(message, cause, ErrorData.BUILD_RUNNER_ERROR_TYPE);
@@ -181,7 +384,7 @@ public class CodeDeployRunner implements AgentBuildRunner {
       s3ObjectVersion = nullIfEmpty(configParameters.get(S3_OBJECT_VERSION_CONFIG_PARAM));
       s3ObjectETag = nullIfEmpty(configParameters.get(S3_OBJECT_ETAG_CONFIG_PARAM));
     }
-    boolean problemOccurred;
+    volatile boolean problemOccurred;
     String s3ObjectVersion;
     String s3ObjectETag;
   }
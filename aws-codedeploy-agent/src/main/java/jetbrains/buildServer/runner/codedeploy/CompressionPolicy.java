@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how application revision files are compressed: files which are already compressed are stored as is,
+ * as deflating them again costs CPU and doesn't make the archive smaller.
+ *
+ * A file is considered compressed if it has one of the known compressed formats extensions or
+ * if a sample of its content has high entropy.
+ *
+ * @author vbedrosova
+ */
+final class CompressionPolicy {
+  static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+    "zip", "jar", "war", "ear", "apk", "nupkg", "whl", "egg",
+    "gz", "tgz", "bz2", "tbz2", "xz", "txz", "lz", "lzma", "zst", "7z", "rar", "z",
+    "png", "jpg", "jpeg", "gif", "webp", "ico",
+    "mp3", "mp4", "m4a", "m4v", "ogg", "webm", "avi", "mov",
+    "woff", "woff2", "docx", "xlsx", "pptx", "odt", "ods", "odp", "pdf"));
+
+  static final int SAMPLE_SIZE = 16 * 1024;
+  // smaller files are always deflated, it's cheap
+  static final int MIN_SAMPLED_SIZE = 4 * 1024;
+  // bits per byte, deflated or encrypted data is close to 8
+  private static final double MAX_ENTROPY = 7.5;
+
+  private final int myLevel;
+  private final boolean myStoreCompressed;
+
+  CompressionPolicy() {
+    this(Deflater.DEFAULT_COMPRESSION, true);
+  }
+
+  /**
+   * @param level           deflate level, 0 means all the files are stored
+   * @param storeCompressed whether to store already compressed files
+   */
+  CompressionPolicy(int level, boolean storeCompressed) {
+    myLevel = level;
+    myStoreCompressed = storeCompressed;
+  }
+
+  int getLevel() {
+    return myLevel;
+  }
+
+  /**
+   * Checks the file extension and content sample
+   */
+  boolean isStored(@NotNull File file) throws IOException {
+    if (myLevel == Deflater.NO_COMPRESSION) return true;
+    if (!myStoreCompressed) return false;
+    if (hasCompressedExtension(file.getName())) return true;
+
+    final long length = file.length();
+    if (length < MIN_SAMPLED_SIZE) return false;
+
+    final byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, length)];
+    final InputStream input = new FileInputStream(file);
+    int read = 0;
+    try {
+      int n;
+      while (read < sample.length && (n = input.read(sample, read, sample.length - read)) > 0) {
+        read += n;
+      }
+    } finally {
+      FileUtil.close(input);
+    }
+    return entropy(sample, 0, read) > MAX_ENTROPY;
+  }
+
+  /**
+   * Checks the file extension and the already read content
+   */
+  boolean isStored(@NotNull String name, @NotNull byte[] content) {
+    if (myLevel == Deflater.NO_COMPRESSION) return true;
+    if (!myStoreCompressed) return false;
+    if (hasCompressedExtension(name)) return true;
+    return content.length >= MIN_SAMPLED_SIZE && entropy(content, 0, Math.min(SAMPLE_SIZE, content.length)) > MAX_ENTROPY;
+  }
+
+  static boolean hasCompressedExtension(@NotNull String name) {
+    final int dot = name.lastIndexOf('.');
+    return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+  }
+
+  /**
+   * Shannon entropy of the bytes in bits per byte
+   */
+  static double entropy(@NotNull byte[] data, int off, int len) {
+    if (len == 0) return 0;
+    final int[] counts = new int[256];
+    for (int i = off; i < off + len; ++i) {
+      ++counts[data[i] & 0xFF];
+    }
+    double entropy = 0;
+    for (int count : counts) {
+      if (count == 0) continue;
+      final double p = (double) count / len;
+      entropy -= p * Math.log(p);
+    }
+    return entropy / Math.log(2);
+  }
+}
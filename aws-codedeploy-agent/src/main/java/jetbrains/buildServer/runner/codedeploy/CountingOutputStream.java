@@ -0,0 +1,64 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to the target stream
+ *
+ * @author vbedrosova
+ */
+class CountingOutputStream extends FilterOutputStream {
+  private long myCount;
+
+  CountingOutputStream(@NotNull OutputStream out) {
+    super(out);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    ++myCount;
+  }
+
+  @Override
+  public void write(@NotNull byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    myCount += len;
+  }
+
+  long getCount() {
+    return myCount;
+  }
+
+  /**
+   * Counts the bytes written directly to the target
+   */
+  void skip(long count) {
+    myCount += count;
+  }
+
+  @NotNull
+  OutputStream getTarget() {
+    return out;
+  }
+}
@@ -27,9 +27,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Map;
+import java.util.*;
 
 /**
  * @author vbedrosova
@@ -41,6 +39,7 @@ class LoggingDeploymentListener extends AWSClient.Listener {
   static final String DEPLOY_APPLICATION = "deploy application";
   static final String REGISTER_REVISION = "register revision";
   static final String UPLOAD_REVISION = "upload revision";
+  static final String COPY_REVISION = "copy revision";
 
   @NotNull
   private final Map<String, String> myRunnerParameters;
@@ -49,6 +48,28 @@ class LoggingDeploymentListener extends AWSClient.Listener {
   @NotNull
   private final String myCheckoutDir;
 
+  // phase start times, -1 if the phase isn't timed
+  private volatile long myUploadStarted = -1;
+  private volatile long myRegisterStarted = -1;
+  private volatile long myDeployStarted = -1;
+
+  // API calls and upload progress are reported from the upload and polling threads, guarded by myApiCalls
+  @NotNull
+  private final Map<String, Integer> myApiCalls = new TreeMap<String, Integer>();
+  private int myApiRetries;
+  private int myApiFailures;
+  private long myUploadedBytes;
+  // upload throughput samples in bytes per second, -1 if there were none
+  private double myMinUploadThroughput = -1;
+  private double myMaxUploadThroughput = -1;
+  private int myUploadRetries;
+
+  // the last reported deployments progress, unchanged progress isn't reported again, guarded by myDeploymentProgress
+  @NotNull
+  private final Map<String, DeploymentProgress> myDeploymentProgress = new HashMap<String, DeploymentProgress>();
+  private int myDeploymentsFinished = -1;
+  private int myDeploymentsTotal = -1;
+
   LoggingDeploymentListener(@NotNull Map<String, String> runnerParameters, @NotNull BuildProgressLogger buildLogger, @NotNull String checkoutDir) {
     myRunnerParameters = runnerParameters;
     myBuildLogger = buildLogger;
@@ -59,6 +80,29 @@ class LoggingDeploymentListener extends AWSClient.Listener {
   void uploadRevisionStarted(@NotNull File revision, @NotNull String s3BucketName, @NotNull String key) {
     open(UPLOAD_REVISION);
     log(String.format("Uploading application revision %s to S3 bucket %s using key %s", revision.getPath(), s3BucketName, key));
+    myUploadStarted = System.currentTimeMillis();
+  }
+
+  @Override
+  void uploadRevisionSkipped(@NotNull File revision, @NotNull String s3BucketName, @NotNull String key, @NotNull String reason) {
+    myUploadStarted = -1;
+    open(UPLOAD_REVISION);
+    log(String.format("Skipping upload of application revision %s to S3 bucket %s using key %s: %s", revision.getPath(), s3BucketName, key, reason));
+  }
+
+  @Override
+  void uploadRevisionResumed(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, int reusedParts, int parts) {
+    log(String.format("Continued the previous upload, %d of %d parts had already been uploaded", reusedParts, parts));
+  }
+
+  @Override
+  void uploadRevisionProgress(@NotNull File revision, @NotNull UploadProgress progress) {
+    synchronized (myApiCalls) {
+      if (myMinUploadThroughput < 0 || progress.bytesPerSec < myMinUploadThroughput) myMinUploadThroughput = progress.bytesPerSec;
+      if (progress.bytesPerSec > myMaxUploadThroughput) myMaxUploadThroughput = progress.bytesPerSec;
+      myUploadRetries = Math.max(myUploadRetries, progress.retries);
+    }
+    progress(uploadProgressDescription(progress));
   }
 
   @Override
@@ -79,11 +123,31 @@ class LoggingDeploymentListener extends AWSClient.Listener {
     }
     if (hasVersion) parameter(CodeDeployConstants.S3_OBJECT_VERSION_CONFIG_PARAM, s3ObjectVersion);
     if (hasETag) parameter(CodeDeployConstants.S3_OBJECT_ETAG_CONFIG_PARAM, s3ObjectETag);
+    publishUploadStatistics();
     close(UPLOAD_REVISION);
   }
 
+  @Override
+  void copyRevisionStarted(@NotNull String sourceS3BucketName, @NotNull String sourceS3ObjectKey, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {
+    open(COPY_REVISION);
+    log(String.format("Copying application revision from S3 bucket %s with key %s to S3 bucket %s using key %s", sourceS3BucketName, sourceS3ObjectKey, s3BucketName, s3ObjectKey));
+  }
+
+  @Override
+  void copyRevisionFinished(@NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
+    final boolean hasVersion = StringUtil.isNotEmpty(s3ObjectVersion);
+    final boolean hasETag = StringUtil.isNotEmpty(s3ObjectETag);
+    log("Copied application revision " + url +
+      (hasVersion || hasETag ? "?" : "") +
+      (hasVersion ? "versionId=" + s3ObjectVersion : "") +
+      (hasVersion && hasETag ? "&" : "") +
+      (hasETag ? "etag=" + s3ObjectETag : ""));
+    close(COPY_REVISION);
+  }
+
   @Override
   void registerRevisionStarted(@NotNull String applicationName, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String s3BundleType, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag) {
+    myRegisterStarted = System.currentTimeMillis();
     open(REGISTER_REVISION);
     log(String.format("Registering application %s revision from S3 bucket %s with key %s, bundle type %s, %s version and %s ETag", applicationName, s3BucketName, s3ObjectKey, s3BundleType, StringUtil.isEmptyOrSpaces(s3ObjectVersion) ? "latest" : s3ObjectVersion, StringUtil.isEmptyOrSpaces(s3ObjectETag) ? "no" : s3ObjectETag));
   }
@@ -93,11 +157,13 @@ class LoggingDeploymentListener extends AWSClient.Listener {
     if (!CodeDeployUtil.isDeployStepEnabled(myRunnerParameters)) {
       statusText("Registered revision");
     }
+    publishTime(CodeDeployConstants.REGISTER_TIME_STATISTIC, myRegisterStarted);
     close(REGISTER_REVISION);
   }
 
   @Override
   void createDeploymentStarted(@NotNull String applicationName, @NotNull String deploymentGroupName, @Nullable String deploymentConfigName) {
+    myDeployStarted = System.currentTimeMillis();
     open(DEPLOY_APPLICATION);
     log(String.format("Creating application %s deployment to deployment group %s with %s deployment configuration", applicationName, deploymentGroupName, StringUtil.isEmptyOrSpaces(deploymentConfigName) ? "default" : deploymentConfigName));
   }
@@ -108,6 +174,21 @@ class LoggingDeploymentListener extends AWSClient.Listener {
     log("Deployment " + deploymentId + " created");
   }
 
+  @Override
+  void createDeploymentsStarted(int count, @Nullable String deploymentConfigName) {
+    myDeployStarted = System.currentTimeMillis();
+    open(DEPLOY_APPLICATION);
+    log(String.format("Creating %d deployments with %s deployment configuration", count, StringUtil.isEmptyOrSpaces(deploymentConfigName) ? "default" : deploymentConfigName));
+  }
+
+  @Override
+  void createDeploymentFailed(@NotNull String applicationName, @NotNull String deploymentGroupName, @NotNull AWSException e) {
+    final String msg = String.format("Failed to create application %s deployment to deployment group %s: %s", applicationName, deploymentGroupName, e.getMessage());
+    err(msg);
+    if (StringUtil.isNotEmpty(e.getDetails())) err(e.getDetails());
+    problem(getIdentity(applicationName, deploymentGroupName, e.getIdentity()), e.getType(), msg);
+  }
+
   @Override
   void deploymentWaitStarted(@NotNull String deploymentId) {
     log("Waiting for deployment finish");
@@ -116,7 +197,14 @@ class LoggingDeploymentListener extends AWSClient.Listener {
 
   @Override
   void deploymentInProgress(@NotNull String deploymentId, @Nullable InstancesStatus instancesStatus) {
-    progress(deploymentDescription(instancesStatus, null, false));
+    final String description;
+    synchronized (myDeploymentProgress) {
+      final DeploymentProgress last = myDeploymentProgress.get(deploymentId);
+      if (last != null && last.matches(instancesStatus)) return;
+      description = instancesDescription(instancesStatus, false);
+      myDeploymentProgress.put(deploymentId, new DeploymentProgress(instancesStatus, description));
+    }
+    progress(deploymentDescription(null, description));
   }
 
   @Override
@@ -124,7 +212,7 @@ class LoggingDeploymentListener extends AWSClient.Listener {
     String msg = (timeoutSec == null ? "" : "Timeout " + timeoutSec + " sec exceeded, ");
 
     err(msg + StringUtil.decapitalize(deploymentDescription(instancesStatus, deploymentId, true)));
-    msg += StringUtil.decapitalize(deploymentDescription(instancesStatus, deploymentId, false));
+    msg += StringUtil.decapitalize(deploymentDescription(deploymentId, finalInstancesDescription(deploymentId, instancesStatus)));
 
     if (errorInfo != null) {
       if (StringUtil.isNotEmpty(errorInfo.message)) {
@@ -138,14 +226,63 @@ class LoggingDeploymentListener extends AWSClient.Listener {
 
     problem(getIdentity(timeoutSec, errorInfo, instancesStatus), timeoutSec == null ? CodeDeployConstants.FAILURE_BUILD_PROBLEM_TYPE : CodeDeployConstants.TIMEOUT_BUILD_PROBLEM_TYPE, msg);
 
+    publishTime(CodeDeployConstants.DEPLOYMENT_TIME_STATISTIC, myDeployStarted);
     close(DEPLOY_APPLICATION);
   }
 
   @Override
   void deploymentSucceeded(@NotNull String deploymentId, @Nullable InstancesStatus instancesStatus) {
     log(deploymentDescription(instancesStatus, deploymentId, true));
-    statusText(deploymentDescription(instancesStatus, deploymentId, false));
+    statusText(deploymentDescription(deploymentId, finalInstancesDescription(deploymentId, instancesStatus)));
+
+    publishTime(CodeDeployConstants.DEPLOYMENT_TIME_STATISTIC, myDeployStarted);
+    close(DEPLOY_APPLICATION);
+  }
+
+  @Override
+  void deploymentsWaitStarted(int count) {
+    log("Waiting for " + count + " " + StringUtil.pluralize("deployment", count) + " finish");
+  }
+
+  @Override
+  void deploymentsInProgress(int finished, int total) {
+    synchronized (myDeploymentProgress) {
+      if (finished == myDeploymentsFinished && total == myDeploymentsTotal) return;
+      myDeploymentsFinished = finished;
+      myDeploymentsTotal = total;
+    }
+    progress(finished + " of " + total + " deployments finished");
+  }
+
+  @Override
+  void groupDeploymentFinished(@NotNull String applicationName, @NotNull String deploymentGroupName, @NotNull String deploymentId, boolean succeeded, @Nullable Integer timeoutSec, @Nullable ErrorInfo errorInfo, @Nullable InstancesStatus instancesStatus) {
+    final String group = applicationName + CodeDeployConstants.APP_GROUP_SEPARATOR + deploymentGroupName + ": ";
+    if (succeeded) {
+      log(group + deploymentDescription(instancesStatus, deploymentId, true));
+      return;
+    }
+
+    String msg = group + (timeoutSec == null ? "" : "timeout " + timeoutSec + " sec exceeded, ") + StringUtil.decapitalize(deploymentDescription(instancesStatus, deploymentId, true));
+    if (errorInfo != null && StringUtil.isNotEmpty(errorInfo.message)) msg += ": " + errorInfo.message;
+    err(msg);
+
+    problem(getIdentity(applicationName, deploymentGroupName,
+      timeoutSec == null ? null : timeoutSec.toString(), errorInfo == null ? null : errorInfo.code, instancesStatus == null ? null : instancesStatus.status),
+      timeoutSec == null ? CodeDeployConstants.FAILURE_BUILD_PROBLEM_TYPE : CodeDeployConstants.TIMEOUT_BUILD_PROBLEM_TYPE, msg);
+  }
+
+  @Override
+  void deploymentsFinished(int succeeded, int failed) {
+    final String msg = succeeded + " " + StringUtil.pluralize("deployment", succeeded) + " succeeded" + (failed > 0 ? ", " + failed + " failed" : "");
+    log(msg);
+    statusText(msg);
+    publishTime(CodeDeployConstants.DEPLOYMENT_TIME_STATISTIC, myDeployStarted);
+    close(DEPLOY_APPLICATION);
+  }
 
+  @Override
+  void deploymentWaitInterrupted(@NotNull String deploymentId) {
+    log("Interrupted while waiting for deployment " + deploymentId + " finish, the deployment itself is not stopped");
     close(DEPLOY_APPLICATION);
   }
 
@@ -162,6 +299,99 @@ class LoggingDeploymentListener extends AWSClient.Listener {
     close(DEPLOY_APPLICATION);
   }
 
+  @Override
+  void apiCallFinished(@NotNull String operation, int retries, boolean succeeded) {
+    synchronized (myApiCalls) {
+      final Integer calls = myApiCalls.get(operation);
+      myApiCalls.put(operation, calls == null ? 1 : calls + 1);
+      myApiRetries += retries;
+      if (!succeeded) ++myApiFailures;
+    }
+  }
+
+  @Override
+  void bytesUploaded(long bytes) {
+    synchronized (myApiCalls) {
+      myUploadedBytes += bytes;
+    }
+  }
+
+  void revisionPackaged(@NotNull ApplicationRevision.PackagingStatistics packaging) {
+    statistic(CodeDeployConstants.REVISION_FILES_STATISTIC, String.valueOf(packaging.files));
+    statistic(CodeDeployConstants.REVISION_BYTES_STATISTIC, String.valueOf(packaging.bytes));
+    statistic(CodeDeployConstants.REVISION_ARCHIVE_BYTES_STATISTIC, String.valueOf(packaging.archiveBytes));
+    if (packaging.archiveBytes > 0) {
+      statistic(CodeDeployConstants.REVISION_COMPRESSION_RATIO_STATISTIC, format((double) packaging.bytes / packaging.archiveBytes));
+    }
+    statistic(CodeDeployConstants.REVISION_PACKAGING_TIME_STATISTIC, String.valueOf(packaging.timeMs));
+  }
+
+  /**
+   * Publishes the number of API calls made in total and per operation, retries and failures, expected to be called
+   * once all the calls are finished
+   */
+  void publishApiCallStatistics() {
+    final Map<String, Integer> calls;
+    final int retries;
+    final int failures;
+    synchronized (myApiCalls) {
+      calls = new TreeMap<String, Integer>(myApiCalls);
+      retries = myApiRetries;
+      failures = myApiFailures;
+    }
+    if (calls.isEmpty()) return;
+
+    int total = 0;
+    for (Map.Entry<String, Integer> e : calls.entrySet()) {
+      statistic(CodeDeployConstants.API_CALLS_STATISTIC + "." + e.getKey(), String.valueOf(e.getValue()));
+      total += e.getValue();
+    }
+    statistic(CodeDeployConstants.API_CALLS_STATISTIC, String.valueOf(total));
+    statistic(CodeDeployConstants.API_RETRIES_STATISTIC, String.valueOf(retries));
+    statistic(CodeDeployConstants.API_FAILURES_STATISTIC, String.valueOf(failures));
+  }
+
+  private void publishUploadStatistics() {
+    final long started = myUploadStarted;
+    if (started < 0) return;
+    myUploadStarted = -1;
+
+    final long timeMs = System.currentTimeMillis() - started;
+    final long bytes;
+    synchronized (myApiCalls) {
+      bytes = myUploadedBytes;
+    }
+    statistic(CodeDeployConstants.UPLOAD_TIME_STATISTIC, String.valueOf(timeMs));
+    statistic(CodeDeployConstants.UPLOAD_BYTES_STATISTIC, String.valueOf(bytes));
+    if (timeMs > 0) {
+      statistic(CodeDeployConstants.UPLOAD_THROUGHPUT_STATISTIC, format(bytes / 1024.0 / 1024.0 / (timeMs / 1000.0)));
+    }
+
+    final double min;
+    final double max;
+    final int retries;
+    synchronized (myApiCalls) {
+      min = myMinUploadThroughput;
+      max = myMaxUploadThroughput;
+      retries = myUploadRetries;
+    }
+    // the upload is too short to be sampled
+    if (min < 0) return;
+    statistic(CodeDeployConstants.UPLOAD_THROUGHPUT_MIN_STATISTIC, format(min / 1024.0 / 1024.0));
+    statistic(CodeDeployConstants.UPLOAD_THROUGHPUT_MAX_STATISTIC, format(max / 1024.0 / 1024.0));
+    statistic(CodeDeployConstants.UPLOAD_RETRIES_STATISTIC, String.valueOf(retries));
+  }
+
+  private void publishTime(@NotNull String key, long started) {
+    if (started < 0) return;
+    statistic(key, String.valueOf(System.currentTimeMillis() - started));
+  }
+
+  @NotNull
+  private static String format(double value) {
+    return String.format(Locale.ENGLISH, "%.3f", value);
+  }
+
   private int getIdentity(@Nullable Integer timeoutSec, @Nullable ErrorInfo errorInfo, @Nullable InstancesStatus instancesStatus) {
     return getIdentity(
       timeoutSec == null ? null : timeoutSec.toString(),
@@ -170,13 +400,52 @@ class LoggingDeploymentListener extends AWSClient.Listener {
     );
   }
 
+  @NotNull
+  private static String uploadProgressDescription(@NotNull UploadProgress progress) {
+    final StringBuilder sb = new StringBuilder("Uploading application revision: ");
+    final double uploadedMb = progress.uploadedBytes / 1024.0 / 1024.0;
+    if (progress.totalBytes > 0) {
+      sb.append(progress.uploadedBytes * 100 / progress.totalBytes).append("% (")
+        .append(String.format(Locale.ENGLISH, "%.1f of %.1f MB", uploadedMb, progress.totalBytes / 1024.0 / 1024.0)).append(")");
+    } else {
+      sb.append(String.format(Locale.ENGLISH, "%.1f MB", uploadedMb));
+    }
+    sb.append(String.format(Locale.ENGLISH, ", %.1f MB/s", progress.bytesPerSec / 1024.0 / 1024.0));
+    if (progress.etaSec >= 0) {
+      sb.append(", ");
+      if (progress.etaSec >= 60) sb.append(progress.etaSec / 60).append(" min ");
+      sb.append(progress.etaSec % 60).append(" sec left");
+    }
+    if (progress.retries > 0) sb.append(", ").append(progress.retries).append(progress.retries == 1 ? " part retry" : " part retries");
+    return sb.toString();
+  }
+
   @NotNull
   private String deploymentDescription(@Nullable InstancesStatus instancesStatus, @Nullable String deploymentId, boolean detailed) {
-    final StringBuilder sb = new StringBuilder("Deployment ");
+    return deploymentDescription(deploymentId, instancesDescription(instancesStatus, detailed));
+  }
+
+  @NotNull
+  private static String deploymentDescription(@Nullable String deploymentId, @NotNull String instancesDescription) {
+    return StringUtil.isNotEmpty(deploymentId) ? "Deployment " + deploymentId + " " + instancesDescription : "Deployment " + instancesDescription;
+  }
 
-    if (StringUtil.isNotEmpty(deploymentId)) {
-      sb.append(deploymentId).append(" ");
+  /**
+   * Reuses the description last reported as the deployment progress if the instances status is the same,
+   * the deployment is expected to be finished
+   */
+  @NotNull
+  private String finalInstancesDescription(@NotNull String deploymentId, @Nullable InstancesStatus instancesStatus) {
+    final DeploymentProgress last;
+    synchronized (myDeploymentProgress) {
+      last = myDeploymentProgress.remove(deploymentId);
     }
+    return last != null && last.matches(instancesStatus) ? last.myDescription : instancesDescription(instancesStatus, false);
+  }
+
+  @NotNull
+  private static String instancesDescription(@Nullable InstancesStatus instancesStatus, boolean detailed) {
+    final StringBuilder sb = new StringBuilder();
 
     if (instancesStatus == null) sb.append(CodeDeployConstants.STATUS_IS_UNKNOWN);
     else {
@@ -204,7 +473,7 @@ class LoggingDeploymentListener extends AWSClient.Listener {
   }
 
   protected void debug(@NotNull String message) {
-    myBuildLogger.message(String.format("##teamcity[message text='%s' tc:tags='tc:internal']", escape(message)));
+    myBuildLogger.message(serviceMessage("##teamcity[message text='", message, "' tc:tags='tc:internal']"));
   }
 
   protected void log(@NotNull String message) {
@@ -224,7 +493,7 @@ class LoggingDeploymentListener extends AWSClient.Listener {
   }
 
   protected void progress(@NotNull String message) {
-    myBuildLogger.message(String.format("##teamcity[progressMessage '%s']", escape(message)));
+    myBuildLogger.message(serviceMessage("##teamcity[progressMessage '", message, "']"));
   }
 
   protected void problem(int identity, @NotNull String type, @NotNull String descr) {
@@ -235,18 +504,102 @@ class LoggingDeploymentListener extends AWSClient.Listener {
     myBuildLogger.message(String.format("##teamcity[setParameter name='%s' value='%s' tc:tags='tc:internal']", name, value));
   }
 
+  protected void statistic(@NotNull String key, @NotNull String value) {
+    myBuildLogger.message(serviceMessage("##teamcity[buildStatisticValue key='", key, "' value='" + value + "']"));
+  }
+
   protected void statusText(@NotNull String text) {
     myBuildLogger.message(String.format("##teamcity[buildStatus tc:tags='tc:internal' text='{build.status.text}; %s']", text));
   }
 
   @NotNull
   protected String escape(@NotNull String s) {
-    return s.
-      replace("|", "||").
-      replace("'", "|'").
-      replace("\n", "|n").
-      replace("\r", "|r").
-      replace("\\uNNNN", "|0xNNNN").
-      replace("[", "|[").replace("]", "|]");
+    final int first = firstEscaped(s);
+    if (first < 0) return s;
+    return appendEscaped(new StringBuilder(s.length() + 16), s, first).toString();
+  }
+
+  /**
+   * Builds the service message escaping the value in the same pass
+   */
+  @NotNull
+  private static String serviceMessage(@NotNull String prefix, @NotNull String value, @NotNull String suffix) {
+    final StringBuilder sb = new StringBuilder(prefix.length() + value.length() + suffix.length() + 16).append(prefix);
+    final int first = firstEscaped(value);
+    if (first < 0) sb.append(value);
+    else appendEscaped(sb, value, first);
+    return sb.append(suffix).toString();
+  }
+
+  private static int firstEscaped(@NotNull String s) {
+    for (int i = 0; i < s.length(); ++i) {
+      if (escapedChar(s.charAt(i)) != 0) return i;
+    }
+    return -1;
+  }
+
+  @NotNull
+  private static StringBuilder appendEscaped(@NotNull StringBuilder sb, @NotNull String s, int first) {
+    sb.append(s, 0, first);
+    for (int i = first; i < s.length(); ++i) {
+      final char c = s.charAt(i);
+      final char escaped = escapedChar(c);
+      if (escaped == 0) sb.append(c);
+      else sb.append('|').append(escaped);
+    }
+    return sb;
+  }
+
+  /**
+   * @return the char following '|' in the escaped service message value or 0 if c doesn't need escaping
+   */
+  private static char escapedChar(char c) {
+    switch (c) {
+      case '|': return '|';
+      case '\'': return '\'';
+      case '\n': return 'n';
+      case '\r': return 'r';
+      case '[': return '[';
+      case ']': return ']';
+      default: return 0;
+    }
+  }
+
+  /**
+   * Instances description last reported as the deployment progress
+   */
+  private static final class DeploymentProgress {
+    @Nullable
+    private final String myStatus;
+    private final int myPending;
+    private final int myInProgress;
+    private final int mySucceeded;
+    private final int myFailed;
+    private final int mySkipped;
+    private final boolean myUnknown;
+    @NotNull
+    private final String myDescription;
+
+    DeploymentProgress(@Nullable InstancesStatus instancesStatus, @NotNull String description) {
+      myUnknown = instancesStatus == null;
+      myStatus = myUnknown ? null : instancesStatus.status;
+      myPending = myUnknown ? 0 : instancesStatus.pending;
+      myInProgress = myUnknown ? 0 : instancesStatus.inProgress;
+      mySucceeded = myUnknown ? 0 : instancesStatus.succeeded;
+      myFailed = myUnknown ? 0 : instancesStatus.failed;
+      mySkipped = myUnknown ? 0 : instancesStatus.skipped;
+      myDescription = description;
+    }
+
+    boolean matches(@Nullable InstancesStatus instancesStatus) {
+      if (instancesStatus == null) return myUnknown;
+      return !myUnknown &&
+        StringUtil.areEqual(myStatus, instancesStatus.status) &&
+        myPending == instancesStatus.pending &&
+        myInProgress == instancesStatus.inProgress &&
+        mySucceeded == instancesStatus.succeeded &&
+        myFailed == instancesStatus.failed &&
+        mySkipped == instancesStatus.skipped;
+    }
   }
 }
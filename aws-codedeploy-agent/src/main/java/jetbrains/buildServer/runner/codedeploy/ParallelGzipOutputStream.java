@@ -0,0 +1,274 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a single member gzip stream deflating the data blocks concurrently.
+ *
+ * Each block is deflated independently, primed with the last 32K of the previous block as a dictionary,
+ * and ends with a sync flush, so the compressed blocks concatenate into one valid deflate stream.
+ * Only the last block is finished. The CRC is calculated by the writing thread.
+ *
+ * Sync flush requires Java 7, on Java 6 the data is deflated by the writing thread instead.
+ *
+ * The underlying stream is not closed.
+ *
+ * @author vbedrosova
+ */
+class ParallelGzipOutputStream extends OutputStream {
+  static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+  private static final int MAX_PENDING_BLOCKS_PER_THREAD = 2;
+  private static final boolean SYNC_FLUSH_SUPPORTED = isSyncFlushSupported();
+
+  private static final byte[] HEADER = {
+    0x1f, (byte) 0x8b, // magic
+    Deflater.DEFLATED,
+    0, // flags
+    0, 0, 0, 0, // no modification time
+    0, // extra flags
+    (byte) 255 // unknown OS
+  };
+
+  @NotNull
+  private final OutputStream myOut;
+  private final int myLevel;
+  private final int myBlockSize;
+  private final int myMaxPending;
+  @NotNull
+  private final ExecutorService myExecutor;
+  // deflate the data on the writing thread if sync flush isn't supported
+  @Nullable
+  private final Deflater mySequentialDeflater;
+  @Nullable
+  private final DeflaterOutputStream mySequential;
+  @NotNull
+  private final LinkedList<Future<byte[]>> myPending = new LinkedList<Future<byte[]>>();
+  @NotNull
+  private final CRC32 myCrc = new CRC32();
+  private long mySize;
+
+  @NotNull
+  private byte[] myBlock;
+  private int myBlockLength;
+  @Nullable
+  private byte[] myDictionary;
+  private boolean myFinished;
+
+  ParallelGzipOutputStream(@NotNull OutputStream out, int threads, int level) throws IOException {
+    this(out, threads, level, BLOCK_SIZE);
+  }
+
+  ParallelGzipOutputStream(@NotNull OutputStream out, int threads, int level, int blockSize) throws IOException {
+    this(out, threads, level, blockSize, SYNC_FLUSH_SUPPORTED);
+  }
+
+  ParallelGzipOutputStream(@NotNull OutputStream out, int threads, int level, int blockSize, boolean parallel) throws IOException {
+    myOut = out;
+    myLevel = level;
+    myBlockSize = Math.max(blockSize, DICTIONARY_SIZE);
+    myMaxPending = Math.max(1, threads) * MAX_PENDING_BLOCKS_PER_THREAD;
+    // the pool threads are started on the first submitted block only
+    myExecutor = createExecutor(Math.max(1, threads));
+    if (parallel) {
+      mySequentialDeflater = null;
+      mySequential = null;
+      myBlock = new byte[myBlockSize];
+    } else {
+      mySequentialDeflater = new Deflater(level, true);
+      mySequential = new DeflaterOutputStream(out, mySequentialDeflater, DICTIONARY_SIZE);
+      myBlock = new byte[0];
+    }
+
+    myOut.write(HEADER);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(@NotNull byte[] b, int off, int len) throws IOException {
+    if (myFinished) throw new IOException("Stream is finished");
+    if (mySequential != null) {
+      myCrc.update(b, off, len);
+      mySize += len;
+      mySequential.write(b, off, len);
+      return;
+    }
+    while (len > 0) {
+      final int n = Math.min(len, myBlockSize - myBlockLength);
+      System.arraycopy(b, off, myBlock, myBlockLength, n);
+      myBlockLength += n;
+      off += n;
+      len -= n;
+      if (myBlockLength == myBlockSize) submitBlock(false);
+    }
+  }
+
+  /**
+   * Writes the last block and the gzip trailer, the underlying stream is flushed but not closed
+   */
+  void finish() throws IOException {
+    if (myFinished) return;
+    if (mySequential != null) {
+      mySequential.finish();
+    } else {
+      submitBlock(true);
+      while (!myPending.isEmpty()) {
+        writeNext();
+      }
+    }
+    myFinished = true;
+    shutdown();
+
+    final long crc = myCrc.getValue();
+    final byte[] trailer = new byte[8];
+    for (int i = 0; i < 4; ++i) {
+      trailer[i] = (byte) (crc >>> (8 * i));
+      trailer[4 + i] = (byte) (mySize >>> (8 * i));
+    }
+    myOut.write(trailer);
+    myOut.flush();
+  }
+
+  /**
+   * Stops compressing, must be called if the stream wasn't finished
+   */
+  void shutdown() {
+    myExecutor.shutdownNow();
+    if (mySequentialDeflater != null) mySequentialDeflater.end();
+  }
+
+  private void submitBlock(boolean last) throws IOException {
+    while (myPending.size() >= myMaxPending) {
+      writeNext();
+    }
+
+    final byte[] block = myBlock;
+    final int length = myBlockLength;
+    myCrc.update(block, 0, length);
+    mySize += length;
+
+    myPending.add(myExecutor.submit(new DeflateTask(block, length, myDictionary, myLevel, last)));
+
+    if (!last) {
+      myDictionary = Arrays.copyOfRange(block, length - DICTIONARY_SIZE, length);
+      myBlock = new byte[myBlockSize];
+      myBlockLength = 0;
+    }
+
+    while (!myPending.isEmpty() && myPending.getFirst().isDone()) {
+      writeNext();
+    }
+  }
+
+  private void writeNext() throws IOException {
+    try {
+      myOut.write(myPending.removeFirst().get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to compress", e.getCause());
+    }
+  }
+
+  private static boolean isSyncFlushSupported() {
+    try {
+      Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  @NotNull
+  private static ExecutorService createExecutor(int threads) {
+    final AtomicInteger counter = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread t = new Thread(r, "CodeDeploy revision compression " + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  private static final class DeflateTask implements Callable<byte[]> {
+    @NotNull
+    private final byte[] myBlock;
+    private final int myLength;
+    @Nullable
+    private final byte[] myDictionary;
+    private final int myLevel;
+    private final boolean myLast;
+
+    DeflateTask(@NotNull byte[] block, int length, @Nullable byte[] dictionary, int level, boolean last) {
+      myBlock = block;
+      myLength = length;
+      myDictionary = dictionary;
+      myLevel = level;
+      myLast = last;
+    }
+
+    @Override
+    public byte[] call() {
+      final Deflater deflater = new Deflater(myLevel, true);
+      try {
+        if (myDictionary != null) deflater.setDictionary(myDictionary);
+        deflater.setInput(myBlock, 0, myLength);
+
+        byte[] data = new byte[myLength + myLength / 1000 + 64];
+        int length = 0;
+        if (myLast) {
+          deflater.finish();
+          while (!deflater.finished()) {
+            if (length == data.length) data = Arrays.copyOf(data, data.length * 2);
+            length += deflater.deflate(data, length, data.length - length);
+          }
+        } else {
+          // sync flush ends the output on a byte boundary without marking the block final
+          while (true) {
+            length += deflater.deflate(data, length, data.length - length, Deflater.SYNC_FLUSH);
+            if (length < data.length) break;
+            data = Arrays.copyOf(data, data.length * 2);
+          }
+        }
+        return Arrays.copyOf(data, length);
+      } finally {
+        deflater.end();
+      }
+    }
+  }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Packs application revision files into a zip archive deflating entries concurrently,
+ * entries are written into the archive in the original order.
+ *
+ * Files bigger than the in-memory threshold are deflated by the writing thread,
+ * while the workers keep deflating the following entries.
+ *
+ * Files the compression policy considers already compressed are stored as is, big ones are
+ * copied into the archive without passing through the heap once a worker calculates their CRC.
+ *
+ * @author vbedrosova
+ */
+class ParallelZipPackager {
+  static final int IN_MEMORY_ENTRY_THRESHOLD = 4 * 1024 * 1024;
+  private static final int IN_MEMORY_ENTRIES_BUDGET = 64 * 1024 * 1024;
+  private static final int MAX_PENDING_ENTRIES_PER_THREAD = 64;
+
+  // maps to the earliest DOS date, 1980-01-01 00:00:00, in any time zone
+  static final long REPRODUCIBLE_TIME = 0;
+
+  private final int myThreads;
+  private final int myInMemoryEntryThreshold;
+  private boolean myReproducible;
+  @NotNull
+  private CompressionPolicy myCompression = new CompressionPolicy();
+
+  ParallelZipPackager(int threads) {
+    this(threads, IN_MEMORY_ENTRY_THRESHOLD);
+  }
+
+  ParallelZipPackager(int threads, int inMemoryEntryThreshold) {
+    myThreads = Math.max(1, threads);
+    myInMemoryEntryThreshold = Math.min(inMemoryEntryThreshold, IN_MEMORY_ENTRIES_BUDGET);
+  }
+
+  /**
+   * In reproducible mode entries are written sorted by path and with the fixed modification time,
+   * so the same files mapped to the same paths are always packed into the byte-identical archive.
+   * Sorting buffers the full entry list in memory and nothing is written until all the entries are found,
+   * so the packaging doesn't overlap with the revision files walk
+   */
+  @NotNull
+  ParallelZipPackager withReproducible(boolean reproducible) {
+    myReproducible = reproducible;
+    return this;
+  }
+
+  @NotNull
+  ParallelZipPackager withCompression(@NotNull CompressionPolicy compression) {
+    myCompression = compression;
+    return this;
+  }
+
+  void pack(@NotNull List<Entry> entries, @NotNull OutputStream output, @NotNull String archive) throws CodeDeployRunner.CodeDeployRunnerException {
+    pack(fromList(entries), output, archive);
+  }
+
+  /**
+   * Entries are packed as they come from the source unless in reproducible mode, which collects all of them in memory
+   * and sorts them first
+   */
+  void pack(@NotNull EntrySource entries, @NotNull OutputStream output, @NotNull String archive) throws CodeDeployRunner.CodeDeployRunnerException {
+    if (myReproducible) entries = fromList(sortByPath(toList(entries)));
+
+    final Deflaters deflaters = new Deflaters(myCompression.getLevel());
+    final ExecutorService executor = createExecutor();
+    final Semaphore budget = new Semaphore(IN_MEMORY_ENTRIES_BUDGET);
+    final LinkedList<PendingEntry> pending = new LinkedList<PendingEntry>();
+    final int maxPending = myThreads * MAX_PENDING_ENTRIES_PER_THREAD;
+
+    final ZipArchiveWriter writer = new ZipArchiveWriter(output);
+    final Deflater writerDeflater = new Deflater(myCompression.getLevel(), true);
+    try {
+      Entry e;
+      while ((e = entries.next()) != null) {
+        final long length = e.getFile().length();
+        if (length > myInMemoryEntryThreshold) {
+          while (pending.size() >= maxPending) {
+            writeNext(writer, pending, budget, writerDeflater, archive);
+          }
+          pending.add(new PendingEntry(e, myCompression.isStored(e.getFile()) ? executor.submit(new ChecksumTask(e.getFile(), myReproducible)) : null, 0));
+        } else {
+          final int permits = inMemoryPermits(length);
+          while (pending.size() >= maxPending || !budget.tryAcquire(permits)) {
+            writeNext(writer, pending, budget, writerDeflater, archive);
+          }
+          pending.add(new PendingEntry(e, executor.submit(new DeflateTask(e.getFile(), deflaters, myCompression, myReproducible)), permits));
+        }
+        while (!pending.isEmpty() && pending.getFirst().isDone()) {
+          writeNext(writer, pending, budget, writerDeflater, archive);
+        }
+      }
+      while (!pending.isEmpty()) {
+        writeNext(writer, pending, budget, writerDeflater, archive);
+      }
+      writer.finish();
+    } catch (IOException e) {
+      throw new CodeDeployRunner.CodeDeployRunnerException("Failed to package application revision " + archive, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CodeDeployRunner.CodeDeployRunnerException("Interrupted while packaging application revision " + archive, e);
+    } finally {
+      executor.shutdownNow();
+      writerDeflater.end();
+      if (awaitTermination(executor)) deflaters.end();
+    }
+  }
+
+  @NotNull
+  static EntrySource fromList(@NotNull List<Entry> entries) {
+    final Iterator<Entry> it = entries.iterator();
+    return new EntrySource() {
+      @Nullable
+      @Override
+      public Entry next() {
+        return it.hasNext() ? it.next() : null;
+      }
+    };
+  }
+
+  @NotNull
+  static List<Entry> toList(@NotNull EntrySource entries) throws CodeDeployRunner.CodeDeployRunnerException {
+    final List<Entry> res = new ArrayList<Entry>();
+    Entry e;
+    while ((e = entries.next()) != null) {
+      res.add(e);
+    }
+    return res;
+  }
+
+  @NotNull
+  static List<Entry> sortByPath(@NotNull List<Entry> entries) {
+    final List<Entry> sorted = new ArrayList<Entry>(entries);
+    Collections.sort(sorted, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        return e1.getPath().compareTo(e2.getPath());
+      }
+    });
+    return sorted;
+  }
+
+  private static boolean awaitTermination(@NotNull ExecutorService executor) {
+    try {
+      return executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private void writeNext(@NotNull ZipArchiveWriter writer,
+                         @NotNull LinkedList<PendingEntry> pending,
+                         @NotNull Semaphore budget,
+                         @NotNull Deflater deflater,
+                         @NotNull String archive) throws CodeDeployRunner.CodeDeployRunnerException, InterruptedException {
+    final PendingEntry next = pending.removeFirst();
+    final File file = next.getEntry().getFile();
+    try {
+      if (next.getFuture() == null) {
+        final InputStream input = new BufferedInputStream(new FileInputStream(file));
+        try {
+          writer.putDeflatedEntry(next.getEntry().getPath(), myReproducible ? REPRODUCIBLE_TIME : file.lastModified(), input, file.length(), deflater);
+        } finally {
+          FileUtil.close(input);
+        }
+      } else {
+        final Deflated deflated = next.getFuture().get();
+        if (deflated.getData() == null) {
+          writer.putStoredEntry(next.getEntry().getPath(), deflated.getTime(), file, deflated.getCrc(), deflated.getSize());
+        } else {
+          writer.putEntry(next.getEntry().getPath(), deflated.getTime(), deflated.getMethod(), deflated.getCrc(), deflated.getSize(), deflated.getData(), deflated.getLength());
+        }
+      }
+    } catch (ExecutionException e) {
+      throw new CodeDeployRunner.CodeDeployRunnerException("Failed to package file " + file + " to application revision " + archive, e.getCause());
+    } catch (IOException e) {
+      throw new CodeDeployRunner.CodeDeployRunnerException("Failed to package file " + file + " to application revision " + archive, e);
+    } finally {
+      budget.release(next.getPermits());
+    }
+  }
+
+  @NotNull
+  private ExecutorService createExecutor() {
+    final AtomicInteger counter = new AtomicInteger();
+    return Executors.newFixedThreadPool(myThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread t = new Thread(r, "CodeDeploy revision packaging " + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Supplies entries one by one, so that they don't have to be held in memory all at once
+   */
+  interface EntrySource {
+    /**
+     * @return next entry or null if there are no more entries
+     */
+    @Nullable
+    Entry next() throws CodeDeployRunner.CodeDeployRunnerException;
+  }
+
+  static final class Entry {
+    @NotNull
+    private final String myPath;
+    @NotNull
+    private final File myFile;
+
+    Entry(@NotNull String path, @NotNull File file) {
+      myPath = path;
+      myFile = file;
+    }
+
+    @NotNull
+    String getPath() {
+      return myPath;
+    }
+
+    @NotNull
+    File getFile() {
+      return myFile;
+    }
+  }
+
+  private static final class PendingEntry {
+    @NotNull
+    private final Entry myEntry;
+    @Nullable
+    private final Future<Deflated> myFuture;
+    private final int myPermits;
+
+    PendingEntry(@NotNull Entry entry, @Nullable Future<Deflated> future, int permits) {
+      myEntry = entry;
+      myFuture = future;
+      myPermits = permits;
+    }
+
+    @NotNull
+    Entry getEntry() {
+      return myEntry;
+    }
+
+    @Nullable
+    Future<Deflated> getFuture() {
+      return myFuture;
+    }
+
+    int getPermits() {
+      return myPermits;
+    }
+
+    boolean isDone() {
+      return myFuture == null || myFuture.isDone();
+    }
+  }
+
+  /**
+   * Entry data compressed with the method, no data means the file is to be stored as is
+   */
+  private static final class Deflated {
+    @Nullable
+    private final byte[] myData;
+    private final int myLength;
+    private final int myMethod;
+    private final long myCrc;
+    private final long mySize;
+    private final long myTime;
+
+    Deflated(@Nullable byte[] data, int length, int method, long crc, long size, long time) {
+      myData = data;
+      myLength = length;
+      myMethod = method;
+      myCrc = crc;
+      mySize = size;
+      myTime = time;
+    }
+
+    @Nullable
+    byte[] getData() {
+      return myData;
+    }
+
+    int getLength() {
+      return myLength;
+    }
+
+    int getMethod() {
+      return myMethod;
+    }
+
+    long getCrc() {
+      return myCrc;
+    }
+
+    long getSize() {
+      return mySize;
+    }
+
+    long getTime() {
+      return myTime;
+    }
+  }
+
+  /**
+   * Both the read content and the deflated output buffer are held in memory until the deflate task completes,
+   * so both are counted against the budget
+   */
+  static int inMemoryPermits(long length) {
+    return (int) Math.min(IN_MEMORY_ENTRIES_BUDGET, Math.max(1, length + deflatedBufferSize(length)));
+  }
+
+  // enough for the incompressible content, so the buffer is not grown while deflating
+  private static long deflatedBufferSize(long length) {
+    return length + length / 1000 + 64;
+  }
+
+  private static final class DeflateTask implements Callable<Deflated> {
+    @NotNull
+    private final File myFile;
+    @NotNull
+    private final Deflaters myDeflaters;
+    @NotNull
+    private final CompressionPolicy myCompression;
+    private final boolean myReproducible;
+
+    DeflateTask(@NotNull File file, @NotNull Deflaters deflaters, @NotNull CompressionPolicy compression, boolean reproducible) {
+      myFile = file;
+      myDeflaters = deflaters;
+      myCompression = compression;
+      myReproducible = reproducible;
+    }
+
+    @Override
+    public Deflated call() throws IOException {
+      final long time = myReproducible ? REPRODUCIBLE_TIME : myFile.lastModified();
+      final byte[] content = readContent(myFile);
+
+      final CRC32 crc = new CRC32();
+      crc.update(content);
+
+      if (myCompression.isStored(myFile.getName(), content)) {
+        return new Deflated(content, content.length, ZipEntry.STORED, crc.getValue(), content.length, time);
+      }
+
+      final Deflater deflater = myDeflaters.get();
+      deflater.reset();
+      deflater.setInput(content);
+      deflater.finish();
+
+      byte[] data = new byte[(int) deflatedBufferSize(content.length)];
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == data.length) data = Arrays.copyOf(data, data.length * 2);
+        length += deflater.deflate(data, length, data.length - length);
+      }
+      return new Deflated(data, length, ZipEntry.DEFLATED, crc.getValue(), content.length, time);
+    }
+
+    @NotNull
+    private static byte[] readContent(@NotNull File file) throws IOException {
+      final InputStream input = new FileInputStream(file);
+      try {
+        byte[] content = new byte[(int) file.length()];
+        int length = 0;
+        int read;
+        while ((read = input.read(content, length, content.length - length)) >= 0) {
+          length += read;
+          if (length == content.length) {
+            final int b = input.read();
+            if (b < 0) break;
+            content = Arrays.copyOf(content, Math.max(content.length * 2, 1024));
+            content[length++] = (byte) b;
+          }
+        }
+        return length == content.length ? content : Arrays.copyOf(content, length);
+      } finally {
+        FileUtil.close(input);
+      }
+    }
+  }
+
+  /**
+   * Calculates CRC of a big file to be stored, the file itself is copied by the writer
+   */
+  private static final class ChecksumTask implements Callable<Deflated> {
+    @NotNull
+    private final File myFile;
+    private final boolean myReproducible;
+
+    ChecksumTask(@NotNull File file, boolean reproducible) {
+      myFile = file;
+      myReproducible = reproducible;
+    }
+
+    @Override
+    public Deflated call() throws IOException {
+      final long time = myReproducible ? REPRODUCIBLE_TIME : myFile.lastModified();
+      final CRC32 crc = new CRC32();
+      final byte[] buffer = new byte[64 * 1024];
+      long size = 0;
+
+      final InputStream input = new FileInputStream(myFile);
+      try {
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+          crc.update(buffer, 0, read);
+          size += read;
+        }
+      } finally {
+        FileUtil.close(input);
+      }
+      return new Deflated(null, 0, ZipEntry.STORED, crc.getValue(), size, time);
+    }
+  }
+
+  /**
+   * Deflater per worker thread, native resources are released when packaging finishes
+   */
+  private static final class Deflaters extends ThreadLocal<Deflater> {
+    @NotNull
+    private final List<Deflater> myCreated = Collections.synchronizedList(new ArrayList<Deflater>());
+    private final int myLevel;
+
+    Deflaters(int level) {
+      myLevel = level;
+    }
+
+    @Override
+    protected Deflater initialValue() {
+      final Deflater deflater = new Deflater(myLevel, true);
+      myCreated.add(deflater);
+      return deflater;
+    }
+
+    void end() {
+      synchronized (myCreated) {
+        for (Deflater d : myCreated) {
+          d.end();
+        }
+        myCreated.clear();
+      }
+    }
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Agent-local cache of uploaded application revisions.
+ *
+ * Revisions are identified by the digest of their content: mapped paths, sizes and content hashes of all the files.
+ * For each digest and S3 location the cache remembers S3 object version and ETag of the last upload.
+ *
+ * The cache directory also keeps the state of the multipart uploads which haven't been completed yet,
+ * these don't depend on the digest and are kept even if the cache itself is not used.
+ *
+ * @author vbedrosova
+ */
+class RevisionCache {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(Loggers.VCS_CATEGORY + CodeDeployRunner.class);
+
+  static final String CACHE_DIR_KEY = "aws-codedeploy-revisions";
+  private static final int MAX_ENTRIES = 1000;
+  private static final int MAX_PENDING_HASHES_PER_THREAD = 64;
+
+  private static final String BUCKET = "bucket";
+  private static final String KEY = "key";
+  private static final String VERSION = "version";
+  private static final String ETAG = "etag";
+
+  @NotNull
+  private final File myCacheDir;
+
+  RevisionCache(@NotNull File cacheDir) {
+    myCacheDir = cacheDir;
+  }
+
+  @Nullable
+  synchronized Entry get(@NotNull String digest, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {
+    final File file = getEntryFile(digest, s3BucketName, s3ObjectKey);
+    if (!file.isFile()) return null;
+
+    final Properties props = new Properties();
+    InputStream input = null;
+    try {
+      input = new FileInputStream(file);
+      props.load(input);
+    } catch (IOException e) {
+      LOG.warn("Failed to read application revision cache entry " + file, e);
+      return null;
+    } finally {
+      FileUtil.close(input);
+    }
+
+    if (!s3BucketName.equals(props.getProperty(BUCKET)) || !s3ObjectKey.equals(props.getProperty(KEY))) return null;
+
+    //noinspection ResultOfMethodCallIgnored
+    file.setLastModified(System.currentTimeMillis());
+    return new Entry(StringUtil.nullIfEmpty(props.getProperty(VERSION)), StringUtil.nullIfEmpty(props.getProperty(ETAG)));
+  }
+
+  synchronized void put(@NotNull String digest, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag) {
+    final Properties props = new Properties();
+    props.setProperty(BUCKET, s3BucketName);
+    props.setProperty(KEY, s3ObjectKey);
+    if (s3ObjectVersion != null) props.setProperty(VERSION, s3ObjectVersion);
+    if (s3ObjectETag != null) props.setProperty(ETAG, s3ObjectETag);
+
+    final File file = getEntryFile(digest, s3BucketName, s3ObjectKey);
+    final File temp = new File(myCacheDir, file.getName() + ".tmp");
+
+    OutputStream output = null;
+    try {
+      FileUtil.createDir(myCacheDir);
+      output = new FileOutputStream(temp);
+      props.store(output, null);
+      output.close();
+      output = null;
+
+      FileUtil.delete(file);
+      if (!temp.renameTo(file)) throw new IOException("Failed to rename " + temp + " to " + file);
+    } catch (IOException e) {
+      LOG.warn("Failed to write application revision cache entry " + file, e);
+    } finally {
+      FileUtil.close(output);
+      FileUtil.delete(temp);
+    }
+
+    evictOldEntries();
+  }
+
+  private void evictOldEntries() {
+    final File[] files = myCacheDir.listFiles();
+    if (files == null || files.length <= MAX_ENTRIES) return;
+
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        final long m1 = f1.lastModified();
+        final long m2 = f2.lastModified();
+        return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < files.length - MAX_ENTRIES; ++i) {
+      FileUtil.delete(files[i]);
+    }
+  }
+
+  /**
+   * File to keep the state of the incomplete multipart upload of the revision archive of the given length to the S3 location,
+   * so that the upload is continued by the next build. The uploaded parts are checked against the archive content
+   * before being reused, so the archive doesn't need to be hashed upfront
+   */
+  @NotNull
+  File getUploadStateFile(long length, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {
+    return new File(myCacheDir, getFileName(String.valueOf(length), s3BucketName, s3ObjectKey) + ".upload");
+  }
+
+  @NotNull
+  private File getEntryFile(@NotNull String digest, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {
+    return new File(myCacheDir, getFileName(digest, s3BucketName, s3ObjectKey) + ".properties");
+  }
+
+  @NotNull
+  private static String getFileName(@NotNull String id, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {
+    final MessageDigest md = createMessageDigest();
+    update(md, id);
+    update(md, s3BucketName);
+    update(md, s3ObjectKey);
+    return toHex(md.digest());
+  }
+
+  /**
+   * Digest of mapped paths, sizes and content hashes of the provided application revision entries, independent of their order.
+   * Content hashes are calculated concurrently.
+   */
+  @NotNull
+  static String computeDigest(@NotNull List<ParallelZipPackager.Entry> entries, int threads) throws CodeDeployRunner.CodeDeployRunnerException {
+    return computeDigest(ParallelZipPackager.fromList(entries), threads);
+  }
+
+  /**
+   * Entries are hashed as they come from the source, the hashes are summed up modulo 2^256 so that the digest
+   * doesn't depend on the order and the entries don't have to be collected and sorted
+   */
+  @NotNull
+  static String computeDigest(@NotNull ParallelZipPackager.EntrySource entries, int threads) throws CodeDeployRunner.CodeDeployRunnerException {
+    final ExecutorService executor = createExecutor(threads);
+    final LinkedList<PendingHash> pending = new LinkedList<PendingHash>();
+    final int maxPending = Math.max(1, threads) * MAX_PENDING_HASHES_PER_THREAD;
+    final byte[] sum = new byte[32];
+    long count = 0;
+    try {
+      ParallelZipPackager.Entry e;
+      while ((e = entries.next()) != null) {
+        while (pending.size() >= maxPending) {
+          add(sum, pending.removeFirst());
+        }
+        final ParallelZipPackager.Entry entry = e;
+        pending.add(new PendingHash(entry.getFile(), executor.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws IOException {
+            final MessageDigest md = createMessageDigest();
+            update(md, entry.getPath());
+            update(md, String.valueOf(entry.getFile().length()));
+            update(md, hashContent(entry.getFile()));
+            return md.digest();
+          }
+        })));
+        ++count;
+      }
+      while (!pending.isEmpty()) {
+        add(sum, pending.removeFirst());
+      }
+
+      final MessageDigest md = createMessageDigest();
+      md.update(sum);
+      update(md, String.valueOf(count));
+      return toHex(md.digest());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new CodeDeployRunner.CodeDeployRunnerException("Interrupted while calculating application revision digest", ex);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Adds the entry hash to the sum as 256 bit unsigned integers
+   */
+  private static void add(@NotNull byte[] sum, @NotNull PendingHash hash) throws CodeDeployRunner.CodeDeployRunnerException, InterruptedException {
+    final byte[] bytes;
+    try {
+      bytes = hash.getFuture().get();
+    } catch (ExecutionException ex) {
+      throw new CodeDeployRunner.CodeDeployRunnerException("Failed to calculate application revision file " + hash.getFile() + " digest", ex.getCause());
+    }
+    int carry = 0;
+    for (int i = sum.length - 1; i >= 0; --i) {
+      final int s = (sum[i] & 0xFF) + (bytes[i] & 0xFF) + carry;
+      sum[i] = (byte) s;
+      carry = s >>> 8;
+    }
+  }
+
+  @NotNull
+  private static String hashContent(@NotNull File file) throws IOException {
+    final MessageDigest md = createMessageDigest();
+    final InputStream input = new FileInputStream(file);
+    try {
+      final byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = input.read(buffer)) >= 0) {
+        md.update(buffer, 0, read);
+      }
+    } finally {
+      FileUtil.close(input);
+    }
+    return toHex(md.digest());
+  }
+
+  private static void update(@NotNull MessageDigest md, @NotNull String s) {
+    try {
+      md.update(s.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    md.update((byte) 0);
+  }
+
+  @NotNull
+  private static MessageDigest createMessageDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static String toHex(@NotNull byte[] bytes) {
+    final char[] digits = "0123456789abcdef".toCharArray();
+    final char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; ++i) {
+      chars[2 * i] = digits[(bytes[i] >> 4) & 0xF];
+      chars[2 * i + 1] = digits[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  @NotNull
+  private static ExecutorService createExecutor(int threads) {
+    final AtomicInteger counter = new AtomicInteger();
+    return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread t = new Thread(r, "CodeDeploy revision digest " + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  private static final class PendingHash {
+    @NotNull
+    private final File myFile;
+    @NotNull
+    private final Future<byte[]> myFuture;
+
+    PendingHash(@NotNull File file, @NotNull Future<byte[]> future) {
+      myFile = file;
+      myFuture = future;
+    }
+
+    @NotNull
+    File getFile() {
+      return myFile;
+    }
+
+    @NotNull
+    Future<byte[]> getFuture() {
+      return myFuture;
+    }
+  }
+
+  static final class Entry {
+    @Nullable
+    private final String myVersion;
+    @Nullable
+    private final String myETag;
+
+    Entry(@Nullable String version, @Nullable String eTag) {
+      myVersion = version;
+      myETag = eTag;
+    }
+
+    @Nullable
+    String getVersion() {
+      return myVersion;
+    }
+
+    @Nullable
+    String getETag() {
+      return myETag;
+    }
+  }
+}
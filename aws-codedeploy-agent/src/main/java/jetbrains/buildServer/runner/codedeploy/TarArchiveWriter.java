@@ -0,0 +1,178 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes POSIX ustar archive file entries. Names which don't fit the ustar header or aren't ASCII
+ * and sizes of 8G and more are written into the PAX extended headers.
+ * File data is copied with FileChannel.transferTo, directly to the archive file if it's written to a file.
+ *
+ * @author vbedrosova
+ */
+class TarArchiveWriter {
+  static final int MODE_FILE = 0644;
+  static final int MODE_EXECUTABLE = 0755;
+
+  private static final int BLOCK_SIZE = 512;
+  private static final int NAME_LENGTH = 100;
+  private static final int PREFIX_LENGTH = 155;
+  private static final long MAX_SIZE = 077777777777L;
+
+  private static final byte TYPE_FILE = '0';
+  private static final byte TYPE_PAX_HEADER = 'x';
+  private static final String PAX_HEADER_NAME = "././@PaxHeader";
+
+  @Nullable
+  private final FileChannel myChannel;
+  @NotNull
+  private final OutputStream myOut;
+
+  TarArchiveWriter(@NotNull OutputStream out) {
+    if (out instanceof FileOutputStream) {
+      myChannel = ((FileOutputStream) out).getChannel();
+      myOut = new BufferedOutputStream(out, 64 * 1024);
+    } else {
+      myChannel = null;
+      myOut = out;
+    }
+  }
+
+  /**
+   * @param time modification time in milliseconds
+   */
+  void putEntry(@NotNull String name, long time, int mode, @NotNull File file) throws IOException {
+    final FileInputStream input = new FileInputStream(file);
+    try {
+      final FileChannel source = input.getChannel();
+      final long size = source.size();
+
+      final Map<String, String> pax = new LinkedHashMap<String, String>();
+      final byte[] nameBytes = name.getBytes("UTF-8");
+      int split = getPrefixSplit(nameBytes);
+      if (split < 0) {
+        pax.put("path", name);
+        split = 0;
+      }
+      if (size > MAX_SIZE) pax.put("size", String.valueOf(size));
+      if (!pax.isEmpty()) writePaxHeader(pax, time);
+
+      writeHeader(nameBytes, split, mode, size > MAX_SIZE ? 0 : size, time, TYPE_FILE);
+
+      myOut.flush();
+      final WritableByteChannel target = myChannel == null ? Channels.newChannel(myOut) : myChannel;
+      long position = 0;
+      while (position < size) {
+        final long transferred = source.transferTo(position, size - position, target);
+        if (transferred <= 0) throw new IOException("Entry " + name + " size changed during packaging");
+        position += transferred;
+      }
+      pad(size);
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Writes the end of archive marker, the underlying stream is flushed but not closed
+   */
+  void finish() throws IOException {
+    myOut.write(new byte[2 * BLOCK_SIZE]);
+    myOut.flush();
+  }
+
+  private void writePaxHeader(@NotNull Map<String, String> pax, long time) throws IOException {
+    final ByteArrayOutputStream records = new ByteArrayOutputStream();
+    for (Map.Entry<String, String> e : pax.entrySet()) {
+      // the record length includes its own decimal representation
+      final int length = (" " + e.getKey() + "=" + e.getValue() + "\n").getBytes("UTF-8").length;
+      int total = length + String.valueOf(length).length();
+      if (String.valueOf(total).length() != String.valueOf(length).length()) ++total;
+      records.write((total + " " + e.getKey() + "=" + e.getValue() + "\n").getBytes("UTF-8"));
+    }
+    writeHeader(PAX_HEADER_NAME.getBytes("UTF-8"), 0, MODE_FILE, records.size(), time, TYPE_PAX_HEADER);
+    records.writeTo(myOut);
+    pad(records.size());
+  }
+
+  private void writeHeader(@NotNull byte[] name, int split, int mode, long size, long time, byte type) throws IOException {
+    final byte[] header = new byte[BLOCK_SIZE];
+    final int nameStart = split == 0 ? 0 : split + 1;
+    System.arraycopy(name, nameStart, header, 0, Math.min(NAME_LENGTH, name.length - nameStart));
+    writeOctal(header, 100, 8, mode);
+    writeOctal(header, 108, 8, 0); // uid
+    writeOctal(header, 116, 8, 0); // gid
+    writeOctal(header, 124, 12, size);
+    writeOctal(header, 136, 12, Math.max(0, time / 1000));
+    header[156] = type;
+    System.arraycopy("ustar\00000".getBytes("US-ASCII"), 0, header, 257, 8);
+    System.arraycopy(name, 0, header, 345, split);
+
+    // checksum is calculated with the checksum field filled with spaces
+    for (int i = 148; i < 156; ++i) {
+      header[i] = ' ';
+    }
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xFF;
+    }
+    writeOctal(header, 148, 7, checksum);
+
+    myOut.write(header);
+  }
+
+  private void pad(long size) throws IOException {
+    final int remainder = (int) (size % BLOCK_SIZE);
+    if (remainder > 0) myOut.write(new byte[BLOCK_SIZE - remainder]);
+  }
+
+  /**
+   * @return 0 if the name fits the name field, index of the slash separating prefix and name
+   * or -1 if the name requires a PAX header
+   */
+  private static int getPrefixSplit(@NotNull byte[] name) {
+    for (byte b : name) {
+      if (b < 0x20 || b > 0x7E) return -1;
+    }
+    if (name.length <= NAME_LENGTH) return 0;
+    for (int i = Math.min(PREFIX_LENGTH, name.length - 1); i > 0; --i) {
+      if (name[i] == '/') return name.length - i - 1 <= NAME_LENGTH && name.length - i - 1 > 0 ? i : -1;
+    }
+    return -1;
+  }
+
+  /**
+   * Writes zero padded octal value followed by NUL
+   */
+  private static void writeOctal(@NotNull byte[] header, int offset, int length, long value) {
+    final String octal = Long.toOctalString(value);
+    int pos = offset + length - 1;
+    header[pos--] = 0;
+    for (int i = octal.length() - 1; pos >= offset; --pos, --i) {
+      header[pos] = (byte) (i >= 0 ? octal.charAt(i) : '0');
+    }
+  }
+}
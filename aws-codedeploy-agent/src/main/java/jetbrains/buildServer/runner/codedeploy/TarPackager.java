@@ -0,0 +1,107 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Packs application revision files into a tar archive, optionally gzipped with all the packaging threads.
+ * Unlike zip, tar keeps the files executable permission.
+ *
+ * @author vbedrosova
+ */
+class TarPackager {
+  private final int myThreads;
+  private boolean myGzip;
+  private int myLevel = Deflater.DEFAULT_COMPRESSION;
+  private boolean myReproducible;
+
+  TarPackager(int threads) {
+    myThreads = Math.max(1, threads);
+  }
+
+  @NotNull
+  TarPackager withGzip(boolean gzip) {
+    myGzip = gzip;
+    return this;
+  }
+
+  @NotNull
+  TarPackager withCompressionLevel(int level) {
+    myLevel = level;
+    return this;
+  }
+
+  /**
+   * In reproducible mode entries are written sorted by path and with the fixed modification time,
+   * the full entry list is buffered in memory for sorting as in {@link ParallelZipPackager#withReproducible}
+   */
+  @NotNull
+  TarPackager withReproducible(boolean reproducible) {
+    myReproducible = reproducible;
+    return this;
+  }
+
+  void pack(@NotNull List<ParallelZipPackager.Entry> entries, @NotNull OutputStream output, @NotNull String archive) throws CodeDeployRunner.CodeDeployRunnerException {
+    pack(ParallelZipPackager.fromList(entries), output, archive);
+  }
+
+  /**
+   * Entries are packed as they come from the source unless in reproducible mode, which collects all of them in memory
+   * and sorts them first
+   */
+  void pack(@NotNull ParallelZipPackager.EntrySource entries, @NotNull OutputStream output, @NotNull String archive) throws CodeDeployRunner.CodeDeployRunnerException {
+    if (myReproducible) entries = ParallelZipPackager.fromList(ParallelZipPackager.sortByPath(ParallelZipPackager.toList(entries)));
+
+    ParallelGzipOutputStream gzip = null;
+    File file = null;
+    try {
+      if (myGzip) gzip = new ParallelGzipOutputStream(output, myThreads, myLevel);
+
+      final TarArchiveWriter writer = new TarArchiveWriter(gzip == null ? output : gzip);
+      ParallelZipPackager.Entry e;
+      while ((e = entries.next()) != null) {
+        file = e.getFile();
+        writer.putEntry(e.getPath(), myReproducible ? ParallelZipPackager.REPRODUCIBLE_TIME : file.lastModified(),
+          file.canExecute() ? TarArchiveWriter.MODE_EXECUTABLE : TarArchiveWriter.MODE_FILE, file);
+      }
+      file = null;
+      writer.finish();
+
+      if (gzip != null) gzip.finish();
+    } catch (InterruptedIOException e) {
+      throw new CodeDeployRunner.CodeDeployRunnerException("Interrupted while packaging application revision " + archive, e);
+    } catch (IOException e) {
+      throw new CodeDeployRunner.CodeDeployRunnerException(getFailureMessage(file, archive), e);
+    } finally {
+      if (gzip != null) gzip.shutdown();
+    }
+  }
+
+  @NotNull
+  private static String getFailureMessage(@Nullable File file, @NotNull String archive) {
+    return file == null ? "Failed to package application revision " + archive : "Failed to package file " + file + " to application revision " + archive;
+  }
+}
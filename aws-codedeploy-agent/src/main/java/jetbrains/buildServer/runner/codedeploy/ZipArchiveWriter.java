@@ -0,0 +1,329 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes zip archive entries which data is already compressed, so that entries
+ * may be deflated independently and written afterwards.
+ * Zip64 extensions are used for big entries, big archives and archives with many entries.
+ * Stored file entries are copied with FileChannel.transferTo, directly to the archive file if it's written to a file.
+ *
+ * @author vbedrosova
+ */
+class ZipArchiveWriter {
+  private static final long LOCAL_HEADER_SIG = 0x04034b50L;
+  private static final long CENTRAL_HEADER_SIG = 0x02014b50L;
+  private static final long DATA_DESCRIPTOR_SIG = 0x08074b50L;
+  private static final long END_SIG = 0x06054b50L;
+  private static final long ZIP64_END_SIG = 0x06064b50L;
+  private static final long ZIP64_LOCATOR_SIG = 0x07064b50L;
+
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+  private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+  // streamed entries sizes are not known in advance, deflate may slightly exceed the source size
+  private static final long ZIP64_STREAMED_THRESHOLD = 0xF0000000L;
+
+  private static final int VERSION_DEFAULT = 20;
+  private static final int VERSION_ZIP64 = 45;
+
+  private static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+  private static final int UTF8_FLAG = 0x0800;
+
+  @Nullable
+  private final FileChannel myChannel;
+  @NotNull
+  private final CountingOutputStream myOut;
+  @NotNull
+  private final ByteArrayOutputStream myCentralDirectory = new ByteArrayOutputStream();
+  @NotNull
+  private final Set<String> myNames = new HashSet<String>();
+  @NotNull
+  private final byte[] myBuffer = new byte[64 * 1024];
+  private long myEntriesCount;
+
+  ZipArchiveWriter(@NotNull OutputStream out) {
+    if (out instanceof FileOutputStream) {
+      myChannel = ((FileOutputStream) out).getChannel();
+      myOut = new CountingOutputStream(new BufferedOutputStream(out, 64 * 1024));
+    } else {
+      myChannel = null;
+      myOut = new CountingOutputStream(out);
+    }
+  }
+
+  /**
+   * Writes an entry with the provided data compressed with the specified method
+   */
+  void putEntry(@NotNull String name, long time, int method, long crc, long size, @NotNull byte[] data, int length) throws IOException {
+    final byte[] nameBytes = getNameBytes(name);
+    final long offset = myOut.getCount();
+    final boolean zip64 = size >= ZIP64_MAGIC || length >= ZIP64_MAGIC;
+
+    writeLocalHeader(nameBytes, time, method, 0, crc, length, size, zip64);
+    myOut.write(data, 0, length);
+
+    writeCentralHeader(nameBytes, time, method, 0, crc, length, size, offset);
+  }
+
+  /**
+   * Copies the file into the archive as is, the CRC must be calculated beforehand as stored entries can't have data descriptors
+   */
+  void putStoredEntry(@NotNull String name, long time, @NotNull File file, long crc, long size) throws IOException {
+    final byte[] nameBytes = getNameBytes(name);
+    final long offset = myOut.getCount();
+    final boolean zip64 = size >= ZIP64_MAGIC;
+
+    writeLocalHeader(nameBytes, time, ZipEntry.STORED, 0, crc, size, size, zip64);
+
+    final FileInputStream input = new FileInputStream(file);
+    try {
+      final FileChannel source = input.getChannel();
+      if (source.size() != size) throw new ZipException("Entry " + name + " size changed during packaging");
+
+      myOut.flush();
+      final WritableByteChannel target = myChannel == null ? Channels.newChannel(myOut.getTarget()) : myChannel;
+      long position = 0;
+      while (position < size) {
+        final long transferred = source.transferTo(position, size - position, target);
+        if (transferred <= 0) throw new ZipException("Entry " + name + " size changed during packaging");
+        position += transferred;
+      }
+      myOut.skip(size);
+    } finally {
+      input.close();
+    }
+
+    writeCentralHeader(nameBytes, time, ZipEntry.STORED, 0, crc, size, size, offset);
+  }
+
+  /**
+   * Deflates the provided input into the archive, used for entries too big to be held in memory.
+   * As resulting sizes are unknown before the entry data, they are written into the data descriptor
+   */
+  void putDeflatedEntry(@NotNull String name, long time, @NotNull InputStream input, long expectedSize, @NotNull Deflater deflater) throws IOException {
+    final byte[] nameBytes = getNameBytes(name);
+    final long offset = myOut.getCount();
+    final boolean zip64 = expectedSize >= ZIP64_STREAMED_THRESHOLD;
+
+    writeLocalHeader(nameBytes, time, ZipEntry.DEFLATED, DATA_DESCRIPTOR_FLAG, 0, 0, 0, zip64);
+
+    final CRC32 crc = new CRC32();
+    final long start = myOut.getCount();
+    long size = 0;
+
+    deflater.reset();
+    int read;
+    while ((read = input.read(myBuffer)) >= 0) {
+      if (read == 0) continue;
+      crc.update(myBuffer, 0, read);
+      size += read;
+      deflater.setInput(myBuffer, 0, read);
+      while (!deflater.needsInput()) {
+        deflate(deflater);
+      }
+    }
+    deflater.finish();
+    while (!deflater.finished()) {
+      deflate(deflater);
+    }
+
+    final long compressedSize = myOut.getCount() - start;
+    if (!zip64 && (size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC)) {
+      throw new ZipException("Entry " + name + " size changed during packaging");
+    }
+
+    final DataOutput header = new DataOutput();
+    header.writeInt(DATA_DESCRIPTOR_SIG);
+    header.writeInt(crc.getValue());
+    if (zip64) {
+      header.writeLong(compressedSize);
+      header.writeLong(size);
+    } else {
+      header.writeInt(compressedSize);
+      header.writeInt(size);
+    }
+    header.writeTo(myOut);
+
+    writeCentralHeader(nameBytes, time, ZipEntry.DEFLATED, DATA_DESCRIPTOR_FLAG, crc.getValue(), compressedSize, size, offset);
+  }
+
+  private void deflate(@NotNull Deflater deflater) throws IOException {
+    final int len = deflater.deflate(myBuffer, 0, myBuffer.length);
+    if (len > 0) myOut.write(myBuffer, 0, len);
+  }
+
+  /**
+   * Writes the central directory, the underlying stream is flushed but not closed
+   */
+  void finish() throws IOException {
+    final long cdOffset = myOut.getCount();
+    myCentralDirectory.writeTo(myOut);
+    final long cdSize = myOut.getCount() - cdOffset;
+
+    final boolean zip64 = myEntriesCount >= ZIP64_MAGIC_COUNT || cdOffset >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC;
+
+    final DataOutput end = new DataOutput();
+    if (zip64) {
+      final long zip64EndOffset = myOut.getCount();
+      end.writeInt(ZIP64_END_SIG);
+      end.writeLong(44);
+      end.writeShort(VERSION_ZIP64);
+      end.writeShort(VERSION_ZIP64);
+      end.writeInt(0);
+      end.writeInt(0);
+      end.writeLong(myEntriesCount);
+      end.writeLong(myEntriesCount);
+      end.writeLong(cdSize);
+      end.writeLong(cdOffset);
+
+      end.writeInt(ZIP64_LOCATOR_SIG);
+      end.writeInt(0);
+      end.writeLong(zip64EndOffset);
+      end.writeInt(1);
+    }
+    end.writeInt(END_SIG);
+    end.writeShort(0);
+    end.writeShort(0);
+    end.writeShort(Math.min(myEntriesCount, ZIP64_MAGIC_COUNT));
+    end.writeShort(Math.min(myEntriesCount, ZIP64_MAGIC_COUNT));
+    end.writeInt(Math.min(cdSize, ZIP64_MAGIC));
+    end.writeInt(Math.min(cdOffset, ZIP64_MAGIC));
+    end.writeShort(0);
+    end.writeTo(myOut);
+
+    myOut.flush();
+  }
+
+  long getBytesWritten() {
+    return myOut.getCount();
+  }
+
+  @NotNull
+  private byte[] getNameBytes(@NotNull String name) throws IOException {
+    if (!myNames.add(name)) throw new ZipException("duplicate entry: " + name);
+    final byte[] bytes = name.getBytes("UTF-8");
+    if (bytes.length > 0xFFFF) throw new ZipException("entry name too long: " + name);
+    return bytes;
+  }
+
+  private void writeLocalHeader(@NotNull byte[] name, long time, int method, int flags, long crc, long compressedSize, long size, boolean zip64) throws IOException {
+    final DataOutput header = new DataOutput();
+    header.writeInt(LOCAL_HEADER_SIG);
+    header.writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    header.writeShort(flags | UTF8_FLAG);
+    header.writeShort(method);
+    header.writeInt(javaToDosTime(time));
+    header.writeInt(crc);
+    header.writeInt(zip64 ? ZIP64_MAGIC : compressedSize);
+    header.writeInt(zip64 ? ZIP64_MAGIC : size);
+    header.writeShort(name.length);
+    header.writeShort(zip64 ? 20 : 0);
+    header.write(name);
+    if (zip64) {
+      header.writeShort(0x0001);
+      header.writeShort(16);
+      header.writeLong(size);
+      header.writeLong(compressedSize);
+    }
+    header.writeTo(myOut);
+  }
+
+  private void writeCentralHeader(@NotNull byte[] name, long time, int method, int flags, long crc, long compressedSize, long size, long offset) throws IOException {
+    final DataOutput zip64Extra = new DataOutput();
+    if (size >= ZIP64_MAGIC) zip64Extra.writeLong(size);
+    if (compressedSize >= ZIP64_MAGIC) zip64Extra.writeLong(compressedSize);
+    if (offset >= ZIP64_MAGIC) zip64Extra.writeLong(offset);
+    final boolean zip64 = zip64Extra.size() > 0;
+
+    final DataOutput header = new DataOutput();
+    header.writeInt(CENTRAL_HEADER_SIG);
+    header.writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    header.writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    header.writeShort(flags | UTF8_FLAG);
+    header.writeShort(method);
+    header.writeInt(javaToDosTime(time));
+    header.writeInt(crc);
+    header.writeInt(Math.min(compressedSize, ZIP64_MAGIC));
+    header.writeInt(Math.min(size, ZIP64_MAGIC));
+    header.writeShort(name.length);
+    header.writeShort(zip64 ? zip64Extra.size() + 4 : 0);
+    header.writeShort(0); // comment length
+    header.writeShort(0); // disk number
+    header.writeShort(0); // internal attributes
+    header.writeInt(0); // external attributes
+    header.writeInt(Math.min(offset, ZIP64_MAGIC));
+    header.write(name);
+    if (zip64) {
+      header.writeShort(0x0001);
+      header.writeShort(zip64Extra.size());
+      zip64Extra.writeTo(header);
+    }
+    header.writeTo(myCentralDirectory);
+
+    ++myEntriesCount;
+  }
+
+  static long javaToDosTime(long time) {
+    final Calendar c = Calendar.getInstance();
+    c.setTimeInMillis(time);
+    final int year = c.get(Calendar.YEAR);
+    if (year < 1980) return (1 << 21) | (1 << 16);
+    return ((long) (year - 1980) << 25) |
+      ((c.get(Calendar.MONTH) + 1) << 21) |
+      (c.get(Calendar.DAY_OF_MONTH) << 16) |
+      (c.get(Calendar.HOUR_OF_DAY) << 11) |
+      (c.get(Calendar.MINUTE) << 5) |
+      (c.get(Calendar.SECOND) >> 1);
+  }
+
+  private static class DataOutput extends ByteArrayOutputStream {
+    void writeShort(long v) {
+      write((int) (v & 0xFF));
+      write((int) ((v >>> 8) & 0xFF));
+    }
+
+    void writeInt(long v) {
+      writeShort(v & 0xFFFF);
+      writeShort((v >>> 16) & 0xFFFF);
+    }
+
+    void writeLong(long v) {
+      writeInt(v & ZIP64_MAGIC);
+      writeInt((v >>> 32) & ZIP64_MAGIC);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b) {
+      write(b, 0, b.length);
+    }
+  }
+}
@@ -26,9 +26,11 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.LinkedList;
+import java.util.Random;
 
 import static jetbrains.buildServer.runner.codedeploy.CodeDeployRunner.CodeDeployRunnerException;
 import static org.assertj.core.api.BDDAssertions.failBecauseExceptionWasNotThrown;
@@ -99,6 +101,27 @@ public class ApplicationRevisionTest extends LoggingTestCase {
     }
   }
 
+  @Test
+  public void no_appspec_yml_found_before_packing() throws Exception {
+    fillBaseDir(false);
+    // bigger than the in-memory entry threshold, so it is written right after it is found
+    final Random random = new Random(42);
+    final StringBuilder content = new StringBuilder();
+    for (int i = 0; i < ParallelZipPackager.IN_MEMORY_ENTRY_THRESHOLD + 1; ++i) {
+      content.append((char) ('a' + random.nextInt(26)));
+    }
+    writeFile("some/path/big.html", content.toString());
+
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try {
+      create(REVISION_PATHS).getArchiveWriter().write(output);
+      failBecauseExceptionWasNotThrown(CodeDeployRunnerException.class);
+    } catch (CodeDeployRunnerException e) {
+      Assertions.assertThat(e).hasMessage("No appspec.yml file found among application revision files and no custom AppSpec file provided");
+    }
+    then(output.size()).as("Nothing must be packed").isEqualTo(0);
+  }
+
   @Test
   public void no_appspec_yml_found_custom_provided() throws Exception {
     fillBaseDir(false);
@@ -106,8 +129,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
     assertRevision(create(REVISION_PATHS, CAC).getArchive(), RESULT_PATHS, CAC);
 
     assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
       "Will use custom AppSpec file ##TEMP_DIR##/appspec.yml",
-      "Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -118,8 +142,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
     assertRevision(create(REVISION_PATHS, "another/path/appspec.yml").getArchive(), RESULT_PATHS, CAC);
 
     assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
       "Will use custom AppSpec file ##BASE_DIR##/another/path/appspec.yml",
-      "Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -129,8 +154,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
     assertRevision(create(REVISION_PATHS, writeTempFile("some/path/appspec.yml", CAC).getAbsolutePath()).getArchive(), RESULT_PATHS, CAC);
 
     assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
       "Will use custom AppSpec file ##TEMP_DIR##/some/path/appspec.yml",
-      "Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -140,8 +166,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
     assertRevision(create(REVISION_PATHS, CAC).getArchive(), RESULT_PATHS, CAC);
 
     assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
       "Will replace existing AppSpec file ##BASE_DIR##/appspec.yml with custom ##TEMP_DIR##/appspec.yml",
-      "Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -152,8 +179,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
     assertRevision(create(REVISION_PATHS, "another/path/appspec.yml").getArchive(), RESULT_PATHS, CAC);
 
     assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
       "Will replace existing AppSpec file ##BASE_DIR##/appspec.yml with custom ##BASE_DIR##/another/path/appspec.yml",
-      "Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -163,8 +191,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
     assertRevision(create(REVISION_PATHS, writeTempFile("some/path/appspec.yml", CAC).getAbsolutePath()).getArchive(), RESULT_PATHS, CAC);
 
     assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
       "Will replace existing AppSpec file ##BASE_DIR##/appspec.yml with custom ##TEMP_DIR##/some/path/appspec.yml",
-      "Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -175,7 +204,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
     then(revision).as("Unexpected revision").isEqualTo(getCustomRevision("test_revision.zip"));
     assertRevision(revision, RESULT_PATHS, AC);
 
-    assertLog("Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -184,7 +215,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("some/path/**,appspec.yml").getArchive(), RESULT_PATHS, AC);
 
-    assertLog("Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -193,7 +226,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("**").getArchive(), arr("some/path/index.html", "some/path/inner/path/error.html", "some/path/inner/path/test/test.html", "another/path/index.html", "another/path/inner/path/error.html", "another/path/inner/path/test/test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 7 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 7 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -202,7 +237,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("some/path/index.html,some/path/inner/path/error.html,some/path/inner/path/test/test.html,appspec.yml").getArchive(), arr("index.html", "error.html", "test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -211,7 +248,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("some/path/inner/path/,appspec.yml").getArchive(), arr("error.html", "test/test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 3 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 3 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -221,7 +260,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("some/path/index.html=>pages/dist,some/path/inner/path/error.html=>pages/dist/error,some/path/inner/path/test/test.html=>pages,another/path/appspec.yml => .").getArchive(), arr("pages/dist/index.html", "pages/dist/error/error.html", "pages/test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -231,7 +272,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("some/path/index.html=>/pages/dist,some/path/inner/path/error.html=>pages/dist/error/,some/path/inner/path/test/test.html=>/pages/,another/path/appspec.yml => .").getArchive(), arr("pages/dist/index.html", "pages/dist/error/error.html", "pages/test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -240,7 +283,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("some/path/=>pages/dist,some/path/inner/path/=>pages/dist/error,some/path/inner/path/test/=>pages,appspec.yml").getArchive(), arr("pages/dist/index.html", "pages/dist/error/error.html", "pages/test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -249,7 +294,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("some/path/**=>pages/dist,some/path/inner/path/test/**=>pages,appspec.yml => .").getArchive(), arr("pages/dist/index.html", "pages/dist/inner/path/error.html", "pages/test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
 //  TW-45267
@@ -259,7 +306,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("+:some/path/**=>pages/dist,+:some/path/inner/path/test/**=>pages,+:appspec.yml").getArchive(), arr("pages/dist/index.html", "pages/dist/inner/path/error.html", "pages/test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -268,7 +317,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("some/path/**/*.html=>pages/dist,some/path/inner/path/test/**/*.html=>pages,appspec.yml => .").getArchive(), arr("pages/dist/index.html", "pages/dist/inner/path/error.html", "pages/test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 4 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 4 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -277,7 +328,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("** => pages/dist,some/path/**/test/** => pages,another/path/**/test/** => .,appspec.yml => .").getArchive(), arr("pages/dist/some/path/index.html", "pages/dist/some/path/inner/path/error.html", "pages/test.html", "pages/dist/another/path/index.html", "pages/dist/another/path/inner/path/error.html", "test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 7 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 7 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
 
@@ -287,7 +340,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create(".").getArchive(), arr("some/path/index.html", "some/path/inner/path/error.html", "some/path/inner/path/test/test.html", "another/path/index.html", "another/path/inner/path/error.html", "another/path/inner/path/test/test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 7 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 7 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -296,7 +351,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("=>dist,appspec.yml").getArchive(), arr("dist/some/path/index.html", "dist/some/path/inner/path/error.html", "dist/some/path/inner/path/test/test.html", "dist/another/path/index.html", "dist/another/path/inner/path/error.html", "dist/another/path/inner/path/test/test.html", "appspec.yml"), AC);
 
-    assertLog("Packaging 7 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 7 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   @Test
@@ -306,7 +363,9 @@ public class ApplicationRevisionTest extends LoggingTestCase {
 
     assertRevision(create("another/path/**=>dist , appspec.yml, another_file ").getArchive(), arr("dist/index.html", "dist/inner/path/error.html", "dist/inner/path/test/test.html", "appspec.yml", "another_file"), AC);
 
-    assertLog("Packaging 5 files to application revision ##TEMP_DIR##/test_revision.zip");
+    assertLog(
+      "Packaging application revision ##TEMP_DIR##/test_revision.zip",
+      "Packaged 5 files to application revision ##TEMP_DIR##/test_revision.zip");
   }
 
   private void fillBaseDir(boolean withAppSpecFile) throws IOException {
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class CompressionPolicyTest {
+
+  @Test
+  public void compressed_extensions() throws Exception {
+    then(CompressionPolicy.hasCompressedExtension("lib/app.jar")).isTrue();
+    then(CompressionPolicy.hasCompressedExtension("images/Logo.PNG")).isTrue();
+    then(CompressionPolicy.hasCompressedExtension("archive.tar.gz")).isTrue();
+    then(CompressionPolicy.hasCompressedExtension("appspec.yml")).isFalse();
+    then(CompressionPolicy.hasCompressedExtension("jar")).isFalse();
+  }
+
+  @Test
+  public void entropy() throws Exception {
+    final byte[] random = new byte[CompressionPolicy.SAMPLE_SIZE];
+    new Random(42).nextBytes(random);
+    final byte[] text = new byte[CompressionPolicy.SAMPLE_SIZE];
+    Arrays.fill(text, (byte) 'a');
+
+    then(CompressionPolicy.entropy(random, 0, random.length)).isGreaterThan(7.9);
+    then(CompressionPolicy.entropy(text, 0, text.length)).isEqualTo(0.0);
+
+    final CompressionPolicy policy = new CompressionPolicy();
+    then(policy.isStored("data.bin", random)).isTrue();
+    then(policy.isStored("data.txt", text)).isFalse();
+    then(policy.isStored("data.bin", Arrays.copyOf(random, CompressionPolicy.MIN_SAMPLED_SIZE - 1))).isFalse();
+  }
+
+  @Test
+  public void configured() throws Exception {
+    final byte[] random = new byte[CompressionPolicy.SAMPLE_SIZE];
+    new Random(42).nextBytes(random);
+
+    then(new CompressionPolicy(0, false).isStored("data.txt", new byte[0])).isTrue();
+    then(new CompressionPolicy(9, false).isStored("app.jar", random)).isFalse();
+    then(new CompressionPolicy(9, true).isStored("app.jar", new byte[0])).isTrue();
+  }
+}
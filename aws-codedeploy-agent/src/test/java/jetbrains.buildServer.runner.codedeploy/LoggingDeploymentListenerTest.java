@@ -27,6 +27,8 @@ import org.testng.annotations.Test;
 import java.io.File;
 import java.util.Collections;
 
+import static org.assertj.core.api.BDDAssertions.then;
+
 /**
  * @author vbedrosova
  */
@@ -92,6 +94,46 @@ public class LoggingDeploymentListenerTest extends LoggingTestCase {
       "LOG Waiting for deployment finish");
   }
 
+  @Test
+  public void upload_skipped() throws Exception {
+    final LoggingDeploymentListener listener = create();
+
+    final File revision = writeFile("revision.zip");
+    final String url = "https://s3-eu-west-1.amazonaws.com/bucketName/path/key.zip";
+
+    listener.uploadRevisionSkipped(revision, "bucketName", "path/key.zip", "same content uploaded before");
+    listener.uploadRevisionFinished(revision, "bucketName", "path/key.zip", null, "12345", url);
+
+    assertLog(
+      "OPEN " + LoggingDeploymentListener.UPLOAD_REVISION,
+      "LOG Skipping upload of application revision ##BASE_DIR##/revision.zip to S3 bucket bucketName using key path/key.zip: same content uploaded before",
+      "LOG Uploaded application revision " + url + "?etag=12345",
+      "STATUS_TEXT Uploaded " + url + "?etag=12345",
+      "PARAM " + CodeDeployConstants.S3_OBJECT_ETAG_CONFIG_PARAM + " -> 12345",
+      "CLOSE " + LoggingDeploymentListener.UPLOAD_REVISION);
+  }
+
+  @Test
+  public void upload_resumed() throws Exception {
+    final LoggingDeploymentListener listener = create();
+
+    final File revision = writeFile("revision.zip");
+    final String url = "https://s3-eu-west-1.amazonaws.com/bucketName/path/key.zip";
+
+    listener.uploadRevisionStarted(revision, "bucketName", "path/key.zip");
+    listener.uploadRevisionResumed(revision, "bucketName", "path/key.zip", 90, 100);
+    listener.uploadRevisionFinished(revision, "bucketName", "path/key.zip", null, "12345-100", url);
+
+    assertLog(
+      "OPEN " + LoggingDeploymentListener.UPLOAD_REVISION,
+      "LOG Uploading application revision ##BASE_DIR##/revision.zip to S3 bucket bucketName using key path/key.zip",
+      "LOG Continued the previous upload, 90 of 100 parts had already been uploaded",
+      "LOG Uploaded application revision " + url + "?etag=12345-100",
+      "STATUS_TEXT Uploaded " + url + "?etag=12345-100",
+      "PARAM " + CodeDeployConstants.S3_OBJECT_ETAG_CONFIG_PARAM + " -> 12345-100",
+      "CLOSE " + LoggingDeploymentListener.UPLOAD_REVISION);
+  }
+
   @Test
   public void deployment_progress_unknown() throws Exception {
     create().deploymentInProgress(FAKE_ID, createStatus());
@@ -110,6 +152,61 @@ public class LoggingDeploymentListenerTest extends LoggingTestCase {
     assertLog("PROGRESS Deployment finished, 5 instances succeeded");
   }
 
+  @Test
+  public void deployment_progress_unchanged() throws Exception {
+    final LoggingDeploymentListener listener = create();
+    listener.deploymentInProgress(FAKE_ID, createStatus("in progress", 2, 0, 0, 0, 0));
+    listener.deploymentInProgress(FAKE_ID, createStatus("in progress", 2, 0, 0, 0, 0));
+    listener.deploymentInProgress(FAKE_ID, createStatus("in progress", 1, 1, 0, 0, 0));
+    listener.deploymentInProgress(FAKE_ID, createStatus("in progress", 1, 1, 0, 0, 0));
+    listener.deploymentInProgress("ID-456ABC", createStatus("in progress", 1, 1, 0, 0, 0));
+    listener.deploymentInProgress(FAKE_ID, null);
+    listener.deploymentInProgress(FAKE_ID, null);
+    listener.deploymentSucceeded(FAKE_ID, createStatus("finished", 0, 0, 2, 0, 0));
+    assertLog(
+      "PROGRESS Deployment in progress, 0 instances succeeded, 2 pending",
+      "PROGRESS Deployment in progress, 0 instances succeeded, 1 pending, 1 in progress",
+      "PROGRESS Deployment in progress, 0 instances succeeded, 1 pending, 1 in progress",
+      "PROGRESS Deployment status is unknown",
+      "LOG Deployment " + FAKE_ID + " finished, 2 instances succeeded, 0 failed, 0 pending, 0 skipped, 0 in progress",
+      "STATUS_TEXT Deployment " + FAKE_ID + " finished, 2 instances succeeded",
+      "CLOSE " + LoggingDeploymentListener.DEPLOY_APPLICATION);
+  }
+
+  @Test
+  public void deployments_progress_unchanged() throws Exception {
+    final LoggingDeploymentListener listener = create();
+    listener.deploymentsInProgress(0, 3);
+    listener.deploymentsInProgress(0, 3);
+    listener.deploymentsInProgress(2, 3);
+    assertLog(
+      "PROGRESS 0 of 3 deployments finished",
+      "PROGRESS 2 of 3 deployments finished");
+  }
+
+  @Test
+  public void service_message_escaping() throws Exception {
+    final LoggingDeploymentListener listener = new LoggingDeploymentListener(Collections.<String, String>emptyMap(),
+      new NullBuildProgressLogger() {
+        @Override
+        public void message(String message) {
+          logMessage("MESSAGE " + message);
+        }
+      },
+      "fake_checkout_dir");
+
+    listener.progress("Deployment 'd-1' [in progress]|\r\nnext line");
+    listener.debug("nothing to escape");
+
+    assertLog(
+      "MESSAGE ##teamcity[progressMessage 'Deployment |'d-1|' |[in progress|]|||r|nnext line']",
+      "MESSAGE ##teamcity[message text='nothing to escape' tc:tags='tc:internal']");
+
+    final String unescaped = "nothing to escape";
+    then(listener.escape(unescaped)).isSameAs(unescaped);
+    then(listener.escape("|'[]")).isEqualTo("|||'|[|]");
+  }
+
   @Test
   public void deployment_succeeded_short() throws Exception {
     create().deploymentSucceeded(FAKE_ID, createStatus("finished", 0, 0, 5, 0, 0));
@@ -128,6 +225,46 @@ public class LoggingDeploymentListenerTest extends LoggingTestCase {
       "CLOSE " + LoggingDeploymentListener.DEPLOY_APPLICATION);
   }
 
+  @Test
+  public void group_deployments() throws Exception {
+    final LoggingDeploymentListener listener = create();
+    listener.createDeploymentsStarted(3, null);
+    listener.createDeploymentFinished("app", "eu", null, "d-1");
+    listener.createDeploymentFinished("app", "us", null, "d-2");
+    listener.createDeploymentFailed("other", "ap", new AWSException("Deployment group not found", null, AWSException.SERVICE_PROBLEM_TYPE, null));
+    listener.deploymentsWaitStarted(2);
+    listener.deploymentsInProgress(0, 2);
+    listener.groupDeploymentFinished("app", "eu", "d-1", true, null, null, createStatus("succeeded", 0, 0, 2, 0, 0));
+    listener.groupDeploymentFinished("app", "us", "d-2", false, null, createError("abc", "Some error message"), createStatus("failed", 0, 0, 1, 1, 0));
+    listener.deploymentsFinished(1, 1);
+
+    assertLog(
+      "OPEN " + LoggingDeploymentListener.DEPLOY_APPLICATION,
+      "LOG Creating 3 deployments with default deployment configuration",
+      "PARAM " + CodeDeployConstants.DEPLOYMENT_ID_BUILD_CONFIG_PARAM + " -> d-1",
+      "LOG Deployment d-1 created",
+      "PARAM " + CodeDeployConstants.DEPLOYMENT_ID_BUILD_CONFIG_PARAM + " -> d-2",
+      "LOG Deployment d-2 created",
+      "ERR Failed to create application other deployment to deployment group ap: Deployment group not found",
+      "PROBLEM identity: 96342712 type: AWS_SERVICE descr: Failed to create application other deployment to deployment group ap: Deployment group not found",
+      "LOG Waiting for 2 deployments finish",
+      "PROGRESS 0 of 2 deployments finished",
+      "LOG app:eu: Deployment d-1 succeeded, 2 instances succeeded, 0 failed, 0 pending, 0 skipped, 0 in progress",
+      "ERR app:us: deployment d-2 failed, 1 instance succeeded, 1 failed, 0 pending, 0 skipped, 0 in progress: Some error message",
+      "PROBLEM identity: 769730330 type: CODEDEPLOY_FAILURE descr: app:us: deployment d-2 failed, 1 instance succeeded, 1 failed, 0 pending, 0 skipped, 0 in progress: Some error message",
+      "LOG 1 deployment succeeded, 1 failed",
+      "STATUS_TEXT 1 deployment succeeded, 1 failed",
+      "CLOSE " + LoggingDeploymentListener.DEPLOY_APPLICATION);
+  }
+
+  @Test
+  public void deployment_wait_interrupted() throws Exception {
+    create().deploymentWaitInterrupted(FAKE_ID);
+    assertLog(
+      "LOG Interrupted while waiting for deployment " + FAKE_ID + " finish, the deployment itself is not stopped",
+      "CLOSE " + LoggingDeploymentListener.DEPLOY_APPLICATION);
+  }
+
   @Test
   public void deployment_failed_timeout() throws Exception {
     create().deploymentFailed(FAKE_ID, 2400, null, createStatus("in progress", 1, 1, 0, 0, 0));
@@ -188,6 +325,72 @@ public class LoggingDeploymentListenerTest extends LoggingTestCase {
       "CLOSE deploy application");
   }
 
+  @Test
+  public void upload_progress() throws Exception {
+    final LoggingDeploymentListener listener = create();
+    final File revision = writeFile("revision.zip");
+
+    listener.uploadRevisionProgress(revision, createUploadProgress(42 * 1024 * 1024, 100 * 1024 * 1024, 3.5 * 1024 * 1024, 75, 0));
+    listener.uploadRevisionProgress(revision, createUploadProgress(90 * 1024 * 1024, 100 * 1024 * 1024, 2 * 1024 * 1024, 5, 1));
+    listener.uploadRevisionProgress(revision, createUploadProgress(10 * 1024 * 1024, -1, 1024 * 1024, -1, 2));
+
+    assertLog(
+      "PROGRESS Uploading application revision: 42% (42.0 of 100.0 MB), 3.5 MB/s, 1 min 15 sec left",
+      "PROGRESS Uploading application revision: 90% (90.0 of 100.0 MB), 2.0 MB/s, 5 sec left, 1 part retry",
+      "PROGRESS Uploading application revision: 10.0 MB, 1.0 MB/s, 2 part retries");
+  }
+
+  @Test
+  public void upload_throughput_statistics() throws Exception {
+    final LoggingDeploymentListener listener = createStatistics();
+    final File revision = writeFile("revision.zip");
+
+    listener.uploadRevisionStarted(revision, "bucketName", "path/key.zip");
+    listener.uploadRevisionProgress(revision, createUploadProgress(0, 100, 3 * 1024 * 1024, -1, 0));
+    listener.uploadRevisionProgress(revision, createUploadProgress(0, 100, 512 * 1024, -1, 2));
+    listener.uploadRevisionProgress(revision, createUploadProgress(0, 100, 1024 * 1024, -1, 2));
+    listener.uploadRevisionFinished(revision, "bucketName", "path/key.zip", null, "12345", "https://s3-eu-west-1.amazonaws.com/bucketName/path/key.zip");
+
+    assertLogContains(
+      "STAT codedeploy.upload.mb.per.sec.min -> 0.500",
+      "STAT codedeploy.upload.mb.per.sec.max -> 3.000",
+      "STAT codedeploy.upload.retries -> 2");
+  }
+
+  @Test
+  public void api_call_statistics() throws Exception {
+    final LoggingDeploymentListener listener = createStatistics();
+
+    listener.apiCallFinished("RegisterApplicationRevision", 2, true);
+    listener.apiCallFinished("BatchGetDeployments", 0, true);
+    listener.apiCallFinished("BatchGetDeployments", 1, false);
+    listener.publishApiCallStatistics();
+
+    assertLog(
+      "STAT codedeploy.api.calls.BatchGetDeployments -> 2",
+      "STAT codedeploy.api.calls.RegisterApplicationRevision -> 1",
+      "STAT codedeploy.api.calls -> 3",
+      "STAT codedeploy.api.retries -> 3",
+      "STAT codedeploy.api.failures -> 1");
+  }
+
+  @Test
+  public void api_call_statistics_no_calls() throws Exception {
+    createStatistics().publishApiCallStatistics();
+    assertLog();
+  }
+
+  @Test
+  public void revision_packaged_statistics() throws Exception {
+    createStatistics().revisionPackaged(new ApplicationRevision.PackagingStatistics(3, 4096, 1024, 15));
+    assertLog(
+      "STAT codedeploy.revision.files -> 3",
+      "STAT codedeploy.revision.bytes -> 4096",
+      "STAT codedeploy.revision.archive.bytes -> 1024",
+      "STAT codedeploy.revision.compression.ratio -> 4.000",
+      "STAT codedeploy.revision.packaging.ms -> 15");
+  }
+
   @Override
   protected void performAfterTestVerification() {
     // override parent behaviour
@@ -210,6 +413,17 @@ public class LoggingDeploymentListenerTest extends LoggingTestCase {
     return new AWSClient.Listener.InstancesStatus();
   }
 
+  @NotNull
+  private AWSClient.Listener.UploadProgress createUploadProgress(long uploadedBytes, long totalBytes, double bytesPerSec, long etaSec, int retries) {
+    final AWSClient.Listener.UploadProgress progress = new AWSClient.Listener.UploadProgress();
+    progress.uploadedBytes = uploadedBytes;
+    progress.totalBytes = totalBytes;
+    progress.bytesPerSec = bytesPerSec;
+    progress.etaSec = etaSec;
+    progress.retries = retries;
+    return progress;
+  }
+
   @NotNull
   private AWSClient.Listener.ErrorInfo createError(@Nullable String code, @Nullable String message) {
     final AWSClient.Listener.ErrorInfo errorInfo = new AWSClient.Listener.ErrorInfo();
@@ -218,6 +432,21 @@ public class LoggingDeploymentListenerTest extends LoggingTestCase {
     return errorInfo;
   }
 
+  /**
+   * Logs the build statistic values only, as the timings are not reproducible
+   */
+  @NotNull
+  private LoggingDeploymentListener createStatistics() {
+    return new LoggingDeploymentListener(Collections.<String, String>emptyMap(),
+      new NullBuildProgressLogger(),
+      "fake_checkout_dir") {
+      @Override
+      protected void statistic(@NotNull String key, @NotNull String value) {
+        logMessage("STAT " + key + " -> " + value);
+      }
+    };
+  }
+
   @NotNull
   private LoggingDeploymentListener create() {
     return new LoggingDeploymentListener(Collections.<String, String>emptyMap(),
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.assertj.core.api.BDDAssertions.failBecauseExceptionWasNotThrown;
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class ParallelZipPackagerTest extends BaseTestCase {
+
+  @Test
+  public void single_thread() throws Exception {
+    assertPacked(1, ParallelZipPackager.IN_MEMORY_ENTRY_THRESHOLD);
+  }
+
+  @Test
+  public void multiple_threads() throws Exception {
+    assertPacked(4, ParallelZipPackager.IN_MEMORY_ENTRY_THRESHOLD);
+  }
+
+  @Test
+  public void multiple_threads_big_entries() throws Exception {
+    assertPacked(4, 1024);
+  }
+
+  @Test
+  public void duplicate_entry() throws Exception {
+    final File file = writeFile(createTempDir(), "file.txt", new byte[10]);
+    try {
+      pack(2, 1024, Arrays.asList(new ParallelZipPackager.Entry("file.txt", file), new ParallelZipPackager.Entry("file.txt", file)));
+      failBecauseExceptionWasNotThrown(CodeDeployRunner.CodeDeployRunnerException.class);
+    } catch (CodeDeployRunner.CodeDeployRunnerException e) {
+      then(e).hasMessageContaining("Failed to package file");
+    }
+  }
+
+  @Test
+  public void entry_source() throws Exception {
+    final File file = writeFile(createTempDir(), "file.txt", "content".getBytes("UTF-8"));
+    final int count = 10000;
+    final ParallelZipPackager.EntrySource entries = new ParallelZipPackager.EntrySource() {
+      private int myNext;
+
+      @Override
+      public ParallelZipPackager.Entry next() {
+        return myNext < count ? new ParallelZipPackager.Entry("dir" + myNext % 10 + "/file" + myNext++ + ".txt", file) : null;
+      }
+    };
+
+    final File zip = new File(createTempDir(), "revision.zip");
+    final OutputStream output = new FileOutputStream(zip);
+    try {
+      new ParallelZipPackager(4).pack(entries, output, zip.getPath());
+    } finally {
+      FileUtil.close(output);
+    }
+
+    final Map<String, Integer> methods = getMethods(zip);
+    then(methods).hasSize(count);
+    then(readContent(zip, "dir7/file9997.txt")).isEqualTo("content".getBytes("UTF-8"));
+  }
+
+  @Test
+  public void reproducible() throws Exception {
+    final List<ParallelZipPackager.Entry> entries = new ArrayList<ParallelZipPackager.Entry>();
+    final List<ParallelZipPackager.Entry> copies = new ArrayList<ParallelZipPackager.Entry>();
+    final File baseDir = createTempDir();
+    final File copyDir = createTempDir();
+    final Random random = new Random(42);
+    for (int i = 0; i < 20; ++i) {
+      final byte[] content = new byte[random.nextInt(4 * 1024)];
+      random.nextBytes(content);
+      final String path = "dir" + i % 3 + "/file" + i + ".txt";
+      entries.add(new ParallelZipPackager.Entry(path, writeFile(baseDir, path, content)));
+
+      final File copy = writeFile(copyDir, path, content);
+      then(copy.setLastModified(System.currentTimeMillis() - 1000L * 1000 * i)).isTrue();
+      copies.add(0, new ParallelZipPackager.Entry(path, copy));
+    }
+
+    final byte[] zip = readFully(new FileInputStream(pack(4, 1024, entries, true)));
+    then(readFully(new FileInputStream(pack(1, 1024, copies, true)))).isEqualTo(zip);
+    then(readFully(new FileInputStream(pack(1, 1024, copies, false)))).isNotEqualTo(zip);
+  }
+
+  @Test
+  public void stores_compressed_entries() throws Exception {
+    final File baseDir = createTempDir();
+    final Random random = new Random(42);
+    final byte[] randomContent = new byte[8 * 1024];
+    random.nextBytes(randomContent);
+    final byte[] textContent = new byte[8 * 1024];
+    Arrays.fill(textContent, (byte) 'a');
+    final byte[] smallRandomContent = Arrays.copyOf(randomContent, 5 * 1024);
+    final byte[] smallTextContent = Arrays.copyOf(textContent, 5 * 1024);
+
+    // entries bigger than 6K are not held in memory
+    final List<ParallelZipPackager.Entry> entries = Arrays.asList(
+      new ParallelZipPackager.Entry("small.jar", writeFile(baseDir, "small.jar", smallTextContent)),
+      new ParallelZipPackager.Entry("small.bin", writeFile(baseDir, "small.bin", smallRandomContent)),
+      new ParallelZipPackager.Entry("small.txt", writeFile(baseDir, "small.txt", smallTextContent)),
+      new ParallelZipPackager.Entry("big.bin", writeFile(baseDir, "big.bin", randomContent)),
+      new ParallelZipPackager.Entry("big.txt", writeFile(baseDir, "big.txt", textContent)));
+
+    final Map<String, Integer> expected = new LinkedHashMap<String, Integer>();
+    expected.put("small.jar", ZipEntry.STORED);
+    expected.put("small.bin", ZipEntry.STORED);
+    expected.put("small.txt", ZipEntry.DEFLATED);
+    expected.put("big.bin", ZipEntry.STORED);
+    expected.put("big.txt", ZipEntry.DEFLATED);
+
+    final File zip = pack(2, 6 * 1024, entries);
+    then(getMethods(zip)).isEqualTo(expected);
+    then(readContent(zip, "big.bin")).isEqualTo(randomContent);
+
+    // stored entries are copied through the stream if the output is not a file
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new ParallelZipPackager(2, 6 * 1024).pack(entries, output, "revision.zip");
+    final File streamed = writeFile(createTempDir(), "revision.zip", output.toByteArray());
+    then(getMethods(streamed)).isEqualTo(expected);
+    then(readContent(streamed, "big.bin")).isEqualTo(randomContent);
+
+    final File allStored = new File(createTempDir(), "revision.zip");
+    final OutputStream allStoredOutput = new FileOutputStream(allStored);
+    try {
+      new ParallelZipPackager(2, 6 * 1024).withCompression(new CompressionPolicy(0, true)).pack(entries, allStoredOutput, allStored.getPath());
+    } finally {
+      FileUtil.close(allStoredOutput);
+    }
+    then(getMethods(allStored).values()).containsOnly(ZipEntry.STORED);
+  }
+
+  @Test
+  public void in_memory_permits() throws Exception {
+    then(ParallelZipPackager.inMemoryPermits(0)).isEqualTo(64);
+    then(ParallelZipPackager.inMemoryPermits(1024 * 1024)).isGreaterThan(2 * 1024 * 1024);
+    // an entry is never bigger than the whole budget, so it can always be acquired
+    then(ParallelZipPackager.inMemoryPermits(Integer.MAX_VALUE)).isEqualTo(ParallelZipPackager.inMemoryPermits(64 * 1024 * 1024));
+  }
+
+  private void assertPacked(int threads, int inMemoryEntryThreshold) throws Exception {
+    final File baseDir = createTempDir();
+    final Random random = new Random(42);
+    final Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+    final List<ParallelZipPackager.Entry> entries = new ArrayList<ParallelZipPackager.Entry>();
+
+    for (int i = 0; i < 200; ++i) {
+      final byte[] content = new byte[i % 10 == 0 ? 0 : random.nextInt(8 * 1024)];
+      if (i % 2 == 0) {
+        random.nextBytes(content);
+      } else {
+        Arrays.fill(content, (byte) ('a' + i % 26));
+      }
+      final String path = "dir" + i % 7 + "/file" + i + ".txt";
+      expected.put(path, content);
+      entries.add(new ParallelZipPackager.Entry(path, writeFile(baseDir, path, content)));
+    }
+
+    final File zip = pack(threads, inMemoryEntryThreshold, entries);
+
+    final ZipFile zipFile = new ZipFile(zip);
+    try {
+      final List<String> names = new ArrayList<String>();
+      final Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+      while (zipEntries.hasMoreElements()) {
+        final ZipEntry entry = zipEntries.nextElement();
+        names.add(entry.getName());
+        then(readFully(zipFile.getInputStream(entry))).as("Unexpected " + entry.getName() + " content").isEqualTo(expected.get(entry.getName()));
+      }
+      then(names).as("Unexpected entries").containsExactlyElementsOf(expected.keySet());
+    } finally {
+      zipFile.close();
+    }
+
+    final ZipInputStream zipInput = new ZipInputStream(new FileInputStream(zip));
+    try {
+      final List<String> names = new ArrayList<String>();
+      ZipEntry entry;
+      while ((entry = zipInput.getNextEntry()) != null) {
+        names.add(entry.getName());
+        then(readFully(zipInput)).as("Unexpected " + entry.getName() + " content").isEqualTo(expected.get(entry.getName()));
+      }
+      then(names).as("Unexpected entries").containsExactlyElementsOf(expected.keySet());
+    } finally {
+      zipInput.close();
+    }
+  }
+
+  @NotNull
+  private File pack(int threads, int inMemoryEntryThreshold, @NotNull List<ParallelZipPackager.Entry> entries) throws Exception {
+    return pack(threads, inMemoryEntryThreshold, entries, false);
+  }
+
+  @NotNull
+  private File pack(int threads, int inMemoryEntryThreshold, @NotNull List<ParallelZipPackager.Entry> entries, boolean reproducible) throws Exception {
+    final File zip = new File(createTempDir(), "revision.zip");
+    final OutputStream output = new FileOutputStream(zip);
+    try {
+      new ParallelZipPackager(threads, inMemoryEntryThreshold).withReproducible(reproducible).pack(entries, output, zip.getPath());
+    } finally {
+      FileUtil.close(output);
+    }
+    return zip;
+  }
+
+  @NotNull
+  private static Map<String, Integer> getMethods(@NotNull File zip) throws IOException {
+    final Map<String, Integer> res = new LinkedHashMap<String, Integer>();
+    final ZipFile zipFile = new ZipFile(zip);
+    try {
+      final Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+      while (zipEntries.hasMoreElements()) {
+        final ZipEntry entry = zipEntries.nextElement();
+        res.put(entry.getName(), entry.getMethod());
+      }
+    } finally {
+      zipFile.close();
+    }
+    return res;
+  }
+
+  @NotNull
+  private static byte[] readContent(@NotNull File zip, @NotNull String name) throws IOException {
+    final ZipFile zipFile = new ZipFile(zip);
+    try {
+      return readFully(zipFile.getInputStream(zipFile.getEntry(name)));
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  @NotNull
+  private static File writeFile(@NotNull File baseDir, @NotNull String path, @NotNull byte[] content) throws IOException {
+    final File file = new File(baseDir, path);
+    FileUtil.createParentDirs(file);
+    final OutputStream output = new FileOutputStream(file);
+    try {
+      output.write(content);
+    } finally {
+      FileUtil.close(output);
+    }
+    return file;
+  }
+
+  @NotNull
+  private static byte[] readFully(@NotNull InputStream input) throws IOException {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8 * 1024];
+    int read;
+    while ((read = input.read(buffer)) > 0) {
+      output.write(buffer, 0, read);
+    }
+    return output.toByteArray();
+  }
+}
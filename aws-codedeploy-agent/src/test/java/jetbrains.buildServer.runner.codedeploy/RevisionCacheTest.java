@@ -0,0 +1,111 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class RevisionCacheTest extends BaseTestCase {
+  private File myBaseDir;
+
+  @BeforeMethod(alwaysRun = true)
+  public void mySetUp() throws Exception {
+    myBaseDir = createTempDir();
+  }
+
+  @Test
+  public void same_digest_for_same_content() throws Exception {
+    final File a = writeFile("a.txt", "aaa");
+    final File b = writeFile("b.txt", "bbb");
+
+    then(digest(entry("a.txt", a), entry("b.txt", b)))
+      .isEqualTo(digest(entry("b.txt", b), entry("a.txt", a)));
+  }
+
+  @Test
+  public void different_digest_for_different_content() throws Exception {
+    final File a = writeFile("a.txt", "aaa");
+    final String before = digest(entry("a.txt", a));
+
+    writeFile("a.txt", "aab");
+    then(digest(entry("a.txt", a))).isNotEqualTo(before);
+  }
+
+  @Test
+  public void different_digest_for_different_path() throws Exception {
+    final File a = writeFile("a.txt", "aaa");
+    then(digest(entry("a.txt", a))).isNotEqualTo(digest(entry("dist/a.txt", a)));
+  }
+
+  @Test
+  public void put_and_get() throws Exception {
+    final RevisionCache cache = new RevisionCache(new File(createTempDir(), "cache"));
+    then(cache.get("digest", "bucket", "key.zip")).isNull();
+
+    cache.put("digest", "bucket", "key.zip", "version", "etag");
+
+    final RevisionCache.Entry entry = cache.get("digest", "bucket", "key.zip");
+    then(entry).isNotNull();
+    then(entry.getVersion()).isEqualTo("version");
+    then(entry.getETag()).isEqualTo("etag");
+
+    then(cache.get("digest", "bucket", "another.zip")).isNull();
+    then(cache.get("another", "bucket", "key.zip")).isNull();
+    then(new RevisionCache(new File(createTempDir(), "cache")).get("digest", "bucket", "key.zip")).isNull();
+  }
+
+  @Test
+  public void put_without_version() throws Exception {
+    final RevisionCache cache = new RevisionCache(createTempDir());
+    cache.put("digest", "bucket", "key.zip", null, "etag");
+
+    final RevisionCache.Entry entry = cache.get("digest", "bucket", "key.zip");
+    then(entry).isNotNull();
+    then(entry.getVersion()).isNull();
+    then(entry.getETag()).isEqualTo("etag");
+  }
+
+  @NotNull
+  private static String digest(@NotNull ParallelZipPackager.Entry... entries) throws Exception {
+    final List<ParallelZipPackager.Entry> list = Arrays.asList(entries);
+    return RevisionCache.computeDigest(list, 2);
+  }
+
+  @NotNull
+  private static ParallelZipPackager.Entry entry(@NotNull String path, @NotNull File file) {
+    return new ParallelZipPackager.Entry(path, file);
+  }
+
+  @NotNull
+  private File writeFile(@NotNull String path, @NotNull String content) throws Exception {
+    final File file = new File(myBaseDir, path);
+    FileUtil.writeFileAndReportErrors(file, content);
+    return file;
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class TarPackagerTest extends BaseTestCase {
+
+  @Test
+  public void tar() throws Exception {
+    assertPacked(false);
+  }
+
+  @Test
+  public void tgz() throws Exception {
+    assertPacked(true);
+  }
+
+  @Test
+  public void executable() throws Exception {
+    final File baseDir = createTempDir();
+    final File script = writeFile(baseDir, "scripts/start.sh", "#!/bin/sh".getBytes("UTF-8"));
+    then(script.setExecutable(true)).isTrue();
+    final File config = writeFile(baseDir, "config.yml", "a: b".getBytes("UTF-8"));
+    then(config.setExecutable(false)).isTrue();
+
+    final Map<String, Integer> modes = new HashMap<String, Integer>();
+    readTar(new FileInputStream(pack(false, Arrays.asList(
+      new ParallelZipPackager.Entry("scripts/start.sh", script),
+      new ParallelZipPackager.Entry("config.yml", config)))), null, modes);
+
+    then(modes.get("scripts/start.sh")).isEqualTo(0755);
+    then(modes.get("config.yml")).isEqualTo(0644);
+  }
+
+  @Test
+  public void gzip_single_member() throws Exception {
+    final byte[] content = new byte[3 * 64 * 1024 + 42];
+    final Random random = new Random(42);
+    for (int i = 0; i < content.length; ++i) {
+      content[i] = (byte) ('a' + random.nextInt(4));
+    }
+
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(output, 4, 6, 64 * 1024);
+    try {
+      gzip.write(content);
+      gzip.finish();
+    } finally {
+      gzip.shutdown();
+    }
+    final byte[] gzipped = output.toByteArray();
+
+    then(readFully(new GZIPInputStream(new ByteArrayInputStream(gzipped)))).isEqualTo(content);
+
+    // the whole deflate stream is followed by the 8 bytes trailer only
+    final Inflater inflater = new Inflater(true);
+    inflater.setInput(gzipped, 10, gzipped.length - 10);
+    final byte[] inflated = new byte[content.length];
+    then(inflater.inflate(inflated)).isEqualTo(content.length);
+    then(inflater.finished()).isTrue();
+    then(inflater.getRemaining()).isEqualTo(8);
+    inflater.end();
+  }
+
+  @Test
+  public void gzip_without_sync_flush() throws Exception {
+    final byte[] content = new byte[3 * 64 * 1024 + 42];
+    final Random random = new Random(42);
+    for (int i = 0; i < content.length; ++i) {
+      content[i] = (byte) ('a' + random.nextInt(4));
+    }
+
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(output, 4, 6, 64 * 1024, false);
+    try {
+      gzip.write(content, 0, 1000);
+      gzip.write(content, 1000, content.length - 1000);
+      gzip.finish();
+    } finally {
+      gzip.shutdown();
+    }
+
+    then(readFully(new GZIPInputStream(new ByteArrayInputStream(output.toByteArray())))).isEqualTo(content);
+  }
+
+  private void assertPacked(boolean gzip) throws Exception {
+    final File baseDir = createTempDir();
+    final Random random = new Random(42);
+    final Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+    final List<ParallelZipPackager.Entry> entries = new ArrayList<ParallelZipPackager.Entry>();
+
+    final StringBuilder longDir = new StringBuilder();
+    for (int i = 0; i < 12; ++i) {
+      longDir.append("directory").append(i).append('/');
+    }
+    for (int i = 0; i < 50; ++i) {
+      final byte[] content = new byte[i % 10 == 0 ? 0 : random.nextInt(8 * 1024)];
+      random.nextBytes(content);
+      final String path;
+      if (i % 5 == 1) {
+        path = longDir + "file" + i + ".txt";
+      } else if (i % 5 == 2) {
+        path = "dir/" + longDir.toString().replace("/", "_") + "file" + i + ".txt";
+      } else if (i % 5 == 3) {
+        path = "diré/file" + i + ".txt";
+      } else {
+        path = "dir" + i % 7 + "/file" + i + ".txt";
+      }
+      expected.put(path, content);
+      entries.add(new ParallelZipPackager.Entry(path, writeFile(baseDir, "file" + i, content)));
+    }
+
+    final InputStream input = new BufferedInputStream(new FileInputStream(pack(gzip, entries)));
+    final Map<String, byte[]> actual = new LinkedHashMap<String, byte[]>();
+    try {
+      readTar(gzip ? new GZIPInputStream(input) : input, actual, null);
+    } finally {
+      FileUtil.close(input);
+    }
+
+    then(actual.keySet()).containsExactlyElementsOf(expected.keySet());
+    for (Map.Entry<String, byte[]> e : expected.entrySet()) {
+      then(actual.get(e.getKey())).as("Unexpected " + e.getKey() + " content").isEqualTo(e.getValue());
+    }
+  }
+
+  @NotNull
+  private File pack(boolean gzip, @NotNull List<ParallelZipPackager.Entry> entries) throws Exception {
+    final File tar = new File(createTempDir(), gzip ? "revision.tar.gz" : "revision.tar");
+    final OutputStream output = new FileOutputStream(tar);
+    try {
+      new TarPackager(4).withGzip(gzip).pack(entries, output, tar.getPath());
+    } finally {
+      FileUtil.close(output);
+    }
+    return tar;
+  }
+
+  private static void readTar(@NotNull InputStream input, Map<String, byte[]> contents, Map<String, Integer> modes) throws IOException {
+    final DataInputStream tar = new DataInputStream(input);
+    final byte[] header = new byte[512];
+    String paxPath = null;
+    while (true) {
+      tar.readFully(header);
+      if (header[0] == 0) break;
+
+      long checksum = 0;
+      for (int i = 0; i < header.length; ++i) {
+        checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+      }
+      then(parseOctal(header, 148, 8)).isEqualTo(checksum);
+      then(new String(header, 257, 6, "US-ASCII")).isEqualTo("ustar\0");
+
+      final int size = (int) parseOctal(header, 124, 12);
+      final byte[] data = new byte[size];
+      tar.readFully(data);
+      tar.readFully(new byte[(512 - size % 512) % 512]);
+
+      if (header[156] == 'x') {
+        final String records = new String(data, "UTF-8");
+        final int start = records.indexOf(" path=");
+        paxPath = records.substring(start + 6, records.indexOf('\n', start));
+        continue;
+      }
+
+      final String prefix = parseString(header, 345, 155);
+      String name = paxPath != null ? paxPath : prefix.isEmpty() ? parseString(header, 0, 100) : prefix + "/" + parseString(header, 0, 100);
+      paxPath = null;
+      if (contents != null) contents.put(name, data);
+      if (modes != null) modes.put(name, (int) parseOctal(header, 100, 8));
+    }
+  }
+
+  private static long parseOctal(@NotNull byte[] header, int offset, int length) {
+    long value = 0;
+    for (int i = offset; i < offset + length && header[i] != 0 && header[i] != ' '; ++i) {
+      value = value * 8 + header[i] - '0';
+    }
+    return value;
+  }
+
+  @NotNull
+  private static String parseString(@NotNull byte[] header, int offset, int length) throws IOException {
+    int end = offset;
+    while (end < offset + length && header[end] != 0) ++end;
+    return new String(header, offset, end - offset, "UTF-8");
+  }
+
+  @NotNull
+  private static File writeFile(@NotNull File baseDir, @NotNull String path, @NotNull byte[] content) throws IOException {
+    final File file = new File(baseDir, path);
+    FileUtil.createParentDirs(file);
+    final OutputStream output = new FileOutputStream(file);
+    try {
+      output.write(content);
+    } finally {
+      FileUtil.close(output);
+    }
+    return file;
+  }
+
+  @NotNull
+  private static byte[] readFully(@NotNull InputStream input) throws IOException {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8 * 1024];
+    int read;
+    while ((read = input.read(buffer)) > 0) {
+      output.write(buffer, 0, read);
+    }
+    return output.toByteArray();
+  }
+}
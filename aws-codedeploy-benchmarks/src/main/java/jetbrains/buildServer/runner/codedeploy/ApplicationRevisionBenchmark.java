@@ -0,0 +1,74 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packages generated application revision trees into every supported bundle type.
+ *
+ * @author vbedrosova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ApplicationRevisionBenchmark {
+  @Param({"1000", "10000"})
+  public int files;
+
+  @Param({"4096"})
+  public int fileSize;
+
+  @Param({"zip", "tar", "tar.gz"})
+  public String bundleType;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  private File myBaseDir;
+  private File myTempDir;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    myBaseDir = RevisionTrees.generate(Files.createTempDirectory("revision").toFile(), files, fileSize);
+    myTempDir = Files.createTempDirectory("revision-archive").toFile();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    FileUtil.delete(myBaseDir);
+    FileUtil.delete(myTempDir);
+  }
+
+  @Benchmark
+  public long getArchive() throws Exception {
+    final File archive = new ApplicationRevision("revision." + bundleType, RevisionTrees.REVISION_PATHS, myBaseDir, myTempDir, null, true)
+      .withPackagingThreads(threads)
+      .getArchive();
+    final long length = archive.length();
+    FileUtil.delete(archive);
+    return length;
+  }
+}
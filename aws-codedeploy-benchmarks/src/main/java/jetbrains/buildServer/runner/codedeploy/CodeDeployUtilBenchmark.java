@@ -0,0 +1,67 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses revision paths parameters of different size.
+ *
+ * @author vbedrosova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CodeDeployUtilBenchmark {
+  @Param({"1", "10", "1000"})
+  public int rules;
+
+  private String myRevisionPaths;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < rules; ++i) {
+      switch (i % 4) {
+        case 0:
+          sb.append("module").append(i).append("/build/**/*.jar => lib/module").append(i);
+          break;
+        case 1:
+          sb.append("-:module").append(i).append("/build/tmp/**");
+          break;
+        case 2:
+          sb.append(" ./module").append(i).append("\\web\\ => static\\").append(i).append(' ');
+          break;
+        default:
+          sb.append("+:module").append(i).append("/scripts/*.sh=>scripts");
+      }
+      sb.append(i % 2 == 0 ? "\n" : ",");
+    }
+    myRevisionPaths = sb.toString();
+  }
+
+  @Benchmark
+  public Map<String, String> getRevisionPathMappings() {
+    return CodeDeployUtil.getRevisionPathMappings(myRevisionPaths);
+  }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static jetbrains.buildServer.runner.codedeploy.CodeDeployConstants.*;
+
+/**
+ * Runs a number of concurrent {@link CodeDeployRunner} build processes, each performing a series of
+ * upload, register, deploy and wait pipelines against the {@link LocalAWSServer}, and reports:
+ * <ul>
+ * <li>p50 and p99 latencies of the packaging, upload, register and deploy phases and of the whole pipeline</li>
+ * <li>deployments per second and API calls per deployment</li>
+ * <li>CPU time and allocation rate of the plugin threads, i.e. all but the local server ones</li>
+ * </ul>
+ * The agent side (running build, runner context, build logger) is faked with {@link Proxy} instances answering only
+ * the calls the runner makes. The phases are timed by the build log blocks the runner opens and closes.
+ * <p>
+ * Arguments are name=value pairs, see {@link Settings}. The results can also be written to a JSON file with json=path.
+ *
+ * @author vbedrosova
+ */
+public final class DeploymentThroughputBenchmark {
+  static final String PACKAGE = "package revision";
+  static final String PIPELINE = "pipeline";
+  private static final String SERVER_THREAD = "Local AWS server";
+
+  @NotNull
+  private final Settings mySettings;
+  @NotNull
+  private final Map<String, List<Long>> myPhases = new ConcurrentHashMap<>();
+  @NotNull
+  private final AtomicInteger myFailures = new AtomicInteger();
+
+  DeploymentThroughputBenchmark(@NotNull Settings settings) {
+    mySettings = settings;
+  }
+
+  public static void main(String[] args) throws Exception {
+    final Settings settings = new Settings(args);
+    final Map<String, Object> results = new DeploymentThroughputBenchmark(settings).run();
+
+    final ObjectMapper json = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    System.out.println(json.writeValueAsString(results));
+    if (settings.json != null) json.writeValue(new File(settings.json), results);
+    System.exit(0);
+  }
+
+  @NotNull
+  Map<String, Object> run() throws Exception {
+    final LocalAWSServer server = new LocalAWSServer()
+      .withLatency(mySettings.latencyMs)
+      .withCodeDeployRateLimit(mySettings.codeDeployRateLimit)
+      .withInstances(mySettings.instances, 0)
+      .withDeploymentTiming(mySettings.queueMs, mySettings.instanceMs)
+      .start(0);
+
+    final File workingDir = RevisionTrees.generate(Files.createTempDirectory("deployment-throughput").toFile(), mySettings.files, mySettings.fileSize);
+    final ExecutorService builds = Executors.newFixedThreadPool(mySettings.builds);
+    try {
+      // warm up the runner, the AWS clients and the poller, the first pipeline isn't measured
+      runBuild(server, workingDir, 0, 1);
+      myPhases.clear();
+      myFailures.set(0);
+      server.resetCalls();
+
+      final ThreadUsageSampler sampler = new ThreadUsageSampler();
+      sampler.start();
+      final long start = System.nanoTime();
+
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int b = 1; b <= mySettings.builds; ++b) {
+        final int build = b;
+        futures.add(builds.submit(() -> {
+          runBuild(server, workingDir, build, mySettings.deployments);
+          return null;
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+
+      final long wallNanos = System.nanoTime() - start;
+      sampler.stop();
+
+      return getResults(server, sampler, wallNanos);
+    } finally {
+      builds.shutdownNow();
+      server.stop();
+      FileUtil.delete(workingDir);
+    }
+  }
+
+  private void runBuild(@NotNull LocalAWSServer server, @NotNull File workingDir, int build, int deployments) throws Exception {
+    final File tempDir = Files.createTempDirectory("build-" + build).toFile();
+    try {
+      for (int d = 0; d < deployments; ++d) {
+        final long start = System.nanoTime();
+        final BuildProcess process = new CodeDeployRunner().createBuildProcess(
+          createRunningBuild(workingDir, tempDir, build), createContext(server, workingDir, "revision-" + build + "-" + d + "." + mySettings.bundleType));
+        process.start();
+        final BuildFinishedStatus status = process.waitFor();
+        if (status != BuildFinishedStatus.FINISHED_SUCCESS) myFailures.incrementAndGet();
+        record(PIPELINE, System.nanoTime() - start);
+      }
+    } finally {
+      FileUtil.delete(tempDir);
+    }
+  }
+
+  @NotNull
+  private Map<String, Object> getResults(@NotNull LocalAWSServer server, @NotNull ThreadUsageSampler sampler, long wallNanos) {
+    final int deployments = mySettings.builds * mySettings.deployments;
+    final double wallSec = wallNanos / 1e9;
+    final Predicate<String> plugin = name -> !name.startsWith(SERVER_THREAD);
+
+    final Map<String, Object> results = new LinkedHashMap<>();
+    results.put("settings", mySettings.toMap());
+    results.put("deployments", deployments);
+    results.put("failures", myFailures.get());
+    results.put("wallTimeSec", wallSec);
+    results.put("deploymentsPerSec", deployments / wallSec);
+
+    final Map<String, Object> phases = new LinkedHashMap<>();
+    for (String phase : Arrays.asList(PACKAGE, LoggingDeploymentListener.UPLOAD_REVISION, LoggingDeploymentListener.REGISTER_REVISION, LoggingDeploymentListener.DEPLOY_APPLICATION, PIPELINE)) {
+      final List<Long> durations = myPhases.get(phase);
+      if (durations == null) continue;
+      final Map<String, Object> stats = new LinkedHashMap<>();
+      stats.put("count", durations.size());
+      stats.put("p50Ms", percentile(durations, 50) / 1e6);
+      stats.put("p99Ms", percentile(durations, 99) / 1e6);
+      phases.put(phase, stats);
+    }
+    results.put("phases", phases);
+
+    final Map<String, Object> calls = new LinkedHashMap<>();
+    for (Map.Entry<String, Integer> e : server.getCalls().entrySet()) {
+      calls.put(e.getKey(), (double) e.getValue() / deployments);
+    }
+    results.put("callsPerDeployment", calls);
+
+    final long cpuNanos = sampler.getCpuTimeNanos(plugin);
+    final long allocated = sampler.getAllocatedBytes(plugin);
+    results.put("cpuTimeSec", cpuNanos / 1e9);
+    results.put("cpuTimePerDeploymentMs", cpuNanos / 1e6 / deployments);
+    results.put("allocatedMb", allocated / 1024.0 / 1024);
+    results.put("allocationRateMbPerSec", allocated / 1024.0 / 1024 / wallSec);
+    results.put("allocatedPerDeploymentMb", allocated / 1024.0 / 1024 / deployments);
+    results.put("serverCpuTimeSec", sampler.getCpuTimeNanos(plugin.negate()) / 1e9);
+    return results;
+  }
+
+  private void record(@NotNull String phase, long nanos) {
+    myPhases.computeIfAbsent(phase, p -> Collections.synchronizedList(new ArrayList<>())).add(nanos);
+  }
+
+  private static long percentile(@NotNull List<Long> values, int percentile) {
+    final List<Long> sorted;
+    synchronized (values) {
+      sorted = new ArrayList<>(values);
+    }
+    Collections.sort(sorted);
+    // nearest rank
+    final int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+    return sorted.get(Math.max(0, rank - 1));
+  }
+
+  @NotNull
+  private AgentRunningBuild createRunningBuild(@NotNull File workingDir, @NotNull File tempDir, int build) {
+    final BuildProgressLogger logger = createLogger();
+    final Map<String, Function<Object[], Object>> answers = new HashMap<>();
+    answers.put("getBuildLogger", a -> logger);
+    answers.put("getCheckoutDirectory", a -> workingDir);
+    answers.put("getBuildTempDirectory", a -> tempDir);
+    answers.put("getAgentTempDirectory", a -> tempDir);
+    answers.put("getBuildTypeExternalId", a -> "Benchmark_Build" + build);
+    answers.put("getBuildTypeName", a -> "Benchmark build " + build);
+    answers.put("getBuildId", a -> (long) build);
+    answers.put("getBuildNumber", a -> String.valueOf(build));
+    answers.put("getSharedConfigParameters", a -> Collections.emptyMap());
+    return fake(AgentRunningBuild.class, answers);
+  }
+
+  @NotNull
+  private BuildRunnerContext createContext(@NotNull LocalAWSServer server, @NotNull File workingDir, @NotNull String s3ObjectKey) {
+    final Map<String, String> runnerParameters = new HashMap<>(server.getRunnerParameters());
+    runnerParameters.put(DEPLOYMENT_STEPS_PARAM, UPLOAD_REGISTER_DEPLOY_STEPS);
+    runnerParameters.put(REVISION_PATHS_PARAM, RevisionTrees.REVISION_PATHS);
+    runnerParameters.put(S3_BUCKET_NAME_PARAM, "benchmark");
+    runnerParameters.put(S3_OBJECT_KEY_PARAM, s3ObjectKey);
+    runnerParameters.put(APP_NAME_PARAM, "benchmark-application");
+    runnerParameters.put(DEPLOYMENT_GROUP_NAME_PARAM, "benchmark-group");
+    runnerParameters.put(WAIT_FLAG_PARAM, "true");
+    runnerParameters.put(WAIT_TIMEOUT_SEC_PARAM, "600");
+
+    final Map<String, String> configParameters = new HashMap<>();
+    configParameters.put(REVISION_CACHE_ENABLED_CONFIG_PARAM, "false");
+    configParameters.put(WAIT_POLL_INITIAL_INTERVAL_SEC_CONFIG_PARAM, "1");
+    configParameters.put(WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM, "1");
+    configParameters.put(REVISION_PACKAGING_THREADS_CONFIG_PARAM, String.valueOf(mySettings.packagingThreads));
+    configParameters.put(REVISION_UPLOAD_STREAMING_CONFIG_PARAM, String.valueOf(mySettings.streaming));
+
+    final Map<String, Function<Object[], Object>> answers = new HashMap<>();
+    answers.put("getRunnerParameters", a -> runnerParameters);
+    answers.put("getConfigParameters", a -> configParameters);
+    answers.put("getWorkingDirectory", a -> workingDir);
+    answers.put("getId", a -> "RUNNER_1");
+    return fake(BuildRunnerContext.class, answers);
+  }
+
+  /**
+   * Times the log blocks and the revision packaging which is logged with the messages
+   */
+  @NotNull
+  private BuildProgressLogger createLogger() {
+    final Map<String, Long> started = new ConcurrentHashMap<>();
+    final Map<String, Function<Object[], Object>> answers = new HashMap<>();
+    answers.put("targetStarted", a -> started.put((String) a[0], System.nanoTime()));
+    answers.put("targetFinished", a -> {
+      final Long start = started.remove((String) a[0]);
+      if (start != null) record((String) a[0], System.nanoTime() - start);
+      return null;
+    });
+    answers.put("message", a -> {
+      final String message = (String) a[0];
+      if (message.startsWith("Packaging application revision")) {
+        started.put(PACKAGE, System.nanoTime());
+      } else if (message.startsWith("Packaged ")) {
+        final Long start = started.remove(PACKAGE);
+        if (start != null) record(PACKAGE, System.nanoTime() - start);
+      }
+      return null;
+    });
+    for (String ignored : Arrays.asList("error", "warning", "progressMessage", "exception")) {
+      answers.put(ignored, a -> null);
+    }
+    final Object[] self = new Object[1];
+    answers.put("getFlowLogger", a -> self[0]);
+    self[0] = fake(FlowLogger.class, answers);
+    return (BuildProgressLogger) self[0];
+  }
+
+  /**
+   * Creates an interface instance answering the listed method calls, the rest of the calls fail
+   */
+  @NotNull
+  @SuppressWarnings("unchecked")
+  private static <T> T fake(@NotNull Class<T> type, @NotNull Map<String, Function<Object[], Object>> answers) {
+    final InvocationHandler handler = (proxy, method, args) -> {
+      final Function<Object[], Object> answer = answers.get(method.getName());
+      if (answer != null) return answer.apply(args);
+      switch (method.getName()) {
+        case "toString":
+          return "Fake " + type.getSimpleName();
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName() + " is not faked");
+      }
+    };
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, handler);
+  }
+
+  /**
+   * Benchmark settings with their defaults
+   */
+  static final class Settings {
+    int builds = 4;
+    int deployments = 5;
+    int files = 1000;
+    int fileSize = 4096;
+    @NotNull
+    String bundleType = "zip";
+    int packagingThreads = 2;
+    boolean streaming;
+    int latencyMs = 20;
+    int codeDeployRateLimit;
+    int instances = 3;
+    long queueMs = 200;
+    long instanceMs = 300;
+    @Nullable
+    String json;
+
+    Settings(@NotNull String... args) {
+      for (String arg : args) {
+        final int eq = arg.indexOf('=');
+        if (eq < 0) throw new IllegalArgumentException("Expected name=value argument but got " + arg);
+        final String name = arg.substring(0, eq);
+        final String value = arg.substring(eq + 1);
+        switch (name) {
+          case "builds": builds = Integer.parseInt(value); break;
+          case "deployments": deployments = Integer.parseInt(value); break;
+          case "files": files = Integer.parseInt(value); break;
+          case "fileSize": fileSize = Integer.parseInt(value); break;
+          case "bundleType": bundleType = value; break;
+          case "packagingThreads": packagingThreads = Integer.parseInt(value); break;
+          case "streaming": streaming = Boolean.parseBoolean(value); break;
+          case "latencyMs": latencyMs = Integer.parseInt(value); break;
+          case "codeDeployRateLimit": codeDeployRateLimit = Integer.parseInt(value); break;
+          case "instances": instances = Integer.parseInt(value); break;
+          case "queueMs": queueMs = Long.parseLong(value); break;
+          case "instanceMs": instanceMs = Long.parseLong(value); break;
+          case "json": json = value; break;
+          default: throw new IllegalArgumentException("Unknown argument " + name);
+        }
+      }
+    }
+
+    @NotNull
+    Map<String, Object> toMap() {
+      final Map<String, Object> map = new LinkedHashMap<>();
+      map.put("builds", builds);
+      map.put("deployments", deployments);
+      map.put("files", files);
+      map.put("fileSize", fileSize);
+      map.put("bundleType", bundleType);
+      map.put("packagingThreads", packagingThreads);
+      map.put("streaming", streaming);
+      map.put("latencyMs", latencyMs);
+      map.put("codeDeployRateLimit", codeDeployRateLimit);
+      map.put("instances", instances);
+      map.put("queueMs", queueMs);
+      map.put("instanceMs", instanceMs);
+      return map;
+    }
+  }
+}
@@ -0,0 +1,825 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the subset of S3 and CodeDeploy APIs used by {@link AWSClient}: put, head and copy object,
+ * multipart upload, register application revision, create deployment and get deployment(s).
+ * <p>
+ * Both services are served from the same endpoint which is plugged in with the custom environment
+ * {@link AWSCommonParams#SERVICE_ENDPOINT_PARAM} setting for S3 and the {@link AWSCommonParams#CODEDEPLOY_ENDPOINT_PARAM}
+ * one for CodeDeploy, see {@link #getRunnerParameters()}. Requests are told apart by
+ * the CodeDeploy JSON protocol X-Amz-Target header. Signatures aren't checked and buckets don't need to be created.
+ * <p>
+ * Uploaded data isn't kept, only the object sizes and ETags are, so the server can take any amount of uploads.
+ * <p>
+ * Simulates the request latency, throttling with per-second request limits, and the deployment progress:
+ * the deployment is queued for a while and then the instances are deployed one at a time. If an instance fails,
+ * the deployment fails and the rest of the instances are skipped.
+ * <p>
+ * Run {@link #main(String[])} to start a standalone server for a build agent.
+ *
+ * @author vbedrosova
+ */
+final class LocalAWSServer {
+  static final String REGION = "us-east-1";
+  static final String ACCESS_KEY_ID = "local-access-key";
+  static final String SECRET_ACCESS_KEY = "local-secret-key";
+
+  private static final String S3 = "s3:";
+  private static final String CODE_DEPLOY = "codedeploy:";
+  static final String THROTTLED = "throttled";
+
+  private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>\\s*(\\d+)\\s*</PartNumber>");
+  private static final ObjectMapper JSON = new ObjectMapper();
+
+  private int myLatencyMs;
+  @Nullable
+  private RateLimit myS3RateLimit;
+  @Nullable
+  private RateLimit myCodeDeployRateLimit;
+  private long myQueueMs = 500;
+  private long myInstanceMs = 1000;
+  private int myInstances = 3;
+  private int myFailedInstances;
+
+  @NotNull
+  private final Map<String, S3Object> myObjects = new ConcurrentHashMap<>();
+  @NotNull
+  private final Map<String, MultipartUpload> myUploads = new ConcurrentHashMap<>();
+  @NotNull
+  private final Map<String, Deployment> myDeployments = new ConcurrentHashMap<>();
+  @NotNull
+  private final Map<String, AtomicInteger> myCalls = new ConcurrentHashMap<>();
+  @NotNull
+  private final AtomicLong myIds = new AtomicLong();
+
+  @Nullable
+  private HttpServer myServer;
+  @Nullable
+  private ExecutorService myExecutor;
+
+  /**
+   * @param latencyMs delay before handling each request
+   */
+  @NotNull
+  LocalAWSServer withLatency(int latencyMs) {
+    myLatencyMs = latencyMs;
+    return this;
+  }
+
+  /**
+   * @param requestsPerSecond S3 requests above the limit get SlowDown error, 0 means no limit
+   */
+  @NotNull
+  LocalAWSServer withS3RateLimit(int requestsPerSecond) {
+    myS3RateLimit = requestsPerSecond > 0 ? new RateLimit(requestsPerSecond) : null;
+    return this;
+  }
+
+  /**
+   * @param requestsPerSecond CodeDeploy requests above the limit get ThrottlingException, 0 means no limit
+   */
+  @NotNull
+  LocalAWSServer withCodeDeployRateLimit(int requestsPerSecond) {
+    myCodeDeployRateLimit = requestsPerSecond > 0 ? new RateLimit(requestsPerSecond) : null;
+    return this;
+  }
+
+  /**
+   * @param instances       number of instances in each deployment group
+   * @param failedInstances number of the last instances which fail to deploy
+   */
+  @NotNull
+  LocalAWSServer withInstances(int instances, int failedInstances) {
+    myInstances = Math.max(1, instances);
+    myFailedInstances = Math.max(0, Math.min(failedInstances, myInstances));
+    return this;
+  }
+
+  /**
+   * @param queueMs    time the deployment stays created before the instances start deploying
+   * @param instanceMs time each instance deploys
+   */
+  @NotNull
+  LocalAWSServer withDeploymentTiming(long queueMs, long instanceMs) {
+    myQueueMs = queueMs;
+    myInstanceMs = instanceMs;
+    return this;
+  }
+
+  /**
+   * Starts serving on the loopback interface
+   *
+   * @param port port to listen to, 0 means any free port
+   */
+  @NotNull
+  LocalAWSServer start(int port) throws IOException {
+    final AtomicInteger counter = new AtomicInteger();
+    myExecutor = Executors.newCachedThreadPool(r -> {
+      final Thread t = new Thread(r, "Local AWS server " + counter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    myServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 100);
+    myServer.setExecutor(myExecutor);
+    myServer.createContext("/", this::handle);
+    myServer.start();
+    return this;
+  }
+
+  void stop() {
+    if (myServer != null) myServer.stop(0);
+    if (myExecutor != null) myExecutor.shutdownNow();
+  }
+
+  @NotNull
+  String getEndpoint() {
+    if (myServer == null) throw new IllegalStateException("Server is not started");
+    final InetSocketAddress address = myServer.getAddress();
+    return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort();
+  }
+
+  /**
+   * AWS connection runner parameters pointing to this server
+   */
+  @NotNull
+  Map<String, String> getRunnerParameters() {
+    final Map<String, String> params = new HashMap<>();
+    params.put(AWSCommonParams.ENVIRONMENT_NAME_PARAM, AWSCommonParams.ENVIRONMENT_TYPE_CUSTOM);
+    params.put(AWSCommonParams.SERVICE_ENDPOINT_PARAM, getEndpoint());
+    params.put(AWSCommonParams.CODEDEPLOY_ENDPOINT_PARAM, getEndpoint());
+    params.put(AWSCommonParams.REGION_NAME_PARAM, REGION);
+    params.put(AWSCommonParams.CREDENTIALS_TYPE_PARAM, AWSCommonParams.ACCESS_KEYS_OPTION);
+    params.put(AWSCommonParams.ACCESS_KEY_ID_PARAM, ACCESS_KEY_ID);
+    params.put(AWSCommonParams.SECURE_SECRET_ACCESS_KEY_PARAM, SECRET_ACCESS_KEY);
+    return params;
+  }
+
+  /**
+   * @return number of handled requests by operation, e.g. s3:UploadPart or codedeploy:GetDeployment, and the number of throttled ones
+   */
+  @NotNull
+  Map<String, Integer> getCalls() {
+    final Map<String, Integer> calls = new TreeMap<>();
+    for (Map.Entry<String, AtomicInteger> e : myCalls.entrySet()) {
+      calls.put(e.getKey(), e.getValue().get());
+    }
+    return calls;
+  }
+
+  void resetCalls() {
+    myCalls.clear();
+  }
+
+  @Nullable
+  S3Object getObject(@NotNull String bucket, @NotNull String key) {
+    return myObjects.get(bucket + "/" + key);
+  }
+
+  private void handle(@NotNull HttpExchange exchange) throws IOException {
+    try {
+      if (myLatencyMs > 0) Thread.sleep(myLatencyMs);
+
+      final String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+      if (target == null) handleS3(exchange);
+      else handleCodeDeploy(exchange, target.substring(target.indexOf('.') + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Throwable t) {
+      sendS3Error(exchange, 500, "InternalError", String.valueOf(t));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void handleS3(@NotNull HttpExchange exchange) throws IOException {
+    final String path = exchange.getRequestURI().getPath();
+    final int slash = path.indexOf('/', 1);
+    final String bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+    final String key = slash < 0 ? "" : path.substring(slash + 1);
+    final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+    final String method = exchange.getRequestMethod();
+    final String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+
+    final String operation;
+    if ("HEAD".equals(method)) operation = "HeadObject";
+    else if ("PUT".equals(method) && key.isEmpty()) operation = "CreateBucket";
+    else if ("PUT".equals(method) && query.containsKey("uploadId")) operation = copySource == null ? "UploadPart" : "UploadPartCopy";
+    else if ("PUT".equals(method)) operation = copySource == null ? "PutObject" : "CopyObject";
+    else if ("POST".equals(method) && query.containsKey("uploads")) operation = "CreateMultipartUpload";
+    else if ("POST".equals(method) && query.containsKey("uploadId")) operation = "CompleteMultipartUpload";
+    else if ("GET".equals(method) && query.containsKey("uploadId")) operation = "ListParts";
+    else if ("DELETE".equals(method) && query.containsKey("uploadId")) operation = "AbortMultipartUpload";
+    else if ("DELETE".equals(method)) operation = "DeleteObject";
+    else operation = method + "Object";
+
+    if (myS3RateLimit != null && !myS3RateLimit.acquire()) {
+      count(THROTTLED);
+      sendS3Error(exchange, 503, "SlowDown", "Please reduce your request rate.");
+      return;
+    }
+    count(S3 + operation);
+
+    final String objectId = bucket + "/" + key;
+    switch (operation) {
+      case "HeadObject": {
+        final S3Object object = myObjects.get(objectId);
+        if (object == null) {
+          exchange.sendResponseHeaders(404, -1);
+          return;
+        }
+        exchange.getResponseHeaders().set("Content-Length", String.valueOf(object.getSize()));
+        sendObjectHeaders(exchange, object);
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      }
+      case "CreateBucket":
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      case "PutObject": {
+        final Body body = readBody(exchange);
+        final S3Object object = new S3Object(body.getSize(), "\"" + body.getMd5() + "\"");
+        myObjects.put(objectId, object);
+        sendObjectHeaders(exchange, object);
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      }
+      case "CopyObject": {
+        final String sourceId = URLDecoder.decode(copySource.split("\\?")[0], "UTF-8");
+        final S3Object source = myObjects.get(sourceId.startsWith("/") ? sourceId.substring(1) : sourceId);
+        if (source == null) {
+          sendS3Error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+          return;
+        }
+        final S3Object object = new S3Object(source.getSize(), source.getETag());
+        myObjects.put(objectId, object);
+        sendXml(exchange, 200, "<CopyObjectResult><LastModified>" + formatIso(object.getLastModified()) + "</LastModified>" +
+          "<ETag>" + escapeXml(object.getETag()) + "</ETag></CopyObjectResult>");
+        return;
+      }
+      case "CreateMultipartUpload": {
+        final String uploadId = "upload-" + myIds.incrementAndGet();
+        myUploads.put(uploadId, new MultipartUpload(objectId));
+        sendXml(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + escapeXml(bucket) + "</Bucket><Key>" + escapeXml(key) + "</Key>" +
+          "<UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        return;
+      }
+      case "UploadPart": {
+        final MultipartUpload upload = myUploads.get(query.get("uploadId"));
+        if (upload == null || !upload.getObjectId().equals(objectId)) {
+          sendS3Error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+          return;
+        }
+        final Body body = readBody(exchange);
+        final int partNumber = Integer.parseInt(query.get("partNumber"));
+        upload.getParts().put(partNumber, new Part(partNumber, body.getSize(), body.getMd5()));
+        exchange.getResponseHeaders().set("ETag", "\"" + body.getMd5() + "\"");
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      }
+      case "ListParts": {
+        final MultipartUpload upload = myUploads.get(query.get("uploadId"));
+        if (upload == null) {
+          sendS3Error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+          return;
+        }
+        final int marker = query.containsKey("part-number-marker") ? Integer.parseInt(query.get("part-number-marker")) : 0;
+        final int maxParts = query.containsKey("max-parts") ? Integer.parseInt(query.get("max-parts")) : 1000;
+        final StringBuilder sb = new StringBuilder("<ListPartsResult><Bucket>").append(escapeXml(bucket)).append("</Bucket>")
+          .append("<Key>").append(escapeXml(key)).append("</Key><UploadId>").append(query.get("uploadId")).append("</UploadId>")
+          .append("<PartNumberMarker>").append(marker).append("</PartNumberMarker><MaxParts>").append(maxParts).append("</MaxParts>");
+        int listed = 0;
+        int last = marker;
+        boolean truncated = false;
+        for (Part part : new TreeMap<>(upload.getParts()).tailMap(marker + 1).values()) {
+          if (listed == maxParts) {
+            truncated = true;
+            break;
+          }
+          sb.append("<Part><PartNumber>").append(part.getNumber()).append("</PartNumber>")
+            .append("<LastModified>").append(formatIso(upload.getCreated())).append("</LastModified>")
+            .append("<ETag>\"").append(part.getMd5()).append("\"</ETag><Size>").append(part.getSize()).append("</Size></Part>");
+          last = part.getNumber();
+          ++listed;
+        }
+        sb.append("<NextPartNumberMarker>").append(last).append("</NextPartNumberMarker>")
+          .append("<IsTruncated>").append(truncated).append("</IsTruncated></ListPartsResult>");
+        sendXml(exchange, 200, sb.toString());
+        return;
+      }
+      case "CompleteMultipartUpload": {
+        final MultipartUpload upload = myUploads.get(query.get("uploadId"));
+        if (upload == null) {
+          sendS3Error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+          return;
+        }
+        final Matcher matcher = PART_NUMBER.matcher(new String(readBody(exchange).getContent(), StandardCharsets.UTF_8));
+        final MessageDigest digest = md5();
+        long size = 0;
+        int parts = 0;
+        while (matcher.find()) {
+          final Part part = upload.getParts().get(Integer.parseInt(matcher.group(1)));
+          if (part == null) {
+            sendS3Error(exchange, 400, "InvalidPart", "One or more of the specified parts could not be found.");
+            return;
+          }
+          digest.update(fromHex(part.getMd5()));
+          size += part.getSize();
+          ++parts;
+        }
+        myUploads.remove(query.get("uploadId"));
+        final S3Object object = new S3Object(size, "\"" + toHex(digest.digest()) + "-" + parts + "\"");
+        myObjects.put(objectId, object);
+        sendXml(exchange, 200, "<CompleteMultipartUploadResult><Location>" + escapeXml(getEndpoint() + "/" + objectId) + "</Location>" +
+          "<Bucket>" + escapeXml(bucket) + "</Bucket><Key>" + escapeXml(key) + "</Key>" +
+          "<ETag>" + escapeXml(object.getETag()) + "</ETag></CompleteMultipartUploadResult>");
+        return;
+      }
+      case "AbortMultipartUpload":
+        myUploads.remove(query.get("uploadId"));
+        exchange.sendResponseHeaders(204, -1);
+        return;
+      case "DeleteObject":
+        myObjects.remove(objectId);
+        exchange.sendResponseHeaders(204, -1);
+        return;
+      default:
+        sendS3Error(exchange, 501, "NotImplemented", operation + " is not supported by the local server");
+    }
+  }
+
+  private void handleCodeDeploy(@NotNull HttpExchange exchange, @NotNull String operation) throws IOException {
+    if (myCodeDeployRateLimit != null && !myCodeDeployRateLimit.acquire()) {
+      count(THROTTLED);
+      sendCodeDeployError(exchange, "ThrottlingException", "Rate exceeded");
+      return;
+    }
+    count(CODE_DEPLOY + operation);
+
+    final JsonNode request = JSON.readTree(readBody(exchange).getContent());
+    final ObjectNode response = JSON.createObjectNode();
+    switch (operation) {
+      case "RegisterApplicationRevision":
+        if (!request.hasNonNull("applicationName")) {
+          sendCodeDeployError(exchange, "ApplicationNameRequiredException", "The minimum number of required application names was not specified.");
+          return;
+        }
+        break;
+      case "CreateDeployment": {
+        if (!request.hasNonNull("applicationName") || !request.hasNonNull("deploymentGroupName")) {
+          sendCodeDeployError(exchange, "DeploymentGroupNameRequiredException", "The deployment group name was not specified.");
+          return;
+        }
+        final String deploymentId = "d-LOCAL" + myIds.incrementAndGet();
+        myDeployments.put(deploymentId, new Deployment(deploymentId, request, System.currentTimeMillis()));
+        response.put("deploymentId", deploymentId);
+        break;
+      }
+      case "GetDeployment": {
+        final Deployment deployment = myDeployments.get(request.path("deploymentId").asText());
+        if (deployment == null) {
+          sendCodeDeployError(exchange, "DeploymentDoesNotExistException", "The deployment does not exist.");
+          return;
+        }
+        response.set("deploymentInfo", deployment.getInfo(System.currentTimeMillis()));
+        break;
+      }
+      case "BatchGetDeployments": {
+        final ArrayNode infos = response.putArray("deploymentsInfo");
+        final long now = System.currentTimeMillis();
+        for (JsonNode id : request.path("deploymentIds")) {
+          final Deployment deployment = myDeployments.get(id.asText());
+          if (deployment != null) infos.add(deployment.getInfo(now));
+        }
+        break;
+      }
+      default:
+        sendCodeDeployError(exchange, "UnknownOperationException", operation + " is not supported by the local server");
+        return;
+    }
+    send(exchange, 200, "application/x-amz-json-1.1", JSON.writeValueAsBytes(response));
+  }
+
+  private void count(@NotNull String call) {
+    AtomicInteger counter = myCalls.get(call);
+    if (counter == null) {
+      myCalls.putIfAbsent(call, new AtomicInteger());
+      counter = myCalls.get(call);
+    }
+    counter.incrementAndGet();
+  }
+
+  private static void sendObjectHeaders(@NotNull HttpExchange exchange, @NotNull S3Object object) {
+    exchange.getResponseHeaders().set("ETag", object.getETag());
+    exchange.getResponseHeaders().set("Last-Modified", formatRfc1123(object.getLastModified()));
+  }
+
+  private static void sendS3Error(@NotNull HttpExchange exchange, int status, @NotNull String code, @NotNull String message) throws IOException {
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    sendXml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + escapeXml(message) + "</Message>" +
+      "<RequestId>local</RequestId></Error>");
+  }
+
+  private static void sendCodeDeployError(@NotNull HttpExchange exchange, @NotNull String type, @NotNull String message) throws IOException {
+    final ObjectNode error = JSON.createObjectNode();
+    error.put("__type", type);
+    error.put("message", message);
+    send(exchange, 400, "application/x-amz-json-1.1", JSON.writeValueAsBytes(error));
+  }
+
+  private static void sendXml(@NotNull HttpExchange exchange, int status, @NotNull String xml) throws IOException {
+    send(exchange, status, "application/xml", ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xml).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void send(@NotNull HttpExchange exchange, int status, @NotNull String contentType, @NotNull byte[] content) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.getResponseHeaders().set("x-amz-request-id", "local");
+    exchange.sendResponseHeaders(status, content.length);
+    exchange.getResponseBody().write(content);
+  }
+
+  /**
+   * Reads the request body, decoding the aws-chunked encoding the S3 client uses for the signed payloads over HTTP.
+   * Only the small bodies content is kept
+   */
+  @NotNull
+  private static Body readBody(@NotNull HttpExchange exchange) throws IOException {
+    final InputStream input = new BufferedInputStream(exchange.getRequestBody(), 64 * 1024);
+    final String contentSha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+    final Body body = new Body();
+    final byte[] buffer = new byte[64 * 1024];
+    if (contentSha256 != null && contentSha256.startsWith("STREAMING-")) {
+      while (true) {
+        final String header = readLine(input);
+        final int semicolon = header.indexOf(';');
+        long chunk = Long.parseLong(semicolon < 0 ? header.trim() : header.substring(0, semicolon).trim(), 16);
+        if (chunk == 0) break;
+        while (chunk > 0) {
+          final int read = input.read(buffer, 0, (int) Math.min(buffer.length, chunk));
+          if (read < 0) throw new EOFException("Unexpected end of chunked request body");
+          body.update(buffer, read);
+          chunk -= read;
+        }
+        readLine(input);
+      }
+    } else {
+      int read;
+      while ((read = input.read(buffer)) > 0) {
+        body.update(buffer, read);
+      }
+    }
+    return body;
+  }
+
+  @NotNull
+  private static String readLine(@NotNull InputStream input) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = input.read()) >= 0 && c != '\n') {
+      if (c != '\r') sb.append((char) c);
+    }
+    if (c < 0) throw new EOFException("Unexpected end of chunked request body");
+    return sb.toString();
+  }
+
+  @NotNull
+  private static Map<String, String> parseQuery(@Nullable String query) throws UnsupportedEncodingException {
+    final Map<String, String> params = new HashMap<>();
+    if (query == null || query.isEmpty()) return params;
+    for (String param : query.split("&")) {
+      final int eq = param.indexOf('=');
+      params.put(URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), "UTF-8"), eq < 0 ? "" : URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+    }
+    return params;
+  }
+
+  @NotNull
+  private static String escapeXml(@NotNull String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+  }
+
+  @NotNull
+  private static String formatIso(long time) {
+    final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(time));
+  }
+
+  @NotNull
+  private static String formatRfc1123(long time) {
+    final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format.format(new Date(time));
+  }
+
+  @NotNull
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static String toHex(@NotNull byte[] bytes) {
+    final StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  @NotNull
+  private static byte[] fromHex(@NotNull String hex) {
+    final byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; ++i) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  /**
+   * Starts the server and waits until the process is stopped
+   *
+   * @param args [port] [latency ms] [instances] [failed instances]
+   */
+  public static void main(String[] args) throws Exception {
+    final LocalAWSServer server = new LocalAWSServer()
+      .withLatency(args.length > 1 ? Integer.parseInt(args[1]) : 0)
+      .withInstances(args.length > 2 ? Integer.parseInt(args[2]) : 3, args.length > 3 ? Integer.parseInt(args[3]) : 0)
+      .start(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+
+    System.out.println("Local AWS server is listening on " + server.getEndpoint() + ", use the following AWS connection parameters:");
+    for (Map.Entry<String, String> e : new TreeMap<>(server.getRunnerParameters()).entrySet()) {
+      System.out.println("  " + e.getKey() + "=" + e.getValue());
+    }
+    new CountDownLatch(1).await();
+  }
+
+  static final class S3Object {
+    private final long mySize;
+    @NotNull
+    private final String myETag;
+    private final long myLastModified = System.currentTimeMillis();
+
+    S3Object(long size, @NotNull String eTag) {
+      mySize = size;
+      myETag = eTag;
+    }
+
+    long getSize() {
+      return mySize;
+    }
+
+    /**
+     * Quoted ETag, MD5 of the content or MD5 of the parts MD5s followed by the number of parts for the multipart uploads
+     */
+    @NotNull
+    String getETag() {
+      return myETag;
+    }
+
+    long getLastModified() {
+      return myLastModified;
+    }
+  }
+
+  private static final class MultipartUpload {
+    @NotNull
+    private final String myObjectId;
+    @NotNull
+    private final Map<Integer, Part> myParts = new ConcurrentHashMap<>();
+    private final long myCreated = System.currentTimeMillis();
+
+    MultipartUpload(@NotNull String objectId) {
+      myObjectId = objectId;
+    }
+
+    @NotNull
+    String getObjectId() {
+      return myObjectId;
+    }
+
+    @NotNull
+    Map<Integer, Part> getParts() {
+      return myParts;
+    }
+
+    long getCreated() {
+      return myCreated;
+    }
+  }
+
+  private static final class Part {
+    private final int myNumber;
+    private final long mySize;
+    @NotNull
+    private final String myMd5;
+
+    Part(int number, long size, @NotNull String md5) {
+      myNumber = number;
+      mySize = size;
+      myMd5 = md5;
+    }
+
+    int getNumber() {
+      return myNumber;
+    }
+
+    long getSize() {
+      return mySize;
+    }
+
+    @NotNull
+    String getMd5() {
+      return myMd5;
+    }
+  }
+
+  /**
+   * Request body size and MD5, the content is kept only while it's small, e.g. for the XML and JSON requests
+   */
+  private static final class Body {
+    private static final int MAX_CONTENT_SIZE = 1024 * 1024;
+
+    @NotNull
+    private final MessageDigest myDigest = md5();
+    @NotNull
+    private final ByteArrayOutputStream myContent = new ByteArrayOutputStream();
+    private long mySize;
+    @Nullable
+    private String myMd5;
+
+    void update(@NotNull byte[] data, int length) {
+      myDigest.update(data, 0, length);
+      if (mySize + length <= MAX_CONTENT_SIZE) myContent.write(data, 0, length);
+      mySize += length;
+    }
+
+    long getSize() {
+      return mySize;
+    }
+
+    @NotNull
+    String getMd5() {
+      if (myMd5 == null) myMd5 = toHex(myDigest.digest());
+      return myMd5;
+    }
+
+    @NotNull
+    byte[] getContent() {
+      return myContent.toByteArray();
+    }
+  }
+
+  /**
+   * Deployment state is calculated from the time passed since the deployment was created
+   */
+  private final class Deployment {
+    @NotNull
+    private final String myId;
+    @NotNull
+    private final JsonNode myRequest;
+    private final long myCreated;
+    private final long myQueue = myQueueMs;
+    private final long myInstance = myInstanceMs;
+    private final int myTotal = myInstances;
+    private final int myFailing = myFailedInstances;
+
+    Deployment(@NotNull String id, @NotNull JsonNode request, long created) {
+      myId = id;
+      myRequest = request;
+      myCreated = created;
+    }
+
+    @NotNull
+    ObjectNode getInfo(long now) {
+      final ObjectNode info = JSON.createObjectNode();
+      info.put("deploymentId", myId);
+      info.put("applicationName", myRequest.path("applicationName").asText());
+      info.put("deploymentGroupName", myRequest.path("deploymentGroupName").asText());
+      info.put("deploymentConfigName", myRequest.path("deploymentConfigName").asText("CodeDeployDefault.OneAtATime"));
+      if (myRequest.has("revision")) info.set("revision", myRequest.get("revision"));
+      info.put("creator", "user");
+      info.put("createTime", seconds(myCreated));
+
+      final long started = myCreated + myQueue;
+      int succeeded = 0, failed = 0, inProgress = 0, skipped = 0, pending = myTotal;
+      long completed = -1;
+      if (now >= started) {
+        info.put("startTime", seconds(started));
+        // instances are deployed one at a time, the failing ones are the last
+        final int done = myInstance <= 0 ? myTotal : (int) Math.min(myTotal, (now - started) / myInstance);
+        succeeded = Math.min(done, myTotal - myFailing);
+        failed = done > succeeded ? 1 : 0;
+        if (failed > 0) {
+          skipped = myTotal - succeeded - failed;
+          completed = started + (succeeded + 1) * myInstance;
+        } else if (done == myTotal) {
+          completed = started + myTotal * myInstance;
+        } else {
+          inProgress = 1;
+        }
+        pending = myTotal - succeeded - failed - skipped - inProgress;
+      }
+
+      final String status;
+      if (completed >= 0) {
+        info.put("completeTime", seconds(completed));
+        status = failed > 0 ? "Failed" : "Succeeded";
+      } else {
+        status = now >= started ? "InProgress" : "Created";
+      }
+      info.put("status", status);
+
+      final ObjectNode overview = info.putObject("deploymentOverview");
+      overview.put("Pending", pending);
+      overview.put("InProgress", inProgress);
+      overview.put("Succeeded", succeeded);
+      overview.put("Failed", failed);
+      overview.put("Skipped", skipped);
+      overview.put("Ready", 0);
+
+      if (failed > 0) {
+        final ObjectNode error = info.putObject("errorInformation");
+        error.put("code", "HEALTH_CONSTRAINTS");
+        error.put("message", "The overall deployment failed because too many individual instances failed deployment, " +
+          "too few healthy instances are available for deployment, or some instances in your deployment group are experiencing problems.");
+      }
+      return info;
+    }
+
+    private double seconds(long time) {
+      return time / 1000.0;
+    }
+  }
+
+  /**
+   * Allows a number of requests per second
+   */
+  private static final class RateLimit {
+    private final int myLimit;
+    private long mySecond;
+    private int myCount;
+
+    RateLimit(int limit) {
+      myLimit = limit;
+    }
+
+    synchronized boolean acquire() {
+      final long second = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+      if (second != mySecond) {
+        mySecond = second;
+        myCount = 0;
+      }
+      return ++myCount <= myLimit;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.agent.NullBuildProgressLogger;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats the deployment progress messages and service messages the build log receives,
+ * the build logger only sums up the formatted messages length.
+ *
+ * @author vbedrosova
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoggingDeploymentListenerBenchmark {
+  private static final String DEPLOYMENT_ID = "d-ABCDEF123";
+
+  private LoggingDeploymentListener myListener;
+  private File myRevision;
+  private AWSClient.Listener.InstancesStatus myStatus;
+  private AWSClient.Listener.ErrorInfo myErrorInfo;
+  private long myLoggedLength;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    final Map<String, String> params = new HashMap<String, String>();
+    params.put(AWSCommonParams.REGION_NAME_PARAM, "us-east-1");
+    params.put(CodeDeployConstants.S3_BUCKET_NAME_PARAM, "bucket");
+    params.put(CodeDeployConstants.APP_NAME_PARAM, "application");
+    params.put(CodeDeployConstants.DEPLOYMENT_GROUP_NAME_PARAM, "group");
+
+    myListener = new LoggingDeploymentListener(params, new NullBuildProgressLogger() {
+      @Override
+      public void message(String message) {
+        myLoggedLength += message.length();
+      }
+
+      @Override
+      public void error(String message) {
+        myLoggedLength += message.length();
+      }
+    }, "/checkout/dir");
+
+    myRevision = new File("/temp/dir/revision.zip");
+
+    myStatus = new AWSClient.Listener.InstancesStatus();
+    myStatus.status = "InProgress";
+    myStatus.pending = 3;
+    myStatus.inProgress = 2;
+    myStatus.succeeded = 10;
+
+    myErrorInfo = new AWSClient.Listener.ErrorInfo();
+    myErrorInfo.code = "HEALTH_CONSTRAINTS";
+    myErrorInfo.message = "The overall deployment failed because too many individual instances failed deployment, " +
+      "too few healthy instances are available for deployment, or some instances in your deployment group are experiencing problems. [|'details']";
+  }
+
+  @Benchmark
+  public long uploadRevision() {
+    myListener.uploadRevisionStarted(myRevision, "bucket", "path/to/revision.zip");
+    myListener.uploadRevisionFinished(myRevision, "bucket", "path/to/revision.zip", "version", "\"etag\"", "https://bucket.s3.amazonaws.com/path/to/revision.zip");
+    return myLoggedLength;
+  }
+
+  @Benchmark
+  public long registerRevision() {
+    myListener.registerRevisionStarted("application", "bucket", "path/to/revision.zip", "zip", "version", "\"etag\"");
+    myListener.registerRevisionFinished("application", "bucket", "path/to/revision.zip", "zip", "version", "\"etag\"");
+    return myLoggedLength;
+  }
+
+  /**
+   * The status is the same as the one of the previous poll, the progress isn't reported again
+   */
+  @Benchmark
+  public long deploymentInProgress() {
+    myListener.deploymentInProgress(DEPLOYMENT_ID, myStatus);
+    return myLoggedLength;
+  }
+
+  @Benchmark
+  public long deploymentInProgressChanged() {
+    myStatus.succeeded = 10 - myStatus.succeeded;
+    myListener.deploymentInProgress(DEPLOYMENT_ID, myStatus);
+    return myLoggedLength;
+  }
+
+  @Benchmark
+  public long deploymentFailed() {
+    myListener.deploymentFailed(DEPLOYMENT_ID, 600, myErrorInfo, myStatus);
+    return myLoggedLength;
+  }
+
+  @Benchmark
+  public long groupDeploymentFinished() {
+    myListener.groupDeploymentFinished("application", "group", DEPLOYMENT_ID, false, null, myErrorInfo, myStatus);
+    return myLoggedLength;
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.PathMappings;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks and maps generated application revision trees, each operation processes the whole tree.
+ *
+ * @author vbedrosova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PathMappingsBenchmark {
+  @Param({"1000", "100000", "1000000"})
+  public int files;
+
+  private File myBaseDir;
+  private PathMappings myPathMappings;
+  private List<File> myFiles;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    myBaseDir = RevisionTrees.generate(Files.createTempDirectory("path-mappings").toFile(), files, 0);
+    myPathMappings = new PathMappings(myBaseDir, CodeDeployUtil.getRevisionPathMappings(RevisionTrees.REVISION_PATHS));
+    myFiles = myPathMappings.collectFiles();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    FileUtil.delete(myBaseDir);
+  }
+
+  @Benchmark
+  public List<File> collectFiles() {
+    return myPathMappings.collectFiles();
+  }
+
+  @Benchmark
+  public void walk(Blackhole blackhole) {
+    walk(myPathMappings.cursor(), blackhole);
+  }
+
+  @Benchmark
+  public void concurrentWalk(Blackhole blackhole) {
+    walk(myPathMappings.cursor(Runtime.getRuntime().availableProcessors()), blackhole);
+  }
+
+  @Benchmark
+  public void mapPath(Blackhole blackhole) {
+    for (File f : myFiles) {
+      blackhole.consume(myPathMappings.mapPath(f));
+    }
+  }
+
+  private static void walk(PathMappings.Cursor cursor, Blackhole blackhole) {
+    try {
+      while (cursor.next()) {
+        blackhole.consume(cursor.getPath());
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+}
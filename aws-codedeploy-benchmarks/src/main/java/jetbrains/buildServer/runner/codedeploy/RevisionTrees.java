@@ -0,0 +1,101 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generates application revision source trees for the benchmarks.
+ *
+ * The tree resembles a build output: modules with nested packages of classes, web resources,
+ * scripts, and generated files which the revision paths below exclude.
+ *
+ * @author vbedrosova
+ */
+final class RevisionTrees {
+  static final String REVISION_PATHS =
+    "appspec.yml\n" +
+    "scripts/** => scripts\n" +
+    "modules/**/*.class => lib\n" +
+    "modules/**/web/** => static\n" +
+    "-:**/generated/**";
+
+  private static final int FILES_PER_DIR = 100;
+  private static final int DIRS_PER_MODULE = 100;
+
+  private RevisionTrees() {
+  }
+
+  /**
+   * @param files approximate number of files in the tree
+   * @param size  size of each file, 0 for empty files
+   */
+  @NotNull
+  static File generate(@NotNull File baseDir, int files, int size) throws IOException {
+    final Random random = new Random(42);
+    final byte[] content = new byte[size];
+    writeFile(new File(baseDir, "appspec.yml"), "version: 0.0\nos: linux\n".getBytes("UTF-8"));
+    for (int i = 0; i < 10; ++i) {
+      writeFile(new File(baseDir, "scripts/step" + i + ".sh"), "#!/bin/sh\n".getBytes("UTF-8"));
+    }
+
+    for (int i = 0; i < files; ++i) {
+      final int dir = i / FILES_PER_DIR;
+      final String module = "modules/module" + dir / DIRS_PER_MODULE;
+      final String path;
+      switch (dir % 10) {
+        case 0:
+          path = module + "/web/css/style" + i + ".css";
+          break;
+        case 1:
+          path = module + "/generated/Generated" + i + ".class";
+          break;
+        default:
+          path = module + "/classes/jetbrains/package" + dir + "/Class" + i + ".class";
+      }
+      fillContent(content, random);
+      writeFile(new File(baseDir, path), content);
+    }
+    return baseDir;
+  }
+
+  /**
+   * Half random, half repeated bytes, so the content is compressible but not trivially
+   */
+  private static void fillContent(@NotNull byte[] content, @NotNull Random random) {
+    for (int i = 0; i < content.length; ++i) {
+      content[i] = i % 2 == 0 ? (byte) ('a' + random.nextInt(26)) : (byte) ' ';
+    }
+  }
+
+  private static void writeFile(@NotNull File file, @NotNull byte[] content) throws IOException {
+    FileUtil.createParentDirs(file);
+    final OutputStream output = new FileOutputStream(file);
+    try {
+      output.write(content);
+    } finally {
+      FileUtil.close(output);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Periodically samples CPU time and allocated bytes of all the JVM threads, so the usage of the threads which finish
+ * between the samples is still counted, up to the last sample. The usage is summed up for the threads selected by name.
+ * <p>
+ * Relies on the HotSpot com.sun.management.ThreadMXBean.
+ *
+ * @author vbedrosova
+ */
+final class ThreadUsageSampler {
+  private static final long SAMPLE_INTERVAL_MS = 50;
+
+  @NotNull
+  private final com.sun.management.ThreadMXBean myThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+  @NotNull
+  private final Map<Long, Usage> myUsage = new HashMap<>();
+  @NotNull
+  private final Thread mySampler;
+  private volatile boolean myStopped;
+  private boolean myStarted;
+
+  ThreadUsageSampler() {
+    myThreads.setThreadCpuTimeEnabled(true);
+    myThreads.setThreadAllocatedMemoryEnabled(true);
+    mySampler = new Thread(() -> {
+      while (!myStopped) {
+        sample();
+        try {
+          Thread.sleep(SAMPLE_INTERVAL_MS);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }, "Thread usage sampler");
+    mySampler.setDaemon(true);
+  }
+
+  void start() {
+    sample();
+    myStarted = true;
+    mySampler.start();
+  }
+
+  void stop() throws InterruptedException {
+    myStopped = true;
+    mySampler.join();
+    sample();
+  }
+
+  long getCpuTimeNanos(@NotNull Predicate<String> threadName) {
+    long total = 0;
+    synchronized (myUsage) {
+      for (Usage usage : myUsage.values()) {
+        if (threadName.test(usage.myName)) total += usage.getCpuTime();
+      }
+    }
+    return total;
+  }
+
+  long getAllocatedBytes(@NotNull Predicate<String> threadName) {
+    long total = 0;
+    synchronized (myUsage) {
+      for (Usage usage : myUsage.values()) {
+        if (threadName.test(usage.myName)) total += usage.getAllocated();
+      }
+    }
+    return total;
+  }
+
+  private void sample() {
+    final long[] ids = myThreads.getAllThreadIds();
+    final long[] cpu = myThreads.getThreadCpuTime(ids);
+    final long[] allocated = myThreads.getThreadAllocatedBytes(ids);
+    final ThreadInfo[] infos = myThreads.getThreadInfo(ids);
+    synchronized (myUsage) {
+      for (int i = 0; i < ids.length; ++i) {
+        if (infos[i] == null || cpu[i] < 0 || allocated[i] < 0) continue;
+        Usage usage = myUsage.get(ids[i]);
+        if (usage == null) {
+          // the threads started after the sampler are counted from their start
+          usage = myStarted ? new Usage(infos[i].getThreadName(), 0, 0) : new Usage(infos[i].getThreadName(), cpu[i], allocated[i]);
+          myUsage.put(ids[i], usage);
+        }
+        usage.myLastCpuTime = cpu[i];
+        usage.myLastAllocated = allocated[i];
+      }
+    }
+  }
+
+  /**
+   * Usage since the sampler was started
+   */
+  private static final class Usage {
+    @NotNull
+    private final String myName;
+    private final long myFirstCpuTime;
+    private final long myFirstAllocated;
+    private long myLastCpuTime;
+    private long myLastAllocated;
+
+    Usage(@NotNull String name, long cpuTime, long allocated) {
+      myName = name;
+      myFirstCpuTime = cpuTime;
+      myFirstAllocated = allocated;
+    }
+
+    long getCpuTime() {
+      return myLastCpuTime - myFirstCpuTime;
+    }
+
+    long getAllocated() {
+      return myLastAllocated - myFirstAllocated;
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import jetbrains.buildServer.util.amazon.AWSException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class LocalAWSServerTest extends BaseTestCase {
+  private LocalAWSServer myServer;
+  private List<String> myEvents;
+  private Map<String, AtomicInteger> myApiCalls;
+  private AtomicInteger myRetries;
+  private AtomicLong myUploadedBytes;
+
+  @BeforeMethod(alwaysRun = true)
+  public void mySetUp() throws Exception {
+    myServer = new LocalAWSServer().withDeploymentTiming(100, 100);
+    myEvents = new ArrayList<String>();
+    myApiCalls = new ConcurrentHashMap<>();
+    myRetries = new AtomicInteger();
+    myUploadedBytes = new AtomicLong();
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void myTearDown() throws Exception {
+    myServer.stop();
+  }
+
+  @Test
+  public void upload_register_deploy() throws Exception {
+    myServer.withInstances(3, 0).start(0);
+    final File revision = createRevision(1024 * 1024);
+
+    run(client -> {
+      client.uploadRevision(revision, "bucket", "revision.zip");
+      client.registerRevision("bucket", "revision.zip", "zip", null, null, "app");
+      client.deployRevisionAndWait("bucket", "revision.zip", "zip", null, null, "app", "group",
+        Collections.emptyMap(), Collections.emptyList(), null, 60, 1, 1, false, false);
+    });
+
+    then(myServer.getObject("bucket", "revision.zip").getSize()).isEqualTo(revision.length());
+    then(myEvents).containsExactly(
+      "uploaded revision.zip " + myServer.getObject("bucket", "revision.zip").getETag().replace("\"", ""),
+      "registered",
+      "succeeded 3 of 3");
+    then(myServer.getCalls()).containsEntry("s3:PutObject", 1).containsEntry("codedeploy:RegisterApplicationRevision", 1).containsEntry("codedeploy:CreateDeployment", 1);
+    then(myApiCalls.get("PutObject").get()).isEqualTo(1);
+    then(myApiCalls.get("RegisterApplicationRevision").get()).isEqualTo(1);
+    then(myApiCalls.get("CreateDeployment").get()).isEqualTo(1);
+    then(myApiCalls.get("BatchGetDeployments").get()).isEqualTo(myServer.getCalls().get("codedeploy:BatchGetDeployments"));
+    then(myUploadedBytes.get()).isEqualTo(revision.length());
+  }
+
+  @Test
+  public void multipart_upload() throws Exception {
+    myServer.start(0);
+    final File revision = createRevision(11 * 1024 * 1024 + 42);
+    final File uploadState = new File(createTempDir(), "upload.state");
+
+    run(client -> client.withSkipIdenticalUpload(false).uploadRevision(revision, "bucket", "revision.zip", uploadState, 5 * 1024 * 1024, 2));
+
+    then(myEvents).hasSize(1);
+    final LocalAWSServer.S3Object object = myServer.getObject("bucket", "revision.zip");
+    then(object.getSize()).isEqualTo(revision.length());
+    then(object.getETag()).isEqualTo("\"" + S3ETag.calculate(revision, 5 * 1024 * 1024, 5 * 1024 * 1024) + "\"");
+    then(myServer.getCalls()).containsEntry("s3:CreateMultipartUpload", 1).containsEntry("s3:UploadPart", 3).containsEntry("s3:CompleteMultipartUpload", 1);
+    then(myApiCalls.get("UploadPart").get()).isEqualTo(3);
+    then(myUploadedBytes.get()).isEqualTo(revision.length());
+  }
+
+  @Test
+  public void failed_instance() throws Exception {
+    myServer.withInstances(3, 1).start(0);
+
+    run(client -> client.deployRevisionAndWait("bucket", "revision.zip", "zip", null, null, "app", "group",
+      Collections.emptyMap(), Collections.emptyList(), null, 60, 1, 1, false, false));
+
+    then(myEvents).containsExactly("failed 2 of 3: HEALTH_CONSTRAINTS");
+  }
+
+  @Test
+  public void throttling_is_retried() throws Exception {
+    myServer.withCodeDeployRateLimit(1).start(0);
+
+    run(client -> {
+      client.registerRevision("bucket", "revision.zip", "zip", null, null, "app");
+      client.registerRevision("bucket", "revision.zip", "zip", null, null, "app");
+    });
+
+    then(myEvents).containsExactly("registered", "registered");
+    then(myServer.getCalls().get(LocalAWSServer.THROTTLED)).isGreaterThan(0);
+    then(myApiCalls.get("RegisterApplicationRevision").get()).isEqualTo(2);
+    then(myRetries.get()).isEqualTo(myServer.getCalls().get(LocalAWSServer.THROTTLED));
+  }
+
+  private void run(@NotNull ClientAction action) {
+    AWSCommonParams.withAWSClients(myServer.getRunnerParameters(), clients -> {
+      action.run(new AWSClient(clients.getS3Client(), clients.getCodeDeployClient()).withListener(new AWSClient.Listener() {
+        @Override
+        void uploadRevisionFinished(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
+          myEvents.add("uploaded " + s3ObjectKey + " " + s3ObjectETag);
+        }
+
+        @Override
+        void registerRevisionFinished(@NotNull String applicationName, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String bundleType, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag) {
+          myEvents.add("registered");
+        }
+
+        @Override
+        void deploymentSucceeded(@NotNull String deploymentId, @Nullable InstancesStatus instancesStatus) {
+          myEvents.add("succeeded " + instancesStatus.succeeded + " of " + (instancesStatus.succeeded + instancesStatus.failed + instancesStatus.skipped));
+        }
+
+        @Override
+        void deploymentFailed(@NotNull String deploymentId, @Nullable Integer timeoutSec, @Nullable ErrorInfo errorInfo, @Nullable InstancesStatus instancesStatus) {
+          myEvents.add("failed " + instancesStatus.succeeded + " of " + (instancesStatus.succeeded + instancesStatus.failed + instancesStatus.skipped) + ": " + errorInfo.code);
+        }
+
+        @Override
+        void exception(@NotNull AWSException exception) {
+          myEvents.add("exception " + exception.getMessage());
+        }
+
+        @Override
+        void apiCallFinished(@NotNull String operation, int retries, boolean succeeded) {
+          myApiCalls.computeIfAbsent(operation, o -> new AtomicInteger()).incrementAndGet();
+          myRetries.addAndGet(retries);
+        }
+
+        @Override
+        void bytesUploaded(long bytes) {
+          myUploadedBytes.addAndGet(bytes);
+        }
+      }));
+      return null;
+    });
+  }
+
+  @NotNull
+  private File createRevision(int size) throws Exception {
+    final File revision = createTempFile();
+    final byte[] content = new byte[size];
+    new Random(42).nextBytes(content);
+    final OutputStream output = new FileOutputStream(revision);
+    try {
+      output.write(content);
+    } finally {
+      output.close();
+    }
+    return revision;
+  }
+
+  private interface ClientAction {
+    void run(@NotNull AWSClient client);
+  }
+}
@@ -16,11 +16,24 @@
 
 package jetbrains.buildServer.runner.codedeploy;
 
-import com.amazonaws.services.codedeploy.AmazonCodeDeployClient;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.event.ProgressListenerChain;
+import com.amazonaws.event.SyncProgressListener;
+import com.amazonaws.services.codedeploy.AmazonCodeDeploy;
 import com.amazonaws.services.codedeploy.model.*;
-import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.transfer.Copy;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.model.CopyResult;
 import com.amazonaws.services.s3.transfer.model.UploadResult;
 import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.Converter;
@@ -32,22 +45,28 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Map;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author vbedrosova
  */
 public class AWSClient {
 
-  @NotNull private final AmazonS3Client myS3Client;
-  @NotNull private final AmazonCodeDeployClient myCodeDeployClient;
+  @NotNull private final AmazonS3 myS3Client;
+  @NotNull private final AmazonCodeDeploy myCodeDeployClient;
   @Nullable private String myDescription;
   @NotNull private Listener myListener = new Listener();
+  private boolean mySkipIdenticalUpload = true;
+  private long myUploadProgressIntervalMs = UploadProgressListener.DEFAULT_INTERVAL_MS;
+  @NotNull private final CountDownLatch myInterrupted = new CountDownLatch(1);
+  @NotNull private final List<DeploymentStatusPoller.Subscription> mySubscriptions = new CopyOnWriteArrayList<DeploymentStatusPoller.Subscription>();
 
-  public AWSClient(@NotNull AmazonS3Client s3Client,
-                   @NotNull AmazonCodeDeployClient codeDeployClient) {
+  public AWSClient(@NotNull AmazonS3 s3Client,
+                   @NotNull AmazonCodeDeploy codeDeployClient) {
     myS3Client = s3Client;
     myCodeDeployClient = codeDeployClient;
   }
@@ -64,6 +83,25 @@ public class AWSClient {
     return this;
   }
 
+  /**
+   * @param skipIdenticalUpload whether to check that the S3 object with the same content is already there before uploading
+   *                            the application revision archive
+   */
+  @NotNull
+  public AWSClient withSkipIdenticalUpload(boolean skipIdenticalUpload) {
+    mySkipIdenticalUpload = skipIdenticalUpload;
+    return this;
+  }
+
+  /**
+   * @param uploadProgressIntervalMs min interval between the application revision upload progress reports
+   */
+  @NotNull
+  public AWSClient withUploadProgressInterval(long uploadProgressIntervalMs) {
+    myUploadProgressIntervalMs = uploadProgressIntervalMs;
+    return this;
+  }
+
   /**
    * Uploads application revision archive to S3 bucket named s3BucketName with the provided key and bundle type.
    * <p>
@@ -82,6 +120,94 @@ public class AWSClient {
     }
   }
 
+  /**
+   * Uploads application revision archive to S3 bucket named s3BucketName with the provided key using a multipart upload
+   * which is continued by the following calls with the same upload state file in case this one fails.
+   * <p>
+   * For performing this operation target AWSClient must have corresponding S3 permissions.
+   *
+   * @param revision          valid application revision containing appspec.yml
+   * @param s3BucketName      valid S3 bucket name
+   * @param s3ObjectKey       valid S3 object key
+   * @param uploadState       file to keep the multipart upload state in between the attempts
+   * @param partSize          multipart upload part size in bytes
+   * @param maxParallelParts  max number of parts being uploaded simultaneously
+   */
+  public void uploadRevision(@NotNull File revision,
+                             @NotNull String s3BucketName, @NotNull String s3ObjectKey,
+                             @NotNull File uploadState, int partSize, int maxParallelParts) {
+    try {
+      if (revision.length() <= partSize) {
+        doUploadRevision(revision, s3BucketName, s3ObjectKey);
+      } else {
+        doUploadRevision(revision, s3BucketName, s3ObjectKey, uploadState, partSize, maxParallelParts);
+      }
+    } catch (Throwable t) {
+      processFailure(t);
+    }
+  }
+
+  /**
+   * Uploads application revision archive written by the provided writer to S3 bucket named s3BucketName with the provided key.
+   * <p>
+   * The archive is cut into multipart upload parts of partSize bytes which are uploaded while the rest of the archive
+   * is being written, at most maxInFlightParts parts are uploaded simultaneously. No local archive file is created.
+   * <p>
+   * For performing this operation target AWSClient must have corresponding S3 permissions.
+   *
+   * @param revisionName     application revision archive name
+   * @param writer           writes valid application revision containing appspec.yml
+   * @param s3BucketName     valid S3 bucket name
+   * @param s3ObjectKey      valid S3 object key
+   * @param partSize         multipart upload part size in bytes
+   * @param maxInFlightParts max number of parts being uploaded simultaneously
+   */
+  public void uploadRevision(@NotNull String revisionName, @NotNull RevisionWriter writer,
+                             @NotNull String s3BucketName, @NotNull String s3ObjectKey,
+                             int partSize, int maxInFlightParts) {
+    try {
+      doUploadRevision(revisionName, writer, s3BucketName, s3ObjectKey, partSize, maxInFlightParts);
+    } catch (Throwable t) {
+      processFailure(t);
+    }
+  }
+
+  /**
+   * Checks that the application revision previously uploaded to S3 bucket named s3BucketName with the provided key
+   * is still there and reports it as uploaded instead of uploading it once again.
+   * <p>
+   * For performing this operation target AWSClient must have corresponding S3 permissions.
+   *
+   * @param revisionName    application revision archive name
+   * @param s3BucketName    valid S3 bucket name
+   * @param s3ObjectKey     valid S3 object key
+   * @param s3ObjectVersion S3 object version of the previous upload or null if the bucket is not versioned
+   * @param s3ObjectETag    S3 object ETag of the previous upload
+   * @param reason          why the application revision is considered to be already uploaded
+   * @return true if the S3 object is there and has the same ETag, false if the application revision must be uploaded
+   */
+  public boolean reuseRevision(@NotNull String revisionName,
+                               @NotNull String s3BucketName, @NotNull String s3ObjectKey,
+                               @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag,
+                               @NotNull String reason) {
+    if (StringUtil.isEmpty(s3ObjectETag)) return false;
+
+    final ObjectMetadata metadata;
+    try {
+      metadata = myS3Client.getObjectMetadata(metered(new GetObjectMetadataRequest(s3BucketName, s3ObjectKey, StringUtil.nullIfEmpty(s3ObjectVersion)), myListener));
+    } catch (Throwable t) {
+      // the object is missing or not accessible, will upload it
+      return false;
+    }
+    if (!unquote(s3ObjectETag).equals(unquote(metadata.getETag()))) return false;
+
+    final File revision = new File(revisionName);
+    myListener.uploadRevisionSkipped(revision, s3BucketName, s3ObjectKey, reason);
+    myListener.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey,
+      metadata.getVersionId() == null ? s3ObjectVersion : metadata.getVersionId(), metadata.getETag(), myS3Client.getUrl(s3BucketName, s3ObjectKey).toString());
+    return true;
+  }
+
   /**
    * Registers application revision from the specified location for the specified CodeDeploy application.
    * <p>
@@ -119,15 +245,16 @@ public class AWSClient {
    * @param deploymentGroupName  deployment group name
    * @param deploymentConfigName deployment configuration name or null for default deployment configuration
    * @param waitTimeoutSec       seconds to wait for the created deployment finish or fail
-   * @param waitIntervalSec      seconds between polling CodeDeploy for the created deployment status
+   * @param waitInitialIntervalSec seconds between polling CodeDeploy for the created deployment status while it changes
+   * @param waitIntervalSec      max seconds between polling CodeDeploy for the created deployment status
    */
   public void deployRevisionAndWait(@NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String bundleType, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag,
                                     @NotNull String applicationName, @NotNull String deploymentGroupName,
                                     @NotNull Map<String, String> ec2Tags, @NotNull Collection<String> autoScalingGroups,
                                     @Nullable String deploymentConfigName,
-                                    int waitTimeoutSec, int waitIntervalSec,
+                                    int waitTimeoutSec, int waitInitialIntervalSec, int waitIntervalSec,
                                     boolean rollbackOnFailure, boolean rollbackOnAlarmThreshold) {
-    doDeployAndWait(s3BucketName, s3ObjectKey, bundleType, s3ObjectVersion, s3ObjectETag, applicationName, deploymentGroupName, ec2Tags, autoScalingGroups, deploymentConfigName, true, waitTimeoutSec, waitIntervalSec, rollbackOnFailure, rollbackOnAlarmThreshold);
+    doDeployAndWait(s3BucketName, s3ObjectKey, bundleType, s3ObjectVersion, s3ObjectETag, applicationName, deploymentGroupName, ec2Tags, autoScalingGroups, deploymentConfigName, true, waitTimeoutSec, waitInitialIntervalSec, waitIntervalSec, rollbackOnFailure, rollbackOnAlarmThreshold);
   }
 
   /**
@@ -136,7 +263,17 @@ public class AWSClient {
   public void deployRevision(@NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String bundleType, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag,
                              @NotNull String applicationName, @NotNull String deploymentGroupName, @NotNull Map<String, String> ec2Tags, @NotNull Collection<String> autoScalingGroups,
                              @Nullable String deploymentConfigName) {
-    doDeployAndWait(s3BucketName, s3ObjectKey, bundleType, s3ObjectVersion, s3ObjectETag, applicationName, deploymentGroupName, ec2Tags, autoScalingGroups, deploymentConfigName, false, null, null, false, false);
+    deployRevision(s3BucketName, s3ObjectKey, bundleType, s3ObjectVersion, s3ObjectETag, applicationName, deploymentGroupName, ec2Tags, autoScalingGroups, deploymentConfigName, false, false);
+  }
+
+  /**
+   * The same as {@link #deployRevisionAndWait} but without waiting
+   */
+  public void deployRevision(@NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String bundleType, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag,
+                             @NotNull String applicationName, @NotNull String deploymentGroupName, @NotNull Map<String, String> ec2Tags, @NotNull Collection<String> autoScalingGroups,
+                             @Nullable String deploymentConfigName,
+                             boolean rollbackOnFailure, boolean rollbackOnAlarmThreshold) {
+    doDeployAndWait(s3BucketName, s3ObjectKey, bundleType, s3ObjectVersion, s3ObjectETag, applicationName, deploymentGroupName, ec2Tags, autoScalingGroups, deploymentConfigName, false, null, null, null, rollbackOnFailure, rollbackOnAlarmThreshold);
   }
 
   @SuppressWarnings("ConstantConditions")
@@ -144,44 +281,61 @@ public class AWSClient {
                                @NotNull String applicationName, @NotNull String deploymentGroupName,
                                @NotNull Map<String, String> ec2Tags, @NotNull Collection<String> autoScalingGroups,
                                @Nullable String deploymentConfigName,
-                               boolean wait, @Nullable Integer waitTimeoutSec, @Nullable Integer waitIntervalSec,
+                               boolean wait, @Nullable Integer waitTimeoutSec, @Nullable Integer waitInitialIntervalSec, @Nullable Integer waitIntervalSec,
                                boolean rollbackOnFailure, boolean rollbackOnAlarmThreshold) {
     try {
         final String deploymentId = createDeployment(getRevisionLocation(s3BucketName, s3ObjectKey, bundleType, s3ObjectVersion, s3ObjectETag), applicationName, deploymentGroupName, ec2Tags, autoScalingGroups, deploymentConfigName, rollbackOnFailure, rollbackOnAlarmThreshold);
 
         if (wait) {
-          waitForDeployment(deploymentId, waitTimeoutSec, waitIntervalSec);
+          waitForDeployment(deploymentId, waitTimeoutSec, waitInitialIntervalSec, waitIntervalSec);
         }
     } catch (Throwable t) {
       processFailure(t);
     }
   }
 
-  private void waitForDeployment(@NotNull String deploymentId, int waitTimeoutSec, int waitIntervalSec) {
+  private void waitForDeployment(@NotNull String deploymentId, int waitTimeoutSec, int waitInitialIntervalSec, int waitIntervalSec) {
     myListener.deploymentWaitStarted(deploymentId);
 
-    final GetDeploymentRequest dRequest = new GetDeploymentRequest().withDeploymentId(deploymentId);
+    DeploymentInfo dInfo = getDeploymentInfo(deploymentId);
 
-    DeploymentInfo dInfo = myCodeDeployClient.getDeployment(dRequest).getDeploymentInfo();
+    final long startTime = (dInfo == null || dInfo.getStartTime() == null) ? System.currentTimeMillis() : dInfo.getStartTime().getTime();
+    final long timeoutMs = waitTimeoutSec * 1000L;
 
-    long startTime = (dInfo == null || dInfo.getStartTime() == null) ? System.currentTimeMillis() : dInfo.getStartTime().getTime();
-
-    while (dInfo == null || dInfo.getCompleteTime() == null) {
-      myListener.deploymentInProgress(deploymentId, getInstancesStatus(dInfo));
-
-      if (System.currentTimeMillis() - startTime > waitTimeoutSec * 1000) {
-        myListener.deploymentFailed(deploymentId, waitTimeoutSec, getErrorInfo(dInfo), getInstancesStatus(dInfo));
-        return;
+    final DeploymentStatusPoller.Subscription subscription = dInfo != null && dInfo.getCompleteTime() != null ? null :
+      DeploymentStatusPoller.getInstance().subscribe(myCodeDeployClient, deploymentId, waitInitialIntervalSec * 1000L, waitIntervalSec * 1000L, new ApiCallListener(myListener, "BatchGetDeployments", false));
+    if (subscription != null) mySubscriptions.add(subscription);
+    try {
+      while (dInfo == null || dInfo.getCompleteTime() == null) {
+        myListener.deploymentInProgress(deploymentId, getInstancesStatus(dInfo));
+
+        DeploymentStatusPoller.Update update = null;
+        while (update == null) {
+          final long remaining = startTime + timeoutMs - System.currentTimeMillis();
+          if (remaining <= 0) {
+            myListener.deploymentFailed(deploymentId, waitTimeoutSec, getErrorInfo(dInfo), getInstancesStatus(dInfo));
+            return;
+          }
+          if (myInterrupted.getCount() == 0) {
+            myListener.deploymentWaitInterrupted(deploymentId);
+            return;
+          }
+          try {
+            //noinspection ConstantConditions
+            update = subscription.next(remaining);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            myListener.deploymentWaitInterrupted(deploymentId);
+            return;
+          }
+        }
+        dInfo = update.getDeploymentInfo();
       }
-
-      try {
-        Thread.sleep(waitIntervalSec * 1000);
-      } catch (InterruptedException e) {
-        processFailure(e);
-        return;
+    } finally {
+      if (subscription != null) {
+        mySubscriptions.remove(subscription);
+        subscription.cancel();
       }
-
-      dInfo = myCodeDeployClient.getDeployment(dRequest).getDeploymentInfo();
     }
 
     if (isSuccess(dInfo)) {
@@ -191,25 +345,330 @@ public class AWSClient {
     }
   }
 
+  @Nullable
+  private DeploymentInfo getDeploymentInfo(@NotNull String deploymentId) {
+    return myCodeDeployClient.getDeployment(metered(new GetDeploymentRequest().withDeploymentId(deploymentId), myListener)).getDeploymentInfo();
+  }
+
+  /**
+   * Interrupts waiting for the deployment finish, the deployment itself continues
+   */
+  public void interrupt() {
+    myInterrupted.countDown();
+    for (DeploymentStatusPoller.Subscription subscription : mySubscriptions) {
+      subscription.cancel();
+    }
+  }
+
+  /**
+   * Copies the application revision from the bucket of possibly another region, the bytes are transferred on the S3 side.
+   * Large objects are copied in parallel parts.
+   * For performing this operation target AWSClient must have corresponding S3 permissions in the target region and
+   * read permissions for the source object.
+   *
+   * @param sourceS3Client        S3 client for the source bucket region
+   * @param sourceS3BucketName    source bucket name
+   * @param sourceS3ObjectKey     source object key
+   * @param sourceS3ObjectVersion source object version (for versioned buckets) or null to use the latest version
+   * @param s3BucketName          target bucket name
+   * @param s3ObjectKey           target object key
+   */
+  public void copyRevision(@NotNull final AmazonS3 sourceS3Client,
+                           @NotNull final String sourceS3BucketName, @NotNull final String sourceS3ObjectKey, @Nullable final String sourceS3ObjectVersion,
+                           @NotNull final String s3BucketName, @NotNull final String s3ObjectKey) {
+    try {
+      myListener.copyRevisionStarted(sourceS3BucketName, sourceS3ObjectKey, s3BucketName, s3ObjectKey);
+
+      final CopyObjectRequest request = metered(new CopyObjectRequest(sourceS3BucketName, sourceS3ObjectKey, StringUtil.nullIfEmpty(sourceS3ObjectVersion), s3BucketName, s3ObjectKey), myListener);
+      final CopyResult copyResult = S3Util.withTransferManager(myS3Client, new S3Util.WithTransferManager<Copy>() {
+        @NotNull
+        @Override
+        public Collection<Copy> run(@NotNull TransferManager manager) throws Throwable {
+          return Collections.singletonList(manager.copy(request, sourceS3Client, null));
+        }
+      }).iterator().next().waitForCopyResult();
+
+      myListener.copyRevisionFinished(s3BucketName, s3ObjectKey, copyResult.getVersionId(), unquote(copyResult.getETag()), myS3Client.getUrl(s3BucketName, s3ObjectKey).toString());
+    } catch (Throwable t) {
+      processFailure(t);
+    }
+  }
+
+  /**
+   * Creates deployments of the application revision to several deployment groups, possibly of different applications,
+   * and optionally waits for all of them to finish or fail.
+   * For performing this operation target AWSClient must have corresponding CodeDeploy permissions.
+   *
+   * @param deploymentGroups       application name to its deployment group names
+   * @param maxParallelDeployments max number of deployments being created concurrently
+   * @see #deployRevisionAndWait for the rest of the parameters
+   */
+  public void deployRevisionToGroups(@NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String bundleType, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag,
+                                     @NotNull Map<String, List<String>> deploymentGroups,
+                                     @NotNull Map<String, String> ec2Tags, @NotNull Collection<String> autoScalingGroups,
+                                     @Nullable String deploymentConfigName, int maxParallelDeployments,
+                                     boolean wait, int waitTimeoutSec, int waitInitialIntervalSec, int waitIntervalSec,
+                                     boolean rollbackOnFailure, boolean rollbackOnAlarmThreshold) {
+    try {
+      final List<GroupDeployment> created = createDeployments(
+        getRevisionLocation(s3BucketName, s3ObjectKey, bundleType, s3ObjectVersion, s3ObjectETag), deploymentGroups,
+        ec2Tags, autoScalingGroups, deploymentConfigName, maxParallelDeployments, rollbackOnFailure, rollbackOnAlarmThreshold);
+
+      if (wait && !created.isEmpty()) {
+        waitForDeployments(created, waitTimeoutSec, waitInitialIntervalSec, waitIntervalSec);
+      }
+    } catch (Throwable t) {
+      processFailure(t);
+    }
+  }
+
+  @NotNull
+  private List<GroupDeployment> createDeployments(@NotNull final RevisionLocation revisionLocation,
+                                                  @NotNull Map<String, List<String>> deploymentGroups,
+                                                  @NotNull final Map<String, String> ec2Tags,
+                                                  @NotNull final Collection<String> autoScalingGroups,
+                                                  @Nullable final String deploymentConfigName,
+                                                  int maxParallelDeployments,
+                                                  final boolean rollbackOnFailure,
+                                                  final boolean rollbackOnAlarmThreshold) throws InterruptedException {
+    final List<GroupDeployment> deployments = new ArrayList<GroupDeployment>();
+    for (Map.Entry<String, List<String>> e : deploymentGroups.entrySet()) {
+      for (String group : e.getValue()) {
+        deployments.add(new GroupDeployment(e.getKey(), group));
+      }
+    }
+
+    myListener.createDeploymentsStarted(deployments.size(), deploymentConfigName);
+
+    final ExecutorService executor = createDeploymentExecutor(Math.max(1, Math.min(maxParallelDeployments, deployments.size())));
+    try {
+      final List<Future<String>> futures = new ArrayList<Future<String>>();
+      for (final GroupDeployment d : deployments) {
+        futures.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            return doCreateDeployment(revisionLocation, d.myApplicationName, d.myDeploymentGroupName, ec2Tags, autoScalingGroups, deploymentConfigName, rollbackOnFailure, rollbackOnAlarmThreshold);
+          }
+        }));
+      }
+
+      final List<GroupDeployment> created = new ArrayList<GroupDeployment>();
+      for (int i = 0; i < deployments.size(); ++i) {
+        final GroupDeployment d = deployments.get(i);
+        try {
+          d.myDeploymentId = futures.get(i).get();
+          myListener.createDeploymentFinished(d.myApplicationName, d.myDeploymentGroupName, deploymentConfigName, d.myDeploymentId);
+          created.add(d);
+        } catch (ExecutionException e) {
+          myListener.createDeploymentFailed(d.myApplicationName, d.myDeploymentGroupName, new AWSException(e.getCause()));
+        }
+      }
+      return created;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void waitForDeployments(@NotNull List<GroupDeployment> deployments, int waitTimeoutSec, int waitInitialIntervalSec, int waitIntervalSec) {
+    myListener.deploymentsWaitStarted(deployments.size());
+
+    final long startTime = System.currentTimeMillis();
+    final long timeoutMs = waitTimeoutSec * 1000L;
+
+    final List<GroupDeployment> pending = new ArrayList<GroupDeployment>(deployments);
+    for (GroupDeployment d : pending) {
+      d.mySubscription = DeploymentStatusPoller.getInstance().subscribe(myCodeDeployClient, d.myDeploymentId, waitInitialIntervalSec * 1000L, waitIntervalSec * 1000L, new ApiCallListener(myListener, "BatchGetDeployments", false));
+      mySubscriptions.add(d.mySubscription);
+    }
+
+    int succeeded = 0;
+    try {
+      while (!pending.isEmpty()) {
+        final long remaining = startTime + timeoutMs - System.currentTimeMillis();
+        if (remaining <= 0) {
+          for (GroupDeployment d : pending) {
+            myListener.groupDeploymentFinished(d.myApplicationName, d.myDeploymentGroupName, d.myDeploymentId, false, waitTimeoutSec, getErrorInfo(d.myInfo), getInstancesStatus(d.myInfo));
+          }
+          break;
+        }
+        if (myInterrupted.getCount() == 0) {
+          myListener.deploymentWaitInterrupted(getDeploymentIds(pending));
+          return;
+        }
+
+        // all the deployments are polled together, so once the first one is updated, the rest are updated as well
+        DeploymentStatusPoller.Update first;
+        try {
+          //noinspection ConstantConditions
+          first = pending.get(0).mySubscription.next(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          myListener.deploymentWaitInterrupted(getDeploymentIds(pending));
+          return;
+        }
+        if (first == null) continue;
+
+        for (Iterator<GroupDeployment> it = pending.iterator(); it.hasNext(); ) {
+          final GroupDeployment d = it.next();
+          final DeploymentStatusPoller.Update update;
+          try {
+            //noinspection ConstantConditions
+            update = d == pending.get(0) ? first : d.mySubscription.next(0);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+          if (update == null) continue;
+
+          try {
+            d.myInfo = update.getDeploymentInfo();
+          } catch (RuntimeException e) {
+            final Listener.ErrorInfo errorInfo = new Listener.ErrorInfo();
+            errorInfo.message = new AWSException(e).getMessage();
+            myListener.groupDeploymentFinished(d.myApplicationName, d.myDeploymentGroupName, d.myDeploymentId, false, null, errorInfo, getInstancesStatus(d.myInfo));
+            it.remove();
+            continue;
+          }
+
+          if (d.myInfo != null && d.myInfo.getCompleteTime() != null) {
+            final boolean success = isSuccess(d.myInfo);
+            if (success) ++succeeded;
+            myListener.groupDeploymentFinished(d.myApplicationName, d.myDeploymentGroupName, d.myDeploymentId, success, null, getErrorInfo(d.myInfo), getInstancesStatus(d.myInfo));
+            it.remove();
+          }
+        }
+
+        if (!pending.isEmpty()) myListener.deploymentsInProgress(deployments.size() - pending.size(), deployments.size());
+      }
+    } finally {
+      for (GroupDeployment d : deployments) {
+        if (d.mySubscription == null) continue;
+        mySubscriptions.remove(d.mySubscription);
+        d.mySubscription.cancel();
+      }
+    }
+
+    myListener.deploymentsFinished(succeeded, deployments.size() - succeeded);
+  }
+
+  @NotNull
+  private static String getDeploymentIds(@NotNull List<GroupDeployment> deployments) {
+    final List<String> ids = new ArrayList<String>();
+    for (GroupDeployment d : deployments) ids.add(d.myDeploymentId);
+    return StringUtil.join(", ", ids);
+  }
+
   private void doUploadRevision(@NotNull final File revision, @NotNull final String s3BucketName, @NotNull final String s3ObjectKey) throws Throwable {
+    if (mySkipIdenticalUpload && reuseIdenticalRevision(revision, s3BucketName, s3ObjectKey, null)) return;
+
     myListener.uploadRevisionStarted(revision, s3BucketName, s3ObjectKey);
 
-    final UploadResult uploadResult = doUploadWithTransferManager(revision, s3BucketName, s3ObjectKey);
+    final UploadResult uploadResult = doUploadWithTransferManager(revision, s3BucketName, s3ObjectKey,
+      new UploadProgressListener(myListener, revision, revision.length(), myUploadProgressIntervalMs));
 
     myListener.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey, uploadResult.getVersionId(), uploadResult.getETag(), myS3Client.getUrl(s3BucketName, s3ObjectKey).toString());
   }
 
+  private void doUploadRevision(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey,
+                                @NotNull File uploadState, int partSize, int maxParallelParts) throws Throwable {
+    if (mySkipIdenticalUpload && reuseIdenticalRevision(revision, s3BucketName, s3ObjectKey, partSize)) return;
+
+    myListener.uploadRevisionStarted(revision, s3BucketName, s3ObjectKey);
+
+    final ResumableMultipartUpload upload = new ResumableMultipartUpload(myS3Client, revision, s3BucketName, s3ObjectKey, uploadState, partSize, maxParallelParts)
+      .withListener(myListener)
+      .withProgressListener(new UploadProgressListener(myListener, revision, revision.length(), myUploadProgressIntervalMs));
+    upload.upload();
+
+    if (upload.getReusedParts() > 0) {
+      myListener.uploadRevisionResumed(revision, s3BucketName, s3ObjectKey, upload.getReusedParts(), upload.getParts());
+    }
+    myListener.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey, upload.getVersionId(), upload.getETag(), myS3Client.getUrl(s3BucketName, s3ObjectKey).toString());
+  }
+
+  private void doUploadRevision(@NotNull String revisionName, @NotNull RevisionWriter writer,
+                                @NotNull String s3BucketName, @NotNull String s3ObjectKey,
+                                int partSize, int maxInFlightParts) throws Throwable {
+    final File revision = new File(revisionName);
+    myListener.uploadRevisionStarted(revision, s3BucketName, s3ObjectKey);
+
+    final S3MultipartOutputStream output = new S3MultipartOutputStream(myS3Client, s3BucketName, s3ObjectKey, partSize, maxInFlightParts)
+      .withListener(myListener)
+      .withProgressListener(new UploadProgressListener(myListener, revision, -1, myUploadProgressIntervalMs));
+    try {
+      writer.write(output);
+      output.close();
+    } catch (Throwable t) {
+      output.abort();
+      throw t;
+    }
+
+    myListener.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey, output.getVersionId(), output.getETag(), myS3Client.getUrl(s3BucketName, s3ObjectKey).toString());
+  }
+
+  /**
+   * Compares the ETag the revision would have after the upload with the one of the existing S3 object,
+   * the revision is hashed only if the object exists and its size is the same
+   *
+   * @param partSize multipart upload part size or null if the revision is uploaded with the TransferManager
+   */
+  private boolean reuseIdenticalRevision(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable Integer partSize) {
+    final ObjectMetadata metadata;
+    try {
+      metadata = myS3Client.getObjectMetadata(metered(new GetObjectMetadataRequest(s3BucketName, s3ObjectKey), myListener));
+    } catch (Throwable t) {
+      // the object is missing or not accessible, will upload it
+      return false;
+    }
+    if (metadata.getContentLength() != revision.length()) return false;
+
+    final String eTag;
+    try {
+      // the resumable upload is multipart even for a revision fitting into a single part
+      eTag = partSize == null ? S3ETag.calculate(revision) : S3ETag.calculate(revision, S3ETag.ALWAYS_MULTIPART, Math.max(partSize, S3MultipartOutputStream.MIN_PART_SIZE));
+    } catch (IOException e) {
+      // failed to read the revision, the upload will report it
+      return false;
+    }
+    if (!eTag.equals(unquote(metadata.getETag()))) return false;
+
+    myListener.uploadRevisionSkipped(revision, s3BucketName, s3ObjectKey, "S3 object with the same content already exists");
+    myListener.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey, metadata.getVersionId(), metadata.getETag(), myS3Client.getUrl(s3BucketName, s3ObjectKey).toString());
+    return true;
+  }
+
   @NotNull
-  private UploadResult doUploadWithTransferManager(@NotNull final File revision, @NotNull final String s3BucketName, @NotNull final String s3ObjectKey) throws Throwable {
+  private UploadResult doUploadWithTransferManager(@NotNull final File revision, @NotNull final String s3BucketName, @NotNull final String s3ObjectKey,
+                                                   @NotNull final UploadProgressListener progress) throws Throwable {
     return S3Util.withTransferManager(myS3Client, new S3Util.WithTransferManager<Upload>() {
       @NotNull
       @Override
       public Collection<Upload> run(@NotNull TransferManager manager) throws Throwable {
-        return Collections.singletonList(manager.upload(s3BucketName, s3ObjectKey, revision));
+        // the Upload passes the request listener to all the part requests, attaching it to the request doesn't miss the first events
+        return Collections.singletonList(manager.upload(tracked(metered(new PutObjectRequest(s3BucketName, s3ObjectKey, revision), myListener), progress)));
       }
     }).iterator().next().waitForUploadResult();
   }
 
+  @NotNull
+  private static ExecutorService createDeploymentExecutor(int threads) {
+    final AtomicInteger counter = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread t = new Thread(r, "CodeDeploy deployment " + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  @NotNull
+  private static String unquote(@Nullable String eTag) {
+    if (eTag == null) return StringUtil.EMPTY;
+    return eTag.length() > 1 && eTag.startsWith("\"") && eTag.endsWith("\"") ? eTag.substring(1, eTag.length() - 1) : eTag;
+  }
+
   @NotNull
   private RevisionLocation getRevisionLocation(@NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String bundleType, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag) {
     final S3Location loc = new S3Location().withBucket(s3BucketName).withKey(s3ObjectKey).withBundleType(bundleType);
@@ -222,11 +681,11 @@ public class AWSClient {
     final S3Location s3Location = revisionLocation.getS3Location();
     myListener.registerRevisionStarted(applicationName, s3Location.getBucket(), s3Location.getKey(), s3Location.getBundleType(), s3Location.getVersion(), s3Location.getETag());
 
-    myCodeDeployClient.registerApplicationRevision(
+    myCodeDeployClient.registerApplicationRevision(metered(
       new RegisterApplicationRevisionRequest()
         .withRevision(revisionLocation)
         .withApplicationName(applicationName)
-        .withDescription(getDescription("Application revision registered by ", 100)));
+        .withDescription(getDescription("Application revision registered by ", 100)), myListener));
 
     myListener.registerRevisionFinished(applicationName, s3Location.getBucket(), s3Location.getKey(), s3Location.getBundleType(), s3Location.getVersion(), s3Location.getETag());
   }
@@ -241,7 +700,20 @@ public class AWSClient {
                                   boolean rollbackOnFailure,
                                   boolean rollbackOnAlarmThreshold) {
     myListener.createDeploymentStarted(applicationName, deploymentGroupName, deploymentConfigName);
+    final String deploymentId = doCreateDeployment(revisionLocation, applicationName, deploymentGroupName, ec2Tags, autoScalingGroups, deploymentConfigName, rollbackOnFailure, rollbackOnAlarmThreshold);
+    myListener.createDeploymentFinished(applicationName, deploymentGroupName, deploymentConfigName, deploymentId);
+    return deploymentId;
+  }
 
+  @NotNull
+  private String doCreateDeployment(@NotNull RevisionLocation revisionLocation,
+                                    @NotNull String applicationName,
+                                    @NotNull String deploymentGroupName,
+                                    @NotNull Map<String, String> ec2Tags,
+                                    @NotNull Collection<String> autoScalingGroups,
+                                    @Nullable String deploymentConfigName,
+                                    boolean rollbackOnFailure,
+                                    boolean rollbackOnAlarmThreshold) {
     final CreateDeploymentRequest request =
       new CreateDeploymentRequest()
         .withRevision(revisionLocation)
@@ -264,9 +736,7 @@ public class AWSClient {
       request.setAutoRollbackConfiguration(rollbackConfiguration);
     }
 
-    final String deploymentId = myCodeDeployClient.createDeployment(request).getDeploymentId();
-    myListener.createDeploymentFinished(applicationName, deploymentGroupName, deploymentConfigName, deploymentId);
-    return deploymentId;
+    return myCodeDeployClient.createDeployment(metered(request, myListener)).getDeploymentId();
   }
 
   @NotNull
@@ -279,6 +749,34 @@ public class AWSClient {
     });
   }
 
+  /**
+   * Makes the SDK report the request to the listener once it's finished, all the retries included
+   */
+  @NotNull
+  static <T extends AmazonWebServiceRequest> T metered(@NotNull T request, @Nullable Listener listener) {
+    if (listener != null) {
+      // other requests content is not the revision, e.g. the complete multipart upload parts list
+      final boolean content = request instanceof PutObjectRequest || request instanceof UploadPartRequest;
+      request.setGeneralProgressListener(new ApiCallListener(listener, getOperationName(request), content));
+    }
+    return request;
+  }
+
+  /**
+   * Adds the progress listener to the request ones
+   */
+  @NotNull
+  static <T extends AmazonWebServiceRequest> T tracked(@NotNull T request, @Nullable ProgressListener progress) {
+    if (progress != null) request.setGeneralProgressListener(new ProgressListenerChain(request.getGeneralProgressListener(), progress));
+    return request;
+  }
+
+  @NotNull
+  private static String getOperationName(@NotNull AmazonWebServiceRequest request) {
+    final String name = request.getClass().getSimpleName();
+    return name.endsWith("Request") ? name.substring(0, name.length() - "Request".length()) : name;
+  }
+
   private void processFailure(@NotNull Throwable t) {
     myListener.exception(new AWSException(t));
   }
@@ -346,18 +844,112 @@ public class AWSClient {
     return (msg != null && msg.endsWith(".")) ? msg.substring(0, msg.length() - 1) : msg;
   }
 
+  private static final class GroupDeployment {
+    @NotNull
+    private final String myApplicationName;
+    @NotNull
+    private final String myDeploymentGroupName;
+    private String myDeploymentId;
+    @Nullable
+    private DeploymentStatusPoller.Subscription mySubscription;
+    @Nullable
+    private DeploymentInfo myInfo;
+
+    private GroupDeployment(@NotNull String applicationName, @NotNull String deploymentGroupName) {
+      myApplicationName = applicationName;
+      myDeploymentGroupName = deploymentGroupName;
+    }
+  }
+
+  public interface RevisionWriter {
+    void write(@NotNull OutputStream output) throws Exception;
+  }
+
+  /**
+   * Progress listener of a single API call, delivered synchronously so that the call is reported before it returns.
+   * TransferManager passes the listener of the original request to the requests it makes for a multipart upload,
+   * so these are reported under the original request operation
+   */
+  static final class ApiCallListener extends SyncProgressListener {
+    @NotNull
+    private final Listener myListener;
+    @NotNull
+    private final String myOperation;
+    private final boolean myContent;
+    private int myRetries;
+
+    /**
+     * @param content whether the sent request content is reported as uploaded bytes
+     */
+    ApiCallListener(@NotNull Listener listener, @NotNull String operation, boolean content) {
+      myListener = listener;
+      myOperation = operation;
+      myContent = content;
+    }
+
+    @Override
+    public void progressChanged(ProgressEvent event) {
+      switch (event.getEventType()) {
+        case REQUEST_BYTE_TRANSFER_EVENT:
+        case HTTP_REQUEST_CONTENT_RESET_EVENT:
+          if (myContent) myListener.bytesUploaded(event.getBytesTransferred());
+          break;
+        case CLIENT_REQUEST_RETRY_EVENT:
+          synchronized (this) {
+            ++myRetries;
+          }
+          break;
+        case CLIENT_REQUEST_SUCCESS_EVENT:
+        case CLIENT_REQUEST_FAILED_EVENT:
+          final int retries;
+          synchronized (this) {
+            retries = myRetries;
+            myRetries = 0;
+          }
+          myListener.apiCallFinished(myOperation, retries, event.getEventType() == ProgressEventType.CLIENT_REQUEST_SUCCESS_EVENT);
+          break;
+        default:
+      }
+    }
+  }
+
   public static class Listener {
     void uploadRevisionStarted(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {}
+    void uploadRevisionSkipped(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String reason) {}
+    void uploadRevisionResumed(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, int reusedParts, int parts) {}
     void uploadRevisionFinished(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {}
+    /**
+     * Called periodically while the application revision is being uploaded, on one of the upload threads
+     */
+    void uploadRevisionProgress(@NotNull File revision, @NotNull UploadProgress progress) {}
+    void copyRevisionStarted(@NotNull String sourceS3BucketName, @NotNull String sourceS3ObjectKey, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {}
+    void copyRevisionFinished(@NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {}
     void registerRevisionStarted(@NotNull String applicationName, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String bundleType, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag) {}
     void registerRevisionFinished(@NotNull String applicationName, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String bundleType, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag) {}
     void createDeploymentStarted(@NotNull String applicationName, @NotNull String deploymentGroupName, @Nullable String deploymentConfigName) {}
     void createDeploymentFinished(@NotNull String applicationName, @NotNull String deploymentGroupName, @Nullable String deploymentConfigName, @NotNull String deploymentId) {}
+    void createDeploymentsStarted(int count, @Nullable String deploymentConfigName) {}
+    void createDeploymentFailed(@NotNull String applicationName, @NotNull String deploymentGroupName, @NotNull AWSException exception) {}
     void deploymentWaitStarted(@NotNull String deploymentId) {}
     void deploymentInProgress(@NotNull String deploymentId, @Nullable InstancesStatus instancesStatus) {}
     void deploymentFailed(@NotNull String deploymentId, @Nullable Integer timeoutSec, @Nullable ErrorInfo errorInfo, @Nullable InstancesStatus instancesStatus) {}
     void deploymentSucceeded(@NotNull String deploymentId, @Nullable InstancesStatus instancesStatus) {}
+    void deploymentWaitInterrupted(@NotNull String deploymentId) {}
+    void deploymentsWaitStarted(int count) {}
+    void deploymentsInProgress(int finished, int total) {}
+    void groupDeploymentFinished(@NotNull String applicationName, @NotNull String deploymentGroupName, @NotNull String deploymentId, boolean succeeded, @Nullable Integer timeoutSec, @Nullable ErrorInfo errorInfo, @Nullable InstancesStatus instancesStatus) {}
+    void deploymentsFinished(int succeeded, int failed) {}
     void exception(@NotNull AWSException exception) {}
+    /**
+     * Called on the thread which made the call, which may be a pooled upload or polling thread
+     *
+     * @param retries number of times the call was retried by the SDK
+     */
+    void apiCallFinished(@NotNull String operation, int retries, boolean succeeded) {}
+    /**
+     * Called as S3 object or part content is sent, negative if the sent content is reset to be sent once again
+     */
+    void bytesUploaded(long bytes) {}
 
     public static class InstancesStatus {
       int pending;
@@ -375,5 +967,16 @@ public class AWSClient {
       @Nullable
       String message;
     }
+
+    public static class UploadProgress {
+      long uploadedBytes;
+      // -1 if unknown
+      long totalBytes = -1;
+      // since the previous report
+      double bytesPerSec;
+      // -1 if unknown
+      long etaSec = -1;
+      int retries;
+    }
   }
 }
@@ -33,6 +33,38 @@ public interface CodeDeployConstants {
   String S3_OBJECT_VERSION_CONFIG_PARAM = "codedeploy.revision.s3.version";
   String S3_OBJECT_ETAG_CONFIG_PARAM = "codedeploy.revision.s3.etag";
   String CUSTOM_APPSPEC_YML_CONFIG_PARAM = "codedeploy.custom.appspec.yml";
+  String REVISION_PACKAGING_THREADS_CONFIG_PARAM = "codedeploy.revision.packaging.threads";
+  String REVISION_REPRODUCIBLE_CONFIG_PARAM = "codedeploy.revision.reproducible";
+  String REVISION_COMPRESSION_LEVEL_CONFIG_PARAM = "codedeploy.revision.compression.level";
+  String REVISION_STORE_COMPRESSED_CONFIG_PARAM = "codedeploy.revision.store.compressed";
+  String REVISION_UPLOAD_STREAMING_CONFIG_PARAM = "codedeploy.revision.upload.streaming";
+  String REVISION_UPLOAD_PART_SIZE_MB_CONFIG_PARAM = "codedeploy.revision.upload.part.size.mb";
+  int REVISION_UPLOAD_PART_SIZE_MB_DEFAULT = 16;
+  String REVISION_UPLOAD_MAX_INFLIGHT_PARTS_CONFIG_PARAM = "codedeploy.revision.upload.max.inflight.parts";
+  int REVISION_UPLOAD_MAX_INFLIGHT_PARTS_DEFAULT = 4;
+  String REVISION_CACHE_ENABLED_CONFIG_PARAM = "codedeploy.revision.cache.enabled";
+  String REVISION_UPLOAD_SKIP_IDENTICAL_CONFIG_PARAM = "codedeploy.revision.upload.skip.identical";
+  String DEPLOYMENT_PARALLELISM_CONFIG_PARAM = "codedeploy.deployment.parallelism";
+  int DEPLOYMENT_PARALLELISM_DEFAULT = 8;
+  String REGION_BUCKETS_CONFIG_PARAM = "codedeploy.region.buckets";
+
+  // build statistic value keys
+  String REVISION_FILES_STATISTIC = "codedeploy.revision.files";
+  String REVISION_BYTES_STATISTIC = "codedeploy.revision.bytes";
+  String REVISION_ARCHIVE_BYTES_STATISTIC = "codedeploy.revision.archive.bytes";
+  String REVISION_COMPRESSION_RATIO_STATISTIC = "codedeploy.revision.compression.ratio";
+  String REVISION_PACKAGING_TIME_STATISTIC = "codedeploy.revision.packaging.ms";
+  String UPLOAD_TIME_STATISTIC = "codedeploy.upload.ms";
+  String UPLOAD_BYTES_STATISTIC = "codedeploy.upload.bytes";
+  String UPLOAD_THROUGHPUT_STATISTIC = "codedeploy.upload.mb.per.sec";
+  String UPLOAD_THROUGHPUT_MIN_STATISTIC = "codedeploy.upload.mb.per.sec.min";
+  String UPLOAD_THROUGHPUT_MAX_STATISTIC = "codedeploy.upload.mb.per.sec.max";
+  String UPLOAD_RETRIES_STATISTIC = "codedeploy.upload.retries";
+  String REGISTER_TIME_STATISTIC = "codedeploy.register.ms";
+  String DEPLOYMENT_TIME_STATISTIC = "codedeploy.deployment.ms";
+  String API_CALLS_STATISTIC = "codedeploy.api.calls";
+  String API_RETRIES_STATISTIC = "codedeploy.api.retries";
+  String API_FAILURES_STATISTIC = "codedeploy.api.failures";
 
 
   String EDIT_PARAMS_HTML = "editCodeDeployParams.html";
@@ -83,6 +115,8 @@ public interface CodeDeployConstants {
   String WAIT_TIMEOUT_SEC_LABEL = "Timeout (seconds)";
   String WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM = "codedeploy.wait.poll.interval.sec";
   int WAIT_POLL_INTERVAL_SEC_DEFAULT = 20;
+  String WAIT_POLL_INITIAL_INTERVAL_SEC_CONFIG_PARAM = "codedeploy.wait.poll.initial.interval.sec";
+  int WAIT_POLL_INITIAL_INTERVAL_SEC_DEFAULT = 2;
 
   String ROLLBACK_ON_FAILURE_PARAM_OLD = "codedeploy_rollback_on_failure";
   String ROLLBACK_ON_FAILURE_PARAM = "codedeploy.rollback.on.failure";
@@ -122,5 +156,7 @@ public interface CodeDeployConstants {
 
   String MULTILINE_SPLIT_REGEX = " *[,\n\r] *";
   String PATH_SPLIT_REGEX = " *=> *";
+  char APP_GROUP_SEPARATOR = ':';
+  char REGION_BUCKET_SEPARATOR = '=';
   String APPSPEC_YML = "appspec.yml";
 }
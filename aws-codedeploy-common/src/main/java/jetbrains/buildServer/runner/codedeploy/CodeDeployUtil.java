@@ -114,6 +114,61 @@ final class CodeDeployUtil {
     }
   }
 
+  /**
+   * Parses deployment group names, each either a plain group name of the configured application or
+   * application:group, separated by commas or new lines
+   *
+   * @return application name to its deployment group names in the order of appearance
+   */
+  @NotNull
+  static Map<String, List<String>> getDeploymentGroups(@NotNull Map<String, String> params) {
+    final String groups = getDeploymentGroupName(params);
+    if (StringUtil.isEmptyOrSpaces(groups)) return Collections.emptyMap();
+
+    final Map<String, List<String>> res = new LinkedHashMap<String, List<String>>();
+    for (String s : groups.trim().split(MULTILINE_SPLIT_REGEX)) {
+      if (StringUtil.isEmptyOrSpaces(s)) continue;
+
+      final int colon = s.indexOf(APP_GROUP_SEPARATOR);
+      final String app = colon < 0 ? getAppName(params) : s.substring(0, colon).trim();
+      final String group = colon < 0 ? s.trim() : s.substring(colon + 1).trim();
+
+      List<String> appGroups = res.get(app);
+      if (appGroups == null) {
+        appGroups = new ArrayList<String>();
+        res.put(app, appGroups);
+      }
+      if (!appGroups.contains(group)) appGroups.add(group);
+    }
+    return res;
+  }
+
+  static int getDeploymentGroupsCount(@NotNull Map<String, List<String>> deploymentGroups) {
+    int count = 0;
+    for (List<String> groups : deploymentGroups.values()) count += groups.size();
+    return count;
+  }
+
+  /**
+   * Parses additional regions to deploy the revision to, each as region=bucket separated by commas or new lines,
+   * the bucket is the one in the region the revision is copied to
+   *
+   * @return region name to its S3 bucket name in the order of appearance
+   */
+  @NotNull
+  static Map<String, String> getRegionBuckets(@Nullable String regionBuckets) {
+    if (StringUtil.isEmptyOrSpaces(regionBuckets)) return Collections.emptyMap();
+
+    final Map<String, String> res = new LinkedHashMap<String, String>();
+    for (String s : regionBuckets.trim().split(MULTILINE_SPLIT_REGEX)) {
+      if (StringUtil.isEmptyOrSpaces(s)) continue;
+
+      final int eq = s.indexOf(REGION_BUCKET_SEPARATOR);
+      res.put(eq < 0 ? s.trim() : s.substring(0, eq).trim(), eq < 0 ? StringUtil.EMPTY : s.substring(eq + 1).trim());
+    }
+    return res;
+  }
+
   @NotNull
   public static Collection<String> getAutoScalingGroups(@NotNull Map<String, String> params) {
     final String deploymentInstances = getGreenFleet(params);
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.event.ProgressListenerChain;
+import com.amazonaws.services.codedeploy.AmazonCodeDeploy;
+import com.amazonaws.services.codedeploy.model.BatchGetDeploymentsRequest;
+import com.amazonaws.services.codedeploy.model.DeploymentInfo;
+import com.amazonaws.services.codedeploy.model.DeploymentOverview;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Polls the status of all the deployments being waited for in this JVM on a single schedule.
+ *
+ * Deployments waited for using the same CodeDeploy client are queried together with BatchGetDeployments,
+ * so the number of API calls doesn't grow with the number of waiting builds. Polling interval adapts
+ * the same way as for a single deployment: it is short while any of the statuses change and backs off
+ * while they stay the same or the calls are throttled. Deployments polled together share the smallest
+ * initial and max intervals of their subscribers, which widen back to the group's ones after successful polls.
+ *
+ * @author vbedrosova
+ */
+final class DeploymentStatusPoller {
+
+  private static final Logger LOG = Logger.getInstance(DeploymentStatusPoller.class.getName());
+  static final int MAX_BATCH_SIZE = 25;
+  @NotNull
+  private static final Set<String> THROTTLING_ERROR_CODES = new HashSet<String>(Arrays.asList(
+    "Throttling", "ThrottlingException", "ThrottledException", "RequestThrottledException", "TooManyRequestsException",
+    "RequestLimitExceeded", "RequestThrottled", "PriorRequestNotComplete"));
+
+  @NotNull
+  private static final DeploymentStatusPoller ourInstance = new DeploymentStatusPoller();
+
+  @NotNull
+  static DeploymentStatusPoller getInstance() {
+    return ourInstance;
+  }
+
+  @NotNull
+  private final Map<AmazonCodeDeploy, Group> myGroups = new IdentityHashMap<AmazonCodeDeploy, Group>();
+  @Nullable
+  private Thread myThread;
+  private long myCalls;
+
+  DeploymentStatusPoller() {
+  }
+
+  /**
+   * Starts polling the deployment status using the client, updates are delivered to the returned subscription
+   * until it's cancelled
+   */
+  @NotNull
+  Subscription subscribe(@NotNull AmazonCodeDeploy client, @NotNull String deploymentId, long initialIntervalMs, long maxIntervalMs) {
+    return subscribe(client, deploymentId, initialIntervalMs, maxIntervalMs, null);
+  }
+
+  /**
+   * @param progressListener listener of each BatchGetDeployments call querying the deployment status
+   */
+  @NotNull
+  synchronized Subscription subscribe(@NotNull AmazonCodeDeploy client, @NotNull String deploymentId, long initialIntervalMs, long maxIntervalMs,
+                                      @Nullable ProgressListener progressListener) {
+    Group group = myGroups.get(client);
+    if (group == null) {
+      group = new Group(client, new PollingInterval(initialIntervalMs, maxIntervalMs));
+      myGroups.put(client, group);
+    } else {
+      // the deployments are polled together, so the most frequent polling any of the subscribers asks for is used
+      group.myInterval.narrow(initialIntervalMs, maxIntervalMs);
+    }
+    final Subscription subscription = new Subscription(this, group, deploymentId, progressListener);
+    group.mySubscriptions.add(subscription);
+    // poll a newly added deployment soon, but keep the backoff of the deployments already polled
+    group.myNextPoll = Math.min(group.myNextPoll, System.currentTimeMillis() + group.myInterval.initial());
+
+    if (myThread == null) {
+      myThread = new Thread(new Runnable() {
+        public void run() {
+          pollLoop();
+        }
+      }, "aws-codedeploy-deployment-status-poller");
+      myThread.setDaemon(true);
+      myThread.start();
+    } else {
+      notifyAll();
+    }
+    return subscription;
+  }
+
+  /**
+   * Number of BatchGetDeployments calls made
+   */
+  synchronized long getCallCount() {
+    return myCalls;
+  }
+
+  private synchronized void unsubscribe(@NotNull Subscription subscription) {
+    final Group group = subscription.myGroup;
+    group.mySubscriptions.remove(subscription);
+    if (group.mySubscriptions.isEmpty() && myGroups.get(group.myClient) == group) {
+      myGroups.remove(group.myClient);
+    }
+  }
+
+  private void pollLoop() {
+    while (true) {
+      final List<Group> due = new ArrayList<Group>();
+      synchronized (this) {
+        if (myGroups.isEmpty()) {
+          myThread = null;
+          return;
+        }
+        final long now = System.currentTimeMillis();
+        long nextPoll = Long.MAX_VALUE;
+        for (Group group : myGroups.values()) {
+          if (group.myNextPoll <= now) due.add(group);
+          else nextPoll = Math.min(nextPoll, group.myNextPoll);
+        }
+        if (due.isEmpty()) {
+          try {
+            wait(nextPoll - now);
+          } catch (InterruptedException e) {
+            myThread = null;
+            return;
+          }
+          continue;
+        }
+      }
+      for (Group group : due) {
+        try {
+          poll(group);
+        } catch (Throwable t) {
+          LOG.warn("Unexpected error while polling deployments status", t);
+        }
+      }
+    }
+  }
+
+  private void poll(@NotNull Group group) {
+    final Map<String, List<Subscription>> subscriptions = new LinkedHashMap<String, List<Subscription>>();
+    synchronized (this) {
+      for (Subscription s : group.mySubscriptions) {
+        List<Subscription> forId = subscriptions.get(s.myDeploymentId);
+        if (forId == null) {
+          forId = new ArrayList<Subscription>();
+          subscriptions.put(s.myDeploymentId, forId);
+        }
+        forId.add(s);
+      }
+    }
+
+    boolean changed = false;
+    boolean throttled = false;
+
+    final List<String> ids = new ArrayList<String>(subscriptions.keySet());
+    for (int from = 0; from < ids.size(); from += MAX_BATCH_SIZE) {
+      final List<String> batch = ids.subList(from, Math.min(ids.size(), from + MAX_BATCH_SIZE));
+
+      final Map<String, DeploymentInfo> infos = new HashMap<String, DeploymentInfo>();
+      try {
+        synchronized (this) {
+          ++myCalls;
+        }
+        final BatchGetDeploymentsRequest request = new BatchGetDeploymentsRequest().withDeploymentIds(batch);
+        request.setGeneralProgressListener(getProgressListener(batch, subscriptions));
+        final List<DeploymentInfo> result = group.myClient.batchGetDeployments(request).getDeploymentsInfo();
+        if (result != null) {
+          for (DeploymentInfo info : result) {
+            infos.put(info.getDeploymentId(), info);
+          }
+        }
+      } catch (AmazonServiceException e) {
+        if (isThrottled(e)) {
+          throttled = true;
+          continue;
+        }
+        deliverFailure(batch, subscriptions, e);
+        continue;
+      } catch (RuntimeException e) {
+        deliverFailure(batch, subscriptions, e);
+        continue;
+      }
+
+      for (String id : batch) {
+        final DeploymentInfo info = infos.get(id);
+        final String status = getStatusSignature(info);
+        for (Subscription s : subscriptions.get(id)) {
+          changed |= !StringUtil.areEqual(s.myStatus, status);
+          s.myStatus = status;
+          s.deliver(new Update(info, null));
+        }
+      }
+    }
+
+    synchronized (this) {
+      group.myNextPoll = System.currentTimeMillis() + (throttled ? group.myInterval.throttled() : group.myInterval.next(changed));
+    }
+  }
+
+  /**
+   * The call is shared by the subscriptions, so it's reported to each of their listeners once
+   */
+  @NotNull
+  private static ProgressListener getProgressListener(@NotNull List<String> batch, @NotNull Map<String, List<Subscription>> subscriptions) {
+    final Set<ProgressListener> listeners = Collections.newSetFromMap(new IdentityHashMap<ProgressListener, Boolean>());
+    for (String id : batch) {
+      for (Subscription s : subscriptions.get(id)) {
+        if (s.myProgressListener != null) listeners.add(s.myProgressListener);
+      }
+    }
+    if (listeners.isEmpty()) return ProgressListener.NOOP;
+    return listeners.size() == 1 ? listeners.iterator().next() : new ProgressListenerChain(listeners.toArray(new ProgressListener[listeners.size()]));
+  }
+
+  private static boolean isThrottled(@NotNull AmazonServiceException e) {
+    return e.getStatusCode() == 429 || THROTTLING_ERROR_CODES.contains(e.getErrorCode());
+  }
+
+  private static void deliverFailure(@NotNull List<String> batch, @NotNull Map<String, List<Subscription>> subscriptions, @NotNull RuntimeException e) {
+    for (String id : batch) {
+      for (Subscription s : subscriptions.get(id)) {
+        s.deliver(new Update(null, e));
+      }
+    }
+  }
+
+  @Nullable
+  private static String getStatusSignature(@Nullable DeploymentInfo dInfo) {
+    if (dInfo == null) return null;
+    final DeploymentOverview overview = dInfo.getDeploymentOverview();
+    return dInfo.getStatus() + (overview == null ? "" : ":" + overview.getPending() + ":" + overview.getInProgress() + ":" + overview.getSucceeded() + ":" + overview.getFailed() + ":" + overview.getSkipped());
+  }
+
+  private static final class Group {
+    @NotNull
+    private final AmazonCodeDeploy myClient;
+    @NotNull
+    private final PollingInterval myInterval;
+    @NotNull
+    private final List<Subscription> mySubscriptions = new ArrayList<Subscription>();
+    private long myNextPoll = Long.MAX_VALUE;
+
+    private Group(@NotNull AmazonCodeDeploy client, @NotNull PollingInterval interval) {
+      myClient = client;
+      myInterval = interval;
+    }
+  }
+
+  /**
+   * Deployment status as of the latest poll or the failure to get it
+   */
+  static final class Update {
+    @Nullable
+    private final DeploymentInfo myInfo;
+    @Nullable
+    private final RuntimeException myFailure;
+
+    private Update(@Nullable DeploymentInfo info, @Nullable RuntimeException failure) {
+      myInfo = info;
+      myFailure = failure;
+    }
+
+    /**
+     * @return deployment info or null if the deployment is not known yet
+     * @throws RuntimeException if the poll failed
+     */
+    @Nullable
+    DeploymentInfo getDeploymentInfo() {
+      if (myFailure != null) throw myFailure;
+      return myInfo;
+    }
+  }
+
+  static final class Subscription {
+    @NotNull
+    private final DeploymentStatusPoller myPoller;
+    @NotNull
+    private final Group myGroup;
+    @NotNull
+    private final String myDeploymentId;
+    @Nullable
+    private final ProgressListener myProgressListener;
+    @Nullable
+    private String myStatus;
+    @Nullable
+    private Update myUpdate;
+    private boolean myCancelled;
+
+    private Subscription(@NotNull DeploymentStatusPoller poller, @NotNull Group group, @NotNull String deploymentId, @Nullable ProgressListener progressListener) {
+      myPoller = poller;
+      myGroup = group;
+      myDeploymentId = deploymentId;
+      myProgressListener = progressListener;
+    }
+
+    /**
+     * Waits for the next status update
+     *
+     * @return the update or null if none arrived within the timeout or the subscription is cancelled
+     */
+    @Nullable
+    synchronized Update next(long timeoutMs) throws InterruptedException {
+      final long deadline = System.currentTimeMillis() + timeoutMs;
+      while (myUpdate == null && !myCancelled) {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) return null;
+        wait(remaining);
+      }
+      final Update update = myUpdate;
+      myUpdate = null;
+      return update;
+    }
+
+    /**
+     * Stops polling the deployment status and wakes up the waiting thread
+     */
+    void cancel() {
+      synchronized (this) {
+        myCancelled = true;
+        notifyAll();
+      }
+      myPoller.unsubscribe(this);
+    }
+
+    private synchronized void deliver(@NotNull Update update) {
+      if (myCancelled) return;
+      myUpdate = update;
+      notifyAll();
+    }
+  }
+}
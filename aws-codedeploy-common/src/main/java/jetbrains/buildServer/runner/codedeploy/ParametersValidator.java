@@ -20,11 +20,14 @@ import jetbrains.buildServer.parameters.ReferencesResolverUtil;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import jetbrains.buildServer.util.amazon.AWSRegions;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static jetbrains.buildServer.runner.codedeploy.CodeDeployConstants.*;
@@ -47,6 +50,62 @@ final class ParametersValidator {
       if (revisionPath != null && !FileUtil.resolvePath(checkoutDir, revisionPath).exists()) {
         invalids.put(REVISION_PATHS_PARAM, REVISION_PATHS_LABEL + " " + revisionPath + " doesn't exist");
       }
+
+      final String packagingThreads = configParams.get(REVISION_PACKAGING_THREADS_CONFIG_PARAM);
+      if (StringUtil.isNotEmpty(packagingThreads)) {
+        validatePositiveInteger(invalids, packagingThreads, REVISION_PACKAGING_THREADS_CONFIG_PARAM, REVISION_PACKAGING_THREADS_CONFIG_PARAM, true);
+      }
+
+      final String compressionLevel = configParams.get(REVISION_COMPRESSION_LEVEL_CONFIG_PARAM);
+      if (StringUtil.isNotEmpty(compressionLevel) && !isReference(compressionLevel, true)) {
+        try {
+          final int level = Integer.parseInt(compressionLevel);
+          if (level < 0 || level > 9) {
+            invalids.put(REVISION_COMPRESSION_LEVEL_CONFIG_PARAM, REVISION_COMPRESSION_LEVEL_CONFIG_PARAM + " must be an integer value from 0 to 9");
+          }
+        } catch (NumberFormatException e) {
+          invalids.put(REVISION_COMPRESSION_LEVEL_CONFIG_PARAM, REVISION_COMPRESSION_LEVEL_CONFIG_PARAM + " must be an integer value from 0 to 9");
+        }
+      }
+
+      final String partSizeMb = configParams.get(REVISION_UPLOAD_PART_SIZE_MB_CONFIG_PARAM);
+      if (StringUtil.isNotEmpty(partSizeMb)) {
+        validatePositiveInteger(invalids, partSizeMb, REVISION_UPLOAD_PART_SIZE_MB_CONFIG_PARAM, REVISION_UPLOAD_PART_SIZE_MB_CONFIG_PARAM, true);
+      }
+
+      final String maxInFlightParts = configParams.get(REVISION_UPLOAD_MAX_INFLIGHT_PARTS_CONFIG_PARAM);
+      if (StringUtil.isNotEmpty(maxInFlightParts)) {
+        validatePositiveInteger(invalids, maxInFlightParts, REVISION_UPLOAD_MAX_INFLIGHT_PARTS_CONFIG_PARAM, REVISION_UPLOAD_MAX_INFLIGHT_PARTS_CONFIG_PARAM, true);
+      }
+    }
+
+    if (isDeployStepEnabled(runnerParams)) {
+      final String parallelism = configParams.get(DEPLOYMENT_PARALLELISM_CONFIG_PARAM);
+      if (StringUtil.isNotEmpty(parallelism)) {
+        validatePositiveInteger(invalids, parallelism, DEPLOYMENT_PARALLELISM_CONFIG_PARAM, DEPLOYMENT_PARALLELISM_CONFIG_PARAM, true);
+      }
+    }
+
+    final String regionBuckets = configParams.get(REGION_BUCKETS_CONFIG_PARAM);
+    if (StringUtil.isNotEmpty(regionBuckets)) {
+      final String mainRegion = AWSCommonParams.getRegionName(runnerParams);
+      for (Map.Entry<String, String> e : getRegionBuckets(regionBuckets).entrySet()) {
+        final String region = e.getKey();
+        if (StringUtil.isEmptyOrSpaces(region) || StringUtil.isEmptyOrSpaces(e.getValue())) {
+          invalids.put(REGION_BUCKETS_CONFIG_PARAM, REGION_BUCKETS_CONFIG_PARAM + " must contain region=bucket pairs");
+          break;
+        }
+        if (region.equals(mainRegion)) {
+          invalids.put(REGION_BUCKETS_CONFIG_PARAM, REGION_BUCKETS_CONFIG_PARAM + " must not contain the step region " + region);
+          break;
+        }
+        try {
+          AWSRegions.getRegion(region);
+        } catch (IllegalArgumentException ex) {
+          invalids.put(REGION_BUCKETS_CONFIG_PARAM, REGION_BUCKETS_CONFIG_PARAM + " contains unsupported region " + region);
+          break;
+        }
+      }
     }
 
     if (isDeploymentWaitEnabled(runnerParams)) {
@@ -54,6 +113,10 @@ final class ParametersValidator {
       if (StringUtil.isNotEmpty(waitIntervalSec)) {
         validatePositiveInteger(invalids, waitIntervalSec, WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM, WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM, true);
       }
+      final String waitInitialIntervalSec = configParams.get(WAIT_POLL_INITIAL_INTERVAL_SEC_CONFIG_PARAM);
+      if (StringUtil.isNotEmpty(waitInitialIntervalSec)) {
+        validatePositiveInteger(invalids, waitInitialIntervalSec, WAIT_POLL_INITIAL_INTERVAL_SEC_CONFIG_PARAM, WAIT_POLL_INITIAL_INTERVAL_SEC_CONFIG_PARAM, true);
+      }
     }
 
     return Collections.unmodifiableMap(invalids);
@@ -131,8 +194,13 @@ final class ParametersValidator {
     }
 
     if (deployStepEnabled) {
-      if (StringUtil.isEmptyOrSpaces(getDeploymentGroupName(runnerParams))) {
+      final String deploymentGroupName = getDeploymentGroupName(runnerParams);
+      if (StringUtil.isEmptyOrSpaces(deploymentGroupName)) {
         invalids.put(DEPLOYMENT_GROUP_NAME_PARAM, DEPLOYMENT_GROUP_NAME_LABEL + " must not be empty");
+      } else if (!isReference(deploymentGroupName, runtime)) {
+        if (!isValidDeploymentGroups(getDeploymentGroups(runnerParams), getAppName(runnerParams))) {
+          invalids.put(DEPLOYMENT_GROUP_NAME_PARAM, DEPLOYMENT_GROUP_NAME_LABEL + " must contain deployment group names or application:group pairs separated by commas or new lines");
+        }
       }
 
       if (isDeploymentWaitEnabled(runnerParams)) {
@@ -147,6 +215,21 @@ final class ParametersValidator {
     return invalids;
   }
 
+  /**
+   * @param appName the configured application name, used for the plain group names
+   */
+  private static boolean isValidDeploymentGroups(@NotNull Map<String, List<String>> deploymentGroups, @Nullable String appName) {
+    if (deploymentGroups.isEmpty()) return false;
+    for (Map.Entry<String, List<String>> e : deploymentGroups.entrySet()) {
+      // the empty configured application name is reported separately
+      if (StringUtil.isEmptyOrSpaces(e.getKey()) && !StringUtil.isEmptyOrSpaces(appName)) return false;
+      for (String group : e.getValue()) {
+        if (StringUtil.isEmptyOrSpaces(group)) return false;
+      }
+    }
+    return true;
+  }
+
   private static void validatePositiveInteger(@NotNull Map<String, String> invalids, @NotNull String param, @NotNull String key, @NotNull String name, boolean runtime) {
     if (!isReference(param, runtime)) {
       try {
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+/**
+ * Adaptive interval between status polls: polls often while the status changes and backs off
+ * up to the max interval while it stays the same. Throttled polls back off further.
+ * Intervals are randomized so that concurrent pollers do not hit the service simultaneously.
+ * Narrowed intervals widen back to the original ones with each successful poll.
+ *
+ * @author vbedrosova
+ */
+class PollingInterval {
+  private static final double BACKOFF_FACTOR = 1.5;
+  private static final double JITTER = 0.2;
+  private static final int MAX_THROTTLED_FACTOR = 4;
+
+  private final long myBaseInitialMs;
+  private final long myBaseMaxMs;
+  private long myInitialMs;
+  private long myMaxMs;
+  @NotNull
+  private final Random myRandom;
+  private long myCurrentMs;
+
+  PollingInterval(long initialMs, long maxMs) {
+    this(initialMs, maxMs, new Random());
+  }
+
+  PollingInterval(long initialMs, long maxMs, @NotNull Random random) {
+    myMaxMs = Math.max(1, maxMs);
+    myInitialMs = Math.max(1, Math.min(initialMs, myMaxMs));
+    myRandom = random;
+    myCurrentMs = myInitialMs;
+    myBaseInitialMs = myInitialMs;
+    myBaseMaxMs = myMaxMs;
+  }
+
+  /**
+   * Makes the intervals not exceed the provided ones, successful polls widen them back gradually
+   */
+  void narrow(long initialMs, long maxMs) {
+    myMaxMs = Math.min(myMaxMs, Math.max(1, maxMs));
+    myInitialMs = Math.min(myInitialMs, Math.max(1, Math.min(initialMs, myMaxMs)));
+    myCurrentMs = Math.min(myCurrentMs, myMaxMs);
+  }
+
+  /**
+   * Interval before the next poll after a successful one
+   *
+   * @param changed whether the polled status has changed since the previous poll
+   */
+  long next(boolean changed) {
+    myCurrentMs = changed ? myInitialMs : Math.min(myMaxMs, (long) (myCurrentMs * BACKOFF_FACTOR));
+    final long result = withJitter(myCurrentMs);
+    myMaxMs = Math.min(myBaseMaxMs, (long) Math.ceil(myMaxMs * BACKOFF_FACTOR));
+    myInitialMs = Math.min(myMaxMs, Math.min(myBaseInitialMs, (long) Math.ceil(myInitialMs * BACKOFF_FACTOR)));
+    return result;
+  }
+
+  /**
+   * Interval before the first poll, doesn't affect the backoff
+   */
+  long initial() {
+    return withJitter(myInitialMs);
+  }
+
+  /**
+   * Interval before the next poll after a throttled one
+   */
+  long throttled() {
+    myCurrentMs = Math.min(MAX_THROTTLED_FACTOR * myMaxMs, 2 * Math.max(myCurrentMs, myInitialMs));
+    return withJitter(myCurrentMs);
+  }
+
+  private long withJitter(long intervalMs) {
+    return Math.max(1, (long) (intervalMs * (1 - JITTER + 2 * JITTER * myRandom.nextDouble())));
+  }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads the file to S3 with a multipart upload which can be continued after a failure or an agent restart.
+ *
+ * The upload id is persisted to the state file as soon as the upload is initiated and the upload is not aborted on failure,
+ * so the next attempt with the same state file lists the already uploaded parts and sends only the missing ones.
+ * An uploaded part is reused only if its size and ETag match the MD5 of the same range of the local file, so a changed
+ * file is never completed with stale parts. The state file is deleted once the upload is completed.
+ *
+ * Multipart uploads which are never completed keep occupying S3 storage, so the bucket is expected to have
+ * a lifecycle rule aborting incomplete multipart uploads.
+ *
+ * @author vbedrosova
+ */
+class ResumableMultipartUpload {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(ResumableMultipartUpload.class.getName());
+
+  private static final int MAX_PARTS = 10000;
+
+  private static final String BUCKET = "bucket";
+  private static final String KEY = "key";
+  private static final String UPLOAD_ID = "uploadId";
+  private static final String PART_SIZE = "partSize";
+  private static final String LENGTH = "length";
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+  @NotNull
+  private final File myFile;
+  @NotNull
+  private final String myBucketName;
+  @NotNull
+  private final String myKey;
+  @NotNull
+  private final File myStateFile;
+  private final long myPartSize;
+  private final int myMaxParallelParts;
+  @Nullable
+  private AWSClient.Listener myListener;
+  @Nullable
+  private UploadProgressListener myProgressListener;
+
+  private int myReusedParts;
+  private int myParts;
+  @Nullable
+  private String myVersionId;
+  @Nullable
+  private String myETag;
+
+  ResumableMultipartUpload(@NotNull AmazonS3 s3Client, @NotNull File file, @NotNull String bucketName, @NotNull String key,
+                           @NotNull File stateFile, long partSize, int maxParallelParts) {
+    myS3Client = s3Client;
+    myFile = file;
+    myBucketName = bucketName;
+    myKey = key;
+    myStateFile = stateFile;
+    myPartSize = Math.max(Math.max(partSize, S3MultipartOutputStream.MIN_PART_SIZE), (file.length() + MAX_PARTS - 1) / MAX_PARTS);
+    myMaxParallelParts = Math.max(1, maxParallelParts);
+  }
+
+  /**
+   * Listener the S3 calls are reported to
+   */
+  @NotNull
+  ResumableMultipartUpload withListener(@Nullable AWSClient.Listener listener) {
+    myListener = listener;
+    return this;
+  }
+
+  /**
+   * Listener the uploaded content progress is reported to
+   */
+  @NotNull
+  ResumableMultipartUpload withProgressListener(@Nullable UploadProgressListener progressListener) {
+    myProgressListener = progressListener;
+    return this;
+  }
+
+  /**
+   * Uploads the missing parts and completes the upload, the upload is left incomplete in case of a failure
+   */
+  void upload() throws IOException {
+    final long length = myFile.length();
+    myParts = (int) Math.max(1, (length + myPartSize - 1) / myPartSize);
+
+    Map<Integer, PartSummary> uploaded = Collections.emptyMap();
+    String uploadId = readUploadId(length);
+    if (uploadId != null) {
+      uploaded = listParts(uploadId);
+      if (uploaded == null) uploadId = null;
+    }
+    if (uploadId == null) {
+      uploadId = myS3Client.initiateMultipartUpload(AWSClient.metered(new InitiateMultipartUploadRequest(myBucketName, myKey), myListener)).getUploadId();
+      writeState(uploadId, length);
+      uploaded = Collections.emptyMap();
+    }
+
+    final AtomicInteger reused = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+    final ExecutorService executor = createExecutor(myMaxParallelParts);
+    try {
+      final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>(myParts);
+      for (int i = 0; i < myParts; ++i) {
+        final int partNumber = i + 1;
+        final long offset = i * myPartSize;
+        final long size = Math.min(myPartSize, length - offset);
+        final PartSummary existing = uploaded.get(partNumber);
+        final String finalUploadId = uploadId;
+
+        parts.add(executor.submit(new Callable<PartETag>() {
+          @Override
+          public PartETag call() throws Exception {
+            // the upload fails anyway, the remaining parts are left for the next attempt
+            if (failed.get()) throw new InterruptedIOException("S3 upload part " + partNumber + " skipped after another part failed");
+            try {
+              return uploadPart();
+            } catch (Exception e) {
+              failed.set(true);
+              throw e;
+            }
+          }
+
+          @NotNull
+          private PartETag uploadPart() throws Exception {
+            if (existing != null && existing.getSize() == size && md5(offset, size).equals(unquote(existing.getETag()))) {
+              reused.incrementAndGet();
+              if (myProgressListener != null) myProgressListener.skipped(size);
+              return new PartETag(partNumber, existing.getETag());
+            }
+            return myS3Client.uploadPart(AWSClient.tracked(AWSClient.metered(new UploadPartRequest()
+              .withBucketName(myBucketName)
+              .withKey(myKey)
+              .withUploadId(finalUploadId)
+              .withPartNumber(partNumber)
+              .withFile(myFile)
+              .withFileOffset(offset)
+              .withPartSize(size), myListener), myProgressListener)).getPartETag();
+          }
+        }));
+      }
+
+      final List<PartETag> partETags = new ArrayList<PartETag>(myParts);
+      for (Future<PartETag> part : parts) {
+        partETags.add(getPartETag(part));
+      }
+      myReusedParts = reused.get();
+
+      final CompleteMultipartUploadResult result = myS3Client.completeMultipartUpload(AWSClient.metered(new CompleteMultipartUploadRequest(myBucketName, myKey, uploadId, partETags), myListener));
+      myVersionId = result.getVersionId();
+      myETag = result.getETag();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    FileUtil.delete(myStateFile);
+  }
+
+  /**
+   * @return number of parts uploaded by the previous attempts
+   */
+  int getReusedParts() {
+    return myReusedParts;
+  }
+
+  int getParts() {
+    return myParts;
+  }
+
+  @Nullable
+  String getVersionId() {
+    return myVersionId;
+  }
+
+  @Nullable
+  String getETag() {
+    return myETag;
+  }
+
+  @Nullable
+  private String readUploadId(long length) {
+    if (!myStateFile.isFile()) return null;
+
+    final Properties props = new Properties();
+    InputStream input = null;
+    try {
+      input = new FileInputStream(myStateFile);
+      props.load(input);
+    } catch (IOException e) {
+      LOG.warn("Failed to read S3 upload state " + myStateFile, e);
+      return null;
+    } finally {
+      FileUtil.close(input);
+    }
+
+    if (!myBucketName.equals(props.getProperty(BUCKET)) || !myKey.equals(props.getProperty(KEY)) ||
+        !String.valueOf(myPartSize).equals(props.getProperty(PART_SIZE)) || !String.valueOf(length).equals(props.getProperty(LENGTH))) return null;
+    return props.getProperty(UPLOAD_ID);
+  }
+
+  private void writeState(@NotNull String uploadId, long length) {
+    final Properties props = new Properties();
+    props.setProperty(BUCKET, myBucketName);
+    props.setProperty(KEY, myKey);
+    props.setProperty(UPLOAD_ID, uploadId);
+    props.setProperty(PART_SIZE, String.valueOf(myPartSize));
+    props.setProperty(LENGTH, String.valueOf(length));
+
+    final File temp = new File(myStateFile.getParentFile(), myStateFile.getName() + ".tmp");
+    OutputStream output = null;
+    try {
+      FileUtil.createParentDirs(myStateFile);
+      output = new FileOutputStream(temp);
+      props.store(output, null);
+      output.close();
+      output = null;
+
+      FileUtil.delete(myStateFile);
+      if (!temp.renameTo(myStateFile)) throw new IOException("Failed to rename " + temp + " to " + myStateFile);
+    } catch (IOException e) {
+      // the upload won't be resumable
+      LOG.warn("Failed to write S3 upload state " + myStateFile, e);
+    } finally {
+      FileUtil.close(output);
+      FileUtil.delete(temp);
+    }
+  }
+
+  /**
+   * @return already uploaded parts or null if there's no such upload anymore
+   */
+  @Nullable
+  private Map<Integer, PartSummary> listParts(@NotNull String uploadId) {
+    final Map<Integer, PartSummary> res = new HashMap<Integer, PartSummary>();
+    try {
+      PartListing listing = myS3Client.listParts(AWSClient.metered(new ListPartsRequest(myBucketName, myKey, uploadId), myListener));
+      while (true) {
+        for (PartSummary part : listing.getParts()) {
+          res.put(part.getPartNumber(), part);
+        }
+        if (!listing.isTruncated()) break;
+        listing = myS3Client.listParts(AWSClient.metered(new ListPartsRequest(myBucketName, myKey, uploadId).withPartNumberMarker(listing.getNextPartNumberMarker()), myListener));
+      }
+    } catch (AmazonS3Exception e) {
+      // NoSuchUpload, the upload was completed, aborted or expired
+      LOG.debug("Failed to list parts of S3 upload " + uploadId + ", will start a new upload", e);
+      return null;
+    }
+    return res;
+  }
+
+  @NotNull
+  private String md5(long offset, long size) throws IOException {
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    final RandomAccessFile file = new RandomAccessFile(myFile, "r");
+    try {
+      file.seek(offset);
+      final byte[] buffer = new byte[64 * 1024];
+      while (size > 0) {
+        final int read = file.read(buffer, 0, (int) Math.min(buffer.length, size));
+        if (read < 0) throw new EOFException("Unexpected end of " + myFile);
+        md.update(buffer, 0, read);
+        size -= read;
+      }
+    } finally {
+      file.close();
+    }
+    return BinaryUtils.toHex(md.digest());
+  }
+
+  @NotNull
+  private static String unquote(@Nullable String eTag) {
+    if (eTag == null) return "";
+    return eTag.length() > 1 && eTag.startsWith("\"") && eTag.endsWith("\"") ? eTag.substring(1, eTag.length() - 1) : eTag;
+  }
+
+  @NotNull
+  private static PartETag getPartETag(@NotNull Future<PartETag> part) throws IOException {
+    try {
+      return part.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for S3 upload part");
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to upload S3 upload part", e.getCause());
+    }
+  }
+
+  @NotNull
+  private static ExecutorService createExecutor(int threads) {
+    final AtomicInteger counter = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread t = new Thread(r, "CodeDeploy revision upload " + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+import com.amazonaws.util.BinaryUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Calculates the ETag S3 assigns to the file uploaded by the TransferManager: MD5 of the content for a single part upload
+ * or MD5 of the concatenated part MD5s followed by the number of parts for a multipart one.
+ * <p>
+ * The ETag is only meaningful for the objects stored without SSE-KMS or SSE-C encryption.
+ *
+ * @author vbedrosova
+ */
+final class S3ETag {
+  // same as com.amazonaws.services.s3.internal.Constants.MAXIMUM_UPLOAD_PARTS
+  private static final int MAXIMUM_UPLOAD_PARTS = 10000;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /**
+   * Multipart threshold of the uploads which are always multipart, even for a single part or an empty file
+   */
+  static final long ALWAYS_MULTIPART = -1;
+
+  private S3ETag() {
+  }
+
+  /**
+   * @return ETag of the file uploaded using the TransferManager with the default configuration
+   */
+  @NotNull
+  static String calculate(@NotNull File file) throws IOException {
+    final TransferManagerConfiguration configuration = new TransferManagerConfiguration();
+    return calculate(file, configuration.getMultipartUploadThreshold(), configuration.getMinimumUploadPartSize());
+  }
+
+  /**
+   * @param multipartThreshold files larger than this are uploaded in parts
+   * @param minPartSize        min upload part size, the actual one is larger for the files which won't fit into
+   *                           the max number of parts otherwise
+   * @return unquoted ETag of the file
+   */
+  @NotNull
+  static String calculate(@NotNull File file, long multipartThreshold, long minPartSize) throws IOException {
+    final long length = file.length();
+    if (length <= multipartThreshold) {
+      final MessageDigest md = createMessageDigest();
+      final InputStream in = new FileInputStream(file);
+      try {
+        update(md, in, length);
+      } finally {
+        in.close();
+      }
+      return BinaryUtils.toHex(md.digest());
+    }
+
+    final long partSize = getPartSize(length, minPartSize);
+    final MessageDigest partMd = createMessageDigest();
+    final MessageDigest md = createMessageDigest();
+    int parts = 0;
+
+    final InputStream in = new FileInputStream(file);
+    try {
+      long remaining = length;
+      // an empty file is uploaded as a single empty part
+      do {
+        update(partMd, in, Math.min(partSize, remaining));
+        md.update(partMd.digest());
+        ++parts;
+        remaining -= partSize;
+      } while (remaining > 0);
+    } finally {
+      in.close();
+    }
+    return BinaryUtils.toHex(md.digest()) + "-" + parts;
+  }
+
+  /**
+   * Same as com.amazonaws.services.s3.transfer.internal.TransferManagerUtils#calculateOptimalPartSize
+   */
+  static long getPartSize(long length, long minPartSize) {
+    return Math.max((long) Math.ceil((double) length / MAXIMUM_UPLOAD_PARTS), minPartSize);
+  }
+
+  private static void update(@NotNull MessageDigest md, @NotNull InputStream in, long count) throws IOException {
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    while (count > 0) {
+      final int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+      if (read < 0) throw new IOException("Unexpected end of file");
+      md.update(buffer, 0, read);
+      count -= read;
+    }
+  }
+
+  @NotNull
+  private static MessageDigest createMessageDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
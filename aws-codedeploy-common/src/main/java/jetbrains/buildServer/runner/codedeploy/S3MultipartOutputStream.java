@@ -0,0 +1,281 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads the written bytes to S3 cutting them into multipart upload parts,
+ * parts are uploaded concurrently while the following bytes are being written.
+ *
+ * Memory is bounded by the number of part buffers: the one being filled and
+ * at most maxInFlightParts being uploaded, writing blocks until a buffer is free.
+ * Content smaller than a single part is uploaded with a plain put object request.
+ *
+ * @author vbedrosova
+ */
+class S3MultipartOutputStream extends OutputStream {
+  static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+  private static final int MAX_PARTS = 10000;
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+  @NotNull
+  private final String myBucketName;
+  @NotNull
+  private final String myKey;
+  private final int myPartSize;
+  @NotNull
+  private final ExecutorService myExecutor;
+  @NotNull
+  private final BlockingQueue<byte[]> myFreeBuffers;
+  @NotNull
+  private final List<Future<PartETag>> myParts = new ArrayList<Future<PartETag>>();
+  @Nullable
+  private AWSClient.Listener myListener;
+  @Nullable
+  private UploadProgressListener myProgressListener;
+
+  @Nullable
+  private byte[] myBuffer;
+  private int myCount;
+  @Nullable
+  private String myUploadId;
+  private long myBytesWritten;
+  private boolean myClosed;
+
+  @Nullable
+  private String myVersionId;
+  @Nullable
+  private String myETag;
+
+  S3MultipartOutputStream(@NotNull AmazonS3 s3Client, @NotNull String bucketName, @NotNull String key, int partSize, int maxInFlightParts) {
+    myS3Client = s3Client;
+    myBucketName = bucketName;
+    myKey = key;
+    myPartSize = Math.max(partSize, MIN_PART_SIZE);
+
+    final int inFlight = Math.max(1, maxInFlightParts);
+    myFreeBuffers = new ArrayBlockingQueue<byte[]>(inFlight + 1);
+    for (int i = 0; i <= inFlight; ++i) {
+      // buffers are allocated lazily, a marker is used for a not yet allocated one
+      myFreeBuffers.add(new byte[0]);
+    }
+    myExecutor = createExecutor(inFlight);
+  }
+
+  /**
+   * Listener the S3 calls are reported to
+   */
+  @NotNull
+  S3MultipartOutputStream withListener(@Nullable AWSClient.Listener listener) {
+    myListener = listener;
+    return this;
+  }
+
+  /**
+   * Listener the uploaded content progress is reported to
+   */
+  @NotNull
+  S3MultipartOutputStream withProgressListener(@Nullable UploadProgressListener progressListener) {
+    myProgressListener = progressListener;
+    return this;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureBuffer()[myCount++] = (byte) b;
+    if (myCount == myPartSize) submitPart();
+  }
+
+  @Override
+  public void write(@NotNull byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      final byte[] buffer = ensureBuffer();
+      final int n = Math.min(len, myPartSize - myCount);
+      System.arraycopy(b, off, buffer, myCount, n);
+      myCount += n;
+      off += n;
+      len -= n;
+      if (myCount == myPartSize) submitPart();
+    }
+  }
+
+  /**
+   * Uploads the remaining bytes and completes the upload
+   */
+  @Override
+  public void close() throws IOException {
+    if (myClosed) return;
+    myClosed = true;
+    try {
+      if (myUploadId == null) {
+        putObject();
+      } else {
+        if (myCount > 0) submitPart();
+        completeUpload();
+      }
+    } finally {
+      myExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Cancels the upload discarding the already uploaded parts
+   */
+  void abort() {
+    myClosed = true;
+    myExecutor.shutdownNow();
+    for (Future<PartETag> part : myParts) {
+      part.cancel(true);
+    }
+    if (myUploadId != null) {
+      myS3Client.abortMultipartUpload(AWSClient.metered(new AbortMultipartUploadRequest(myBucketName, myKey, myUploadId), myListener));
+    }
+  }
+
+  @Nullable
+  String getVersionId() {
+    return myVersionId;
+  }
+
+  @Nullable
+  String getETag() {
+    return myETag;
+  }
+
+  long getBytesWritten() {
+    return myBytesWritten;
+  }
+
+  @NotNull
+  private byte[] ensureBuffer() throws IOException {
+    if (myClosed) throw new IOException("Stream closed");
+    if (myBuffer == null) {
+      try {
+        final byte[] free = myFreeBuffers.take();
+        myBuffer = free.length == myPartSize ? free : new byte[myPartSize];
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for S3 upload part buffer");
+      }
+      checkFailedParts();
+    }
+    return myBuffer;
+  }
+
+  private void submitPart() throws IOException {
+    if (myUploadId == null) {
+      myUploadId = myS3Client.initiateMultipartUpload(AWSClient.metered(new InitiateMultipartUploadRequest(myBucketName, myKey), myListener)).getUploadId();
+    }
+
+    final int partNumber = myParts.size() + 1;
+    if (partNumber > MAX_PARTS) {
+      throw new IOException("Too many S3 upload parts, please increase " + CodeDeployConstants.REVISION_UPLOAD_PART_SIZE_MB_CONFIG_PARAM);
+    }
+
+    final byte[] buffer = myBuffer;
+    final int count = myCount;
+    myBuffer = null;
+    myCount = 0;
+    myBytesWritten += count;
+
+    final UploadPartRequest request = new UploadPartRequest()
+      .withBucketName(myBucketName)
+      .withKey(myKey)
+      .withUploadId(myUploadId)
+      .withPartNumber(partNumber)
+      .withPartSize(count)
+      .withInputStream(new ByteArrayInputStream(buffer, 0, count));
+    AWSClient.tracked(AWSClient.metered(request, myListener), myProgressListener);
+
+    myParts.add(myExecutor.submit(new Callable<PartETag>() {
+      @Override
+      public PartETag call() throws Exception {
+        try {
+          return myS3Client.uploadPart(request).getPartETag();
+        } finally {
+          myFreeBuffers.offer(buffer);
+        }
+      }
+    }));
+  }
+
+  private void checkFailedParts() throws IOException {
+    for (Future<PartETag> part : myParts) {
+      if (part.isDone()) getPartETag(part);
+    }
+  }
+
+  private void completeUpload() throws IOException {
+    final List<PartETag> partETags = new ArrayList<PartETag>(myParts.size());
+    for (Future<PartETag> part : myParts) {
+      partETags.add(getPartETag(part));
+    }
+    final CompleteMultipartUploadResult result = myS3Client.completeMultipartUpload(AWSClient.metered(new CompleteMultipartUploadRequest(myBucketName, myKey, myUploadId, partETags), myListener));
+    myVersionId = result.getVersionId();
+    myETag = result.getETag();
+  }
+
+  private void putObject() {
+    final ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(myCount);
+
+    final byte[] buffer = myBuffer == null ? new byte[0] : myBuffer;
+    final PutObjectResult result = myS3Client.putObject(AWSClient.tracked(AWSClient.metered(new PutObjectRequest(myBucketName, myKey, new ByteArrayInputStream(buffer, 0, myCount), metadata), myListener), myProgressListener));
+    myBytesWritten += myCount;
+    myVersionId = result.getVersionId();
+    myETag = result.getETag();
+  }
+
+  @NotNull
+  private static PartETag getPartETag(@NotNull Future<PartETag> part) throws IOException {
+    try {
+      return part.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for S3 upload part");
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to upload S3 upload part", e.getCause());
+    }
+  }
+
+  @NotNull
+  private static ExecutorService createExecutor(int threads) {
+    final AtomicInteger counter = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread t = new Thread(r, "CodeDeploy revision upload " + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+}
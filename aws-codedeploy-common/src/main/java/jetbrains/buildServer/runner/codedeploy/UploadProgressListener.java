@@ -0,0 +1,115 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.SyncProgressListener;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+/**
+ * Sums up the bytes sent by the S3 upload requests it's attached to and reports the upload progress to the listener
+ * at most once per interval. Events come from all the threads uploading the parts.
+ *
+ * @author vbedrosova
+ */
+class UploadProgressListener extends SyncProgressListener {
+  static final long DEFAULT_INTERVAL_MS = 5000;
+
+  @NotNull
+  private final AWSClient.Listener myListener;
+  @NotNull
+  private final File myRevision;
+  private final long myIntervalMs;
+
+  private long myTotalBytes;
+  private long myBytes;
+  private int myRetries;
+  private long myStarted = -1;
+  private long myLastReport;
+  private long myLastReportBytes;
+
+  /**
+   * @param totalBytes number of bytes to upload or -1 if unknown, e.g. when the revision is uploaded while being written
+   */
+  UploadProgressListener(@NotNull AWSClient.Listener listener, @NotNull File revision, long totalBytes, long intervalMs) {
+    myListener = listener;
+    myRevision = revision;
+    myTotalBytes = totalBytes;
+    myIntervalMs = intervalMs;
+  }
+
+  /**
+   * Excludes the bytes which don't need to be sent, e.g. the parts uploaded by the previous attempt
+   */
+  synchronized void skipped(long bytes) {
+    if (myTotalBytes > 0) myTotalBytes = Math.max(0, myTotalBytes - bytes);
+  }
+
+  @Override
+  public void progressChanged(ProgressEvent event) {
+    final AWSClient.Listener.UploadProgress progress;
+    switch (event.getEventType()) {
+      case REQUEST_BYTE_TRANSFER_EVENT:
+      case HTTP_REQUEST_CONTENT_RESET_EVENT:
+        progress = transferred(event.getBytesTransferred());
+        break;
+      case CLIENT_REQUEST_RETRY_EVENT:
+        synchronized (this) {
+          ++myRetries;
+        }
+        return;
+      default:
+        return;
+    }
+    if (progress != null) myListener.uploadRevisionProgress(myRevision, progress);
+  }
+
+  /**
+   * @return progress to report or null if it was reported less than the interval ago
+   */
+  private synchronized AWSClient.Listener.UploadProgress transferred(long bytes) {
+    final long now = currentTimeMillis();
+    if (myStarted < 0) {
+      myStarted = myLastReport = now;
+    }
+    // the reset content is reported with the negative number of bytes
+    myBytes = Math.max(0, myBytes + bytes);
+
+    final long sinceLastReport = now - myLastReport;
+    if (sinceLastReport < Math.max(1, myIntervalMs)) return null;
+
+    final AWSClient.Listener.UploadProgress progress = new AWSClient.Listener.UploadProgress();
+    progress.uploadedBytes = myBytes;
+    progress.totalBytes = myTotalBytes;
+    progress.bytesPerSec = Math.max(0, myBytes - myLastReportBytes) * 1000.0 / sinceLastReport;
+    progress.retries = myRetries;
+    // the average rate is more stable than the current one
+    if (myTotalBytes >= 0 && myBytes > 0) {
+      progress.etaSec = Math.max(0, myTotalBytes - myBytes) * (now - myStarted) / myBytes / 1000;
+    }
+
+    myLastReport = now;
+    myLastReportBytes = myBytes;
+    return progress;
+  }
+
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
@@ -18,6 +18,12 @@ package jetbrains.buildServer.runner.codedeploy;
 
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.getDeploymentGroups;
+import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.getRegionBuckets;
 import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.getReadyRevision;
 import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.getRevisionPathMappings;
 import static org.assertj.core.api.BDDAssertions.*;
@@ -67,4 +73,31 @@ public class CodeDeployUtilTest {
     then(getRevisionPathMappings(".=>.")).hasSize(1).containsEntry("**", "");
 //    then(getRevisionPathMappings("=>")).hasSize(1).containsEntry("**", "");
   }
+
+  @Test
+  public void deployment_groups() {
+    then(getDeploymentGroups(params("group"))).hasSize(1).containsEntry("app", Arrays.asList("group"));
+    then(getDeploymentGroups(params("eu, us\nus"))).hasSize(1).containsEntry("app", Arrays.asList("eu", "us"));
+    then(getDeploymentGroups(params("eu\nother:eu\nother : us"))).hasSize(2)
+      .containsEntry("app", Arrays.asList("eu"))
+      .containsEntry("other", Arrays.asList("eu", "us"));
+    then(getDeploymentGroups(params(""))).isEmpty();
+  }
+
+  @Test
+  public void region_buckets() {
+    then(getRegionBuckets("eu-west-1=eu-bucket, us-west-2 = us-bucket\nap-south-1=ap-bucket")).hasSize(3)
+      .containsEntry("eu-west-1", "eu-bucket")
+      .containsEntry("us-west-2", "us-bucket")
+      .containsEntry("ap-south-1", "ap-bucket");
+    then(getRegionBuckets("eu-west-1")).containsEntry("eu-west-1", "");
+    then(getRegionBuckets(null)).isEmpty();
+  }
+
+  private static Map<String, String> params(String groups) {
+    final Map<String, String> params = new HashMap<String, String>();
+    params.put(CodeDeployConstants.APP_NAME_PARAM, "app");
+    params.put(CodeDeployConstants.DEPLOYMENT_GROUP_NAME_PARAM, groups);
+    return params;
+  }
 }
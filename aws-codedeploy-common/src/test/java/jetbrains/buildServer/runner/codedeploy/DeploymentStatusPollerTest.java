@@ -0,0 +1,175 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.codedeploy.AbstractAmazonCodeDeploy;
+import com.amazonaws.services.codedeploy.model.BatchGetDeploymentsRequest;
+import com.amazonaws.services.codedeploy.model.BatchGetDeploymentsResult;
+import com.amazonaws.services.codedeploy.model.DeploymentInfo;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.BDDAssertions.failBecauseExceptionWasNotThrown;
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class DeploymentStatusPollerTest {
+
+  @Test
+  public void polls_deployments_in_batches() throws Exception {
+    final DeploymentStatusPoller poller = new DeploymentStatusPoller();
+    final FakeCodeDeploy client = new FakeCodeDeploy();
+
+    final List<DeploymentStatusPoller.Subscription> subscriptions = new ArrayList<DeploymentStatusPoller.Subscription>();
+    for (int i = 0; i < 30; ++i) {
+      subscriptions.add(poller.subscribe(client, "d-" + i, 10, 1000));
+    }
+    try {
+      for (int i = 0; i < 30; ++i) {
+        final DeploymentStatusPoller.Update update = subscriptions.get(i).next(5000);
+        then(update).isNotNull();
+        //noinspection ConstantConditions
+        then(update.getDeploymentInfo().getDeploymentId()).isEqualTo("d-" + i);
+      }
+    } finally {
+      for (DeploymentStatusPoller.Subscription s : subscriptions) s.cancel();
+    }
+
+    then(client.batchSizes).isNotEmpty();
+    for (Integer size : client.batchSizes) {
+      then(size).isLessThanOrEqualTo(DeploymentStatusPoller.MAX_BATCH_SIZE);
+    }
+    then(poller.getCallCount()).isLessThan(30);
+  }
+
+  @Test
+  public void groups_deployments_by_client() throws Exception {
+    final DeploymentStatusPoller poller = new DeploymentStatusPoller();
+    final FakeCodeDeploy first = new FakeCodeDeploy();
+    final FakeCodeDeploy second = new FakeCodeDeploy();
+
+    final DeploymentStatusPoller.Subscription s1 = poller.subscribe(first, "d-1", 10, 1000);
+    final DeploymentStatusPoller.Subscription s2 = poller.subscribe(second, "d-2", 10, 1000);
+    try {
+      then(s1.next(5000)).isNotNull();
+      then(s2.next(5000)).isNotNull();
+    } finally {
+      s1.cancel();
+      s2.cancel();
+    }
+    then(first.requestedIds).containsOnly("d-1");
+    then(second.requestedIds).containsOnly("d-2");
+  }
+
+  @Test
+  public void does_not_deliver_throttled_polls() throws Exception {
+    final DeploymentStatusPoller poller = new DeploymentStatusPoller();
+    final FakeCodeDeploy client = new FakeCodeDeploy();
+    client.failure = new AmazonServiceException("Rate exceeded");
+    client.failure.setErrorCode("ThrottlingException");
+
+    final DeploymentStatusPoller.Subscription subscription = poller.subscribe(client, "d-1", 10, 20);
+    try {
+      then(subscription.next(300)).isNull();
+      then(client.batchSizes).isNotEmpty();
+    } finally {
+      subscription.cancel();
+    }
+  }
+
+  @Test
+  public void does_not_deliver_too_many_requests_polls() throws Exception {
+    final DeploymentStatusPoller poller = new DeploymentStatusPoller();
+    final FakeCodeDeploy client = new FakeCodeDeploy();
+    client.failure = new AmazonServiceException("Too many requests");
+    client.failure.setStatusCode(429);
+
+    final DeploymentStatusPoller.Subscription subscription = poller.subscribe(client, "d-1", 10, 20);
+    try {
+      then(subscription.next(300)).isNull();
+      then(client.batchSizes).isNotEmpty();
+    } finally {
+      subscription.cancel();
+    }
+  }
+
+  @Test
+  public void delivers_poll_failures() throws Exception {
+    final DeploymentStatusPoller poller = new DeploymentStatusPoller();
+    final FakeCodeDeploy client = new FakeCodeDeploy();
+    client.failure = new AmazonServiceException("Access denied");
+    client.failure.setErrorCode("AccessDeniedException");
+
+    final DeploymentStatusPoller.Subscription subscription = poller.subscribe(client, "d-1", 10, 1000);
+    try {
+      final DeploymentStatusPoller.Update update = subscription.next(5000);
+      then(update).isNotNull();
+      //noinspection ConstantConditions
+      update.getDeploymentInfo();
+      failBecauseExceptionWasNotThrown(AmazonServiceException.class);
+    } catch (AmazonServiceException e) {
+      then(e.getErrorMessage()).isEqualTo("Access denied");
+    } finally {
+      subscription.cancel();
+    }
+  }
+
+  @Test
+  public void cancel_wakes_up_waiting_thread() throws Exception {
+    final DeploymentStatusPoller poller = new DeploymentStatusPoller();
+    final DeploymentStatusPoller.Subscription subscription = poller.subscribe(new FakeCodeDeploy(), "d-1", 60000, 60000);
+
+    new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ignored) {
+        }
+        subscription.cancel();
+      }
+    }).start();
+
+    final long start = System.currentTimeMillis();
+    then(subscription.next(60000)).isNull();
+    then(System.currentTimeMillis() - start).isLessThan(10000);
+  }
+
+  private static class FakeCodeDeploy extends AbstractAmazonCodeDeploy {
+    final List<Integer> batchSizes = new CopyOnWriteArrayList<Integer>();
+    final List<String> requestedIds = new CopyOnWriteArrayList<String>();
+    volatile AmazonServiceException failure;
+
+    @Override
+    public BatchGetDeploymentsResult batchGetDeployments(BatchGetDeploymentsRequest request) {
+      batchSizes.add(request.getDeploymentIds().size());
+      requestedIds.addAll(request.getDeploymentIds());
+      if (failure != null) throw failure;
+
+      final List<DeploymentInfo> infos = new ArrayList<DeploymentInfo>();
+      for (String id : request.getDeploymentIds()) {
+        infos.add(new DeploymentInfo().withDeploymentId(id).withStatus("InProgress"));
+      }
+      return new BatchGetDeploymentsResult().withDeploymentsInfo(infos);
+    }
+  }
+}
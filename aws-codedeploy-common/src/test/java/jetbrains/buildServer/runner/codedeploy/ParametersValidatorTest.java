@@ -114,6 +114,16 @@ public class ParametersValidatorTest extends BaseTestCase {
     )).as("Must respect param refs").isEmpty();
   }
 
+  @Test
+  public void unexpected_deployment_groups() {
+    for (String groups : new String[] {",", ", ,", "app: ", "app:", ":group", "eu, app: \nus"}) {
+      then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, APP_NAME_PARAM, "app", DEPLOYMENT_GROUP_NAME_PARAM, groups)).as("Must detect unexpected deployment groups " + groups).
+        containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Deployment group must contain deployment group names or application:group pairs separated by commas or new lines");
+    }
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, APP_NAME_PARAM, "app", DEPLOYMENT_GROUP_NAME_PARAM, "eu, other:us\nus")).
+      doesNotContainKey(DEPLOYMENT_GROUP_NAME_PARAM);
+  }
+
   @Test
   public void unexpected_revision_paths() {
     then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_STEP, REVISION_PATHS_PARAM, "=>")).as("Must detect unexpected revision paths").
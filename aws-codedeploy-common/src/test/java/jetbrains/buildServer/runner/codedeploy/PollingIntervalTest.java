@@ -0,0 +1,106 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class PollingIntervalTest {
+
+  @Test
+  public void backs_off_while_unchanged() throws Exception {
+    final PollingInterval interval = new PollingInterval(2000, 20000, new NoJitter());
+
+    then(interval.next(true)).isEqualTo(2000);
+    then(interval.next(false)).isEqualTo(3000);
+    then(interval.next(false)).isEqualTo(4500);
+    for (int i = 0; i < 10; ++i) interval.next(false);
+    then(interval.next(false)).isEqualTo(20000);
+    then(interval.next(true)).isEqualTo(2000);
+  }
+
+  @Test
+  public void backs_off_further_when_throttled() throws Exception {
+    final PollingInterval interval = new PollingInterval(2000, 20000, new NoJitter());
+
+    then(interval.throttled()).isEqualTo(4000);
+    for (int i = 0; i < 10; ++i) interval.throttled();
+    then(interval.throttled()).isEqualTo(80000);
+    then(interval.next(false)).isEqualTo(20000);
+  }
+
+  @Test
+  public void randomizes_interval() throws Exception {
+    final PollingInterval interval = new PollingInterval(10000, 10000);
+    for (int i = 0; i < 100; ++i) {
+      then(interval.next(false)).isBetween(8000L, 12000L);
+    }
+  }
+
+  @Test
+  public void initial_interval_does_not_exceed_max() throws Exception {
+    then(new PollingInterval(30000, 20000, new NoJitter()).next(true)).isEqualTo(20000);
+  }
+
+  @Test
+  public void narrows_to_smaller_intervals() throws Exception {
+    final PollingInterval interval = new PollingInterval(10000, 60000, new NoJitter());
+    for (int i = 0; i < 10; ++i) interval.next(false);
+
+    interval.narrow(2000, 20000);
+    then(interval.next(false)).isEqualTo(20000);
+
+    interval.narrow(2000, 20000);
+    then(interval.next(true)).isEqualTo(2000);
+
+    interval.narrow(30000, 120000);
+    then(interval.next(true)).isEqualTo(3000);
+  }
+
+  @Test
+  public void widens_back_after_successful_polls() throws Exception {
+    final PollingInterval interval = new PollingInterval(10000, 60000, new NoJitter());
+    interval.narrow(2000, 20000);
+
+    for (int i = 0; i < 10; ++i) interval.next(true);
+    then(interval.next(true)).isEqualTo(10000);
+    for (int i = 0; i < 10; ++i) interval.next(false);
+    then(interval.next(false)).isEqualTo(60000);
+  }
+
+  @Test
+  public void initial_interval_does_not_reset_backoff() throws Exception {
+    final PollingInterval interval = new PollingInterval(2000, 20000, new NoJitter());
+    for (int i = 0; i < 3; ++i) interval.next(false);
+
+    then(interval.initial()).isEqualTo(2000);
+    then(interval.next(false)).isEqualTo(10125);
+  }
+
+  private static class NoJitter extends Random {
+    @Override
+    public double nextDouble() {
+      return 0.5;
+    }
+  }
+}
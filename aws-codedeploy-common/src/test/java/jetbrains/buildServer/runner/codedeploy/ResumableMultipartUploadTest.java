@@ -0,0 +1,269 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import jetbrains.buildServer.BaseTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.util.*;
+
+import static org.assertj.core.api.BDDAssertions.failBecauseExceptionWasNotThrown;
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class ResumableMultipartUploadTest extends BaseTestCase {
+  private static final int PART_SIZE = S3MultipartOutputStream.MIN_PART_SIZE;
+
+  @Test
+  public void uploads_parts() throws Exception {
+    final FakeS3 s3 = new FakeS3();
+    final byte[] content = content(3 * PART_SIZE + 42);
+    final File state = new File(createTempDir(), "state");
+
+    final ResumableMultipartUpload upload = new ResumableMultipartUpload(s3.client(), file(content), "bucket", "key", state, PART_SIZE, 2);
+    upload.upload();
+
+    then(s3.objects.get("key")).isEqualTo(content);
+    then(s3.uploadedParts).containsOnly(1, 2, 3, 4);
+    then(upload.getParts()).isEqualTo(4);
+    then(upload.getReusedParts()).isEqualTo(0);
+    then(upload.getETag()).isEqualTo("etag-4");
+    then(state).doesNotExist();
+  }
+
+  @Test
+  public void uploads_single_part_revision_as_multipart() throws Exception {
+    final FakeS3 s3 = new FakeS3();
+    final byte[] content = content(42);
+    final File revision = file(content);
+
+    final ResumableMultipartUpload upload = new ResumableMultipartUpload(s3.client(), revision, "bucket", "key", new File(createTempDir(), "state"), PART_SIZE, 2);
+    upload.upload();
+
+    then(s3.objects.get("key")).isEqualTo(content);
+    then(s3.uploadedParts).containsOnly(1);
+    then(upload.getParts()).isEqualTo(1);
+    // S3 assigns the multipart ETag, the identical revision check must expect it as well
+    then(S3ETag.calculate(revision, S3ETag.ALWAYS_MULTIPART, PART_SIZE)).endsWith("-1");
+  }
+
+  @Test
+  public void continues_failed_upload() throws Exception {
+    final FakeS3 s3 = new FakeS3();
+    final byte[] content = content(3 * PART_SIZE + 42);
+    final File file = file(content);
+    final File state = new File(createTempDir(), "state");
+
+    s3.failPart = 3;
+    try {
+      new ResumableMultipartUpload(s3.client(), file, "bucket", "key", state, PART_SIZE, 1).upload();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      // expected
+    }
+    then(s3.calls).doesNotContain("abortMultipartUpload");
+    then(state).isFile();
+
+    s3.failPart = -1;
+    s3.uploadedParts.clear();
+    final ResumableMultipartUpload upload = new ResumableMultipartUpload(s3.client(), file, "bucket", "key", state, PART_SIZE, 1);
+    upload.upload();
+
+    then(s3.objects.get("key")).isEqualTo(content);
+    then(s3.calls).containsOnlyOnce("initiateMultipartUpload");
+    then(s3.uploadedParts).containsExactly(3, 4);
+    then(upload.getReusedParts()).isEqualTo(2);
+    then(state).doesNotExist();
+  }
+
+  @Test
+  public void reuploads_changed_parts() throws Exception {
+    final FakeS3 s3 = new FakeS3();
+    final byte[] content = content(2 * PART_SIZE + 42);
+    final File state = new File(createTempDir(), "state");
+
+    s3.failPart = 3;
+    try {
+      new ResumableMultipartUpload(s3.client(), file(content), "bucket", "key", state, PART_SIZE, 1).upload();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      // expected
+    }
+
+    content[PART_SIZE + 1]++;
+    s3.failPart = -1;
+    s3.uploadedParts.clear();
+    new ResumableMultipartUpload(s3.client(), file(content), "bucket", "key", state, PART_SIZE, 1).upload();
+
+    then(s3.objects.get("key")).isEqualTo(content);
+    then(s3.uploadedParts).containsExactly(2, 3);
+  }
+
+  @Test
+  public void starts_new_upload_if_previous_is_gone() throws Exception {
+    final FakeS3 s3 = new FakeS3();
+    final byte[] content = content(2 * PART_SIZE + 42);
+    final File file = file(content);
+    final File state = new File(createTempDir(), "state");
+
+    s3.failPart = 2;
+    try {
+      new ResumableMultipartUpload(s3.client(), file, "bucket", "key", state, PART_SIZE, 1).upload();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      // expected
+    }
+
+    s3.failPart = -1;
+    s3.uploads.clear();
+    s3.uploadedParts.clear();
+    new ResumableMultipartUpload(s3.client(), file, "bucket", "key", state, PART_SIZE, 1).upload();
+
+    then(s3.objects.get("key")).isEqualTo(content);
+    then(s3.uploadedParts).containsExactly(1, 2, 3);
+  }
+
+  @NotNull
+  private File file(@NotNull byte[] content) throws IOException {
+    final File file = createTempFile();
+    final OutputStream output = new FileOutputStream(file);
+    try {
+      output.write(content);
+    } finally {
+      output.close();
+    }
+    return file;
+  }
+
+  @NotNull
+  private static byte[] content(int size) {
+    final byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    return content;
+  }
+
+  private static class FakeS3 implements InvocationHandler {
+    final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    final Map<String, byte[]> objects = new HashMap<String, byte[]>();
+    final Map<String, Map<Integer, byte[]>> uploads = Collections.synchronizedMap(new HashMap<String, Map<Integer, byte[]>>());
+    final List<Integer> uploadedParts = Collections.synchronizedList(new ArrayList<Integer>());
+    volatile int failPart = -1;
+    private int myUploadIds;
+
+    @NotNull
+    AmazonS3 client() {
+      return (AmazonS3) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{AmazonS3.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      final String name = method.getName();
+      calls.add(name);
+
+      if ("initiateMultipartUpload".equals(name)) {
+        final String uploadId = "upload" + (++myUploadIds);
+        uploads.put(uploadId, Collections.synchronizedMap(new TreeMap<Integer, byte[]>()));
+        final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId(uploadId);
+        return result;
+      }
+      if ("listParts".equals(name)) {
+        final ListPartsRequest request = (ListPartsRequest) args[0];
+        final Map<Integer, byte[]> parts = getUpload(request.getUploadId());
+        final PartListing listing = new PartListing();
+        final List<PartSummary> summaries = new ArrayList<PartSummary>();
+        for (Map.Entry<Integer, byte[]> e : parts.entrySet()) {
+          final PartSummary summary = new PartSummary();
+          summary.setPartNumber(e.getKey());
+          summary.setSize(e.getValue().length);
+          summary.setETag(eTag(e.getValue()));
+          summaries.add(summary);
+        }
+        listing.setParts(summaries);
+        return listing;
+      }
+      if ("uploadPart".equals(name)) {
+        final UploadPartRequest request = (UploadPartRequest) args[0];
+        if (request.getPartNumber() == failPart) throw new IllegalStateException("part failed");
+        final byte[] part = read(request.getFile(), request.getFileOffset(), (int) request.getPartSize());
+        getUpload(request.getUploadId()).put(request.getPartNumber(), part);
+        uploadedParts.add(request.getPartNumber());
+        final UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(eTag(part));
+        return result;
+      }
+      if ("completeMultipartUpload".equals(name)) {
+        final CompleteMultipartUploadRequest request = (CompleteMultipartUploadRequest) args[0];
+        final Map<Integer, byte[]> parts = getUpload(request.getUploadId());
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (PartETag partETag : request.getPartETags()) {
+          final byte[] part = parts.get(partETag.getPartNumber());
+          then(partETag.getETag()).isEqualTo(eTag(part));
+          content.write(part);
+        }
+        uploads.remove(request.getUploadId());
+        objects.put(request.getKey(), content.toByteArray());
+        final CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setETag("etag-" + request.getPartETags().size());
+        return result;
+      }
+      throw new UnsupportedOperationException(name);
+    }
+
+    @NotNull
+    private Map<Integer, byte[]> getUpload(@NotNull String uploadId) {
+      final Map<Integer, byte[]> parts = uploads.get(uploadId);
+      if (parts == null) {
+        final AmazonS3Exception e = new AmazonS3Exception("The specified upload does not exist");
+        e.setErrorCode("NoSuchUpload");
+        e.setStatusCode(404);
+        throw e;
+      }
+      return parts;
+    }
+
+    @NotNull
+    private static String eTag(@NotNull byte[] part) throws Exception {
+      return "\"" + BinaryUtils.toHex(MessageDigest.getInstance("MD5").digest(part)) + "\"";
+    }
+
+    @NotNull
+    private static byte[] read(@NotNull File file, long offset, int size) throws IOException {
+      final byte[] res = new byte[size];
+      final RandomAccessFile input = new RandomAccessFile(file, "r");
+      try {
+        input.seek(offset);
+        input.readFully(res);
+      } finally {
+        input.close();
+      }
+      return res;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.util.BinaryUtils;
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class S3ETagTest extends BaseTestCase {
+
+  @Test
+  public void single_part() throws Exception {
+    then(S3ETag.calculate(createFile("hello"))).isEqualTo("5d41402abc4b2a76b9719d911017c592");
+    then(S3ETag.calculate(createFile("hello"), 5, 2)).isEqualTo("5d41402abc4b2a76b9719d911017c592");
+  }
+
+  @Test
+  public void multipart() throws Exception {
+    final MessageDigest md = MessageDigest.getInstance("MD5");
+    md.update(MessageDigest.getInstance("MD5").digest("0123".getBytes("UTF-8")));
+    md.update(MessageDigest.getInstance("MD5").digest("4567".getBytes("UTF-8")));
+    md.update(MessageDigest.getInstance("MD5").digest("89".getBytes("UTF-8")));
+
+    then(S3ETag.calculate(createFile("0123456789"), 4, 4)).isEqualTo(BinaryUtils.toHex(md.digest()) + "-3");
+  }
+
+  @Test
+  public void always_multipart_single_part() throws Exception {
+    final MessageDigest md = MessageDigest.getInstance("MD5");
+    md.update(MessageDigest.getInstance("MD5").digest("hello".getBytes("UTF-8")));
+
+    then(S3ETag.calculate(createFile("hello"), S3ETag.ALWAYS_MULTIPART, 1024)).isEqualTo(BinaryUtils.toHex(md.digest()) + "-1");
+  }
+
+  @Test
+  public void always_multipart_empty() throws Exception {
+    final MessageDigest md = MessageDigest.getInstance("MD5");
+    md.update(MessageDigest.getInstance("MD5").digest(new byte[0]));
+
+    then(S3ETag.calculate(createFile(""), S3ETag.ALWAYS_MULTIPART, 1024)).isEqualTo(BinaryUtils.toHex(md.digest()) + "-1");
+  }
+
+  @Test
+  public void part_size() throws Exception {
+    then(S3ETag.getPartSize(100L * 1024 * 1024, 5 * 1024 * 1024)).isEqualTo(5 * 1024 * 1024);
+    then(S3ETag.getPartSize(100L * 1024 * 1024 * 1024, 5 * 1024 * 1024)).isEqualTo(10737419);
+  }
+
+  private File createFile(String content) throws Exception {
+    final File file = createTempFile();
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+}
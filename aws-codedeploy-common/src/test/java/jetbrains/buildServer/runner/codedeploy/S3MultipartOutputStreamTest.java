@@ -0,0 +1,175 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.BDDAssertions.failBecauseExceptionWasNotThrown;
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class S3MultipartOutputStreamTest {
+  private static final int PART_SIZE = S3MultipartOutputStream.MIN_PART_SIZE;
+
+  @Test
+  public void small_content_put() throws Exception {
+    final FakeS3 s3 = new FakeS3();
+    final byte[] content = content(1024);
+
+    final S3MultipartOutputStream output = new S3MultipartOutputStream(s3.client(), "bucket", "key", PART_SIZE, 2);
+    output.write(content);
+    output.close();
+
+    then(s3.calls).containsExactly("putObject");
+    then(s3.objects.get("key")).isEqualTo(content);
+    then(output.getETag()).isEqualTo("etag");
+    then(output.getVersionId()).isEqualTo("version");
+  }
+
+  @Test
+  public void multipart_upload() throws Exception {
+    final FakeS3 s3 = new FakeS3();
+    final byte[] content = content(3 * PART_SIZE + 42);
+
+    final S3MultipartOutputStream output = new S3MultipartOutputStream(s3.client(), "bucket", "key", PART_SIZE, 2);
+    for (int off = 0; off < content.length; off += 1000) {
+      output.write(content, off, Math.min(1000, content.length - off));
+    }
+    output.close();
+
+    then(s3.calls).startsWith("initiateMultipartUpload").endsWith("completeMultipartUpload").hasSize(6);
+    then(s3.objects.get("key")).isEqualTo(content);
+    then(s3.maxConcurrentParts.get()).isLessThanOrEqualTo(2);
+    then(output.getETag()).isEqualTo("etag-4");
+    then(output.getBytesWritten()).isEqualTo(content.length);
+  }
+
+  @Test
+  public void failed_part_aborts_upload() throws Exception {
+    final FakeS3 s3 = new FakeS3();
+    s3.failPart = 2;
+
+    final S3MultipartOutputStream output = new S3MultipartOutputStream(s3.client(), "bucket", "key", PART_SIZE, 1);
+    try {
+      output.write(content(3 * PART_SIZE));
+      output.close();
+      failBecauseExceptionWasNotThrown(IOException.class);
+    } catch (IOException e) {
+      then(e).hasMessage("Failed to upload S3 upload part");
+      output.abort();
+    }
+    then(s3.calls).contains("abortMultipartUpload").doesNotContain("completeMultipartUpload");
+    then(s3.objects).isEmpty();
+  }
+
+  @NotNull
+  private static byte[] content(int size) {
+    final byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    return content;
+  }
+
+  private static class FakeS3 implements InvocationHandler {
+    final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    final Map<String, byte[]> objects = new HashMap<String, byte[]>();
+    final Map<Integer, byte[]> parts = Collections.synchronizedMap(new TreeMap<Integer, byte[]>());
+    final AtomicInteger concurrentParts = new AtomicInteger();
+    final AtomicInteger maxConcurrentParts = new AtomicInteger();
+    volatile int failPart = -1;
+
+    @NotNull
+    AmazonS3 client() {
+      return (AmazonS3) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{AmazonS3.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      final String name = method.getName();
+      calls.add(name);
+
+      if ("putObject".equals(name)) {
+        final PutObjectRequest request = (PutObjectRequest) args[0];
+        objects.put(request.getKey(), read(request.getInputStream()));
+        final PutObjectResult result = new PutObjectResult();
+        result.setETag("etag");
+        result.setVersionId("version");
+        return result;
+      }
+      if ("initiateMultipartUpload".equals(name)) {
+        final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId("upload");
+        return result;
+      }
+      if ("uploadPart".equals(name)) {
+        final UploadPartRequest request = (UploadPartRequest) args[0];
+        maxConcurrentParts.set(Math.max(maxConcurrentParts.get(), concurrentParts.incrementAndGet()));
+        try {
+          Thread.sleep(50);
+          if (request.getPartNumber() == failPart) throw new IllegalStateException("part failed");
+          parts.put(request.getPartNumber(), read(request.getInputStream()));
+        } finally {
+          concurrentParts.decrementAndGet();
+        }
+        final UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag("part" + request.getPartNumber());
+        return result;
+      }
+      if ("completeMultipartUpload".equals(name)) {
+        final CompleteMultipartUploadRequest request = (CompleteMultipartUploadRequest) args[0];
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (PartETag partETag : request.getPartETags()) {
+          content.write(parts.get(partETag.getPartNumber()));
+        }
+        objects.put(request.getKey(), content.toByteArray());
+        final CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setETag("etag-" + request.getPartETags().size());
+        return result;
+      }
+      if ("abortMultipartUpload".equals(name)) {
+        parts.clear();
+        return null;
+      }
+      throw new UnsupportedOperationException(name);
+    }
+
+    @NotNull
+    private static byte[] read(@NotNull InputStream input) throws IOException {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = input.read(buffer)) > 0) {
+        output.write(buffer, 0, read);
+      }
+      return output.toByteArray();
+    }
+  }
+}
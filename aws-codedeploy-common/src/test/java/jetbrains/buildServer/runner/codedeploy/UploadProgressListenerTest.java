@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author vbedrosova
+ */
+public class UploadProgressListenerTest {
+  private static final int MB = 1024 * 1024;
+
+  @Test
+  public void reports_progress_once_per_interval() throws Exception {
+    final FakeUploadProgressListener listener = new FakeUploadProgressListener(100L * MB);
+
+    listener.transferred(0, MB);
+    listener.transferred(1000, 4 * MB);
+    then(listener.reports).isEmpty();
+
+    listener.transferred(5000, 5 * MB);
+    then(listener.reports).hasSize(1);
+    final AWSClient.Listener.UploadProgress progress = listener.reports.get(0);
+    then(progress.uploadedBytes).isEqualTo(10L * MB);
+    then(progress.totalBytes).isEqualTo(100L * MB);
+    then(progress.bytesPerSec).isEqualTo(2.0 * MB);
+    then(progress.etaSec).isEqualTo(45);
+    then(progress.retries).isEqualTo(0);
+
+    listener.transferred(7000, 2 * MB);
+    then(listener.reports).hasSize(1);
+
+    listener.transferred(10000, 3 * MB);
+    then(listener.reports).hasSize(2);
+    then(listener.reports.get(1).uploadedBytes).isEqualTo(15L * MB);
+    then(listener.reports.get(1).bytesPerSec).isEqualTo(1.0 * MB);
+  }
+
+  @Test
+  public void counts_retries_and_reset_content() throws Exception {
+    final FakeUploadProgressListener listener = new FakeUploadProgressListener(100L * MB);
+
+    listener.transferred(0, 4 * MB);
+    listener.event(ProgressEventType.CLIENT_REQUEST_RETRY_EVENT, 0);
+    listener.event(ProgressEventType.HTTP_REQUEST_CONTENT_RESET_EVENT, 4 * MB);
+    listener.transferred(5000, 5 * MB);
+
+    then(listener.reports).hasSize(1);
+    then(listener.reports.get(0).uploadedBytes).isEqualTo(5L * MB);
+    then(listener.reports.get(0).retries).isEqualTo(1);
+  }
+
+  @Test
+  public void excludes_skipped_bytes() throws Exception {
+    final FakeUploadProgressListener listener = new FakeUploadProgressListener(100L * MB);
+    listener.skipped(50L * MB);
+
+    listener.transferred(0, MB);
+    listener.transferred(5000, 9 * MB);
+
+    then(listener.reports.get(0).totalBytes).isEqualTo(50L * MB);
+    then(listener.reports.get(0).etaSec).isEqualTo(20);
+  }
+
+  @Test
+  public void unknown_total() throws Exception {
+    final FakeUploadProgressListener listener = new FakeUploadProgressListener(-1);
+
+    listener.transferred(0, MB);
+    listener.transferred(5000, MB);
+
+    then(listener.reports.get(0).totalBytes).isEqualTo(-1);
+    then(listener.reports.get(0).etaSec).isEqualTo(-1);
+  }
+
+  private static class FakeUploadProgressListener extends UploadProgressListener {
+    @NotNull
+    private final List<AWSClient.Listener.UploadProgress> reports;
+    private long myTime;
+
+    FakeUploadProgressListener(long totalBytes) {
+      this(totalBytes, new ArrayList<AWSClient.Listener.UploadProgress>());
+    }
+
+    private FakeUploadProgressListener(long totalBytes, @NotNull final List<AWSClient.Listener.UploadProgress> reports) {
+      super(new AWSClient.Listener() {
+        @Override
+        void uploadRevisionProgress(@NotNull File revision, @NotNull UploadProgress progress) {
+          reports.add(progress);
+        }
+      }, new File("revision.zip"), totalBytes, 5000);
+      this.reports = reports;
+    }
+
+    void transferred(long time, long bytes) {
+      myTime = time;
+      event(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, bytes);
+    }
+
+    void event(@NotNull ProgressEventType type, long bytes) {
+      progressChanged(new ProgressEvent(type, bytes));
+    }
+
+    @Override
+    long currentTimeMillis() {
+      return myTime;
+    }
+  }
+}
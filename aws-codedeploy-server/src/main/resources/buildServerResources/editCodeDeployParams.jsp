@@ -86,8 +86,8 @@
 </tr>
 <tr data-steps="${deploy_step}">
     <th><label for="${dep_group_name_param}">${dep_group_name_label}: <l:star/></label></th>
-    <td><props:textProperty name="${dep_group_name_param}" className="longField" maxlength="256"/>
-        <span class="smallNote">Pre-configured instances, must be running for deployment to succeed</span><span class="error" id="error_${dep_group_name_param}"></span>
+    <td><props:textProperty name="${dep_group_name_param}" className="longField" maxlength="4096"/>
+        <span class="smallNote">Pre-configured instances, must be running for deployment to succeed. Comma-separated list of groups or application:group pairs deploys to several groups in parallel</span><span class="error" id="error_${dep_group_name_param}"></span>
     </td>
 </tr>
 <tr data-steps="${deploy_step}">